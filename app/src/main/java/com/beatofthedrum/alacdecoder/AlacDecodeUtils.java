@@ -50,197 +50,24 @@ public class AlacDecodeUtils
 
 	/* stream reading */
 
-	/* supports reading 1 to 16 bits, in big endian format */
-	static int readbits_16(AlacFile alac, int bits ) 
-	{
-		int result  = 0;
-		int new_accumulator = 0;
-		int part1 = 0;
-		int part2 = 0;
-		int part3 =0;
-		
-		part1 = (alac.input_buffer[alac.ibIdx] & 0xff);
-		part2 = (alac.input_buffer[alac.ibIdx + 1] & 0xff);
-		part3 = (alac.input_buffer[alac.ibIdx + 2] & 0xff);		
-		
-		result = ((part1 << 16) | (part2 << 8) | part3);
-
-		/* shift left by the number of bits we've already read,
-		 * so that the top 'n' bits of the 24 bits we read will
-		 * be the return bits */
-		result = result << alac.input_buffer_bitaccumulator;
-
-		result = result & 0x00ffffff;
-
-		/* and then only want the top 'n' bits from that, where
-		 * n is 'bits' */
-		result = result >> (24 - bits);
-
-		new_accumulator = (alac.input_buffer_bitaccumulator + bits);
-
-		/* increase the buffer pointer if we've read over n bytes. */
-		alac.ibIdx += (new_accumulator >> 3);
-
-		/* and the remainder goes back into the bit accumulator */
-		alac.input_buffer_bitaccumulator = (new_accumulator & 7);
-	
-		return result;
-	}
-
-	/* supports reading 1 to 32 bits, in big endian format */
+	/* supports reading 0 to 32 bits, in big endian format */
 	static int readbits(AlacFile alac, int bits ) 
 	{
-		int result  = 0;
-
-		if (bits > 16)
-		{
-			bits -= 16;
-
-			result = readbits_16(alac, 16) << bits;		
-		}
-
-		result |= readbits_16(alac, bits);
-
-		return result;
-	}
-
-	/* reads a single bit */
-	static int readbit(AlacFile alac) 
-	{
-		int result = 0;
-		int new_accumulator = 0;
-		int part1 = 0;
-		
-		part1 = (alac.input_buffer[alac.ibIdx] & 0xff);
-
-		result = part1;
-
-		result = result << alac.input_buffer_bitaccumulator;
-
-		result = result >> 7 & 1;
-
-		new_accumulator = (alac.input_buffer_bitaccumulator + 1);
-
-		alac.ibIdx += new_accumulator / 8;	
-
-		alac.input_buffer_bitaccumulator = (new_accumulator % 8);
-
-		return result;
-	}
-
-	static void unreadbits(AlacFile alac, int bits )
-	{
-		int new_accumulator  = (alac.input_buffer_bitaccumulator - bits);
-
-		alac.ibIdx += (new_accumulator >> 3);
-
-		alac.input_buffer_bitaccumulator = (new_accumulator & 7);
-		if (alac.input_buffer_bitaccumulator < 0)
-			alac.input_buffer_bitaccumulator *= -1;
-	}
-
-	static LeadingZeros count_leading_zeros_extra(int curbyte, int output, LeadingZeros lz)
-	{
-
-        if ((curbyte & 0xf0)==0)
-		{
-			output += 4;
-		}
-		else
-			curbyte = curbyte >> 4;
-
-		if ((curbyte & 0x8) != 0)
-		{
-			lz.output = output;
-			lz.curbyte = curbyte;
-			return lz;
-		}
-		if ((curbyte & 0x4) != 0)
-		{
-			lz.output = output + 1;
-			lz.curbyte = curbyte;
-			return lz;
-		}
-		if ((curbyte & 0x2) != 0)
-		{
-			lz.output = output + 2;
-			lz.curbyte = curbyte;
-			return lz;
-		}
-		if ((curbyte & 0x1) != 0)
-		{
-			lz.output = output + 3;
-			lz.curbyte = curbyte;
-			return lz;
-		}
-
-		/* shouldn't get here: */
-
-		lz.output = output + 4;
-		lz.curbyte = curbyte;
-		return lz;
-
-	}
-	static int count_leading_zeros(int input, LeadingZeros lz)
-	{
-		int output  = 0;
-		int curbyte  = 0;
-
-        curbyte = input >> 24;
-		if (curbyte != 0)
-		{
-			count_leading_zeros_extra(curbyte, output, lz);
-			output = lz.output;
-			curbyte = lz.curbyte;
-			return output;
-		}
-		output += 8;
-
-		curbyte = input >> 16;
-		if ((curbyte & 0xFF) != 0)
-		{
-			count_leading_zeros_extra(curbyte, output, lz);
-			output = lz.output;
-			curbyte = lz.curbyte;
-
-			return output;
-		}
-		output += 8;
-
-		curbyte = input >> 8;
-		if ((curbyte & 0xFF) != 0)
-		{
-			count_leading_zeros_extra(curbyte, output, lz);
-			output = lz.output;
-			curbyte = lz.curbyte;
-
-			return output;
-		}
-		output += 8;
-
-		curbyte = input;
-		if ((curbyte & 0xFF) != 0)
-		{
-			count_leading_zeros_extra(curbyte, output, lz);
-			output = lz.output;
-			curbyte = lz.curbyte;
-
-			return output;
-		}
-		output += 8;
-
-		return output;
+		return alac.input.readbits(bits);
 	}
 
 	public static int entropy_decode_value(AlacFile alac, int readSampleSize , int k , int rice_kmodifier_mask ) 
 	{
-		int x  = 0; // decoded value
-
 		// read x, number of 1s before 0 represent the rice value.
-		while (x <= Defines.RICE_THRESHOLD && readbit(alac) != 0)
+		// at most RICE_THRESHOLD + 1 1s are read, the 0 is only consumed if found before
+		int x  = Integer.numberOfLeadingZeros(~alac.input.peekbits(32)); // decoded value
+		if (x > Defines.RICE_THRESHOLD)
 		{
-			x++;
+			x = Defines.RICE_THRESHOLD + 1;
+			alac.input.skipbits(x);
 		}
+		else
+			alac.input.skipbits(x + 1);
 
 		if (x > Defines.RICE_THRESHOLD)
 		{
@@ -258,14 +85,18 @@ public class AlacDecodeUtils
 		{
 			if (k != 1)
 			{		
-				int extraBits  = readbits(alac, k);
+				int extraBits  = alac.input.peekbits(k);
 
 				x *= (((1 << k) - 1) & rice_kmodifier_mask);
 
+				/* if extraBits is 0 or 1, only k-1 bits belong to this value */
 				if (extraBits > 1)
+				{
 					x += extraBits - 1;
+					alac.input.skipbits(k);
+				}
 				else
-					unreadbits(alac, 1);
+					alac.input.skipbits(k - 1);
 			}
 		}
 
@@ -284,7 +115,7 @@ public class AlacDecodeUtils
 			int finalValue  = 0;
 			int k   = 0;
 
-			k = 31 - rice_kmodifier - count_leading_zeros((history >> 9) + 3, alac.lz);
+			k = 31 - rice_kmodifier - Integer.numberOfLeadingZeros((history >> 9) + 3);
 
 			if (k < 0)
 				k += rice_kmodifier;
@@ -316,7 +147,7 @@ public class AlacDecodeUtils
 
 				signModifier = 1;
 
-				k = count_leading_zeros(history, alac.lz) + ((history + 16) / 64) - 24;
+				k = Integer.numberOfLeadingZeros(history) + ((history + 16) / 64) - 24;
 
 				// note: blockSize is always 16bit
 				blockSize = entropy_decode_value(alac, 16, k, rice_kmodifier_mask);
@@ -352,6 +183,18 @@ public class AlacDecodeUtils
 		/* first sample always copies */
 		buffer_out = error_buffer;
 
+		/* specialized kernels for the orders Apple encoders use most */
+		if (predictor_coef_num == 4)
+		{
+			predictor_decompress_fir_adapt_4(error_buffer, output_size, readsamplesize, predictor_coef_table, predictor_quantitization);
+			return(buffer_out);
+		}
+		if (predictor_coef_num == 8)
+		{
+			predictor_decompress_fir_adapt_8(error_buffer, output_size, readsamplesize, predictor_coef_table, predictor_quantitization);
+			return(buffer_out);
+		}
+
 		if (predictor_coef_num == 0)
 		{
 			if (output_size <= 1)
@@ -469,7 +312,218 @@ public class AlacDecodeUtils
 		return(buffer_out);
 	}
 
-	
+
+	/* predictor_decompress_fir_adapt() for 4 coefficients, decompresses buffer in place.
+	 * the coefficients and the last outputs are kept in locals, and the sign
+	 * adaptation is unrolled. the adaptation stops as soon as the error changes
+	 * its sign, so each step only runs while the error still has its initial sign */
+	static void predictor_decompress_fir_adapt_4(int[] buffer, int output_size , int readsamplesize , int[] predictor_coef_table, int predictor_quantitization )
+	{
+		final int bitsmove = 32 - readsamplesize;
+		final int q = predictor_quantitization;
+		final int round = 1 << (q - 1);
+
+		/* read warm-up samples */
+		for (int i = 1; i <= 4 && i < output_size; i++)
+			buffer[i] = ((buffer[i - 1] + buffer[i]) << bitsmove) >> bitsmove;
+
+		if (output_size <= 5)
+			return;
+
+		int c0 = predictor_coef_table[0];
+		int c1 = predictor_coef_table[1];
+		int c2 = predictor_coef_table[2];
+		int c3 = predictor_coef_table[3];
+
+		/* base is the output 5 samples back, o1 the previous one */
+		int base = buffer[0];
+		int o4 = buffer[1];
+		int o3 = buffer[2];
+		int o2 = buffer[3];
+		int o1 = buffer[4];
+
+		for (int i = 5; i < output_size; i++)
+		{
+			int error_val = buffer[i];
+
+			int d1 = o1 - base;
+			int d2 = o2 - base;
+			int d3 = o3 - base;
+			int d4 = o4 - base;
+
+			int sum = d1 * c0 + d2 * c1 + d3 * c2 + d4 * c3;
+
+			int outval = ((round + sum) >> q) + base + error_val;
+			outval = (outval << bitsmove) >> bitsmove;
+			buffer[i] = outval;
+
+			int s = Integer.signum(error_val);
+			if (s != 0)
+			{
+				int sign;
+
+				sign = -Integer.signum(d4) * s;
+				c3 -= sign;
+				error_val -= ((-d4 * sign) >> q);
+
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d3) * s;
+					c2 -= sign;
+					error_val -= ((-d3 * sign) >> q) * 2;
+				}
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d2) * s;
+					c1 -= sign;
+					error_val -= ((-d2 * sign) >> q) * 3;
+				}
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d1) * s;
+					c0 -= sign;
+				}
+			}
+
+			base = o4;
+			o4 = o3;
+			o3 = o2;
+			o2 = o1;
+			o1 = outval;
+		}
+
+		predictor_coef_table[0] = c0;
+		predictor_coef_table[1] = c1;
+		predictor_coef_table[2] = c2;
+		predictor_coef_table[3] = c3;
+	}
+
+	/* predictor_decompress_fir_adapt() for 8 coefficients, see above */
+	static void predictor_decompress_fir_adapt_8(int[] buffer, int output_size , int readsamplesize , int[] predictor_coef_table, int predictor_quantitization )
+	{
+		final int bitsmove = 32 - readsamplesize;
+		final int q = predictor_quantitization;
+		final int round = 1 << (q - 1);
+
+		/* read warm-up samples */
+		for (int i = 1; i <= 8 && i < output_size; i++)
+			buffer[i] = ((buffer[i - 1] + buffer[i]) << bitsmove) >> bitsmove;
+
+		if (output_size <= 9)
+			return;
+
+		int c0 = predictor_coef_table[0];
+		int c1 = predictor_coef_table[1];
+		int c2 = predictor_coef_table[2];
+		int c3 = predictor_coef_table[3];
+		int c4 = predictor_coef_table[4];
+		int c5 = predictor_coef_table[5];
+		int c6 = predictor_coef_table[6];
+		int c7 = predictor_coef_table[7];
+
+		/* base is the output 9 samples back, o1 the previous one */
+		int base = buffer[0];
+		int o8 = buffer[1];
+		int o7 = buffer[2];
+		int o6 = buffer[3];
+		int o5 = buffer[4];
+		int o4 = buffer[5];
+		int o3 = buffer[6];
+		int o2 = buffer[7];
+		int o1 = buffer[8];
+
+		for (int i = 9; i < output_size; i++)
+		{
+			int error_val = buffer[i];
+
+			int d1 = o1 - base;
+			int d2 = o2 - base;
+			int d3 = o3 - base;
+			int d4 = o4 - base;
+			int d5 = o5 - base;
+			int d6 = o6 - base;
+			int d7 = o7 - base;
+			int d8 = o8 - base;
+
+			int sum = d1 * c0 + d2 * c1 + d3 * c2 + d4 * c3 + d5 * c4 + d6 * c5 + d7 * c6 + d8 * c7;
+
+			int outval = ((round + sum) >> q) + base + error_val;
+			outval = (outval << bitsmove) >> bitsmove;
+			buffer[i] = outval;
+
+			int s = Integer.signum(error_val);
+			if (s != 0)
+			{
+				int sign;
+
+				sign = -Integer.signum(d8) * s;
+				c7 -= sign;
+				error_val -= ((-d8 * sign) >> q);
+
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d7) * s;
+					c6 -= sign;
+					error_val -= ((-d7 * sign) >> q) * 2;
+				}
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d6) * s;
+					c5 -= sign;
+					error_val -= ((-d6 * sign) >> q) * 3;
+				}
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d5) * s;
+					c4 -= sign;
+					error_val -= ((-d5 * sign) >> q) * 4;
+				}
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d4) * s;
+					c3 -= sign;
+					error_val -= ((-d4 * sign) >> q) * 5;
+				}
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d3) * s;
+					c2 -= sign;
+					error_val -= ((-d3 * sign) >> q) * 6;
+				}
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d2) * s;
+					c1 -= sign;
+					error_val -= ((-d2 * sign) >> q) * 7;
+				}
+				if (Integer.signum(error_val) == s)
+				{
+					sign = -Integer.signum(d1) * s;
+					c0 -= sign;
+				}
+			}
+
+			base = o8;
+			o8 = o7;
+			o7 = o6;
+			o6 = o5;
+			o5 = o4;
+			o4 = o3;
+			o3 = o2;
+			o2 = o1;
+			o1 = outval;
+		}
+
+		predictor_coef_table[0] = c0;
+		predictor_coef_table[1] = c1;
+		predictor_coef_table[2] = c2;
+		predictor_coef_table[3] = c3;
+		predictor_coef_table[4] = c4;
+		predictor_coef_table[5] = c5;
+		predictor_coef_table[6] = c6;
+		predictor_coef_table[7] = c7;
+	}
+
 	public static void deinterlace_16(int[] buffer_a, int[] buffer_b, int[] buffer_out, int numchannels , int numsamples , int interlacing_shift , int interlacing_leftweight )
 	{
 
@@ -518,6 +572,48 @@ public class AlacDecodeUtils
 	}
 
 
+	/* same as above, but writes little endian 16 bit PCM to buffer_out at out_offset */
+	public static void deinterlace_16(int[] buffer_a, int[] buffer_b, byte[] buffer_out, int out_offset, int numchannels , int numsamples , int interlacing_shift , int interlacing_leftweight )
+	{
+		if (numsamples <= 0)
+			return;
+
+		int stride = numchannels * 2;
+
+		/* weighted interlacing */
+		if (0 != interlacing_leftweight)
+		{
+			for (int i = 0, idx = out_offset; i < numsamples; i++, idx += stride)
+			{
+				int midright = buffer_a[i];
+				int difference = buffer_b[i];
+
+				int right = (midright - ((difference * interlacing_leftweight) >> interlacing_shift));
+				int left = (right + difference);
+
+				buffer_out[idx] = (byte) left;
+				buffer_out[idx + 1] = (byte) (left >> 8);
+				buffer_out[idx + 2] = (byte) right;
+				buffer_out[idx + 3] = (byte) (right >> 8);
+			}
+
+			return;
+		}
+
+		/* otherwise basic interlacing took place */
+		for (int i = 0, idx = out_offset; i < numsamples; i++, idx += stride)
+		{
+			int left = buffer_a[i];
+			int right = buffer_b[i];
+
+			buffer_out[idx] = (byte) left;
+			buffer_out[idx + 1] = (byte) (left >> 8);
+			buffer_out[idx + 2] = (byte) right;
+			buffer_out[idx + 3] = (byte) (right >> 8);
+		}
+	}
+
+
 	public static void deinterlace_24(int[] buffer_a, int[] buffer_b, int uncompressed_bytes , int[] uncompressed_bytes_buffer_a, int[] uncompressed_bytes_buffer_b, int[] buffer_out, int numchannels , int numsamples , int interlacing_shift , int interlacing_leftweight )	
 	{
 		if (numsamples <= 0)
@@ -592,22 +688,109 @@ public class AlacDecodeUtils
 
 	}
 
+	/* same as above, but writes packed little endian 24 bit PCM to buffer_out at out_offset */
+	public static void deinterlace_24(int[] buffer_a, int[] buffer_b, int uncompressed_bytes , int[] uncompressed_bytes_buffer_a, int[] uncompressed_bytes_buffer_b, byte[] buffer_out, int out_offset, int numchannels , int numsamples , int interlacing_shift , int interlacing_leftweight )
+	{
+		if (numsamples <= 0)
+			return;
+
+		int stride = numchannels * 3;
+		int shift = uncompressed_bytes * 8;
+		int mask = ~(0xFFFFFFFF << shift);
+
+		for (int i = 0, idx = out_offset; i < numsamples; i++, idx += stride)
+		{
+			int left;
+			int right;
+
+			/* weighted interlacing, otherwise basic interlacing took place */
+			if (interlacing_leftweight != 0)
+			{
+				int midright = buffer_a[i];
+				int difference = buffer_b[i];
+
+				right = midright - ((difference * interlacing_leftweight) >> interlacing_shift);
+				left = right + difference;
+			}
+			else
+			{
+				left = buffer_a[i];
+				right = buffer_b[i];
+			}
+
+			if (uncompressed_bytes != 0)
+			{
+				left = (left << shift) | (uncompressed_bytes_buffer_a[i] & mask);
+				right = (right << shift) | (uncompressed_bytes_buffer_b[i] & mask);
+			}
+
+			buffer_out[idx] = (byte) left;
+			buffer_out[idx + 1] = (byte) (left >> 8);
+			buffer_out[idx + 2] = (byte) (left >> 16);
+			buffer_out[idx + 3] = (byte) right;
+			buffer_out[idx + 4] = (byte) (right >> 8);
+			buffer_out[idx + 5] = (byte) (right >> 16);
+		}
+	}
+
+
+	/* same as above, but truncates the samples and writes little endian 16 bit PCM to buffer_out at out_offset */
+	public static void deinterlace_24_to_16(int[] buffer_a, int[] buffer_b, int uncompressed_bytes , int[] uncompressed_bytes_buffer_a, int[] uncompressed_bytes_buffer_b, byte[] buffer_out, int out_offset, int numchannels , int numsamples , int interlacing_shift , int interlacing_leftweight )
+	{
+		if (numsamples <= 0)
+			return;
+
+		int stride = numchannels * 2;
+		int shift = uncompressed_bytes * 8;
+		int mask = ~(0xFFFFFFFF << shift);
+
+		for (int i = 0, idx = out_offset; i < numsamples; i++, idx += stride)
+		{
+			int left;
+			int right;
+
+			/* weighted interlacing, otherwise basic interlacing took place */
+			if (interlacing_leftweight != 0)
+			{
+				int midright = buffer_a[i];
+				int difference = buffer_b[i];
+
+				right = midright - ((difference * interlacing_leftweight) >> interlacing_shift);
+				left = right + difference;
+			}
+			else
+			{
+				left = buffer_a[i];
+				right = buffer_b[i];
+			}
+
+			if (uncompressed_bytes != 0)
+			{
+				left = (left << shift) | (uncompressed_bytes_buffer_a[i] & mask);
+				right = (right << shift) | (uncompressed_bytes_buffer_b[i] & mask);
+			}
+
+			buffer_out[idx] = (byte) (left >> 8);
+			buffer_out[idx + 1] = (byte) (left >> 16);
+			buffer_out[idx + 2] = (byte) (right >> 8);
+			buffer_out[idx + 3] = (byte) (right >> 16);
+		}
+	}
+
 
-	public static int decode_frame(AlacFile alac, byte[] inbuffer, int inOffset, int[] outbuffer, int outputsize)
+	/* decodes the frame into outputsamples_buffer_a/b, returns the number of samples */
+	static int decode_frame_samples(AlacFile alac, byte[] inbuffer, int inOffset)
 	{
 		int channels ;
 		int outputsamples  = alac.setinfo_max_samples_per_frame;
 
 		/* setup the stream */
-		alac.input_buffer = inbuffer;
-		alac.input_buffer_bitaccumulator = 0;
-		alac.ibIdx = inOffset;
+		alac.input.reset(inbuffer, inOffset);
+		alac.frame_channels = 0;
 
 
 		channels = readbits(alac, 3);
 
-		outputsize = outputsamples * alac.bytespersample;
-
 		if(channels == 0) // 1 channel
 		{
 			int hassize ;
@@ -637,7 +820,6 @@ public class AlacDecodeUtils
 				/* now read the number of samples,
 				 * as a 32bit integer */
 				outputsamples = readbits(alac, 32);
-				outputsize = outputsamples * alac.bytespersample;
 			}
 
 			readsamplesize = alac.setinfo_sample_size - (uncompressed_bytes * 8);
@@ -740,63 +922,8 @@ public class AlacDecodeUtils
 				uncompressed_bytes = 0; // always 0 for uncompressed
 			}
 
-			switch(alac.setinfo_sample_size)
-			{
-			case 16:
-			{
-
-				for (int i = 0; i < outputsamples; i++)
-				{
-					int sample  = alac.outputsamples_buffer_a[i];
-					outbuffer[i * alac.numchannels] = sample;
-									
-					/*
-					** We have to handle the case where the data is actually mono, but the stsd atom says it has 2 channels
-					** in this case we create a stereo file where one of the channels is silent. If mono and 1 channel this value 
-					** will be overwritten in the next iteration
-					*/
-					
-					outbuffer[(i * alac.numchannels) + 1] = 0;
-				}
-				break;
-			}
-			case 24:
-			{
-				for (int i = 0; i < outputsamples; i++)
-				{
-					int sample  = alac.outputsamples_buffer_a[i];
-
-					if (uncompressed_bytes != 0)
-					{
-						int mask  = 0;
-						sample = sample << (uncompressed_bytes * 8);
-						mask = ~(0xFFFFFFFF << (uncompressed_bytes * 8));
-						sample = sample | (alac.uncompressed_bytes_buffer_a[i] & mask);
-					}
-
-					outbuffer[i * alac.numchannels * 3] = ((sample) & 0xFF);
-					outbuffer[i * alac.numchannels * 3 + 1] = ((sample >> 8) & 0xFF);
-					outbuffer[i * alac.numchannels * 3 + 2] = ((sample >> 16) & 0xFF);
-					
-					/*
-					** We have to handle the case where the data is actually mono, but the stsd atom says it has 2 channels
-					** in this case we create a stereo file where one of the channels is silent. If mono and 1 channel this value 
-					** will be overwritten in the next iteration
-					*/
-					
-					outbuffer[i * alac.numchannels * 3 + 3] = 0;
-					outbuffer[i * alac.numchannels * 3 + 4] = 0;
-					outbuffer[i * alac.numchannels * 3 + 5] = 0;
-					
-				}
-				break;
-			}
-			case 20:
-			case 32:
-				System.err.println("FIXME: unimplemented sample size " + alac.setinfo_sample_size);
-			default:
-
-			}
+			alac.frame_channels = 1;
+			alac.frame_uncompressed_bytes = uncompressed_bytes;
 		}
 		else if(channels == 1) // 2 channels
 		{
@@ -826,8 +953,7 @@ public class AlacDecodeUtils
 			{
 				/* now read the number of samples,
 				 * as a 32bit integer */
-				outputsamples = readbits(alac, 32);	
-				outputsize = outputsamples * alac.bytespersample;
+				outputsamples = readbits(alac, 32);
 			}
 
 			readsamplesize = alac.setinfo_sample_size - (uncompressed_bytes * 8) + 1;
@@ -982,27 +1108,298 @@ public class AlacDecodeUtils
 				interlacing_leftweight = 0;
 			}
 
+			alac.frame_channels = 2;
+			alac.frame_uncompressed_bytes = uncompressed_bytes;
+			alac.frame_interlacing_shift = interlacing_shift;
+			alac.frame_interlacing_leftweight = interlacing_leftweight;
+		}
+		return outputsamples;
+	}
+
+	/* decodes a rice code of at most 32 bits for decode_frame_stereo_16(), like
+	 * entropy_decode_value(): the number of 1s before a 0, times 2^k - 1 masked
+	 * by multiplier_mask, plus the k extra bits less one if they exceed 1, or
+	 * escape_bits raw bits after more than RICE_THRESHOLD 1s. k is at least 1 */
+	private static int decode_rice(BitReader input, int k, int escape_bits, int multiplier_mask)
+	{
+		long word = input.peekword();
+
+		int ones = Long.numberOfLeadingZeros(~word);
+		if (ones > Defines.RICE_THRESHOLD)
+		{
+			input.skipbits(Defines.RICE_THRESHOLD + 1 + escape_bits);
+			return (int) ((word << (Defines.RICE_THRESHOLD + 1)) >>> (64 - escape_bits));
+		}
+
+		if (k == 1)
+		{
+			input.skipbits(ones + 1);
+			return ones;
+		}
+
+		int value = ones * (((1 << k) - 1) & multiplier_mask);
+		int extraBits = (int) ((word << (ones + 1)) >>> (64 - k));
+		if (extraBits > 1)
+		{
+			input.skipbits(ones + 1 + k);
+			return value + extraBits - 1;
+		}
+
+		input.skipbits(ones + k);
+		return value;
+	}
+
+	/* fast path for compressed stereo 16 bit frames, which is what virtually
+	 * every AirPlay sender emits. the rice codes are decoded straight from the
+	 * bit reader's reservoir, and the residuals are decoded in place, so the
+	 * predictor kernels can run directly on them.
+	 * returns -1 without touching outbuffer if the frame doesn't match the
+	 * profile, decode_frame_samples() must then be used instead */
+	static int decode_frame_stereo_16(AlacFile alac, byte[] inbuffer, int inOffset, byte[] outbuffer, int outOffset)
+	{
+		final BitReader input = alac.input;
+		input.reset(inbuffer, inOffset);
+
+		int outputsamples = alac.setinfo_max_samples_per_frame;
+
+		int channels = input.readbits(3);
+		input.skipbits(4); /* output waiting */
+		input.skipbits(12); /* unknown, skip 12 bits */
+		int hassize = input.readbit();
+		int uncompressed_bytes = input.readbits(2);
+		int isnotcompressed = input.readbit();
+
+		if (channels != 1 || uncompressed_bytes != 0 || isnotcompressed != 0)
+			return -1;
+
+		if (hassize != 0)
+			outputsamples = input.readbits(32);
+
+		int interlacing_shift = input.readbits(8);
+		int interlacing_leftweight = input.readbits(8);
+
+		/* per channel prediction type, quantitization, rice modifier and predictor order */
+		int[] predictor_coef_table_a = alac.predictor_coef_table_a;
+		int[] predictor_coef_table_b = alac.predictor_coef_table_b;
+
+		int prediction_type_a = input.readbits(4);
+		int prediction_quantitization_a = input.readbits(4);
+		int ricemodifier_a = input.readbits(3);
+		int predictor_coef_num_a = input.readbits(5);
+
+		/* the predictor coef table values are 16 bit signed */
+		for (int i = 0; i < predictor_coef_num_a; i++)
+			predictor_coef_table_a[i] = (short) input.readbits(16);
+
+		int prediction_type_b = input.readbits(4);
+		int prediction_quantitization_b = input.readbits(4);
+		int ricemodifier_b = input.readbits(3);
+		int predictor_coef_num_b = input.readbits(5);
+
+		for (int i = 0; i < predictor_coef_num_b; i++)
+			predictor_coef_table_b[i] = (short) input.readbits(16);
+
+		if (prediction_type_a != 0 || prediction_type_b != 0)
+			return -1;
+
+		final int rice_kmodifier = alac.setinfo_rice_kmodifier;
+		final int rice_kmodifier_mask = (1 << rice_kmodifier) - 1;
+		final int[] buffer_a = alac.outputsamples_buffer_a;
+		final int[] buffer_b = alac.outputsamples_buffer_b;
+
+		for (int channel = 0; channel < 2; channel++)
+		{
+			final int[] buffer_out = (channel == 0) ? buffer_a : buffer_b;
+			final int[] predictor_coef_table = (channel == 0) ? predictor_coef_table_a : predictor_coef_table_b;
+			final int predictor_coef_num = (channel == 0) ? predictor_coef_num_a : predictor_coef_num_b;
+			final int predictor_quantitization = (channel == 0) ? prediction_quantitization_a : prediction_quantitization_b;
+			final int rice_historymult = ((channel == 0) ? ricemodifier_a : ricemodifier_b) * (alac.setinfo_rice_historymult / 4);
+
+			int history = alac.setinfo_rice_initialhistory;
+			int signModifier = 0;
+			int zeros = 0;
+
+			for (int i = 0; i < outputsamples; i++)
+			{
+				int error_val;
+
+				if (zeros > 0)
+				{
+					/* inside a compressed block of 0s */
+					error_val = 0;
+					zeros--;
+				}
+				else
+				{
+					/* entropy_rice_decode(), see there */
+					int k = 31 - rice_kmodifier - Integer.numberOfLeadingZeros((history >> 9) + 3);
+					if (k < 0)
+						k += rice_kmodifier;
+					else
+						k = rice_kmodifier;
+
+					int decodedValue = decode_rice(input, k, 17, -1);
+
+					decodedValue += signModifier;
+					error_val = (decodedValue + 1) / 2; // inc by 1 and shift out sign bit
+					if ((decodedValue & 1) != 0) // the sign is stored in the low bit
+						error_val = -error_val;
+
+					signModifier = 0;
+
+					history += (decodedValue * rice_historymult) - ((history * rice_historymult) >> 9);
+
+					if (decodedValue > 0xFFFF)
+						history = 0xFFFF;
+
+					/* special case, for compressed blocks of 0 */
+					if ((history < 128) && (i + 1 < outputsamples))
+					{
+						signModifier = 1;
+
+						k = Integer.numberOfLeadingZeros(history) + ((history + 16) / 64) - 24;
+
+						/* blockSize is always 16 bit, and its multiplier is masked */
+						int blockSize = decode_rice(input, k, 16, rice_kmodifier_mask);
+
+						zeros = blockSize;
+
+						if (blockSize > 0xFFFF)
+							signModifier = 0;
+
+						history = 0;
+					}
+				}
+
+				buffer_out[i] = error_val;
+			}
+
+			/* decompress in place, see predictor_decompress_fir_adapt() */
+			predictor_decompress_fir_adapt(buffer_out, outputsamples, 17, predictor_coef_table, predictor_coef_num, predictor_quantitization);
+		}
+
+		deinterlace_16(buffer_a, buffer_b, outbuffer, outOffset, 2, outputsamples, interlacing_shift, interlacing_leftweight);
+
+		alac.frame_channels = 2;
+		alac.frame_uncompressed_bytes = 0;
+		alac.frame_interlacing_shift = interlacing_shift;
+		alac.frame_interlacing_leftweight = interlacing_leftweight;
+
+		return outputsamples;
+	}
+
+	/* decodes the frame straight into interleaved little endian PCM of
+	 * output_sample_size bits, returning the number of bytes written to
+	 * outbuffer at outOffset. throws IllegalArgumentException for sample
+	 * sizes other than 16 and 24 bit */
+	public static int decode_frame(AlacFile alac, byte[] inbuffer, int inOffset, byte[] outbuffer, int outOffset)
+	{
+		/* 20 and 32 bit samples aren't implemented */
+		if (alac.setinfo_sample_size != 16 && alac.setinfo_sample_size != 24)
+			throw new IllegalArgumentException("unsupported sample size " + alac.setinfo_sample_size);
+
+		/* 24 bit samples truncated to 16 bit */
+		boolean truncate = (alac.setinfo_sample_size == 24 && alac.output_sample_size == 16);
+		int outputbytespersample = truncate ? 2 * alac.numchannels : alac.bytespersample;
+
+		/* the fast path bounds every rice code to 32 bits, which holds for modifiers up to 23 */
+		if (alac.setinfo_sample_size == 16 && alac.numchannels == 2 && alac.setinfo_rice_kmodifier >= 1 && alac.setinfo_rice_kmodifier <= 23)
+		{
+			int outputsamples = decode_frame_stereo_16(alac, inbuffer, inOffset, outbuffer, outOffset);
+			if (outputsamples >= 0)
+				return outputsamples * alac.bytespersample;
+		}
+
+		int outputsamples = decode_frame_samples(alac, inbuffer, inOffset);
+
+		if (alac.frame_channels == 1)
+		{
 			switch(alac.setinfo_sample_size)
 			{
 			case 16:
 			{
-				deinterlace_16(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, outbuffer, alac.numchannels, outputsamples, interlacing_shift, interlacing_leftweight);
+				for (int i = 0; i < outputsamples; i++)
+				{
+					int sample  = alac.outputsamples_buffer_a[i];
+					int idx = outOffset + i * alac.numchannels * 2;
+
+					outbuffer[idx] = (byte) sample;
+					outbuffer[idx + 1] = (byte) (sample >> 8);
+
+					/* the data is actually mono, but the stsd atom says it has
+					 * 2 channels, so the right channel is silent */
+					if (alac.numchannels > 1)
+					{
+						outbuffer[idx + 2] = 0;
+						outbuffer[idx + 3] = 0;
+					}
+				}
 				break;
 			}
 			case 24:
 			{
-				deinterlace_24(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, uncompressed_bytes, alac.uncompressed_bytes_buffer_a, alac.uncompressed_bytes_buffer_b, outbuffer, alac.numchannels, outputsamples, interlacing_shift, interlacing_leftweight);
-				break;
-			}
-			case 20:
-			case 32:
-				System.err.println("FIXME: unimplemented sample size " + alac.setinfo_sample_size);
+				int uncompressed_bytes = alac.frame_uncompressed_bytes;
 
-			default:
+				for (int i = 0; i < outputsamples; i++)
+				{
+					int sample  = alac.outputsamples_buffer_a[i];
+					int idx = outOffset + i * outputbytespersample;
 
+					if (uncompressed_bytes != 0)
+					{
+						int mask = ~(0xFFFFFFFF << (uncompressed_bytes * 8));
+						sample = sample << (uncompressed_bytes * 8);
+						sample = sample | (alac.uncompressed_bytes_buffer_a[i] & mask);
+					}
+
+					if (truncate)
+					{
+						outbuffer[idx] = (byte) (sample >> 8);
+						outbuffer[idx + 1] = (byte) (sample >> 16);
+
+						if (alac.numchannels > 1)
+						{
+							outbuffer[idx + 2] = 0;
+							outbuffer[idx + 3] = 0;
+						}
+						continue;
+					}
+
+					outbuffer[idx] = (byte) sample;
+					outbuffer[idx + 1] = (byte) (sample >> 8);
+					outbuffer[idx + 2] = (byte) (sample >> 16);
+
+					if (alac.numchannels > 1)
+					{
+						outbuffer[idx + 3] = 0;
+						outbuffer[idx + 4] = 0;
+						outbuffer[idx + 5] = 0;
+					}
+				}
+				break;
+			}
+			}
+		}
+		else if (alac.frame_channels == 2)
+		{
+			switch(alac.setinfo_sample_size)
+			{
+			case 16:
+			{
+				deinterlace_16(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, outbuffer, outOffset, alac.numchannels, outputsamples, alac.frame_interlacing_shift, alac.frame_interlacing_leftweight);
+				break;
+			}
+			case 24:
+			{
+				if (truncate)
+					deinterlace_24_to_16(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, alac.frame_uncompressed_bytes, alac.uncompressed_bytes_buffer_a, alac.uncompressed_bytes_buffer_b, outbuffer, outOffset, alac.numchannels, outputsamples, alac.frame_interlacing_shift, alac.frame_interlacing_leftweight);
+				else
+					deinterlace_24(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, alac.frame_uncompressed_bytes, alac.uncompressed_bytes_buffer_a, alac.uncompressed_bytes_buffer_b, outbuffer, outOffset, alac.numchannels, outputsamples, alac.frame_interlacing_shift, alac.frame_interlacing_leftweight);
+				break;
+			}
 			}
 		}
-		return outputsize;
+		return outputsamples * outputbytespersample;
 	}
 
 	public static AlacFile create_alac(int samplesize , int numchannels )
@@ -13,18 +13,13 @@ package com.beatofthedrum.alacdecoder;
 public class AlacFile
 {
 
-	byte input_buffer[];
-	int ibIdx = 0;
-	int input_buffer_bitaccumulator = 0; /* used so we can do arbitary
+	BitReader input = new BitReader(); /* used so we can do arbitary
 						bit reads */
 
 	int samplesize = 0;
 	int numchannels = 0;
 	int bytespersample = 0;
 
-    LeadingZeros lz = new LeadingZeros();
-
-
     private int buffer_size = 16384;
     /* buffers */
 	int predicterror_buffer_a[] = new int[buffer_size];
@@ -36,6 +31,12 @@ public class AlacFile
 	int uncompressed_bytes_buffer_a[] = new int[buffer_size];
 	int uncompressed_bytes_buffer_b[] = new int[buffer_size];
 
+	/* state of the last decoded frame, used to emit the output samples */
+	int frame_channels = 0;
+	int frame_uncompressed_bytes = 0;
+	int frame_interlacing_shift = 0;
+	int frame_interlacing_leftweight = 0;
+
 
 
 	/* stuff from setinfo */
@@ -56,6 +57,10 @@ public class AlacFile
 	public int setinfo_8a_rate = 0; // 0x0000ac44
 	/* end setinfo stuff */
 
+	/* sample size of the PCM written by decode_frame() into a byte buffer,
+	 * 16 to truncate 24 bit samples, 0 to use setinfo_sample_size */
+	public int output_sample_size = 0;
+
     public int[] predictor_coef_table = new int[1024];
     public int[] predictor_coef_table_a = new int[1024];
     public int[] predictor_coef_table_b = new int[1024];
@@ -0,0 +1,108 @@
+/*
+** BitReader.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.alacdecoder;
+
+/* big endian bit reader over a 64 bit reservoir.
+ * the reservoir is refilled a 32 bit word at a time, and reads past
+ * the end of the input buffer return zero bits instead of failing */
+class BitReader
+{
+	private byte[] buffer;
+	private int ibIdx = 0; /* next byte to load into the reservoir */
+	private int ibEnd = 0;
+
+	private long reservoir = 0; /* unread bits, left aligned */
+	private int reservoir_bits = 0; /* number of unread bits in the reservoir */
+
+	/* start reading buffer at offset */
+	void reset(byte[] buffer, int offset)
+	{
+		this.buffer = buffer;
+		ibIdx = offset;
+		ibEnd = buffer.length;
+		reservoir = 0;
+		reservoir_bits = 0;
+	}
+
+	/* makes sure that at least 32 bits are available in the reservoir */
+	private void refill()
+	{
+		if (ibIdx + 4 <= ibEnd)
+		{
+			long word = ((buffer[ibIdx] & 0xffL) << 24) | ((buffer[ibIdx + 1] & 0xff) << 16) | ((buffer[ibIdx + 2] & 0xff) << 8) | (buffer[ibIdx + 3] & 0xff);
+
+			reservoir |= word << (32 - reservoir_bits);
+			reservoir_bits += 32;
+			ibIdx += 4;
+		}
+		else
+		{
+			/* end of input, pad with zeros */
+			while (reservoir_bits <= 56)
+			{
+				if (ibIdx < ibEnd)
+					reservoir |= (buffer[ibIdx] & 0xffL) << (56 - reservoir_bits);
+				reservoir_bits += 8;
+				ibIdx++;
+			}
+		}
+	}
+
+	/* returns the next 0 to 32 bits without consuming them */
+	int peekbits(int bits)
+	{
+		if (reservoir_bits < bits)
+			refill();
+
+		return (int) (reservoir >>> 1 >>> (63 - bits));
+	}
+
+	/* returns the unread bits, left aligned, of which at least 32 are valid */
+	long peekword()
+	{
+		if (reservoir_bits < 32)
+			refill();
+
+		return reservoir;
+	}
+
+	/* consumes 0 to 32 bits */
+	void skipbits(int bits)
+	{
+		if (reservoir_bits < bits)
+			refill();
+
+		reservoir <<= bits;
+		reservoir_bits -= bits;
+	}
+
+	/* reads 0 to 32 bits */
+	int readbits(int bits)
+	{
+		int result = peekbits(bits);
+
+		reservoir <<= bits;
+		reservoir_bits -= bits;
+
+		return result;
+	}
+
+	/* reads a single bit */
+	int readbit()
+	{
+		if (reservoir_bits < 1)
+			refill();
+
+		int result = (int) (reservoir >>> 63);
+
+		reservoir <<= 1;
+		reservoir_bits -= 1;
+
+		return result;
+	}
+}
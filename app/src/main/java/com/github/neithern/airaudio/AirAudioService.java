@@ -120,6 +120,10 @@ public class AirAudioService extends Service {
             channelMode = AudioChannel.ONLY_LEFT;
         else if ("right".equals(channel))
             channelMode = AudioChannel.ONLY_RIGHT;
+        else if ("mono".equals(channel))
+            channelMode = AudioChannel.MONO;
+        else if ("swapped".equals(channel))
+            channelMode = AudioChannel.SWAPPED;
         if (channelMode == null) {
             int mode = pref.getInt(EXTRA_CHANNEL_MODE, -1);
             AudioChannel[] values = AudioChannel.values();
@@ -0,0 +1,319 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Adapts the playout latency of a session to the network and the device.
+ * <p>
+ * Collects statistics about late, lost and retransmitted packets and about
+ * sink buffer underruns, and periodically adjusts two values within their bounds.
+ * The playout offset delays playback beyond the sender's requested time, which
+ * gives packets and retransmissions more time to arrive. The buffer size is the
+ * number of frames the {@link AudioOutputQueue} keeps buffered in its sink, which
+ * protects against the enqueuer thread being scheduled late.
+ * <p>
+ * Both values are increased as soon as an interval had late packets respectively
+ * underruns, and decreased slowly after a number of calm intervals.
+ * <p>
+ * The statistics may be reported from any thread, {@link #evaluate(long)} must
+ * only be called by a single thread.
+ */
+public final class AdaptiveLatency {
+	private static Logger s_logger = Logger.getLogger("AdaptiveLatency");
+
+	/**
+	 * Length of the intervals the statistics are evaluated in
+	 */
+	private static final double EvaluationIntervalSeconds = 5.0;
+
+	/**
+	 * Number of calm intervals after which the values are decreased
+	 */
+	private static final int CalmIntervalsBeforeDecrease = 6;
+
+	/**
+	 * Maximum fraction of packets which may need a retransmission
+	 * for an interval to count as calm
+	 */
+	private static final double CalmRetransmitRatio = 0.01;
+
+	/**
+	 * Adjustment steps
+	 */
+	private static final double IncreaseSeconds = 0.02;
+	private static final double DecreaseSeconds = 0.01;
+
+	/**
+	 * Values closer than this to a bound count as at the bound, so that
+	 * rounding errors of the steps don't cause further tiny adjustments
+	 */
+	private static final double BoundToleranceSeconds = 1e-6;
+
+	/**
+	 * Bounds of the playout offset and buffer size
+	 */
+	private final double m_minOffsetSeconds;
+	private final double m_maxOffsetSeconds;
+	private final double m_minBufferSeconds;
+	private final double m_maxBufferSeconds;
+
+	/**
+	 * Current playout offset and buffer size
+	 */
+	private volatile double m_offsetSeconds;
+	private volatile double m_bufferSeconds;
+
+	/**
+	 * Statistics, reported by any thread
+	 */
+	private final AtomicLong m_packetsArrived = new AtomicLong(0);
+	private final AtomicLong m_packetsLate = new AtomicLong(0);
+	private final AtomicLong m_packetsLost = new AtomicLong(0);
+	private final AtomicLong m_retransmitsRequested = new AtomicLong(0);
+	private final AtomicLong m_underruns = new AtomicLong(0);
+
+	/**
+	 * Statistics at the start of the current interval
+	 */
+	private long m_intervalPacketsArrived = 0;
+	private long m_intervalPacketsLate = 0;
+	private long m_intervalPacketsLost = 0;
+	private long m_intervalRetransmitsRequested = 0;
+	private long m_intervalUnderruns = 0;
+
+	/**
+	 * Evaluation state, only accessed by the evaluating thread
+	 */
+	private long m_nextEvaluationNanoTime = Long.MIN_VALUE;
+	private int m_calmOffsetIntervals = 0;
+	private int m_calmBufferIntervals = 0;
+
+	/**
+	 * Number of adjustments made
+	 */
+	private volatile int m_offsetIncreases = 0;
+	private volatile int m_offsetDecreases = 0;
+	private volatile int m_bufferIncreases = 0;
+	private volatile int m_bufferDecreases = 0;
+
+	/**
+	 * Creates an instance. Both values start at their lower bound
+	 *
+	 * @param minOffsetSeconds minimal playout offset in seconds
+	 * @param maxOffsetSeconds maximal playout offset in seconds
+	 * @param minBufferSeconds minimal buffer size in seconds
+	 * @param maxBufferSeconds maximal buffer size in seconds
+	 */
+	public AdaptiveLatency(final double minOffsetSeconds, final double maxOffsetSeconds, final double minBufferSeconds, final double maxBufferSeconds) {
+		m_minOffsetSeconds = minOffsetSeconds;
+		m_maxOffsetSeconds = Math.max(minOffsetSeconds, maxOffsetSeconds);
+		m_minBufferSeconds = minBufferSeconds;
+		m_maxBufferSeconds = Math.max(minBufferSeconds, maxBufferSeconds);
+		m_offsetSeconds = m_minOffsetSeconds;
+		m_bufferSeconds = m_minBufferSeconds;
+	}
+
+	/**
+	 * Reports a packet which arrived for playback
+	 */
+	public void packetArrived() {
+		m_packetsArrived.incrementAndGet();
+	}
+
+	/**
+	 * Reports a packet which arrived too late to be played
+	 */
+	public void packetLate() {
+		m_packetsLate.incrementAndGet();
+	}
+
+	/**
+	 * Reports a packet which was given up on
+	 */
+	public void packetLost() {
+		m_packetsLost.incrementAndGet();
+	}
+
+	/**
+	 * Reports retransmit requests
+	 *
+	 * @param count number of packets requested
+	 */
+	public void retransmitsRequested(final int count) {
+		m_retransmitsRequested.addAndGet(count);
+	}
+
+	/**
+	 * Reports that the sink's buffer (almost) ran empty
+	 */
+	public void underrun() {
+		m_underruns.incrementAndGet();
+	}
+
+	/**
+	 * Evaluates the statistics if the current interval has ended,
+	 * and adjusts the playout offset and buffer size
+	 *
+	 * @param nanoTime current {@link System#nanoTime()}
+	 * @return true if either value was changed
+	 */
+	public boolean evaluate(final long nanoTime) {
+		if (m_nextEvaluationNanoTime == Long.MIN_VALUE) {
+			/* Start the first interval */
+			m_nextEvaluationNanoTime = nanoTime + (long)(EvaluationIntervalSeconds * 1e9);
+			return false;
+		}
+		if (nanoTime - m_nextEvaluationNanoTime < 0)
+			return false;
+		m_nextEvaluationNanoTime = nanoTime + (long)(EvaluationIntervalSeconds * 1e9);
+
+		/* Compute the interval's statistics */
+		final long packetsArrived = m_packetsArrived.get();
+		final long packetsLate = m_packetsLate.get();
+		final long packetsLost = m_packetsLost.get();
+		final long retransmitsRequested = m_retransmitsRequested.get();
+		final long underruns = m_underruns.get();
+		final long arrived = packetsArrived - m_intervalPacketsArrived;
+		final long late = packetsLate - m_intervalPacketsLate;
+		final long lost = packetsLost - m_intervalPacketsLost;
+		final long retransmits = retransmitsRequested - m_intervalRetransmitsRequested;
+		final long underrun = underruns - m_intervalUnderruns;
+		m_intervalPacketsArrived = packetsArrived;
+		m_intervalPacketsLate = packetsLate;
+		m_intervalPacketsLost = packetsLost;
+		m_intervalRetransmitsRequested = retransmitsRequested;
+		m_intervalUnderruns = underruns;
+
+		final String statistics = arrived + " packets arrived, " + late + " late, " + lost + " lost, " + retransmits + " retransmits requested, " + underrun + " underruns";
+		boolean changed = false;
+
+		/* Adjust the playout offset. Intervals with retransmits don't count as
+		 * calm even if the retransmissions arrived in time, since the margin
+		 * is probably small
+		 */
+		final double offsetSeconds = m_offsetSeconds;
+		if ((late > 0) || (lost > 0)) {
+			m_calmOffsetIntervals = 0;
+			if (offsetSeconds < m_maxOffsetSeconds - BoundToleranceSeconds) {
+				m_offsetSeconds = Math.min(offsetSeconds + IncreaseSeconds, m_maxOffsetSeconds);
+				++m_offsetIncreases;
+				changed = true;
+				s_logger.info("Playout offset increased to " + m_offsetSeconds + " seconds, " + statistics);
+			}
+		}
+		else if ((arrived == 0) || (retransmits > CalmRetransmitRatio * arrived)) {
+			m_calmOffsetIntervals = 0;
+		}
+		else if (++m_calmOffsetIntervals >= CalmIntervalsBeforeDecrease) {
+			m_calmOffsetIntervals = 0;
+			if (offsetSeconds > m_minOffsetSeconds + BoundToleranceSeconds) {
+				m_offsetSeconds = Math.max(offsetSeconds - DecreaseSeconds, m_minOffsetSeconds);
+				++m_offsetDecreases;
+				changed = true;
+				s_logger.info("Playout offset decreased to " + m_offsetSeconds + " seconds, " + statistics);
+			}
+		}
+
+		/* Adjust the buffer size */
+		final double bufferSeconds = m_bufferSeconds;
+		if (underrun > 0) {
+			m_calmBufferIntervals = 0;
+			if (bufferSeconds < m_maxBufferSeconds - BoundToleranceSeconds) {
+				m_bufferSeconds = Math.min(bufferSeconds + IncreaseSeconds, m_maxBufferSeconds);
+				++m_bufferIncreases;
+				changed = true;
+				s_logger.info("Buffer size increased to " + m_bufferSeconds + " seconds, " + statistics);
+			}
+		}
+		else if (++m_calmBufferIntervals >= CalmIntervalsBeforeDecrease) {
+			m_calmBufferIntervals = 0;
+			if (bufferSeconds > m_minBufferSeconds + BoundToleranceSeconds) {
+				m_bufferSeconds = Math.max(bufferSeconds - DecreaseSeconds, m_minBufferSeconds);
+				++m_bufferDecreases;
+				changed = true;
+				s_logger.info("Buffer size decreased to " + m_bufferSeconds + " seconds, " + statistics);
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Returns the current playout offset, i.e. how much
+	 * later than requested by the sender audio is played
+	 * @return playout offset in seconds
+	 */
+	public double getOffsetSeconds() {
+		return m_offsetSeconds;
+	}
+
+	/**
+	 * Returns the current buffer size
+	 * @return buffer size in seconds
+	 */
+	public double getBufferSeconds() {
+		return m_bufferSeconds;
+	}
+
+	/**
+	 * Returns the maximal buffer size
+	 * @return buffer size in seconds
+	 */
+	public double getMaxBufferSeconds() {
+		return m_maxBufferSeconds;
+	}
+
+	public long getPacketsArrived() {
+		return m_packetsArrived.get();
+	}
+
+	public long getPacketsLate() {
+		return m_packetsLate.get();
+	}
+
+	public long getPacketsLost() {
+		return m_packetsLost.get();
+	}
+
+	public long getRetransmitsRequested() {
+		return m_retransmitsRequested.get();
+	}
+
+	public long getUnderruns() {
+		return m_underruns.get();
+	}
+
+	public int getOffsetIncreases() {
+		return m_offsetIncreases;
+	}
+
+	public int getOffsetDecreases() {
+		return m_offsetDecreases;
+	}
+
+	public int getBufferIncreases() {
+		return m_bufferIncreases;
+	}
+
+	public int getBufferDecreases() {
+		return m_bufferDecreases;
+	}
+}
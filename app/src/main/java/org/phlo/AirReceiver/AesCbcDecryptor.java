@@ -0,0 +1,254 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Table-driven AES-128 decryption in CBC mode, independent of the JCE provider.
+ *
+ * The round keys are computed once per instance. Instances hold no other
+ * mutable state, every call to {@link #decrypt(byte[], int, int)} starts
+ * with the initialization vector passed to the constructor. Instances
+ * may thus be used by multiple threads concurrently.
+ */
+public final class AesCbcDecryptor {
+	/**
+	 * AES block size in bytes
+	 */
+	public static final int BlockSize = 16;
+
+	/**
+	 * Number of rounds of AES-128
+	 */
+	private static final int Rounds = 10;
+
+	/* Forward and inverse S-Box */
+	private static final int[] s_sBox = new int[256];
+	private static final int[] s_invSBox = new int[256];
+
+	/* Decryption tables, combining InvSubBytes and InvMixColumns */
+	private static final int[] s_td0 = new int[256];
+	private static final int[] s_td1 = new int[256];
+	private static final int[] s_td2 = new int[256];
+	private static final int[] s_td3 = new int[256];
+
+	static {
+		/* Compute the S-Box by walking through GF(2^8) with generator 3 */
+		int p = 1, q = 1;
+		do {
+			/* p *= 3 */
+			p = p ^ (p << 1) ^ (((p & 0x80) != 0) ? 0x1b : 0);
+			p &= 0xff;
+
+			/* q /= 3 */
+			q ^= q << 1;
+			q ^= q << 2;
+			q ^= q << 4;
+			q &= 0xff;
+			if ((q & 0x80) != 0)
+				q ^= 0x09;
+
+			/* Affine transformation of the inverse q */
+			final int s = q ^ rotl8(q, 1) ^ rotl8(q, 2) ^ rotl8(q, 3) ^ rotl8(q, 4) ^ 0x63;
+			s_sBox[p] = s;
+			s_invSBox[s] = p;
+		} while (p != 1);
+		s_sBox[0] = 0x63;
+		s_invSBox[0x63] = 0;
+
+		for (int x = 0; x < 256; ++x) {
+			final int si = s_invSBox[x];
+			final int t =
+				(gfMul(si, 0x0e) << 24) |
+				(gfMul(si, 0x09) << 16) |
+				(gfMul(si, 0x0d) << 8) |
+				gfMul(si, 0x0b);
+			s_td0[x] = t;
+			s_td1[x] = Integer.rotateRight(t, 8);
+			s_td2[x] = Integer.rotateRight(t, 16);
+			s_td3[x] = Integer.rotateRight(t, 24);
+		}
+	}
+
+	private static int rotl8(final int x, final int n) {
+		return ((x << n) | (x >>> (8 - n))) & 0xff;
+	}
+
+	private static int gfMul(int a, int b) {
+		int r = 0;
+		while (b != 0) {
+			if ((b & 1) != 0)
+				r ^= a;
+			a = (a << 1) ^ (((a & 0x80) != 0) ? 0x11b : 0);
+			b >>>= 1;
+		}
+		return r;
+	}
+
+	/**
+	 * Decryption round keys, in the order in which they are applied
+	 */
+	private final int[] m_roundKeys = new int[4 * (Rounds + 1)];
+
+	/**
+	 * Initialization vector, as big endian words
+	 */
+	private final int m_iv0, m_iv1, m_iv2, m_iv3;
+
+	/**
+	 * Creates a decryptor for the given key and initialization vector
+	 *
+	 * @param key AES-128 key, 16 bytes
+	 * @param iv initialization vector, 16 bytes
+	 */
+	public AesCbcDecryptor(final byte[] key, final byte[] iv) {
+		if ((key == null) || (key.length != BlockSize))
+			throw new IllegalArgumentException("AES key must be " + BlockSize + " bytes long");
+		if ((iv == null) || (iv.length != BlockSize))
+			throw new IllegalArgumentException("AES IV must be " + BlockSize + " bytes long");
+
+		/* Expand the key into the encryption round keys */
+		final int[] ek = new int[4 * (Rounds + 1)];
+		for (int i = 0; i < 4; ++i)
+			ek[i] = getInt(key, 4 * i);
+		int rcon = 0x01;
+		for (int i = 4; i < ek.length; ++i) {
+			int t = ek[i - 1];
+			if ((i % 4) == 0) {
+				t =
+					(s_sBox[(t >>> 16) & 0xff] << 24) |
+					(s_sBox[(t >>> 8) & 0xff] << 16) |
+					(s_sBox[t & 0xff] << 8) |
+					s_sBox[t >>> 24];
+				t ^= rcon << 24;
+				rcon = gfMul(rcon, 0x02);
+			}
+			ek[i] = ek[i - 4] ^ t;
+		}
+
+		/* The decryption round keys are the encryption round keys in reverse order,
+		 * with InvMixColumns applied to all but the first and the last one
+		 */
+		for (int r = 0; r <= Rounds; ++r) {
+			for (int i = 0; i < 4; ++i) {
+				final int k = ek[4 * (Rounds - r) + i];
+				if ((r == 0) || (r == Rounds)) {
+					m_roundKeys[4 * r + i] = k;
+				}
+				else {
+					m_roundKeys[4 * r + i] =
+						s_td0[s_sBox[k >>> 24]] ^
+						s_td1[s_sBox[(k >>> 16) & 0xff]] ^
+						s_td2[s_sBox[(k >>> 8) & 0xff]] ^
+						s_td3[s_sBox[k & 0xff]];
+				}
+			}
+		}
+
+		m_iv0 = getInt(iv, 0);
+		m_iv1 = getInt(iv, 4);
+		m_iv2 = getInt(iv, 8);
+		m_iv3 = getInt(iv, 12);
+	}
+
+	/**
+	 * Decrypts all full blocks of the given region in place, starting with the
+	 * initialization vector. A trailing partial block is left untouched.
+	 *
+	 * @param data data to decrypt
+	 * @param offset offset of the first block
+	 * @param length length of the region in bytes
+	 */
+	public void decrypt(final byte[] data, final int offset, final int length) {
+		decrypt(data, offset, data, offset, length);
+	}
+
+	/**
+	 * Decrypts all full blocks of the given region into the output array, starting
+	 * with the initialization vector. A trailing partial block is copied unchanged.
+	 * The input and the output region may be the same.
+	 *
+	 * @param in data to decrypt
+	 * @param inOffset offset of the first block
+	 * @param out array to store the decrypted data in
+	 * @param outOffset offset to store the first decrypted block at
+	 * @param length length of the region in bytes
+	 */
+	public void decrypt(final byte[] in, final int inOffset, final byte[] out, final int outOffset, final int length) {
+		final int[] rk = m_roundKeys;
+		final int blocksLength = length & ~(BlockSize - 1);
+
+		int c0 = m_iv0, c1 = m_iv1, c2 = m_iv2, c3 = m_iv3;
+		for (int i = 0; i < blocksLength; i += BlockSize) {
+			/* Remember the cipher text, it is the next block's chaining value */
+			final int n0 = getInt(in, inOffset + i);
+			final int n1 = getInt(in, inOffset + i + 4);
+			final int n2 = getInt(in, inOffset + i + 8);
+			final int n3 = getInt(in, inOffset + i + 12);
+
+			int s0 = n0 ^ rk[0];
+			int s1 = n1 ^ rk[1];
+			int s2 = n2 ^ rk[2];
+			int s3 = n3 ^ rk[3];
+
+			int k = 4;
+			for (int r = 1; r < Rounds; ++r) {
+				final int t0 = s_td0[s0 >>> 24] ^ s_td1[(s3 >>> 16) & 0xff] ^ s_td2[(s2 >>> 8) & 0xff] ^ s_td3[s1 & 0xff] ^ rk[k];
+				final int t1 = s_td0[s1 >>> 24] ^ s_td1[(s0 >>> 16) & 0xff] ^ s_td2[(s3 >>> 8) & 0xff] ^ s_td3[s2 & 0xff] ^ rk[k + 1];
+				final int t2 = s_td0[s2 >>> 24] ^ s_td1[(s1 >>> 16) & 0xff] ^ s_td2[(s0 >>> 8) & 0xff] ^ s_td3[s3 & 0xff] ^ rk[k + 2];
+				final int t3 = s_td0[s3 >>> 24] ^ s_td1[(s2 >>> 16) & 0xff] ^ s_td2[(s1 >>> 8) & 0xff] ^ s_td3[s0 & 0xff] ^ rk[k + 3];
+				s0 = t0;
+				s1 = t1;
+				s2 = t2;
+				s3 = t3;
+				k += 4;
+			}
+
+			/* Last round has no InvMixColumns */
+			final int[] si = s_invSBox;
+			final int p0 = ((si[s0 >>> 24] << 24) | (si[(s3 >>> 16) & 0xff] << 16) | (si[(s2 >>> 8) & 0xff] << 8) | si[s1 & 0xff]) ^ rk[k];
+			final int p1 = ((si[s1 >>> 24] << 24) | (si[(s0 >>> 16) & 0xff] << 16) | (si[(s3 >>> 8) & 0xff] << 8) | si[s2 & 0xff]) ^ rk[k + 1];
+			final int p2 = ((si[s2 >>> 24] << 24) | (si[(s1 >>> 16) & 0xff] << 16) | (si[(s0 >>> 8) & 0xff] << 8) | si[s3 & 0xff]) ^ rk[k + 2];
+			final int p3 = ((si[s3 >>> 24] << 24) | (si[(s2 >>> 16) & 0xff] << 16) | (si[(s1 >>> 8) & 0xff] << 8) | si[s0 & 0xff]) ^ rk[k + 3];
+
+			putInt(out, outOffset + i, p0 ^ c0);
+			putInt(out, outOffset + i + 4, p1 ^ c1);
+			putInt(out, outOffset + i + 8, p2 ^ c2);
+			putInt(out, outOffset + i + 12, p3 ^ c3);
+
+			c0 = n0;
+			c1 = n1;
+			c2 = n2;
+			c3 = n3;
+		}
+
+		/* The trailing partial block isn't encrypted */
+		if ((in != out) || (inOffset != outOffset))
+			System.arraycopy(in, inOffset + blocksLength, out, outOffset + blocksLength, length - blocksLength);
+	}
+
+	private static int getInt(final byte[] b, final int i) {
+		return (b[i] << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+	}
+
+	private static void putInt(final byte[] b, final int i, final int v) {
+		b[i] = (byte)(v >>> 24);
+		b[i + 1] = (byte)(v >>> 16);
+		b[i + 2] = (byte)(v >>> 8);
+		b[i + 3] = (byte)v;
+	}
+}
@@ -3,5 +3,7 @@ package org.phlo.AirReceiver;
 public enum AudioChannel {
     STEREO,
     ONLY_LEFT,
-    ONLY_RIGHT
+    ONLY_RIGHT,
+    MONO,
+    SWAPPED
 }
@@ -26,4 +26,8 @@ public class AudioFormat {
     public int getSampleSizeInBits() {
         return m_sampleBits;
     }
+
+    public int getFrameSize() {
+        return m_channels * m_sampleBits / 8;
+    }
 }
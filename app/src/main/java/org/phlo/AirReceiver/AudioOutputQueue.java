@@ -17,12 +17,10 @@
 
 package org.phlo.AirReceiver;
 
-import android.media.AudioTrack;
-import android.os.Build;
-
 import org.jboss.netty.buffer.ChannelBuffer;
 
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,7 +28,14 @@ import java.util.logging.Logger;
  * Audio output queue.
  * 
  * Serves an an {@link AudioClock} and allows samples to be queued
- * for playback at a specific time.
+ * for playback at a specific time. The samples are played on an
+ * {@link AudioSink}, whose playback position drives the clock.
+ * <p>
+ * In tight synchronization mode, used by receivers forming a stereo pair,
+ * samples are scheduled with sub-frame accuracy. Timing errors then include
+ * the fraction of a frame lost when the line time is rounded, and the
+ * fractional delay of the resampler, so resampling aligns the output to a
+ * fraction of a frame instead of to the nearest frame.
  */
 public class AudioOutputQueue implements AudioClock {
 	private static Logger s_logger = Logger.getLogger("AudioOutputQueue");
@@ -38,9 +43,43 @@ public class AudioOutputQueue implements AudioClock {
 	private static final double TimeSince1970 = 2208988800.0;
 
 	private static final double QueueLengthMaxSeconds = 10;
-	private static final double BufferSizeSeconds = 0.05;
 	private static final double TimingPrecision = 0.001;
 
+	/**
+	 * Timing errors up to this size are absorbed by resampling, larger
+	 * errors by skipping frames respectively inserting silence
+	 */
+	private static final double ResampleLimitSeconds = 0.005;
+
+	/**
+	 * Resampling corrects the timing error by this fraction per second,
+	 * but deviates at most by the given ratio from the nominal rate
+	 */
+	private static final double ResampleCorrectionRate = 1.0;
+	private static final double ResampleMaxDeviation = 0.0005;
+
+	/**
+	 * In tight synchronization mode, the timing error is also integrated into a
+	 * persistent rate correction at this fraction per second squared. Without it,
+	 * a constant drift between the sender's and the sink's clock leaves a timing
+	 * error of drift / {@link #ResampleCorrectionRate}, i.e. tens of microseconds
+	 */
+	private static final double ResampleIntegralRate = 0.25;
+
+	/**
+	 * While audio plays, changes of the playout offset are applied gradually, by
+	 * this many frames per frame played. The resampler then stretches respectively
+	 * compresses the audio, trailing the offset by a timing error of the rate divided
+	 * by {@link #ResampleCorrectionRate}, well within {@link #ResampleLimitSeconds}.
+	 * At half the maximal resampling deviation, a 20ms change takes 80 seconds
+	 */
+	private static final double PlayoutOffsetSlewRate = ResampleMaxDeviation / 2;
+
+	/**
+	 * Minimal time to wait before retrying a write to a non-blocking sink
+	 */
+	private static final double WriteRetrySecondsMin = 0.001;
+
 	/**
 	 * Signals that the queue is being closed.
 	 * Never transitions from true to false!
@@ -52,11 +91,6 @@ public class AudioOutputQueue implements AudioClock {
 	 */
 	private final AudioFormat m_format;
 
-	/**
-	 * Audio output channel mode
-	 */
-	private final AudioChannel m_channelMode;
-
 	/**
 	 * Bytes per frame, i.e. number of bytes
 	 * per sample times the number of channels
@@ -76,19 +110,80 @@ public class AudioOutputQueue implements AudioClock {
 	private final int m_packetSizeFrames;
 
 	/**
-	 * Android audio track (replaces the SourceDataLine)
+	 * Number of frames the enqueuer keeps buffered in the sink. Once
+	 * reached, the enqueuer sleeps until the buffered frames dropped
+	 * to {@link #m_lowBufferedFrames}. Only accessed by the enqueuer
+	 * thread once it runs
+	 */
+	private int m_targetBufferedFrames;
+	private int m_lowBufferedFrames;
+
+	/**
+	 * Bounds of {@link #m_targetBufferedFrames}
+	 */
+	private final int m_minBufferedFrames;
+	private final int m_maxBufferedFrames;
+
+	/**
+	 * Whether samples are scheduled with sub-frame accuracy
+	 */
+	private final boolean m_tightSync;
+
+	/**
+	 * Adapts the playout offset and buffer size, or null if both are fixed
+	 */
+	private final AdaptiveLatency m_latency;
+
+	/**
+	 * Number of frames audio is played later than requested
+	 * by the sender. Guarded by this, like the writers of
+	 * {@link #m_clockOffsets}
+	 */
+	private long m_playoutOffsetFrames = 0;
+
+	/**
+	 * The playout offset {@link #m_latency} asks for, and the offset on the way
+	 * there, before rounding to {@link #m_playoutOffsetFrames}. Only accessed by
+	 * the enqueuer thread once it runs
+	 */
+	private long m_targetPlayoutOffsetFrames = 0;
+	private double m_slewedPlayoutOffsetFrames = 0.0;
+
+	/**
+	 * Audio output device
 	 */
-	private AudioTrack m_audioTrack;
+	private final AudioSink m_sink;
 
 	/**
-	 * The prepared silence data
+	 * The prepared silence data, {@link #m_maxBufferedFrames} long
 	 */
 	private final byte[] m_silenceFrames;
 
 	/**
-	 * Packet queue, indexed by playback time
+	 * Resampler absorbing small timing errors, or null if the
+	 * sample format isn't supported. Only used by the enqueuer thread
+	 */
+	private final DriftResampler m_resampler;
+
+	/**
+	 * Rate correction integrated from the timing errors in tight
+	 * synchronization mode. Only accessed by the queue thread
+	 */
+	private double m_resampleDriftCorrection = 0.0;
+
+	/**
+	 * Applies the channel mode and the gain to the audio data, or null
+	 * if the sample format isn't supported, in which case the channel
+	 * mode is ignored and the gain is applied by the sink. Only used by
+	 * the enqueuer thread
+	 */
+	private final PcmProcessor m_processor;
+
+	/**
+	 * Packet queue, indexed by playback time. Packets are released
+	 * back to their pool once they were written to the line or dropped
 	 */
-	private final ConcurrentSkipListMap<Long, ChannelBuffer> m_queue = new ConcurrentSkipListMap<>();
+	private final PcmPacketQueue m_queue;
 
 	/**
 	 * Enqueuer thread
@@ -96,31 +191,71 @@ public class AudioOutputQueue implements AudioClock {
 	private final Thread m_queueThread = new Thread(new EnQueuer());
 
 	/**
-	 * Number of frames appended to the line
+	 * Released once the enqueuer thread started the sink, or died
 	 */
-	private long m_lineFramesWritten = 0;
+	private final CountDownLatch m_queueThreadStarted = new CountDownLatch(1);
 
 	/**
-	 * Largest frame time seen so far
+	 * Number of frames appended to the line. Only written by the
+	 * enqueuer thread, so readers need no lock
 	 */
-	private long m_latestSeenFrameTime = 0;
+	private volatile long m_lineFramesWritten = 0;
 
 	/**
-	 * The frame time corresponding to line time zero
+	 * Number of frames of audio data respectively silence
+	 * appended to the line. Only written by the enqueuer thread
 	 */
-	private long m_frameTimeOffset = 0;
+	private volatile long m_audioFramesWritten = 0;
+	private volatile long m_silenceFramesWritten = 0;
 
 	/**
-	 * The seconds time corresponding to line time zero
+	 * Largest frame time seen so far. Only used for logging, so
+	 * concurrent enqueues may race
 	 */
-	private double m_secondsTimeOffset;
+	private volatile long m_latestSeenFrameTime = 0;
 
 	/**
-	 * Requested line gain
+	 * Frame and seconds time corresponding to line time zero.
+	 * Replaced as a whole, so the clock accessors never lock
 	 */
-	private float m_requestedGain = 0.0f;
-	private float m_trackVolume = 0.0f;
+	private volatile ClockOffsets m_clockOffsets = new ClockOffsets(0, 0.0, 0.0);
+
+	/**
+	 * Requested gain
+	 */
+	private volatile float m_requestedGain = 0.0f;
+	private float m_lineGain = 0.0f;
 	private static final float MUTE_VOLUME = 0.0f;
+	private static final float UNITY_VOLUME = 1.0f;
+
+	/**
+	 * Immutable snapshot of the offsets between line time and
+	 * frame respectively seconds time
+	 */
+	private static final class ClockOffsets {
+		/**
+		 * The frame time corresponding to line time zero,
+		 * including the playout offset
+		 */
+		final long frameTimeOffset;
+
+		/**
+		 * The fraction of a frame by which the exact frame time
+		 * offset exceeds {@link #frameTimeOffset}
+		 */
+		final double frameTimeOffsetFraction;
+
+		/**
+		 * The seconds time corresponding to line time zero
+		 */
+		final double secondsTimeOffset;
+
+		ClockOffsets(final long frameTimeOffset, final double frameTimeOffsetFraction, final double secondsTimeOffset) {
+			this.frameTimeOffset = frameTimeOffset;
+			this.frameTimeOffsetFraction = frameTimeOffsetFraction;
+			this.secondsTimeOffset = secondsTimeOffset;
+		}
+	}
 
 	/**
 	 * Enqueuer thread
@@ -132,31 +267,72 @@ public class AudioOutputQueue implements AudioClock {
 		@Override
 		public void run() {
 			try {
-				/* Mute line initially to prevent clicks */
-				setLineGain(MUTE_VOLUME);
+				/* Mute initially to prevent clicks. With a processor, the sink plays at
+				 * unity volume, and the processor fades in once audio data is available
+				 */
+				setLineGain((m_processor != null) ? UNITY_VOLUME : MUTE_VOLUME);
 
 				/* Start the line */
-				m_audioTrack.play();
+				m_sink.play();
+				m_queueThreadStarted.countDown();
 
 				boolean lineMuted = true;
 				boolean didWarnGap = false;
+				boolean filling = true;
 				while (!m_closing) {
+					/* Once the sink has (within one packet) the target number of frames
+					 * buffered, sleep until it drained to the low-water mark, then fill it
+					 * up again. Enqueued packets don't need to wake us earlier, since they
+					 * can't be scheduled before the frames already written
+					 */
+					final long bufferedFrames = getNextLineTime() - getNowLineTime();
+					if (bufferedFrames > m_targetBufferedFrames - m_packetSizeFrames) {
+						filling = false;
+					}
+					else if (bufferedFrames <= m_lowBufferedFrames) {
+						/* If we woke up with (almost) nothing left to play, the buffer is too small */
+						if (!filling && (bufferedFrames < m_packetSizeFrames) && (m_latency != null))
+							m_latency.underrun();
+						filling = true;
+					}
+
+					/* Adapt the playout offset and buffer size to the statistics */
+					if ((m_latency != null) && m_latency.evaluate(System.nanoTime()))
+						applyLatency();
+
+					if (!filling) {
+						LockSupport.parkNanos(AudioOutputQueue.this, (long)((bufferedFrames - m_lowBufferedFrames) * 1e9 / m_sampleRate));
+						continue;
+					}
+
+					/* Number of frames of silence to write, filled in below */
+					final long silenceFrames;
+
 					if (!m_queue.isEmpty()) {
 						/* Queue filled */
 
 						/* If the gap between the next packet and the end of line is
 						 * negligible (less than one packet), we write it to the line.
-						 * Otherwise, we fill the line buffer with silence and hope for
-						 * further packets to appear in the queue
+						 * Otherwise, we fill the gap with silence, but only up to the
+						 * target buffer size, since further packets may appear in the
+						 * queue meanwhile
 						 */
-						final long entryFrameTime = m_queue.firstKey();
-						final long entryLineTime = convertFrameToLineTime(entryFrameTime);
-						final long gapFrames = entryLineTime - getNextLineTime();
+						final int entrySlot = m_queue.findFirst(getNextFrameTime());
+						if (entrySlot < 0)
+							continue;
+						final long entryFrameTime = m_queue.peekFrameTime(entrySlot);
+						if (entryFrameTime == Long.MIN_VALUE)
+							continue;
+						final long gapFrames = convertFrameToLineTime(entryFrameTime) - getNextLineTime();
 						if (gapFrames < -m_packetSizeFrames) {
 							/* Too late for playback */
 							s_logger.warning("Audio data was scheduled for playback " + (-gapFrames) + " frames ago, skipping");
+							if (m_latency != null)
+								m_latency.packetLate();
 
-							m_queue.remove(entryFrameTime);
+							final PcmPacket skippedPacket = m_queue.take(entrySlot);
+							if (skippedPacket != null)
+								skippedPacket.release();
 							continue;
 						}
 						else if (gapFrames < m_packetSizeFrames) {
@@ -168,14 +344,18 @@ public class AudioOutputQueue implements AudioClock {
 								s_logger.info("Audio data available, un-muting line");
 
 								lineMuted = false;
-								applyGain();
 							}
-							else if (getLineGain() != m_requestedGain) {
-								applyGain();
-							}
-
-							/* Get sample data and do sanity checks */
-							final ChannelBuffer buffer = m_queue.remove(entryFrameTime);
+							applyGain();
+
+							/* Get sample data and do sanity checks. The packet may have vanished
+							 * if the queue was flushed concurrently, or may have been replaced by
+							 * a retransmission, so its playback time is fetched again
+							 */
+							final PcmPacket packet = m_queue.take(entrySlot);
+							if (packet == null)
+								continue;
+							final long entryLineTime = convertFrameToLineTime(packet.getFrameTime());
+							final ChannelBuffer buffer = packet.getBuffer();
 							int nextPlaybackSamplesLength = buffer.capacity();
 							if (nextPlaybackSamplesLength % m_bytesPerFrame != 0) {
 								//s_logger.severe("Audio data contains non-integral number of frames, ignore last " + (nextPlaybackSamplesLength % m_bytesPerFrame) + " bytes");
@@ -183,9 +363,17 @@ public class AudioOutputQueue implements AudioClock {
 								nextPlaybackSamplesLength -= nextPlaybackSamplesLength % m_bytesPerFrame;
 							}
 
-							/* Append packet to line */
+							/* Append packet to line, then return it to its pool */
 							//s_logger.finest("Audio data containing " + nextPlaybackSamplesLength / m_bytesPerFrame + " frames for playback time " + entryFrameTime + " found in queue, appending to the output line");
-							appendFrames(buffer.array(), buffer.arrayOffset(), nextPlaybackSamplesLength, entryLineTime);
+							try {
+								appendFrames(buffer.array(), buffer.arrayOffset(), nextPlaybackSamplesLength, entryLineTime);
+							}
+							finally {
+								packet.release();
+							}
+
+							/* Move the playout offset only as fast as the resampler follows */
+							slewPlayoutOffset((m_resampler != null) ? PlayoutOffsetSlewRate * nextPlaybackSamplesLength / m_bytesPerFrame : Double.POSITIVE_INFINITY);
 							continue;
 						}
 						else {
@@ -195,6 +383,7 @@ public class AudioOutputQueue implements AudioClock {
 								didWarnGap = true;
 								//s_logger.warning("Audio data missing for frame time " + getNextLineTime() + " (currently " + gapFrames + " frames), writing " + m_packetSizeFrames + " frames of silence");
 							}
+							silenceFrames = Math.min(gapFrames, m_targetBufferedFrames - bufferedFrames);
 						}
 					}
 					else {
@@ -202,35 +391,45 @@ public class AudioOutputQueue implements AudioClock {
 
 						if (!lineMuted) {
 							lineMuted = true;
-							setLineGain(MUTE_VOLUME);
+							if (m_processor != null)
+								m_processor.setGainImmediately(MUTE_VOLUME);
+							else
+								setLineGain(MUTE_VOLUME);
 							//s_logger.fine("Audio data ended at frame time " + getNextLineTime() + ", writing " + m_packetSizeFrames + " frames of silence and muted line");
 						}
+
+						/* Nothing plays, so the playout offset may jump */
+						slewPlayoutOffset(Double.POSITIVE_INFINITY);
+						silenceFrames = m_targetBufferedFrames - bufferedFrames;
 					}
 
-					appendSilence(m_packetSizeFrames);
+					appendSilence((int)silenceFrames);
 				}
 
 				/* Before we exit, we fill the line's buffer with silence. This should prevent
 				 * noise from being output while the line is being stopped
 				 */
 				// Don't need the appendSilence in Android?
-				// appendSilence(m_audioTrack.available() / m_bytesPerFrame);
+				// appendSilence(m_sink.available() / m_bytesPerFrame);
 			}
 			catch (final Throwable e) {
 				s_logger.log(Level.SEVERE, "Audio output thread died unexpectedly", e);
 			}
 			finally {
+				m_queueThreadStarted.countDown();
 				setLineGain(MUTE_VOLUME);
-				m_audioTrack.stop();
-				m_audioTrack.release();
+				m_sink.release();
+
+				s_logger.info("Audio output stopped after writing " + m_audioFramesWritten + " frames of audio and " + m_silenceFramesWritten + " frames of silence");
 			}
 		}
 
 		/**
 		 * Append the range [off,off+len) from the provided sample data to the line.
-		 * If the requested playback time does not match the line end time, samples are
-		 * skipped or silence is inserted as necessary. If the data is marked as being
-		 * just a filler, some warnings are suppressed.
+		 * If the requested playback time does not match the line end time, the samples
+		 * are resampled to gradually absorb small errors, and samples are skipped or
+		 * silence is inserted for larger ones. If the data is marked as being just
+		 * a filler, some warnings are suppressed.
 		 *
 		 * @param samples sample data
 		 * @param len sample data length
@@ -245,12 +444,26 @@ public class AudioOutputQueue implements AudioClock {
 				final long endLineTime = getNextLineTime();
 
 				final long timingErrorFrames = lineTime - endLineTime;
-				final double timingErrorSeconds = timingErrorFrames / m_sampleRate;
+				final double timingErrorSeconds = (m_tightSync ? timingErrorFrames - getFractionalDelayFrames() : timingErrorFrames) / m_sampleRate;
 
-				if (Math.abs(timingErrorSeconds) <= TimingPrecision) {
+				if ((m_resampler != null) && (Math.abs(timingErrorSeconds) <= ResampleLimitSeconds)) {
+					/* Samples to append scheduled close to the line end. Play them slightly
+					 * faster or slower, such that the line end catches up with the schedule
+					 */
+					if (m_tightSync) {
+						final double frameSeconds = (len / m_bytesPerFrame) / m_sampleRate;
+						m_resampleDriftCorrection = Math.max(-ResampleMaxDeviation, Math.min(m_resampleDriftCorrection + timingErrorSeconds * ResampleIntegralRate * frameSeconds, ResampleMaxDeviation));
+					}
+					final double deviation = Math.max(-ResampleMaxDeviation, Math.min(m_resampleDriftCorrection + timingErrorSeconds * ResampleCorrectionRate, ResampleMaxDeviation));
+					process(samples, off, len);
+					appendResampled(samples, off, len, 1.0 + deviation);
+					break;
+				}
+				else if (Math.abs(timingErrorSeconds) <= (m_tightSync ? 0.5 / m_sampleRate : TimingPrecision)) {
 					/* Samples to append scheduled exactly at line end. Just append them and be done */
 
-					appendFrames(samples, off, len);
+					process(samples, off, len);
+					m_audioFramesWritten += appendFrames(samples, off, len);
 					break;
 				}
 				else if (timingErrorFrames > 0) {
@@ -269,6 +482,8 @@ public class AudioOutputQueue implements AudioClock {
 					lineTime += endLineTime - lineTime;
 					if (off + len >= samples.length)
 						off = samples.length - len;
+					if (m_resampler != null)
+						m_resampler.reset();
 				}
 				else {
 					/* Strange universe... */
@@ -277,11 +492,63 @@ public class AudioOutputQueue implements AudioClock {
 			}
 		}
 
+		/**
+		 * Returns the part of the playback delay the line time doesn't reflect, i.e.
+		 * the fraction of a frame lost by rounding the line time, plus the delay of
+		 * the resampler
+		 *
+		 * @return delay in frames
+		 */
+		private double getFractionalDelayFrames() {
+			return m_clockOffsets.frameTimeOffsetFraction + ((m_resampler != null) ? m_resampler.getDelayFrames() : 0.0);
+		}
+
+		/**
+		 * Applies the channel mode and gain to the range [off,off+len)
+		 * of the provided sample data, in place
+		 *
+		 * @param samples sample data
+		 * @param off sample data offset
+		 * @param len sample data length
+		 */
+		private void process(final byte[] samples, final int off, int len) {
+			if (m_processor == null)
+				return;
+
+			len = Math.min(len, samples.length - off);
+			m_processor.process(samples, off, len - len % m_bytesPerFrame);
+		}
+
+		/**
+		 * Resamples the range [off,off+len) from the provided sample data
+		 * and appends the result to the line.
+		 *
+		 * @param samples sample data
+		 * @param off sample data offset
+		 * @param len sample data length
+		 * @param ratio output frames per input frame
+		 */
+		private void appendResampled(final byte[] samples, int off, int len, final double ratio) {
+			final int maxChunkLength = m_resampler.getMaxInputFrames() * m_bytesPerFrame;
+			while (len > 0 && !m_closing) {
+				final int length = Math.min(len, maxChunkLength);
+				final int frames = m_resampler.process(samples, off, length / m_bytesPerFrame, ratio);
+				m_audioFramesWritten += appendFrames(m_resampler.getOutput(), 0, frames * m_bytesPerFrame);
+				off += length;
+				len -= length;
+			}
+		}
+
 		private void appendSilence(int frames) {
+			/* Silence interrupts the resampled stream */
+			if (m_resampler != null)
+				m_resampler.reset();
+
+			final int silenceFrames = m_silenceFrames.length / m_bytesPerFrame;
 			while (frames > 0 && !m_closing) {
-				final int length = Math.min(frames, m_packetSizeFrames) * m_bytesPerFrame;
-				appendFrames(m_silenceFrames, 0, length);
-				frames -= m_packetSizeFrames;
+				final int length = Math.min(frames, silenceFrames) * m_bytesPerFrame;
+				m_silenceFramesWritten += appendFrames(m_silenceFrames, 0, length);
+				frames -= silenceFrames;
 			}
 		}
 
@@ -291,8 +558,9 @@ public class AudioOutputQueue implements AudioClock {
 		 * @param samples sample data
 		 * @param off sample data offset
 		 * @param len sample data length
+		 * @return number of frames written
 		 */
-		private void appendFrames(final byte[] samples, int off, int len) {
+		private int appendFrames(final byte[] samples, int off, int len) {
 			//assert off % m_bytesPerFrame == 0;
 			//assert len % m_bytesPerFrame == 0;
 
@@ -300,69 +568,124 @@ public class AudioOutputQueue implements AudioClock {
 			off = Math.min(off, (samples != null) ? samples.length : 0);
 			len = Math.min(len, (samples != null) ? samples.length - off : 0);
 			if (len <= 0)
-				return;
+				return 0;
 
-			/* Convert samples if necessary */
-			if (m_bytesPerFrame == 4) {
-				if (m_channelMode == AudioChannel.ONLY_LEFT) {
-					for (int i = off; i < off + len; i += m_bytesPerFrame) {
-						samples[i + 2] = samples[i];
-						samples[i + 3] = samples[i + 1];
-					}
-				} else if (m_channelMode == AudioChannel.ONLY_RIGHT) {
-					for (int i = off; i < off + len; i += m_bytesPerFrame) {
-						samples[i] = samples[i + 2];
-						samples[i + 1] = samples[i + 3];
-					}
-				}
-			}
+			/* Write samples to audio sink */
+			final int bytesWritten = write(samples, off, len);
+
+			/* Update state. Only this thread writes the counter */
+			final int framesWritten = bytesWritten / m_bytesPerFrame;
+			m_lineFramesWritten += framesWritten;
+			//s_logger.finest("Audio track end is now at " + getNextLineTime() + " after writing " + len / m_bytesPerFrame + " frames");
+			return framesWritten;
+		}
 
-			/* Write samples to audio track */
+		/**
+		 * Writes the range [off,off+len) to the audio sink, blocking until
+		 * everything was written or the queue is closed. If the sink doesn't
+		 * block, sleeps until the frames which didn't fit can be expected to
+		 * fit, instead of waiting inside the sink.
+		 *
+		 * @return number of bytes written
+		 */
+		private int write(final byte[] samples, int off, int len) {
+			final boolean nonBlocking = m_sink.isNonBlocking();
 			int bytesWritten = 0;
 			while (len > 0 && !m_closing) {
-				final int ret = m_audioTrack.write(samples, off, len);
+				final int ret = m_sink.write(samples, off, len);
 				if (ret < 0)
-					s_logger.warning("Audio track written error: " + ret + " of " + len + " bytes");
-				else if (ret != len)
-					s_logger.warning("Audio track accepted only " + ret + " bytes of " + len + " bytes");
+					s_logger.warning("Audio sink written error: " + ret + " of " + len + " bytes");
+				else if (ret != len && !nonBlocking)
+					s_logger.warning("Audio sink accepted only " + ret + " bytes of " + len + " bytes");
 				if (ret > 0) {
 					off += ret;
 					len -= ret;
 					bytesWritten += ret;
 				}
-			}
 
-			/* Update state */
-			synchronized(AudioOutputQueue.this) {
-				m_lineFramesWritten += bytesWritten / m_bytesPerFrame;
-				//s_logger.finest("Audio track end is now at " + getNextLineTime() + " after writing " + len / m_bytesPerFrame + " frames");
+				if (nonBlocking && len > 0 && !m_closing) {
+					/* Sleep until the sink played the frames which didn't fit, but at
+					 * least for one millisecond and at most for one packet
+					 */
+					final long bufferedFrames = getNextLineTime() + bytesWritten / m_bytesPerFrame - getNowLineTime();
+					final long missingFrames = bufferedFrames + len / m_bytesPerFrame - m_sink.getBufferSizeFrames();
+					final double waitSeconds = Math.min(missingFrames, m_packetSizeFrames) / m_sampleRate;
+					LockSupport.parkNanos(AudioOutputQueue.this, (long)(Math.max(waitSeconds, WriteRetrySecondsMin) * 1e9));
+				}
 			}
+			return bytesWritten;
 		}
+
+	}
+
+	/**
+	 * Creates an audio output queue which plays on the given sink,
+	 * at the time requested by the sender
+	 *
+	 * @param streamInfoProvider provides the audio format and packet size
+	 * @param sink audio output device, created for the provider's audio format
+	 * @param channelMode audio output channel mode
+	 */
+	AudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider, final AudioSink sink, final AudioChannel channelMode) {
+		this(streamInfoProvider, sink, channelMode, null, false);
 	}
 
-	AudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider, int streamType, AudioChannel channelMode) {
+	/**
+	 * Creates an audio output queue which plays on the given sink
+	 *
+	 * @param streamInfoProvider provides the audio format and packet size
+	 * @param sink audio output device, created for the provider's audio format
+	 * @param channelMode audio output channel mode
+	 * @param latency adapts the playout offset and buffer size, or null to
+	 *                play at the requested time using the whole sink buffer
+	 * @param tightSync whether to schedule samples with sub-frame accuracy
+	 */
+	AudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider, final AudioSink sink, final AudioChannel channelMode, final AdaptiveLatency latency, final boolean tightSync) {
 		final AudioFormat audioFormat = streamInfoProvider.getAudioFormat();
 
 		m_format = audioFormat;
-		m_channelMode = channelMode;
+		m_sink = sink;
+		m_latency = latency;
+		m_tightSync = tightSync;
 
 		/* Audio format-dependent stuff */
 		m_packetSizeFrames = streamInfoProvider.getFramesPerPacket();
-		m_bytesPerFrame = m_format.getChannels() * m_format.getSampleSizeInBits() / 8;
+		m_bytesPerFrame = m_format.getFrameSize();
 		m_sampleRate = m_format.getSampleRate();
-		m_silenceFrames = new byte[m_packetSizeFrames * m_bytesPerFrame];
-		for(int b=0; b < m_silenceFrames.length; ++b)
-			m_silenceFrames[b] = (b % 2 == 0) ? (byte)-128 : (byte)0;
-
-		/* Compute desired line buffer size and obtain a line */
-		final int desiredBufferSize = (int)Math.pow(2, Math.ceil(Math.log(BufferSizeSeconds * m_sampleRate * m_bytesPerFrame) / Math.log(2.0)));
-		m_audioTrack = new AudioTrack(streamType,
-				m_format.getSampleRate(),
-				android.media.AudioFormat.CHANNEL_OUT_STEREO,
-				android.media.AudioFormat.ENCODING_PCM_16BIT,
-				desiredBufferSize,
-				AudioTrack.MODE_STREAM);
-		s_logger.info("Audio track created of type " + streamType +  ". Requested buffer of " + desiredBufferSize / m_bytesPerFrame  + " frames, got " + (desiredBufferSize / m_bytesPerFrame) + " frames");
+
+		/* Keep the sink's buffer filled, but at least two packets ahead. If adaptive,
+		 * start with the adaptive buffer size, limited by the sink's buffer
+		 */
+		m_minBufferedFrames = 2 * m_packetSizeFrames;
+		m_maxBufferedFrames = Math.max(sink.getBufferSizeFrames(), m_minBufferedFrames);
+		m_targetBufferedFrames = m_maxBufferedFrames;
+		m_lowBufferedFrames = m_targetBufferedFrames / 2;
+		if (m_latency != null) {
+			applyLatency();
+			slewPlayoutOffset(Double.POSITIVE_INFINITY);
+		}
+
+		/* The queue holds packets up to QueueLengthMaxSeconds in the future, plus
+		 * packets up to one packet late, plus one slot for a packet being replaced
+		 */
+		m_queue = new PcmPacketQueue(m_packetSizeFrames, (int)Math.ceil(QueueLengthMaxSeconds * m_sampleRate / m_packetSizeFrames) + 3);
+
+		/* Signed PCM, so silence is all zeros. Large enough to
+		 * fill the target buffer size with a single write
+		 */
+		m_silenceFrames = new byte[m_maxBufferedFrames * m_bytesPerFrame];
+
+		/* Convert channels and apply the gain in software if possible */
+		if (PcmProcessor.isSupported(m_format))
+			m_processor = new PcmProcessor(m_format, channelMode);
+		else
+			m_processor = null;
+
+		/* Resample packet by packet */
+		if (DriftResampler.isSupported(m_format))
+			m_resampler = new DriftResampler(m_format, m_packetSizeFrames, 1.0 + ResampleMaxDeviation);
+		else
+			m_resampler = null;
 
 		/* Start enqueuer thread and wait for the line to start.
 		 * The wait guarantees that the AudioClock functions return
@@ -376,42 +699,51 @@ public class AudioOutputQueue implements AudioClock {
 			Thread.yield();*/
 
 		/* Initialize the seconds time offset now that the line is running. */
-		m_secondsTimeOffset = TimeSince1970 + System.currentTimeMillis() * 1e-3;
+		m_clockOffsets = new ClockOffsets(m_clockOffsets.frameTimeOffset, m_clockOffsets.frameTimeOffsetFraction, TimeSince1970 + System.currentTimeMillis() * 1e-3);
 	}
 
 	public void start(){
 		m_queueThread.start();
-		while (m_queueThread.isAlive() && m_audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
-			Thread.yield();
+
+		/* Wait for the enqueuer to start the line */
+		boolean interrupted = false;
+		while (true) {
+			try {
+				m_queueThreadStarted.await();
+				break;
+			}
+			catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 
 		/* Initialize the seconds time offset now that the line is running. */
-		m_secondsTimeOffset = TimeSince1970 + System.currentTimeMillis() * 1e-3;
+		synchronized(this) {
+			m_clockOffsets = new ClockOffsets(m_clockOffsets.frameTimeOffset, m_clockOffsets.frameTimeOffsetFraction, TimeSince1970 + System.currentTimeMillis() * 1e-3);
+		}
 	}
 
 	/**
-	 * Sets the line's MASTER_GAIN control to the provided value,
-	 * or complains to the log of the line does not support a MASTER_GAIN control
+	 * Sets the sink's volume to the provided value
 	 *
 	 * @param gain gain to set
 	 */
 	private void setLineGain(final float gain) {
-		m_trackVolume = gain;
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-			m_audioTrack.setVolume(gain);
-		} else {
-			m_audioTrack.setStereoVolume(gain, gain);
-		}
+		m_lineGain = gain;
+		m_sink.setVolume(gain);
 	}
 
 	/**
-	 * Returns the line's MASTER_GAIN control's value.
+	 * Applies the requested gain. The processor ramps to it, which
+	 * makes volume changes click-free. Only called by the enqueuer thread
 	 */
-	private float getLineGain() {
-		return m_trackVolume;
-	}
-
-	private synchronized void applyGain() {
-		setLineGain(m_requestedGain);
+	private void applyGain() {
+		if (m_processor != null)
+			m_processor.setGain(m_requestedGain);
+		else if (m_lineGain != m_requestedGain)
+			setLineGain(m_requestedGain);
 	}
 
 	/**
@@ -419,17 +751,43 @@ public class AudioOutputQueue implements AudioClock {
 	 *
 	 * @param gain desired gain
 	 */
-	public synchronized void setGain(final float gain) {
+	public void setGain(final float gain) {
 		m_requestedGain = gain;
 	}
 
 	/**
 	 * Returns the desired output gain.
 	 */
-	public synchronized float getGain() {
+	public float getGain() {
 		return m_requestedGain;
 	}
 
+	/**
+	 * Returns the number of frames of audio data written to the sink
+	 * @return number of frames
+	 */
+	public long getAudioFramesWritten() {
+		return m_audioFramesWritten;
+	}
+
+	/**
+	 * Returns the number of frames of silence written to the sink, i.e.
+	 * to fill gaps between packets or while the queue was empty
+	 * @return number of frames
+	 */
+	public long getSilenceFramesWritten() {
+		return m_silenceFramesWritten;
+	}
+
+	/**
+	 * Returns the jitter of the sink's playback position, which
+	 * drives the clock. Indicates the achievable synchronization
+	 * @return jitter in seconds, or NaN if unknown
+	 */
+	public double getClockJitterSeconds() {
+		return m_sink.getPositionJitterSeconds();
+	}
+
 	/**
 	 * Stops audio output
 	 */
@@ -439,14 +797,15 @@ public class AudioOutputQueue implements AudioClock {
 	}
 
 	/**
-	 * Adds sample data to the queue
+	 * Adds sample data to the queue. The queue takes ownership of the packet,
+	 * and releases it once it was played or if it is dropped.
 	 *
-	 * @param frameTime start time of sample data
-	 * @param buffer sample data
+	 * @param packet sample data and its start time
 	 * @return true if the sample data was added to the queue
 	 */
-	public synchronized boolean enqueue(final long frameTime, final ChannelBuffer buffer) {
-		final int length = buffer.capacity();
+	public boolean enqueue(final PcmPacket packet) {
+		final long frameTime = packet.getFrameTime();
+		final int length = packet.getBuffer().capacity();
 		/* Playback time of packet */
 		final double packetSeconds = (double)length / (m_bytesPerFrame * m_sampleRate);
 		
@@ -457,11 +816,18 @@ public class AudioOutputQueue implements AudioClock {
 			(convertFrameToLineTime(frameTime) + length / (double) m_bytesPerFrame - getNextLineTime()) /
 			m_sampleRate;
 
-		m_latestSeenFrameTime = Math.max(m_latestSeenFrameTime, frameTime);
+		if (frameTime > m_latestSeenFrameTime)
+			m_latestSeenFrameTime = frameTime;
+
+		if (m_latency != null)
+			m_latency.packetArrived();
 
 		if (delay < -packetSeconds) {
 			/* The whole packet is scheduled to be played in the past */
 			s_logger.warning("Audio data arrived " + -(delay) + " seconds too late, dropping");
+			if (m_latency != null)
+				m_latency.packetLate();
+			packet.release();
 			return false;
 		}
 		else if (delay > QueueLengthMaxSeconds) {
@@ -469,10 +835,12 @@ public class AudioOutputQueue implements AudioClock {
 			 * We reject it, since this is probably the result of some timing discrepancies
 			 */
 			s_logger.warning("Audio data arrived " + delay + " seconds too early, dropping");
+			packet.release();
 			return false;
 		}
 
-		m_queue.put(frameTime, buffer);
+		/* A retransmitted packet may replace an already queued one */
+		m_queue.put(packet);
 		return true;
 	}
 
@@ -483,64 +851,113 @@ public class AudioOutputQueue implements AudioClock {
 		m_queue.clear();
 	}
 
+	/**
+	 * Updates the clock offsets. Synchronized to serialize the writers,
+	 * readers use the published snapshot without locking.
+	 */
 	@Override
 	public synchronized void setFrameTime(final long frameTime, final double secondsTime) {
+		final ClockOffsets clockOffsets = m_clockOffsets;
 		final double ageSeconds = getNowSecondsTime() - secondsTime;
-		final long lineTime = Math.round((secondsTime - m_secondsTimeOffset) * m_sampleRate);
+		final double exactLineTime = (secondsTime - clockOffsets.secondsTimeOffset) * m_sampleRate;
+		final long lineTime = Math.round(exactLineTime);
+
+		final long frameTimeOffset = frameTime - lineTime - m_playoutOffsetFrames;
+		m_clockOffsets = new ClockOffsets(frameTimeOffset, lineTime - exactLineTime, clockOffsets.secondsTimeOffset);
+
+		s_logger.info("Time adjusted " + (frameTimeOffset - clockOffsets.frameTimeOffset) + " based on " + ageSeconds + " seconds old and " + (m_latestSeenFrameTime - frameTime) + " frames, clock jitter " + m_sink.getPositionJitterSeconds() + " seconds");
+	}
 
-		final long frameTimeOffsetPrevious = m_frameTimeOffset;
-		m_frameTimeOffset = frameTime - lineTime;
+	/**
+	 * Sets the number of frames audio is played later than requested by the sender.
+	 * Changing the offset by more than the resampler absorbs while playing causes
+	 * silence to be inserted respectively frames to be skipped, like any other clock
+	 * adjustment, hence the enqueuer moves it gradually, see {@link #slewPlayoutOffset(double)}
+	 *
+	 * @param playoutOffsetFrames playout offset in frames
+	 */
+	private synchronized void setPlayoutOffsetFrames(final long playoutOffsetFrames) {
+		final ClockOffsets clockOffsets = m_clockOffsets;
+		m_clockOffsets = new ClockOffsets(clockOffsets.frameTimeOffset + m_playoutOffsetFrames - playoutOffsetFrames, clockOffsets.frameTimeOffsetFraction, clockOffsets.secondsTimeOffset);
+		m_playoutOffsetFrames = playoutOffsetFrames;
+	}
 
-		s_logger.info("Time adjusted " + (m_frameTimeOffset - frameTimeOffsetPrevious) + " based on " + ageSeconds + " seconds old and " + (m_latestSeenFrameTime - frameTime) + " frames");
+	/**
+	 * Moves the playout offset towards {@link #m_targetPlayoutOffsetFrames}.
+	 * Called by the constructor, and then only by the enqueuer thread
+	 *
+	 * @param maxFrames maximal change in frames, infinite to jump to the target
+	 */
+	private void slewPlayoutOffset(final double maxFrames) {
+		final double offsetFrames = m_slewedPlayoutOffsetFrames;
+		final double targetFrames = m_targetPlayoutOffsetFrames;
+		if (offsetFrames == targetFrames)
+			return;
+
+		m_slewedPlayoutOffsetFrames = (targetFrames > offsetFrames) ? Math.min(offsetFrames + maxFrames, targetFrames) : Math.max(offsetFrames - maxFrames, targetFrames);
+		final long playoutOffsetFrames = Math.round(m_slewedPlayoutOffsetFrames);
+		if (playoutOffsetFrames != Math.round(offsetFrames))
+			setPlayoutOffsetFrames(playoutOffsetFrames);
+	}
+
+	/**
+	 * Applies the buffer size of {@link #m_latency}, and makes its playout offset
+	 * the target of {@link #slewPlayoutOffset(double)}. Called by the constructor,
+	 * and then only by the enqueuer thread
+	 */
+	private void applyLatency() {
+		m_targetPlayoutOffsetFrames = Math.round(m_latency.getOffsetSeconds() * m_sampleRate);
+
+		final int bufferedFrames = (int)Math.round(m_latency.getBufferSeconds() * m_sampleRate);
+		m_targetBufferedFrames = Math.max(m_minBufferedFrames, Math.min(bufferedFrames, m_maxBufferedFrames));
+		m_lowBufferedFrames = m_targetBufferedFrames / 2;
+	}
+
+	/**
+	 * Returns the number of frames audio is played later than requested by the sender
+	 * @return playout offset in frames
+	 */
+	public synchronized long getPlayoutOffsetFrames() {
+		return m_playoutOffsetFrames;
 	}
 
 	@Override
 	public double getNowSecondsTime() {
-		return m_secondsTimeOffset + getNowLineTime() / m_sampleRate;
+		return m_clockOffsets.secondsTimeOffset + getNowLineTime() / m_sampleRate;
 	}
 
 	@Override
 	public long getNowFrameTime() {
-		return m_frameTimeOffset + getNowLineTime();
+		return m_clockOffsets.frameTimeOffset + getNowLineTime();
 	}
 
 	@Override
 	public double getNextSecondsTime() {
-		return m_secondsTimeOffset + getNextLineTime() / m_sampleRate;
+		return m_clockOffsets.secondsTimeOffset + getNextLineTime() / m_sampleRate;
 	}
 
 	@Override
 	public long getNextFrameTime() {
-		return m_frameTimeOffset + getNextLineTime();
+		return m_clockOffsets.frameTimeOffset + getNextLineTime();
 	}
 
 	@Override
 	public double convertFrameToSecondsTime(final long frameTime) {
-		return m_secondsTimeOffset + (frameTime - m_frameTimeOffset) / m_sampleRate;
+		final ClockOffsets clockOffsets = m_clockOffsets;
+		return clockOffsets.secondsTimeOffset + (frameTime - clockOffsets.frameTimeOffset) / m_sampleRate;
 	}
 
-	private synchronized long getNextLineTime() {
+	private long getNextLineTime() {
 		return m_lineFramesWritten;
 	}
 
-	private long m_lastPosition = 0;
-	private long m_totalPosition = 0;
-
-	private synchronized long getNowLineTime() {
-		if (m_audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-			int intPos = m_audioTrack.getPlaybackHeadPosition();
-			long longPos = intPos & 0xffffffffL;
-			if (longPos < m_lastPosition && longPos < 0x7fffffffL && m_lastPosition > 0x80000000L) {
-				// wrap(overflow), need to fix it as 64 bits
-				m_totalPosition += 0xffffffffL;
-			}
-			m_lastPosition = longPos;
-			return m_totalPosition + longPos;
-		}
+	private long getNowLineTime() {
+		if (m_sink.isPlaying())
+			return m_sink.getPlaybackHeadPosition();
 		return 0;
 	}
 
-	private synchronized long convertFrameToLineTime(final long entryFrameTime) {
-		return entryFrameTime - m_frameTimeOffset;
+	private long convertFrameToLineTime(final long entryFrameTime) {
+		return entryFrameTime - m_clockOffsets.frameTimeOffset;
 	}
 }
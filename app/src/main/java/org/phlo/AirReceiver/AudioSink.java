@@ -0,0 +1,101 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Audio output device used by the {@link AudioOutputQueue}.
+ * <p>
+ * Samples are passed in the format of the {@link AudioFormat} the
+ * sink was created for, i.e. as signed little endian PCM, with 24-bit
+ * samples packed into 3 bytes. Sinks convert them as necessary.
+ * <p>
+ * {@link #play()}, {@link #write(byte[], int, int)}, {@link #setVolume(float)} and
+ * {@link #release()} are called by the queue's enqueuer thread. {@link #isPlaying()}
+ * and {@link #getPlaybackHeadPosition()} may be called concurrently by any thread,
+ * and should not block on the enqueuer thread.
+ */
+public interface AudioSink {
+	/**
+	 * Starts playback
+	 */
+	void play();
+
+	/**
+	 * Returns whether the sink is playing, i.e. whether
+	 * {@link #getPlaybackHeadPosition()} advances
+	 *
+	 * @return true if playing
+	 */
+	boolean isPlaying();
+
+	/**
+	 * Writes the range [off,off+len) to the sink. Unless the sink is
+	 * {@link #isNonBlocking() non-blocking}, blocks until there is room
+	 * in the sink's buffer. May write fewer bytes than requested.
+	 *
+	 * @param samples sample data
+	 * @param off sample data offset
+	 * @param len sample data length
+	 * @return number of bytes written, or a negative error code
+	 */
+	int write(byte[] samples, int off, int len);
+
+	/**
+	 * Returns whether {@link #write(byte[], int, int)} returns immediately
+	 * once the sink's buffer is full, instead of waiting for room. The caller
+	 * then has to retry writing the remaining bytes later
+	 *
+	 * @return true if writes don't block
+	 */
+	boolean isNonBlocking();
+
+	/**
+	 * Returns the size of the sink's buffer, i.e. the number of frames
+	 * which can be written ahead of the playback position without blocking
+	 *
+	 * @return buffer size in frames
+	 */
+	int getBufferSizeFrames();
+
+	/**
+	 * Returns the number of frames played since playback started
+	 *
+	 * @return playback position in frames
+	 */
+	long getPlaybackHeadPosition();
+
+	/**
+	 * Returns how much the device's playback position scatters around
+	 * a steady clock, i.e. the uncertainty of {@link #getPlaybackHeadPosition()}
+	 *
+	 * @return jitter in seconds, or NaN if unknown
+	 */
+	double getPositionJitterSeconds();
+
+	/**
+	 * Sets the output volume
+	 *
+	 * @param volume volume between 0 (muted) and 1
+	 */
+	void setVolume(float volume);
+
+	/**
+	 * Stops playback and releases the sink's resources
+	 */
+	void release();
+}
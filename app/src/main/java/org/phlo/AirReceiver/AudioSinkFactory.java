@@ -0,0 +1,48 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Creates the {@link AudioSink} a RAOP session plays through.
+ * <p>
+ * {@link RaopAudioHandler} uses {@link AudioTrackSink#Factory} unless
+ * another factory is installed with {@link RaopAudioHandler#setAudioSinkFactory(AudioSinkFactory)},
+ * for example one creating {@link NullAudioSink}s to run the whole pipeline
+ * without an audio device.
+ */
+public interface AudioSinkFactory {
+	/**
+	 * Returns the maximal sample size the created sinks play. The ALAC
+	 * decoder truncates samples larger than this
+	 *
+	 * @return sample size in bits
+	 */
+	int getMaxBitsPerSample();
+
+	/**
+	 * Creates a sink
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param framesPerPacket number of frames per packet
+	 * @param streamType Android audio stream type
+	 * @param bufferSeconds size of the sink's buffer in seconds
+	 * @param nonBlocking whether writes should return once the buffer is full, where supported
+	 * @return the sink
+	 */
+	AudioSink create(AudioFormat format, int framesPerPacket, int streamType, double bufferSeconds, boolean nonBlocking);
+}
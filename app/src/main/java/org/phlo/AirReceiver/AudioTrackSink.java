@@ -0,0 +1,448 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * {@link AudioSink} which plays the samples on an Android {@link AudioTrack}
+ * <p>
+ * On API 21 and later, the sink can write without blocking. The samples are
+ * then converted into a direct buffer and handed to the track with
+ * {@link AudioTrack#WRITE_NON_BLOCKING}, and the caller schedules retries
+ * itself instead of waiting inside the framework.
+ * <p>
+ * On API 19 and later, the playback position is interpolated by a
+ * {@link PlaybackClock} from the track's timestamps, which are sampled
+ * periodically by whichever thread asks for the position.
+ */
+public class AudioTrackSink implements AudioSink {
+	private static Logger s_logger = Logger.getLogger("AudioTrackSink");
+
+	/**
+	 * Default buffer size
+	 */
+	public static final double BufferSizeSeconds = 0.05;
+
+	/**
+	 * Creates audio track sinks, used by {@link RaopAudioHandler} by default
+	 */
+	public static final AudioSinkFactory Factory = new AudioSinkFactory() {
+		@Override
+		public int getMaxBitsPerSample() {
+			return AudioTrackSink.getMaxBitsPerSample();
+		}
+
+		@Override
+		public AudioSink create(final AudioFormat format, final int framesPerPacket, final int streamType, final double bufferSeconds, final boolean nonBlocking) {
+			return new AudioTrackSink(format, framesPerPacket, streamType, bufferSeconds, nonBlocking);
+		}
+	};
+
+	/**
+	 * Intervals between timestamps. Timestamps are taken more frequently
+	 * until the clock has enough of them for a stable fit
+	 */
+	private static final double TimestampIntervalSecondsInitial = 0.1;
+	private static final double TimestampIntervalSeconds = 1.0;
+	private static final int TimestampCountInitial = 8;
+
+	/**
+	 * Android audio track (replaces the SourceDataLine)
+	 */
+	private final AudioTrack m_audioTrack;
+
+	/**
+	 * Conversion buffer for 24-bit audio, which is played as float samples.
+	 * Holds one packet, null for 16-bit audio
+	 */
+	private final float[] m_floatSamples;
+
+	/**
+	 * Direct buffer the samples are converted into for non-blocking writes,
+	 * in the track's encoding and native byte order. Holds one packet, null
+	 * if writes block. For 24-bit audio, m_directFloats is a view of it
+	 */
+	private final ByteBuffer m_directBuffer;
+	private final FloatBuffer m_directFloats;
+
+	/**
+	 * Size of the audio track's buffer in frames
+	 */
+	private final int m_bufferSizeFrames;
+
+	/**
+	 * Bytes per frame of the samples written to the sink
+	 * respectively of the samples written to the track
+	 */
+	private final int m_bytesPerFrame;
+	private final int m_trackBytesPerFrame;
+
+	/**
+	 * Number of frames written to the track. Only written by
+	 * the writing thread, and used to extend the track's 32-bit
+	 * playback head position to 64 bits
+	 */
+	private volatile long m_framesWritten = 0;
+
+	/**
+	 * Playback position interpolated from the track's timestamps,
+	 * null if the track doesn't provide timestamps
+	 */
+	private final PlaybackClock m_clock;
+
+	/**
+	 * Time the next timestamp is due. Claimed by compare-and-set,
+	 * so only one thread at a time takes a timestamp
+	 */
+	private final AtomicLong m_nextTimestampNanoTime = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Receives the timestamps, only used by the thread which claimed the timestamp
+	 */
+	private final AudioTimestamp m_timestamp = new AudioTimestamp();
+
+	/**
+	 * Returns the maximal sample size the sink plays. Where the audio track supports
+	 * float samples, 24-bit audio is played as float, otherwise 24-bit audio must be
+	 * truncated to 16-bit before it is written to the sink
+	 *
+	 * @return sample size in bits
+	 */
+	public static int getMaxBitsPerSample() {
+		return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) ? 24 : 16;
+	}
+
+	/**
+	 * Creates an audio track for the given format with the default buffer size
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param framesPerPacket number of frames per packet
+	 * @param streamType Android audio stream type
+	 */
+	public AudioTrackSink(final AudioFormat format, final int framesPerPacket, final int streamType) {
+		this(format, framesPerPacket, streamType, BufferSizeSeconds);
+	}
+
+	/**
+	 * Creates an audio track for the given format
+	 *
+	 * @param format format of the samples written to the sink, at most
+	 *               {@link #getMaxBitsPerSample()} bits per sample
+	 * @param framesPerPacket number of frames per packet
+	 * @param streamType Android audio stream type
+	 * @param bufferSeconds requested buffer size in seconds
+	 */
+	public AudioTrackSink(final AudioFormat format, final int framesPerPacket, final int streamType, final double bufferSeconds) {
+		this(format, framesPerPacket, streamType, bufferSeconds, false);
+	}
+
+	/**
+	 * Creates an audio track for the given format
+	 *
+	 * @param format format of the samples written to the sink, at most
+	 *               {@link #getMaxBitsPerSample()} bits per sample
+	 * @param framesPerPacket number of frames per packet
+	 * @param streamType Android audio stream type
+	 * @param bufferSeconds requested buffer size in seconds
+	 * @param nonBlocking whether writes should not block, only
+	 *                    supported on API 21 and later
+	 */
+	public AudioTrackSink(final AudioFormat format, final int framesPerPacket, final int streamType, final double bufferSeconds, final boolean nonBlocking) {
+		this(format, framesPerPacket,
+			createAudioTrack(format, streamType, getDesiredBufferSize(format, bufferSeconds)),
+			getDesiredBufferSize(format, bufferSeconds),
+			nonBlocking && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP));
+		s_logger.info("Audio track created of type " + streamType +  " for " + format.getSampleSizeInBits() + "-bit " + format.getSampleRate() + " Hz audio. Requested buffer of " + getDesiredBufferSize(format, bufferSeconds) / m_trackBytesPerFrame  + " frames, got " + m_bufferSizeFrames + " frames" + ((m_directBuffer != null) ? ", writing without blocking" : ""));
+	}
+
+	/**
+	 * Creates a sink playing on the given audio track. Used by tests to play on a fake track
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param framesPerPacket number of frames per packet
+	 * @param audioTrack audio track, created for the format's track encoding
+	 * @param desiredBufferSize buffer size in bytes requested for the track
+	 * @param nonBlocking whether to write without blocking, the caller
+	 *                    checks that the API level supports it
+	 */
+	AudioTrackSink(final AudioFormat format, final int framesPerPacket, final AudioTrack audioTrack, final int desiredBufferSize, final boolean nonBlocking) {
+		m_bytesPerFrame = format.getFrameSize();
+		m_trackBytesPerFrame = getTrackBytesPerSample(format) * format.getChannels();
+		m_floatSamples = (getTrackEncoding(format) == android.media.AudioFormat.ENCODING_PCM_FLOAT) ? new float[framesPerPacket * format.getChannels()] : null;
+
+		if (nonBlocking) {
+			m_directBuffer = ByteBuffer.allocateDirect(framesPerPacket * m_trackBytesPerFrame).order(ByteOrder.nativeOrder());
+			m_directFloats = (m_floatSamples != null) ? m_directBuffer.asFloatBuffer() : null;
+		}
+		else {
+			m_directBuffer = null;
+			m_directFloats = null;
+		}
+
+		m_audioTrack = audioTrack;
+		m_clock = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) ? new PlaybackClock(format.getSampleRate()) : null;
+		m_bufferSizeFrames = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) ? m_audioTrack.getBufferSizeInFrames() : desiredBufferSize / m_trackBytesPerFrame;
+	}
+
+	/**
+	 * Returns the audio track's encoding for the format. The track has no packed
+	 * 24-bit encoding before API 31, so 24-bit audio is played as float
+	 *
+	 * @param format format of the samples written to the sink
+	 * @return Android audio encoding
+	 */
+	private static int getTrackEncoding(final AudioFormat format) {
+		return (format.getSampleSizeInBits() == 24) ? android.media.AudioFormat.ENCODING_PCM_FLOAT : android.media.AudioFormat.ENCODING_PCM_16BIT;
+	}
+
+	private static int getTrackBytesPerSample(final AudioFormat format) {
+		return (getTrackEncoding(format) == android.media.AudioFormat.ENCODING_PCM_FLOAT) ? 4 : 2;
+	}
+
+	/**
+	 * Returns the track buffer size for the requested duration, rounded up to a power of two
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param bufferSeconds requested buffer size in seconds
+	 * @return buffer size in bytes
+	 */
+	private static int getDesiredBufferSize(final AudioFormat format, final double bufferSeconds) {
+		final int trackBytesPerFrame = getTrackBytesPerSample(format) * format.getChannels();
+		return (int)Math.pow(2, Math.ceil(Math.log(bufferSeconds * format.getSampleRate() * trackBytesPerFrame) / Math.log(2.0)));
+	}
+
+	/**
+	 * Creates an audio track for the given format
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param streamType Android audio stream type
+	 * @param desiredBufferSize buffer size in bytes
+	 * @return audio track
+	 */
+	private static AudioTrack createAudioTrack(final AudioFormat format, final int streamType, final int desiredBufferSize) {
+		if (format.getSampleSizeInBits() > getMaxBitsPerSample())
+			throw new IllegalArgumentException("Unsupported sample size " + format.getSampleSizeInBits() + ", at most " + getMaxBitsPerSample() + " bits are supported");
+
+		return new AudioTrack(streamType,
+				format.getSampleRate(),
+				android.media.AudioFormat.CHANNEL_OUT_STEREO,
+				getTrackEncoding(format),
+				desiredBufferSize,
+				AudioTrack.MODE_STREAM);
+	}
+
+	@Override
+	public void play() {
+		m_audioTrack.play();
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return m_audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+	}
+
+	@Override
+	public int write(final byte[] samples, final int off, final int len) {
+		final int ret;
+		if (m_directBuffer != null)
+			ret = writeNonBlocking(samples, off, len);
+		else if (m_floatSamples != null)
+			ret = writeFloat(samples, off, len);
+		else
+			ret = m_audioTrack.write(samples, off, len);
+
+		if (ret > 0)
+			m_framesWritten += ret / m_bytesPerFrame;
+		return ret;
+	}
+
+	/**
+	 * Converts the packed 24-bit samples in [off,off+len) to float
+	 * and writes them to the audio track.
+	 *
+	 * @return number of source bytes written
+	 */
+	private int writeFloat(final byte[] samples, int off, int len) {
+		final float[] floatSamples = m_floatSamples;
+		int bytesWritten = 0;
+		while (len >= 3) {
+			final int count = Math.min(len / 3, floatSamples.length);
+			for (int i = 0, j = off; i < count; ++i, j += 3)
+				floatSamples[i] = toFloat(samples, j);
+
+			final int ret = m_audioTrack.write(floatSamples, 0, count, AudioTrack.WRITE_BLOCKING);
+			if (ret < 0)
+				return (bytesWritten > 0) ? bytesWritten : ret;
+			bytesWritten += ret * 3;
+			if (ret < count)
+				break;
+
+			off += count * 3;
+			len -= count * 3;
+		}
+		return bytesWritten;
+	}
+
+	/**
+	 * Converts the samples in [off,off+len) into the direct buffer packet by packet,
+	 * and writes them to the audio track without blocking. Stops once the track
+	 * accepts less than a whole packet, the remaining samples are converted again
+	 * by the caller's retry.
+	 *
+	 * @return number of source bytes written
+	 */
+	private int writeNonBlocking(final byte[] samples, int off, int len) {
+		final ByteBuffer directBuffer = m_directBuffer;
+		final int maxFrames = directBuffer.capacity() / m_trackBytesPerFrame;
+		int bytesWritten = 0;
+		while (len >= m_bytesPerFrame) {
+			final int frames = Math.min(len / m_bytesPerFrame, maxFrames);
+			final int length = frames * m_bytesPerFrame;
+
+			directBuffer.clear();
+			if (m_directFloats != null) {
+				final FloatBuffer directFloats = m_directFloats;
+				directFloats.clear();
+				for (int j = off, end = off + length; j < end; j += 3)
+					directFloats.put(toFloat(samples, j));
+			}
+			else {
+				directBuffer.put(samples, off, length);
+			}
+			directBuffer.limit(frames * m_trackBytesPerFrame);
+			directBuffer.position(0);
+
+			final int size = directBuffer.remaining();
+			final int ret = m_audioTrack.write(directBuffer, size, AudioTrack.WRITE_NON_BLOCKING);
+			if (ret < 0)
+				return (bytesWritten > 0) ? bytesWritten : ret;
+			bytesWritten += ret / m_trackBytesPerFrame * m_bytesPerFrame;
+			if (ret < size)
+				break;
+
+			off += length;
+			len -= length;
+		}
+		return bytesWritten;
+	}
+
+	/**
+	 * Converts a packed 24-bit sample to float
+	 */
+	private static float toFloat(final byte[] samples, final int j) {
+		return ((samples[j] & 0xff) | ((samples[j + 1] & 0xff) << 8) | (samples[j + 2] << 16)) * (1.0f / 0x800000);
+	}
+
+	/**
+	 * Returns the number of frames written to the track
+	 * @return number of frames
+	 */
+	long getFramesWritten() {
+		return m_framesWritten;
+	}
+
+	@Override
+	public boolean isNonBlocking() {
+		return m_directBuffer != null;
+	}
+
+	@Override
+	public int getBufferSizeFrames() {
+		return m_bufferSizeFrames;
+	}
+
+	@Override
+	public long getPlaybackHeadPosition() {
+		final long framesWritten = m_framesWritten;
+		if (m_clock != null) {
+			final long nanoTime = System.nanoTime();
+			takeTimestamp(nanoTime, framesWritten);
+
+			/* The head can't pass the frames written, even if the track underruns */
+			final long position = m_clock.getFramePosition(nanoTime);
+			if (position != Long.MIN_VALUE)
+				return Math.min(position, framesWritten);
+		}
+
+		return unwrap(framesWritten, m_audioTrack.getPlaybackHeadPosition());
+	}
+
+	/**
+	 * Adds a timestamp to the clock if one is due
+	 *
+	 * @param nanoTime current {@link System#nanoTime()}
+	 * @param framesWritten number of frames written
+	 */
+	private void takeTimestamp(final long nanoTime, final long framesWritten) {
+		final long dueNanoTime = m_nextTimestampNanoTime.get();
+		if (nanoTime - dueNanoTime < 0)
+			return;
+
+		final double intervalSeconds = (m_clock.getTimestampCount() < TimestampCountInitial) ? TimestampIntervalSecondsInitial : TimestampIntervalSeconds;
+		if (!m_nextTimestampNanoTime.compareAndSet(dueNanoTime, nanoTime + (long)(intervalSeconds * 1e9)))
+			return;
+
+		/* Fails until the track actually plays */
+		if (m_audioTrack.getTimestamp(m_timestamp))
+			m_clock.addTimestamp(unwrap(framesWritten, (int)m_timestamp.framePosition), m_timestamp.nanoTime);
+	}
+
+	/**
+	 * Extends a wrapping 32-bit frame position to 64 bits. Since positions
+	 * lie within about one buffer of the frames written (they may be slightly
+	 * ahead while a write is being accounted), the full position is the one
+	 * nearest to the frames written with matching lower 32 bits. This keeps
+	 * no state, so concurrent calls are safe
+	 *
+	 * @param framesWritten number of frames written
+	 * @param position 32-bit frame position
+	 * @return 64-bit frame position
+	 */
+	private static long unwrap(final long framesWritten, final int position) {
+		return framesWritten - ((int)framesWritten - position);
+	}
+
+	@Override
+	public double getPositionJitterSeconds() {
+		return (m_clock != null) ? m_clock.getJitterSeconds() : Double.NaN;
+	}
+
+	@Override
+	public void setVolume(final float volume) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			m_audioTrack.setVolume(volume);
+		} else {
+			m_audioTrack.setStereoVolume(volume, volume);
+		}
+	}
+
+	@Override
+	public void release() {
+		m_audioTrack.stop();
+		m_audioTrack.release();
+	}
+}
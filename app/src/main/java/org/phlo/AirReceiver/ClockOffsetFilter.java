@@ -0,0 +1,149 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Estimates the offset between a remote and the local clock from
+ * timing exchanges, including the drift between the two clocks.
+ * <p>
+ * A long transmission time allows for an asymmetric one, which biases the
+ * offset. Measurements are therefore weighted by how close their transmission
+ * time is to the smallest one among the recent measurements. A straight line
+ * is fitted through the offsets by weighted least squares, so that the estimate
+ * follows the drift between the clocks instead of lagging behind it. Until the
+ * measurements span enough time to tell the drift from noise, it is assumed
+ * to be zero.
+ * <p>
+ * Not thread-safe.
+ */
+public final class ClockOffsetFilter {
+	/**
+	 * Maximal number of measurements kept. At eight timing exchanges
+	 * per second, this spans about a minute
+	 */
+	private static final int MaxMeasurements = 512;
+
+	/**
+	 * A measurement's weight is inversely proportional to the square of its
+	 * transmission time's excess over the smallest one plus this
+	 */
+	private static final double TransmissionExcessSecondsMin = 0.0003;
+
+	/**
+	 * The drift is estimated only once the weighted standard deviation
+	 * of the measurement times exceeds this
+	 */
+	private static final double DriftSpanSecondsMin = 4.0;
+
+	/**
+	 * Maximal drift between the clocks, in seconds per second. Twice
+	 * the tolerance of a typical crystal
+	 */
+	private static final double MaxDrift = 0.0002;
+
+	/**
+	 * Ring of the most recent measurements
+	 */
+	private final double[] m_localSecondsTimes = new double[MaxMeasurements];
+	private final double[] m_offsets = new double[MaxMeasurements];
+	private final double[] m_transmissionTimes = new double[MaxMeasurements];
+	private final double[] m_weights = new double[MaxMeasurements];
+	private int m_count = 0;
+	private int m_next = 0;
+
+	/**
+	 * Fitted line, i.e. the offset at the reference time and its drift
+	 */
+	private double m_referenceSecondsTime = Double.NaN;
+	private double m_referenceOffset = Double.NaN;
+	private double m_drift = 0.0;
+
+	/**
+	 * Adds a measurement and fits the line anew
+	 *
+	 * @param localSecondsTime local time of the measurement
+	 * @param offset remote minus local time
+	 * @param transmissionTime round-trip transmission time of the exchange
+	 */
+	public void add(final double localSecondsTime, final double offset, final double transmissionTime) {
+		m_localSecondsTimes[m_next] = localSecondsTime;
+		m_offsets[m_next] = offset;
+		m_transmissionTimes[m_next] = transmissionTime;
+		m_next = (m_next + 1) % MaxMeasurements;
+		m_count = Math.min(m_count + 1, MaxMeasurements);
+
+		double minTransmissionTime = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < m_count; ++i)
+			minTransmissionTime = Math.min(minTransmissionTime, m_transmissionTimes[i]);
+
+		/* Fit relative to the weighted mean time and offset, to keep the sums small */
+		final double[] weights = m_weights;
+		final double latestSecondsTime = localSecondsTime;
+		final double latestOffset = offset;
+		double sumW = 0, sumT = 0, sumO = 0;
+		for (int i = 0; i < m_count; ++i) {
+			final double excess = m_transmissionTimes[i] - minTransmissionTime + TransmissionExcessSecondsMin;
+			weights[i] = 1.0 / (excess * excess);
+			sumW += weights[i];
+			sumT += weights[i] * (m_localSecondsTimes[i] - latestSecondsTime);
+			sumO += weights[i] * (m_offsets[i] - latestOffset);
+		}
+		final double meanT = sumT / sumW;
+		final double meanO = sumO / sumW;
+
+		double sumTT = 0, sumTO = 0;
+		for (int i = 0; i < m_count; ++i) {
+			final double t = (m_localSecondsTimes[i] - latestSecondsTime) - meanT;
+			sumTT += weights[i] * t * t;
+			sumTO += weights[i] * t * ((m_offsets[i] - latestOffset) - meanO);
+		}
+
+		m_referenceSecondsTime = latestSecondsTime + meanT;
+		m_referenceOffset = latestOffset + meanO;
+		if (sumTT > DriftSpanSecondsMin * DriftSpanSecondsMin * sumW)
+			m_drift = Math.max(-MaxDrift, Math.min(sumTO / sumTT, MaxDrift));
+		else
+			m_drift = 0.0;
+	}
+
+	/**
+	 * Returns true until a measurement was added
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return m_count == 0;
+	}
+
+	/**
+	 * Returns the estimated offset at the given local time
+	 *
+	 * @param localSecondsTime local time
+	 * @return remote minus local time, or NaN if empty
+	 */
+	public double get(final double localSecondsTime) {
+		return m_referenceOffset + (localSecondsTime - m_referenceSecondsTime) * m_drift;
+	}
+
+	/**
+	 * Returns the estimated drift between the clocks
+	 * @return drift in seconds per second
+	 */
+	public double getDrift() {
+		return m_drift;
+	}
+}
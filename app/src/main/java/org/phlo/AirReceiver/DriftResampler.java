@@ -0,0 +1,195 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.Arrays;
+
+/**
+ * Resamples a stream of interleaved little endian 16-bit or packed 24-bit PCM
+ * frames by ratios close to one, using cubic (Catmull-Rom) interpolation.
+ * <p>
+ * Used to absorb small timing errors by playing slightly faster or slower,
+ * instead of skipping frames or inserting silence. The stream is processed
+ * in chunks, and the interpolation state is carried from one chunk to the
+ * next, so consecutive chunks are resampled seamlessly. The output lags the
+ * input by two frames.
+ * <p>
+ * Doesn't allocate memory after construction. Not thread-safe.
+ */
+public final class DriftResampler {
+	/**
+	 * Number of input frames kept from the previous chunk
+	 */
+	private static final int HistoryFrames = 3;
+
+	private final int m_channels;
+	private final int m_bytesPerSample;
+	private final int m_bytesPerFrame;
+	private final int m_maxInputFrames;
+	private final int m_sampleMax;
+	private final int m_sampleMin;
+
+	/**
+	 * Input samples of the history frames followed by the current chunk
+	 */
+	private final int[] m_input;
+
+	/**
+	 * Output samples of the current chunk
+	 */
+	private final byte[] m_output;
+
+	/**
+	 * Position of the next output frame, in input frames relative to
+	 * the first history frame
+	 */
+	private double m_position;
+
+	/**
+	 * Creates a resampler
+	 *
+	 * @param format sample format, must use 16 or 24 bits per sample
+	 * @param maxInputFrames maximal number of frames per chunk
+	 * @param maxRatio maximal ratio passed to {@link #process(byte[], int, int, double)}
+	 */
+	public DriftResampler(final AudioFormat format, final int maxInputFrames, final double maxRatio) {
+		m_channels = format.getChannels();
+		m_bytesPerSample = format.getSampleSizeInBits() / 8;
+		m_bytesPerFrame = format.getFrameSize();
+		if ((m_bytesPerSample != 2) && (m_bytesPerSample != 3))
+			throw new IllegalArgumentException("Unsupported sample size " + format.getSampleSizeInBits());
+
+		m_maxInputFrames = maxInputFrames;
+		m_sampleMax = (1 << (8 * m_bytesPerSample - 1)) - 1;
+		m_sampleMin = -m_sampleMax - 1;
+		m_input = new int[(HistoryFrames + maxInputFrames) * m_channels];
+		m_output = new byte[((int)Math.ceil(maxInputFrames * maxRatio) + 1) * m_bytesPerFrame];
+		reset();
+	}
+
+	/**
+	 * Returns whether the format's sample size is supported
+	 *
+	 * @param format sample format
+	 * @return true if supported
+	 */
+	public static boolean isSupported(final AudioFormat format) {
+		final int bits = format.getSampleSizeInBits();
+		return (bits == 16) || (bits == 24);
+	}
+
+	/**
+	 * Returns the maximal number of frames per chunk
+	 * @return number of frames
+	 */
+	public int getMaxInputFrames() {
+		return m_maxInputFrames;
+	}
+
+	/**
+	 * Returns the delay of the output behind the input, i.e. how many frames
+	 * before the start of the next chunk the next output frame is interpolated at.
+	 * Two frames after a reset, and fractional while resampling
+	 *
+	 * @return delay in frames
+	 */
+	public double getDelayFrames() {
+		return HistoryFrames - m_position;
+	}
+
+	/**
+	 * Restarts the stream, as if it was preceded by silence. Called
+	 * after discontinuities, e.g. after frames were skipped
+	 */
+	public void reset() {
+		Arrays.fill(m_input, 0, HistoryFrames * m_channels, 0);
+		m_position = 1.0;
+	}
+
+	/**
+	 * Resamples the next chunk of the stream into the output buffer.
+	 *
+	 * @param samples sample data
+	 * @param off sample data offset
+	 * @param frames number of frames, at most {@link #getMaxInputFrames()}
+	 * @param ratio output frames per input frame, at most the maximal ratio
+	 * @return number of frames written to {@link #getOutput()}
+	 */
+	public int process(final byte[] samples, final int off, final int frames, final double ratio) {
+		final int channels = m_channels;
+		final int bytesPerSample = m_bytesPerSample;
+		final int[] input = m_input;
+
+		/* Convert the chunk to ints, behind the history */
+		for (int i = HistoryFrames * channels, j = off, n = (HistoryFrames + frames) * channels; i < n; ++i, j += bytesPerSample) {
+			if (bytesPerSample == 2)
+				input[i] = (samples[j] & 0xff) | (samples[j + 1] << 8);
+			else
+				input[i] = (samples[j] & 0xff) | ((samples[j + 1] & 0xff) << 8) | (samples[j + 2] << 16);
+		}
+
+		/* Interpolate output frames as long as the input frames after the position suffice.
+		 * Since the position starts at or after frame one, this produces at most
+		 * ceil(frames * ratio) frames
+		 */
+		final byte[] output = m_output;
+		final double step = 1.0 / ratio;
+		double position = m_position;
+		int outputFrames = 0;
+		int o = 0;
+		while ((int)position + 2 < HistoryFrames + frames) {
+			final int index = (int)position;
+			final float t = (float)(position - index);
+			int base = (index - 1) * channels;
+			for (int c = 0; c < channels; ++c, ++base) {
+				final float p0 = input[base];
+				final float p1 = input[base + channels];
+				final float p2 = input[base + 2 * channels];
+				final float p3 = input[base + 3 * channels];
+				final float v = p1 + 0.5f * t * (p2 - p0 + t * (2.0f * p0 - 5.0f * p1 + 4.0f * p2 - p3 + t * (3.0f * (p1 - p2) + p3 - p0)));
+
+				int s = Math.round(v);
+				if (s > m_sampleMax)
+					s = m_sampleMax;
+				else if (s < m_sampleMin)
+					s = m_sampleMin;
+
+				output[o++] = (byte)s;
+				output[o++] = (byte)(s >> 8);
+				if (bytesPerSample == 3)
+					output[o++] = (byte)(s >> 16);
+			}
+			++outputFrames;
+			position += step;
+		}
+
+		/* Keep the last frames as history for the next chunk */
+		System.arraycopy(input, frames * channels, input, 0, HistoryFrames * channels);
+		m_position = position - frames;
+
+		return outputFrames;
+	}
+
+	/**
+	 * Returns the output buffer filled by {@link #process(byte[], int, int, double)}
+	 * @return output buffer
+	 */
+	public byte[] getOutput() {
+		return m_output;
+	}
+}
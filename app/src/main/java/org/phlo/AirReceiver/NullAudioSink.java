@@ -0,0 +1,216 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * {@link AudioSink} which discards the samples, but otherwise behaves like an
+ * audio device with a hardware clock. The playback position advances in real
+ * time while there are frames buffered, and stalls on underruns. Writes block
+ * until all frames fit into the simulated buffer, unless the sink is
+ * non-blocking.
+ * <p>
+ * Doesn't depend on Android, so the {@link AudioOutputQueue} can be run on a
+ * plain JVM, for example for performance tests.
+ */
+public class NullAudioSink implements AudioSink {
+	/**
+	 * Creates null sinks playing up to 24-bit samples, for running
+	 * {@link RaopAudioHandler} without an audio device
+	 */
+	public static final AudioSinkFactory Factory = new AudioSinkFactory() {
+		@Override
+		public int getMaxBitsPerSample() {
+			return 24;
+		}
+
+		@Override
+		public AudioSink create(final AudioFormat format, final int framesPerPacket, final int streamType, final double bufferSeconds, final boolean nonBlocking) {
+			return new NullAudioSink(format, bufferSeconds, nonBlocking);
+		}
+	};
+
+	/**
+	 * Number of frames the simulated device buffers
+	 */
+	private final int m_bufferFrames;
+
+	private final int m_bytesPerFrame;
+	private final double m_sampleRate;
+
+	/**
+	 * Whether writes return once the simulated buffer is full
+	 */
+	private final boolean m_nonBlocking;
+
+	/**
+	 * State of the simulated device, guarded by this
+	 */
+	private boolean m_playing = false;
+	private long m_framesWritten = 0;
+	private long m_framesPlayed = 0;
+	private long m_playedNanoTime;
+
+	/**
+	 * Volume, only recorded
+	 */
+	private volatile float m_volume = 1.0f;
+
+	/**
+	 * Creates a null sink
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param bufferSeconds size of the simulated device buffer in seconds
+	 */
+	public NullAudioSink(final AudioFormat format, final double bufferSeconds) {
+		this(format, bufferSeconds, false);
+	}
+
+	/**
+	 * Creates a null sink
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param bufferSeconds size of the simulated device buffer in seconds
+	 * @param nonBlocking whether writes return once the simulated buffer is full
+	 */
+	public NullAudioSink(final AudioFormat format, final double bufferSeconds, final boolean nonBlocking) {
+		m_nonBlocking = nonBlocking;
+		m_bytesPerFrame = format.getFrameSize();
+		m_sampleRate = format.getSampleRate();
+		m_bufferFrames = (int)Math.max(1, Math.round(bufferSeconds * m_sampleRate));
+	}
+
+	@Override
+	public synchronized void play() {
+		m_playing = true;
+		m_playedNanoTime = System.nanoTime();
+	}
+
+	@Override
+	public synchronized boolean isPlaying() {
+		return m_playing;
+	}
+
+	@Override
+	public synchronized int write(final byte[] samples, final int off, final int len) {
+		final int frames = len / m_bytesPerFrame;
+
+		/* Like a blocking audio track write, wait until all frames fit into the buffer.
+		 * Returns early only if the thread is interrupted, or right away if non-blocking
+		 */
+		int writtenFrames = 0;
+		while (writtenFrames < frames) {
+			final long writableFrames = m_bufferFrames - (m_framesWritten - advance());
+			if (writableFrames <= 0) {
+				if (m_nonBlocking)
+					break;
+
+				final long waitNanos = (long)((1 - writableFrames) * 1e9 / m_sampleRate);
+				try {
+					wait(Math.max(waitNanos / 1000000, 1));
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				continue;
+			}
+
+			final int count = (int)Math.min(frames - writtenFrames, writableFrames);
+			m_framesWritten += count;
+			consume(samples, off + writtenFrames * m_bytesPerFrame, count * m_bytesPerFrame);
+			writtenFrames += count;
+		}
+		return writtenFrames * m_bytesPerFrame;
+	}
+
+	/**
+	 * Called with the frames accepted by {@link #write(byte[], int, int)}.
+	 * Discards them, sub-classes may override this to do something useful
+	 *
+	 * @param samples sample data
+	 * @param off sample data offset
+	 * @param len sample data length, a multiple of the frame size
+	 */
+	protected void consume(final byte[] samples, final int off, final int len) {
+	}
+
+	@Override
+	public boolean isNonBlocking() {
+		return m_nonBlocking;
+	}
+
+	@Override
+	public int getBufferSizeFrames() {
+		return m_bufferFrames;
+	}
+
+	@Override
+	public synchronized long getPlaybackHeadPosition() {
+		return advance();
+	}
+
+	@Override
+	public double getPositionJitterSeconds() {
+		/* The simulated clock is exact */
+		return 0.0;
+	}
+
+	/**
+	 * Advances the simulated playback position to now. On underruns,
+	 * the position stalls at the number of written frames.
+	 *
+	 * @return playback position in frames
+	 */
+	private long advance() {
+		if (!m_playing)
+			return m_framesPlayed;
+
+		final long now = System.nanoTime();
+		final long elapsedFrames = (long)((now - m_playedNanoTime) * m_sampleRate / 1e9);
+		if (m_framesPlayed + elapsedFrames >= m_framesWritten) {
+			/* Underrun, the clock stops until more frames are written */
+			m_framesPlayed = m_framesWritten;
+			m_playedNanoTime = now;
+		}
+		else if (elapsedFrames > 0) {
+			/* Only advance the reference time by the frames played, to keep the remainder */
+			m_framesPlayed += elapsedFrames;
+			m_playedNanoTime += (long)(elapsedFrames * 1e9 / m_sampleRate);
+		}
+		return m_framesPlayed;
+	}
+
+	@Override
+	public void setVolume(final float volume) {
+		m_volume = volume;
+	}
+
+	/**
+	 * Returns the volume last set
+	 *
+	 * @return volume
+	 */
+	public float getVolume() {
+		return m_volume;
+	}
+
+	@Override
+	public synchronized void release() {
+		m_playing = false;
+	}
+}
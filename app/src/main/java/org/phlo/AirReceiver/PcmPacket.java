@@ -0,0 +1,85 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.nio.ByteOrder;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Decoded little endian PCM audio data of one RTP packet,
+ * together with the frame time it is to be played at.
+ * <p>
+ * Instances are owned by a {@link PcmPacketPool} and are handed back
+ * to it by calling {@link #release()} once the audio data was consumed.
+ */
+public final class PcmPacket {
+	/**
+	 * The pool this packet is returned to
+	 */
+	private final PcmPacketPool m_pool;
+
+	/**
+	 * Fixed-size heap buffer containing the PCM audio data
+	 */
+	private final ChannelBuffer m_buffer;
+
+	/**
+	 * Frame time of the packet's first sample
+	 */
+	private long m_frameTime;
+
+	PcmPacket(final PcmPacketPool pool, final int length) {
+		m_pool = pool;
+		m_buffer = ChannelBuffers.buffer(ByteOrder.LITTLE_ENDIAN, length);
+		m_buffer.writerIndex(length);
+	}
+
+	/**
+	 * Returns the buffer containing the PCM audio data
+	 * @return PCM audio data
+	 */
+	public ChannelBuffer getBuffer() {
+		return m_buffer;
+	}
+
+	/**
+	 * Returns the frame time of the packet's first sample
+	 * @return frame time
+	 */
+	public long getFrameTime() {
+		return m_frameTime;
+	}
+
+	/**
+	 * Sets the frame time of the packet's first sample
+	 * @param frameTime frame time
+	 */
+	public void setFrameTime(final long frameTime) {
+		m_frameTime = frameTime;
+	}
+
+	/**
+	 * Returns the packet to its pool. The packet must not
+	 * be accessed afterwards.
+	 */
+	public void release() {
+		m_pool.release(this);
+	}
+}
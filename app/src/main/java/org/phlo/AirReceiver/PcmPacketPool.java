@@ -0,0 +1,100 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Pool of fixed-size {@link PcmPacket} instances.
+ * <p>
+ * Packets are allocated lazily on demand, and released packets are kept for
+ * re-use up to the pool's capacity. Once the pool has warmed up, acquiring
+ * and releasing packets thus doesn't allocate any memory.
+ */
+public final class PcmPacketPool {
+	/**
+	 * Size of each packet's PCM audio data in bytes
+	 */
+	private final int m_packetLength;
+
+	/**
+	 * Released packets available for re-use
+	 */
+	private final PcmPacket[] m_free;
+
+	/**
+	 * Number of valid entries in {@link #m_free}
+	 */
+	private int m_freeCount = 0;
+
+	/**
+	 * Number of packets acquired and not yet released
+	 */
+	private int m_acquiredCount = 0;
+
+	/**
+	 * Creates a pool
+	 *
+	 * @param packetLength size of each packet's PCM audio data in bytes
+	 * @param capacity maximum number of released packets to retain
+	 */
+	public PcmPacketPool(final int packetLength, final int capacity) {
+		m_packetLength = packetLength;
+		m_free = new PcmPacket[capacity];
+	}
+
+	/**
+	 * Returns the size of each packet's PCM audio data in bytes
+	 * @return packet length
+	 */
+	public int getPacketLength() {
+		return m_packetLength;
+	}
+
+	/**
+	 * Returns the number of packets acquired and not yet released
+	 * @return number of packets in use
+	 */
+	public synchronized int getAcquiredCount() {
+		return m_acquiredCount;
+	}
+
+	/**
+	 * Takes a packet from the pool, allocating a new one if the pool is empty
+	 * @return packet
+	 */
+	public synchronized PcmPacket acquire() {
+		++m_acquiredCount;
+		if (m_freeCount == 0)
+			return new PcmPacket(this, m_packetLength);
+
+		final PcmPacket packet = m_free[--m_freeCount];
+		m_free[m_freeCount] = null;
+		return packet;
+	}
+
+	/**
+	 * Returns a packet to the pool. If the pool is full, the packet
+	 * is left to the garbage collector.
+	 *
+	 * @param packet packet acquired from this pool
+	 */
+	synchronized void release(final PcmPacket packet) {
+		--m_acquiredCount;
+		if (m_freeCount < m_free.length)
+			m_free[m_freeCount++] = packet;
+	}
+}
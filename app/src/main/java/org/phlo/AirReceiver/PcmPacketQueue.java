@@ -0,0 +1,233 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity jitter buffer of {@link PcmPacket}s, indexed by frame time.
+ * <p>
+ * Each packet occupies the slot {@code floorDiv(frameTime, framesPerPacket)}
+ * modulo the capacity. Since the packets of a stream are spaced exactly one
+ * packet apart, they map to consecutive slots, so out-of-order and retransmitted
+ * packets are inserted in O(1). The slots are updated with atomic operations only,
+ * so neither inserting nor removing packets locks or allocates.
+ * <p>
+ * The queue owns the packets it contains. A packet which replaces another one in
+ * the same slot (i.e. a retransmission, or a packet with a clashing frame time
+ * after a stream restart) causes the replaced packet to be released.
+ */
+public final class PcmPacketQueue {
+	/**
+	 * Packet slots, the capacity is a power of two
+	 */
+	private final AtomicReferenceArray<PcmPacket> m_slots;
+
+	/**
+	 * Mask mapping a packet index to a slot
+	 */
+	private final int m_slotMask;
+
+	/**
+	 * Number of frames per packet
+	 */
+	private final int m_framesPerPacket;
+
+	/**
+	 * Number of occupied slots. Since a slot and the count can't be updated
+	 * atomically together, {@link #put(PcmPacket)} counts a packet before
+	 * inserting it, and {@link #take(int)} after removing it, so the count
+	 * is never less than the number of occupied slots
+	 */
+	private final AtomicInteger m_size = new AtomicInteger(0);
+
+	/**
+	 * Packet index from which on slots may contain packets the playback head
+	 * passed, i.e. where {@link #findFirst(long)} last started searching, unless
+	 * it returned such a packet. Only used by the thread calling findFirst()
+	 */
+	private long m_headIndex = Long.MAX_VALUE;
+
+	/**
+	 * Lowest packet index added since the last {@link #findFirst(long)}
+	 */
+	private final AtomicLong m_lowestPutIndex = new AtomicLong(Long.MAX_VALUE);
+
+	/**
+	 * Creates a queue
+	 *
+	 * @param framesPerPacket number of frames per packet
+	 * @param minimumCapacity minimum number of packets the queue can hold
+	 */
+	public PcmPacketQueue(final int framesPerPacket, final int minimumCapacity) {
+		int capacity = 1;
+		while (capacity < minimumCapacity)
+			capacity <<= 1;
+
+		m_slots = new AtomicReferenceArray<PcmPacket>(capacity);
+		m_slotMask = capacity - 1;
+		m_framesPerPacket = framesPerPacket;
+	}
+
+	/**
+	 * Returns the number of packets the queue can hold
+	 * @return capacity
+	 */
+	public int getCapacity() {
+		return m_slotMask + 1;
+	}
+
+	/**
+	 * Returns the index of the packet with the given frame time
+	 *
+	 * @param frameTime frame time
+	 * @return packet index
+	 */
+	private long indexOf(final long frameTime) {
+		/* Floor division, so that negative frame times map to consecutive slots too */
+		final long q = frameTime / m_framesPerPacket;
+		return ((frameTime % m_framesPerPacket) < 0) ? q - 1 : q;
+	}
+
+	/**
+	 * Adds a packet to the queue, taking ownership of it. A packet
+	 * previously occupying the same slot is released.
+	 *
+	 * @param packet packet to add
+	 * @return true if the packet replaced a queued packet
+	 */
+	public boolean put(final PcmPacket packet) {
+		final long index = indexOf(packet.getFrameTime());
+		m_size.incrementAndGet();
+		final PcmPacket replaced = m_slots.getAndSet((int)index & m_slotMask, packet);
+
+		/* Lets findFirst() search for the packet if the playback head passed it already */
+		long lowest;
+		while ((index < (lowest = m_lowestPutIndex.get())) && !m_lowestPutIndex.compareAndSet(lowest, index))
+			;
+
+		if (replaced == null)
+			return false;
+
+		m_size.decrementAndGet();
+		replaced.release();
+		return true;
+	}
+
+	/**
+	 * Finds the first occupied slot, starting one packet before the slot of
+	 * the given frame time.
+	 * <p>
+	 * Packets scheduled more than one packet before that frame time, i.e. packets
+	 * the playback head skipped, or which were added after the head passed them,
+	 * are returned first. The caller is expected to drop them, instead of them
+	 * holding their slot until the slots wrap around. To find them, the slots
+	 * from the previous start of the search, or from the lowest packet added
+	 * since then, up to the current start are searched too.
+	 *
+	 * @param frameTime frame time to start searching at
+	 * @return slot index, or -1 if the queue is empty
+	 */
+	public int findFirst(final long frameTime) {
+		final long startIndex = indexOf(frameTime) - 1;
+
+		/* Nothing was passed if the head moved back, and at most the whole ring */
+		long index = Math.min(m_headIndex, m_lowestPutIndex.getAndSet(Long.MAX_VALUE));
+		if (index > startIndex)
+			index = startIndex;
+		else if (startIndex - index > m_slotMask)
+			index = startIndex - m_slotMask;
+
+		if (m_size.get() == 0) {
+			m_headIndex = startIndex;
+			return -1;
+		}
+
+		/* Slots may also contain packets queued far ahead, which
+		 * wrapped around, so check whether the head really passed them
+		 */
+		for (; index < startIndex; ++index) {
+			final int slot = (int)index & m_slotMask;
+			final PcmPacket packet = m_slots.get(slot);
+			if ((packet != null) && (indexOf(packet.getFrameTime()) < startIndex)) {
+				m_headIndex = index;
+				return slot;
+			}
+		}
+		m_headIndex = startIndex;
+
+		final int start = (int)startIndex & m_slotMask;
+		for (int i = 0; i <= m_slotMask; ++i) {
+			final int slot = (start + i) & m_slotMask;
+			if (m_slots.get(slot) != null)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the frame time of the packet in the given slot. Since the packet
+	 * may be removed concurrently, the result is only a hint, and must be
+	 * re-checked after {@link #take(int)}.
+	 *
+	 * @param slot slot index
+	 * @return frame time, or {@link Long#MIN_VALUE} if the slot is empty
+	 */
+	public long peekFrameTime(final int slot) {
+		final PcmPacket packet = m_slots.get(slot);
+		return (packet != null) ? packet.getFrameTime() : Long.MIN_VALUE;
+	}
+
+	/**
+	 * Removes the packet from the given slot. The caller takes
+	 * ownership of the returned packet
+	 *
+	 * @param slot slot index
+	 * @return packet, or null if the slot is empty
+	 */
+	public PcmPacket take(final int slot) {
+		final PcmPacket packet = m_slots.getAndSet(slot, null);
+		if (packet != null)
+			m_size.decrementAndGet();
+		return packet;
+	}
+
+	/**
+	 * Returns true if the queue contains no packets
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return m_size.get() == 0;
+	}
+
+	/**
+	 * Removes and releases all packets. Searches all slots instead of stopping
+	 * once the queue appears empty, so that no packet added before the call
+	 * remains queued, even if a concurrent {@link #take(int)} hasn't updated
+	 * the count yet
+	 */
+	public void clear() {
+		for (int slot = 0; slot <= m_slotMask; ++slot) {
+			final PcmPacket packet = take(slot);
+			if (packet != null)
+				packet.release();
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.Arrays;
+
+/**
+ * Converts interleaved little endian 16-bit or packed 24-bit PCM frames
+ * in place, according to an {@link AudioChannel} mode and a software gain.
+ * <p>
+ * For stereo formats, the channel mode is expressed as a 2x2 mixing matrix,
+ * so channel selection, mono downmix and channel swap are all done by the
+ * same loop, in the same pass which applies the gain. Gain changes are ramped
+ * linearly over a few milliseconds, which avoids the clicks an abrupt volume
+ * change causes. Formats with other channel counts only have the gain applied.
+ * <p>
+ * Doesn't allocate memory after construction. Not thread-safe.
+ */
+public final class PcmProcessor {
+	/**
+	 * Length of a gain ramp
+	 */
+	private static final double GainRampSeconds = 0.01;
+
+	private final int m_channels;
+	private final int m_bytesPerSample;
+	private final int m_sampleMax;
+	private final int m_sampleMin;
+
+	/**
+	 * Mixing matrix, i.e. left output = m_leftFromLeft * left input +
+	 * m_leftFromRight * right input, and likewise for right output
+	 */
+	private final float m_leftFromLeft;
+	private final float m_leftFromRight;
+	private final float m_rightFromLeft;
+	private final float m_rightFromRight;
+
+	/**
+	 * True if the mixing matrix is the identity
+	 */
+	private final boolean m_passThrough;
+
+	/**
+	 * Number of frames a gain ramp lasts
+	 */
+	private final int m_rampFrames;
+
+	/**
+	 * Current gain, the gain being ramped to, the per-frame
+	 * gain increment and the number of frames left to ramp
+	 */
+	private float m_gain = 0.0f;
+	private float m_targetGain = 0.0f;
+	private float m_gainStep = 0.0f;
+	private int m_rampFramesLeft = 0;
+
+	/**
+	 * Creates a processor. The gain is initially zero
+	 *
+	 * @param format sample format, must use 16 or 24 bits per sample
+	 * @param channelMode audio output channel mode
+	 */
+	public PcmProcessor(final AudioFormat format, final AudioChannel channelMode) {
+		m_channels = format.getChannels();
+		m_bytesPerSample = format.getSampleSizeInBits() / 8;
+		if ((m_bytesPerSample != 2) && (m_bytesPerSample != 3))
+			throw new IllegalArgumentException("Unsupported sample size " + format.getSampleSizeInBits());
+
+		m_sampleMax = (1 << (8 * m_bytesPerSample - 1)) - 1;
+		m_sampleMin = -m_sampleMax - 1;
+		m_rampFrames = Math.max(1, (int)Math.round(GainRampSeconds * format.getSampleRate()));
+
+		final AudioChannel mode = (m_channels == 2) ? channelMode : AudioChannel.STEREO;
+		switch (mode) {
+			case ONLY_LEFT:
+				m_leftFromLeft = 1.0f; m_leftFromRight = 0.0f;
+				m_rightFromLeft = 1.0f; m_rightFromRight = 0.0f;
+				break;
+			case ONLY_RIGHT:
+				m_leftFromLeft = 0.0f; m_leftFromRight = 1.0f;
+				m_rightFromLeft = 0.0f; m_rightFromRight = 1.0f;
+				break;
+			case MONO:
+				m_leftFromLeft = 0.5f; m_leftFromRight = 0.5f;
+				m_rightFromLeft = 0.5f; m_rightFromRight = 0.5f;
+				break;
+			case SWAPPED:
+				m_leftFromLeft = 0.0f; m_leftFromRight = 1.0f;
+				m_rightFromLeft = 1.0f; m_rightFromRight = 0.0f;
+				break;
+			default:
+				m_leftFromLeft = 1.0f; m_leftFromRight = 0.0f;
+				m_rightFromLeft = 0.0f; m_rightFromRight = 1.0f;
+				break;
+		}
+		m_passThrough = (mode == AudioChannel.STEREO);
+	}
+
+	/**
+	 * Returns whether the format's sample size is supported
+	 *
+	 * @param format sample format
+	 * @return true if supported
+	 */
+	public static boolean isSupported(final AudioFormat format) {
+		final int bits = format.getSampleSizeInBits();
+		return (bits == 16) || (bits == 24);
+	}
+
+	/**
+	 * Ramps the gain to the given value, starting with the next processed frame
+	 *
+	 * @param gain linear gain, between zero and one
+	 */
+	public void setGain(final float gain) {
+		if (gain == m_targetGain)
+			return;
+
+		m_targetGain = gain;
+		m_gainStep = (gain - m_gain) / m_rampFrames;
+		m_rampFramesLeft = m_rampFrames;
+	}
+
+	/**
+	 * Sets the gain to the given value without ramping. Used while
+	 * nothing is playing, e.g. to fade in once audio resumes
+	 *
+	 * @param gain linear gain, between zero and one
+	 */
+	public void setGainImmediately(final float gain) {
+		m_gain = m_targetGain = gain;
+		m_rampFramesLeft = 0;
+	}
+
+	/**
+	 * Returns the gain the current ramp ends at
+	 * @return linear gain
+	 */
+	public float getGain() {
+		return m_targetGain;
+	}
+
+	/**
+	 * Converts the range [off,off+len) of the sample data in place
+	 *
+	 * @param samples sample data
+	 * @param off sample data offset
+	 * @param len sample data length, a multiple of the frame size
+	 */
+	public void process(final byte[] samples, final int off, final int len) {
+		if (m_rampFramesLeft == 0) {
+			/* Constant gain. Nothing to do for pass-through, and muting needs no mixing */
+			if (m_gain == 1.0f && m_passThrough)
+				return;
+			if (m_gain == 0.0f) {
+				Arrays.fill(samples, off, off + len, (byte)0);
+				return;
+			}
+		}
+
+		if (m_channels == 2)
+			processStereo(samples, off, len);
+		else
+			processGainOnly(samples, off, len);
+	}
+
+	private void processStereo(final byte[] samples, final int off, final int len) {
+		final int bytesPerSample = m_bytesPerSample;
+		final float leftFromLeft = m_leftFromLeft;
+		final float leftFromRight = m_leftFromRight;
+		final float rightFromLeft = m_rightFromLeft;
+		final float rightFromRight = m_rightFromRight;
+		float gain = m_gain;
+
+		for (int i = off, end = off + len; i < end; i += 2 * bytesPerSample) {
+			if (m_rampFramesLeft > 0) {
+				gain = (--m_rampFramesLeft > 0) ? gain + m_gainStep : m_targetGain;
+			}
+
+			final int j = i + bytesPerSample;
+			final float left = readSample(samples, i);
+			final float right = readSample(samples, j);
+			writeSample(samples, i, gain * (leftFromLeft * left + leftFromRight * right));
+			writeSample(samples, j, gain * (rightFromLeft * left + rightFromRight * right));
+		}
+
+		m_gain = gain;
+	}
+
+	private void processGainOnly(final byte[] samples, final int off, final int len) {
+		final int bytesPerSample = m_bytesPerSample;
+		final int bytesPerFrame = m_channels * bytesPerSample;
+		float gain = m_gain;
+
+		for (int i = off, end = off + len; i < end; i += bytesPerFrame) {
+			if (m_rampFramesLeft > 0) {
+				gain = (--m_rampFramesLeft > 0) ? gain + m_gainStep : m_targetGain;
+			}
+
+			for (int j = i; j < i + bytesPerFrame; j += bytesPerSample)
+				writeSample(samples, j, gain * readSample(samples, j));
+		}
+
+		m_gain = gain;
+	}
+
+	private int readSample(final byte[] samples, final int i) {
+		if (m_bytesPerSample == 2)
+			return (samples[i] & 0xff) | (samples[i + 1] << 8);
+		else
+			return (samples[i] & 0xff) | ((samples[i + 1] & 0xff) << 8) | (samples[i + 2] << 16);
+	}
+
+	private void writeSample(final byte[] samples, final int i, final float value) {
+		int s = Math.round(value);
+		if (s > m_sampleMax)
+			s = m_sampleMax;
+		else if (s < m_sampleMin)
+			s = m_sampleMin;
+
+		samples[i] = (byte)s;
+		samples[i + 1] = (byte)(s >> 8);
+		if (m_bytesPerSample == 3)
+			samples[i + 2] = (byte)(s >> 16);
+	}
+}
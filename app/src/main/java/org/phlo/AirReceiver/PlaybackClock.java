@@ -0,0 +1,230 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Playback position of an audio device, interpolated from timestamps.
+ * <p>
+ * Timestamps pair a frame position with the {@link System#nanoTime()} at
+ * which the frame was presented. A straight line is fitted through the most
+ * recent timestamps by least squares, and the position at any time is read off
+ * that line. This is both smoother and more accurate than the device's coarse
+ * playback head position. The scatter of the timestamps around the line is
+ * reported as the clock's jitter.
+ * <p>
+ * A timestamp which deviates too far from the line (e.g. after an underrun
+ * stalled the device) discards the older timestamps, and the fit starts over.
+ * <p>
+ * Timestamps are added under a lock, but the fitted line is published as an
+ * immutable snapshot, so reading the position never locks.
+ */
+public final class PlaybackClock {
+	/**
+	 * Maximal number of timestamps fitted
+	 */
+	private static final int MaxTimestamps = 16;
+
+	/**
+	 * Timestamps deviating more from the line discard the older ones
+	 */
+	private static final double MaxDeviationSeconds = 0.005;
+
+	/**
+	 * Maximal deviation of the fitted rate from the nominal sample rate.
+	 * Limits the effect of noisy timestamps while only few were fitted
+	 */
+	private static final double MaxRateDeviation = 0.001;
+
+	/**
+	 * Nominal sample rate
+	 */
+	private final double m_sampleRate;
+
+	/**
+	 * Ring of the most recent timestamps, guarded by this
+	 */
+	private final long[] m_framePositions = new long[MaxTimestamps];
+	private final long[] m_nanoTimes = new long[MaxTimestamps];
+	private int m_timestampCount = 0;
+	private int m_nextTimestamp = 0;
+
+	/**
+	 * The fitted line, or null if there are no timestamps
+	 */
+	private volatile Line m_line = null;
+
+	/**
+	 * Immutable snapshot of the fitted line
+	 */
+	private static final class Line {
+		/**
+		 * Reference time and the frame position at that time
+		 */
+		final long nanoTime;
+		final double framePosition;
+
+		/**
+		 * Slope of the line
+		 */
+		final double framesPerNano;
+
+		/**
+		 * Root mean square distance of the timestamps from the line
+		 */
+		final double jitterSeconds;
+
+		/**
+		 * Number of timestamps the line was fitted through
+		 */
+		final int timestampCount;
+
+		Line(final long nanoTime, final double framePosition, final double framesPerNano, final double jitterSeconds, final int timestampCount) {
+			this.nanoTime = nanoTime;
+			this.framePosition = framePosition;
+			this.framesPerNano = framesPerNano;
+			this.jitterSeconds = jitterSeconds;
+			this.timestampCount = timestampCount;
+		}
+
+		double framePositionAt(final long atNanoTime) {
+			return framePosition + (atNanoTime - nanoTime) * framesPerNano;
+		}
+	}
+
+	/**
+	 * Creates a clock without timestamps
+	 *
+	 * @param sampleRate nominal sample rate
+	 */
+	public PlaybackClock(final double sampleRate) {
+		m_sampleRate = sampleRate;
+	}
+
+	/**
+	 * Adds a timestamp and fits the line anew
+	 *
+	 * @param framePosition frame position
+	 * @param nanoTime {@link System#nanoTime()} the frame was presented at
+	 */
+	public synchronized void addTimestamp(final long framePosition, final long nanoTime) {
+		/* Start over if the timestamp doesn't continue the line */
+		final Line line = m_line;
+		if ((line != null) && (Math.abs(line.framePositionAt(nanoTime) - framePosition) > MaxDeviationSeconds * m_sampleRate))
+			m_timestampCount = 0;
+
+		m_framePositions[m_nextTimestamp] = framePosition;
+		m_nanoTimes[m_nextTimestamp] = nanoTime;
+		m_nextTimestamp = (m_nextTimestamp + 1) % MaxTimestamps;
+		m_timestampCount = Math.min(m_timestampCount + 1, MaxTimestamps);
+
+		m_line = fit(framePosition, nanoTime);
+	}
+
+	/**
+	 * Fits a line through the timestamps, relative to the latest one
+	 * to keep the sums small
+	 */
+	private Line fit(final long latestFramePosition, final long latestNanoTime) {
+		final int count = m_timestampCount;
+		final double nominalFramesPerNano = m_sampleRate * 1e-9;
+
+		double sumT = 0, sumF = 0, sumTT = 0, sumTF = 0;
+		for (int i = 0; i < count; ++i) {
+			final int j = (m_nextTimestamp - 1 - i + MaxTimestamps) % MaxTimestamps;
+			final double t = m_nanoTimes[j] - latestNanoTime;
+			final double f = m_framePositions[j] - latestFramePosition;
+			sumT += t;
+			sumF += f;
+			sumTT += t * t;
+			sumTF += t * f;
+		}
+
+		double framesPerNano = nominalFramesPerNano;
+		final double denominator = count * sumTT - sumT * sumT;
+		if ((count >= 2) && (denominator > 0))
+			framesPerNano = (count * sumTF - sumT * sumF) / denominator;
+		framesPerNano = Math.max(nominalFramesPerNano * (1.0 - MaxRateDeviation), Math.min(framesPerNano, nominalFramesPerNano * (1.0 + MaxRateDeviation)));
+		final double intercept = (sumF - framesPerNano * sumT) / count;
+
+		double sumSquares = 0;
+		for (int i = 0; i < count; ++i) {
+			final int j = (m_nextTimestamp - 1 - i + MaxTimestamps) % MaxTimestamps;
+			final double residual = (m_framePositions[j] - latestFramePosition) - (intercept + framesPerNano * (m_nanoTimes[j] - latestNanoTime));
+			sumSquares += residual * residual;
+		}
+		final double jitterSeconds = Math.sqrt(sumSquares / count) / m_sampleRate;
+
+		return new Line(latestNanoTime, latestFramePosition + intercept, framesPerNano, jitterSeconds, count);
+	}
+
+	/**
+	 * Discards all timestamps
+	 */
+	public synchronized void reset() {
+		m_timestampCount = 0;
+		m_line = null;
+	}
+
+	/**
+	 * Returns whether the clock has timestamps to interpolate from
+	 * @return true if positions are available
+	 */
+	public boolean isValid() {
+		return m_line != null;
+	}
+
+	/**
+	 * Returns the number of timestamps the line is currently fitted through
+	 * @return number of timestamps
+	 */
+	public int getTimestampCount() {
+		final Line line = m_line;
+		return (line != null) ? line.timestampCount : 0;
+	}
+
+	/**
+	 * Returns the interpolated frame position at the given time
+	 *
+	 * @param nanoTime {@link System#nanoTime()}
+	 * @return frame position, or {@link Long#MIN_VALUE} if there are no timestamps
+	 */
+	public long getFramePosition(final long nanoTime) {
+		final Line line = m_line;
+		if (line == null)
+			return Long.MIN_VALUE;
+		return (long)Math.floor(line.framePositionAt(nanoTime));
+	}
+
+	/**
+	 * Returns the device's sample rate measured by the fitted line
+	 * @return sample rate, or the nominal rate if there are no timestamps
+	 */
+	public double getMeasuredSampleRate() {
+		final Line line = m_line;
+		return (line != null) ? line.framesPerNano * 1e9 : m_sampleRate;
+	}
+
+	/**
+	 * Returns the root mean square distance of the timestamps from the fitted line
+	 * @return jitter in seconds, or NaN if there are no timestamps
+	 */
+	public double getJitterSeconds() {
+		final Line line = m_line;
+		return (line != null) ? line.jitterSeconds : Double.NaN;
+	}
+}
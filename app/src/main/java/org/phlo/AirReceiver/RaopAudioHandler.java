@@ -17,6 +17,8 @@
 
 package org.phlo.AirReceiver;
 
+import android.os.Build;
+
 import java.net.*;
 import java.nio.charset.*;
 import java.util.*;
@@ -31,6 +33,8 @@ import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.*;
+import org.jboss.netty.channel.socket.DatagramChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.jboss.netty.channel.socket.oio.OioDatagramChannelFactory;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.handler.codec.rtsp.*;
@@ -51,6 +55,57 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	private static final int RTP_CONTROL_PORT = 56301;
 	private static final int RTP_TIMING_PORT = 56302;
 
+	/**
+	 * Number of threads used to decode ALAC packets in parallel to the RTP
+	 * receive threads. Zero decodes the packets inline, on the receiving thread
+	 */
+	private static final int AudioDecodeThreads = (Runtime.getRuntime().availableProcessors() >= 4) ? 2 : 0;
+
+	/**
+	 * Decrypt audio packets with {@link AesCbcDecryptor} instead of the JCE provider.
+	 * Used on older Android releases, whose JCE providers are slow
+	 */
+	private static final boolean AudioDecryptWithAesDecryptor = (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP);
+
+	/**
+	 * Decrypt audio packets in the ALAC decoder, right before decoding them, instead of
+	 * in a separate pipeline stage. Requires the {@link AesCbcDecryptor}
+	 */
+	private static final boolean AudioDecryptInDecoder = AudioDecryptWithAesDecryptor;
+
+	/**
+	 * Adapt the playout offset and the audio track's buffer size to late and lost
+	 * packets and buffer underruns, within these bounds. Not used for receivers
+	 * playing a single channel, which are half of a stereo pair and must play at
+	 * exactly the time requested by the sender. Off unless enabled with
+	 * {@link #setAudioAdaptiveLatency(boolean)}, since playing later than requested
+	 * puts the receiver out of sync with other receivers of the same sender
+	 */
+	private static volatile boolean s_audioAdaptiveLatency = false;
+	private static final double AudioPlayoutOffsetSecondsMin = 0.0;
+	private static final double AudioPlayoutOffsetSecondsMax = 0.25;
+	private static final double AudioBufferSecondsMin = AudioTrackSink.BufferSizeSeconds;
+	private static final double AudioBufferSecondsMax = 0.2;
+
+	/**
+	 * Write to the audio track without blocking where supported, so that the
+	 * audio output queue's thread schedules its writes itself instead of
+	 * waiting inside the framework
+	 */
+	private static final boolean AudioNonBlockingWrites = true;
+
+	/**
+	 * Schedule samples with sub-frame accuracy and follow the drift of the
+	 * sender's clock, for receivers playing a single channel. The two halves of
+	 * a stereo pair must stay within a fraction of a millisecond of each other
+	 */
+	private static final boolean AudioTightSyncForPairs = true;
+
+	/**
+	 * Creates the audio sinks sessions play through
+	 */
+	private static volatile AudioSinkFactory s_audioSinkFactory = AudioTrackSink.Factory;
+
 	private static final String HeaderTransport = "Transport";
 	private static final String HeaderSession = "Session";
 
@@ -60,7 +115,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	private final Executor m_executor;
 	private final ExecutionHandler m_executionHandler;
 	private final ChannelHandler m_exceptionLoggingHandler = new ExceptionLoggingHandler();
-	private final ChannelHandler m_decodeHandler = new RaopRtpDecodeHandler();
+	private final RaopRtpDecodeHandler m_decodeHandler = new RaopRtpDecodeHandler();
 	private final ChannelHandler m_encodeHandler = new RtpEncodeHandler();
 	private final ChannelHandler m_enqueueHandler = new RtpAudioEnqueueHandler();
 	private final RaopRtpInputToAudioUpstreamHandler m_inputToAudioRouterDownstreamHandler = new RaopRtpInputToAudioUpstreamHandler();
@@ -78,6 +133,11 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 */
 	private final ChannelGroup m_rtpChannels = new DefaultChannelGroup();
 
+	/**
+	 * Factory of the RTP channels, shared by the channels of a session
+	 */
+	private DatagramChannelFactory m_rtpChannelFactory;
+
 	private Channel m_audioChannel;
 	private Channel m_controlChannel;
 	private Channel m_timingChannel;
@@ -85,6 +145,23 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	private final int m_audioStream;
 	private final AudioChannel m_channelMode;
 
+	/**
+	 * Sets the factory creating the audio sinks of sessions set up afterwards.
+	 * {@link NullAudioSink#Factory} runs the pipeline without an audio device
+	 * @param factory the sink factory, {@link AudioTrackSink#Factory} by default
+	 */
+	public static void setAudioSinkFactory(final AudioSinkFactory factory) {
+		s_audioSinkFactory = factory;
+	}
+
+	/**
+	 * Enables adapting the latency of sessions set up afterwards
+	 * @param adaptiveLatency whether to adapt the latency, false by default
+	 */
+	public static void setAudioAdaptiveLatency(final boolean adaptiveLatency) {
+		s_audioAdaptiveLatency = adaptiveLatency;
+	}
+
 	/**
 	 * Creates an instance, using the ExecutorService for the RTP channel's datagram socket factory
 	 * @param executionHandler
@@ -94,6 +171,16 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		m_executionHandler = executionHandler;
 		m_audioStream = audioStream;
 		m_channelMode = channelMode;
+
+		/* Route packets on the audio channel directly to the handlers which consume them.
+		 * The control and timing channel lack these handlers, and pass all packets on
+		 * to their router
+		 */
+		m_decodeHandler.setConsumer(RaopRtpPacket.TypeSync, "timing");
+		m_decodeHandler.setConsumer(RaopRtpPacket.TypeTimingResponse, "timing");
+		m_decodeHandler.setConsumer(RaopRtpPacket.TypeAudioTransmit, "resendRequester");
+		m_decodeHandler.setConsumer(RaopRtpPacket.TypeAudioRetransmit, "resendRequester");
+
 		reset();
 	}
 
@@ -109,6 +196,11 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		m_rtpChannels.close().awaitUninterruptibly();
 		m_rtpChannels.clear();
 
+		/* Stops the NIO worker thread, but leaves the executor running */
+		if (m_rtpChannelFactory instanceof NioDatagramChannelFactory)
+			m_rtpChannelFactory.shutdown();
+		m_rtpChannelFactory = null;
+
 		m_audioChannel = null;
 		m_controlChannel = null;
 		m_timingChannel = null;
@@ -117,6 +209,8 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		m_audioToOutputRouterUpstreamHandler.setRtpChannels(null, null);
 
 		m_audioDecryptHandler = null;
+		if (m_audioDecodeHandler instanceof RaopRtpAudioAlacDecodeHandler)
+			((RaopRtpAudioAlacDecodeHandler)m_audioDecodeHandler).close();
 		m_audioDecodeHandler = null;
 		m_resendRequestHandler = null;
 		m_timingHandler = null;
@@ -320,23 +414,54 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		if (formatOptions == null)
 			throw new ProtocolException("Auido format " + audioFormatIndex + " incomplete, format options not set");
 
-		/* Create decryption handler if an AES key and IV was specified */
-		if ((aesKey != null) && (aesIv != null))
-			m_audioDecryptHandler = new RaopRtpAudioDecryptionHandler(aesKey, aesIv);
+		/* Create decryption handler if an AES key and IV was specified, unless
+		 * the ALAC decoder decrypts the packets itself
+		 */
+		AesCbcDecryptor aesDecryptor = null;
+		if ((aesKey != null) && (aesIv != null)) {
+			if (AudioDecryptInDecoder)
+				aesDecryptor = new AesCbcDecryptor(aesKey.getEncoded(), aesIv.getIV());
+			else
+				m_audioDecryptHandler = new RaopRtpAudioDecryptionHandler(aesKey, aesIv, AudioDecryptWithAesDecryptor);
+		}
 
-		/* Create an ALAC decoder. The ALAC decoder is our stream information provider */
-		final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(formatOptions);
+		/* Create an ALAC decoder emitting samples the audio track plays without
+		 * truncating them. The ALAC decoder is our stream information provider
+		 */
+		final AudioSinkFactory sinkFactory = s_audioSinkFactory;
+		final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(formatOptions, m_executor, AudioDecodeThreads, aesDecryptor, sinkFactory.getMaxBitsPerSample());
 		m_audioDecodeHandler = handler;
 
-		/* Create audio output queue with the format information provided by the ALAC decoder */
+		/* Receivers playing a single channel are half of a stereo pair */
+		final boolean paired = (m_channelMode == AudioChannel.ONLY_LEFT) || (m_channelMode == AudioChannel.ONLY_RIGHT);
+		final boolean tightSync = AudioTightSyncForPairs && paired;
+
+		/* Create the session's adaptive latency, if enabled */
+		final AdaptiveLatency latency;
+		if (s_audioAdaptiveLatency && !paired)
+			latency = new AdaptiveLatency(AudioPlayoutOffsetSecondsMin, AudioPlayoutOffsetSecondsMax, AudioBufferSecondsMin, AudioBufferSecondsMax);
+		else
+			latency = null;
+
+		/* Create audio output queue with the format information provided by the ALAC decoder.
+		 * With adaptive latency, the audio track is created with the maximal buffer size
+		 */
 		AudioOutputQueue audioOutputQueue =
-		m_audioOutputQueue = new AudioOutputQueue(handler, m_audioStream, m_channelMode);
+		m_audioOutputQueue = new AudioOutputQueue(
+			handler,
+			sinkFactory.create(handler.getAudioFormat(), handler.getFramesPerPacket(), m_audioStream,
+				(latency != null) ? latency.getMaxBufferSeconds() : AudioTrackSink.BufferSizeSeconds,
+				AudioNonBlockingWrites),
+			m_channelMode,
+			latency,
+			tightSync
+		);
 
 		/* Create timing handle, using the AudioOutputQueue as time source */
-		m_timingHandler = new RaopRtpTimingHandler(audioOutputQueue);
+		m_timingHandler = new RaopRtpTimingHandler(audioOutputQueue, tightSync);
 
 		/* Create retransmit request handler using the audio output queue as time source */
-		m_resendRequestHandler = new RaopRtpRetransmitRequestHandler(handler, audioOutputQueue);
+		m_resendRequestHandler = new RaopRtpRetransmitRequestHandler(handler, audioOutputQueue, latency);
 
 		final HttpResponse response = new DefaultHttpResponse(RtspVersions.RTSP_1_0,  RtspResponseStatuses.OK);
 		ctx.getChannel().write(response);
@@ -574,17 +699,27 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 * @return open data-gram channel
 	 */
 	private Channel createRtpChannel(final SocketAddress local, final SocketAddress remote, final RtpChannelType channelType) {
-		/* Create bootstrap helper for a data-gram socket using OIO,
-		 * default is NIO which not work <= Android 5.1 ???
+		/* Create bootstrap helper for a data-gram socket. NIO doesn't work
+		 * <= Android 5.1 ???, so OIO is used there. The NIO worker receives
+		 * into a buffer it re-uses, and copies each datagram into a buffer
+		 * drawn from RtpReceiveBufferFactory, while the OIO worker allocates
+		 * an array per datagram. One NIO worker thread serves all channels.
 		 */
-		final OioDatagramChannelFactory channelFactory = new OioDatagramChannelFactory(m_executor);
-		final ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(channelFactory);
+		if (m_rtpChannelFactory == null) {
+			m_rtpChannelFactory = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+				? new NioDatagramChannelFactory(m_executor, 1)
+				: new OioDatagramChannelFactory(m_executor);
+		}
+		final ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(m_rtpChannelFactory);
 
 		/* Set the buffer size predictor to 1500 bytes to ensure that
 		 * received packets will fit into the buffer. Packets are
 		 * truncated if they are larger than that!
 		 */
-		bootstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(1500));
+		bootstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(RtpReceiveBufferFactory.BufferLength));
+
+		/* Copy received datagrams into pooled buffers, which the pipeline releases */
+		bootstrap.setOption("bufferFactory", RtpReceiveBufferFactory.getInstance());
 
 		/* Set the socket's receive buffer size. We set it to 1MB */
 		bootstrap.setOption("receiveBufferSize", 1024*1024);
@@ -607,6 +742,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 					pipeline.addLast("audioToOutputRouter", m_audioToOutputRouterUpstreamHandler);
 					pipeline.addLast("timing", m_timingHandler);
 					pipeline.addLast("resendRequester", m_resendRequestHandler);
+					/* No separate decryption stage if the decoder decrypts the packets */
 					if (m_audioDecryptHandler != null)
 						pipeline.addLast("decrypt", m_audioDecryptHandler);
 					if (m_audioDecodeHandler != null)
@@ -634,15 +770,16 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		@Override
 		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt) throws Exception {
 			final Object message = evt.getMessage();
-			if (message instanceof RaopRtpPacket.Audio) {
-				final RaopRtpPacket.Audio audioPacket = (RaopRtpPacket.Audio) message;
+			if (message instanceof PcmPacket) {
+				final PcmPacket pcmPacket = (PcmPacket) message;
 				/* Get audio output queue from the enclosing RaopAudioHandler */
 				final AudioOutputQueue audioOutputQueue = m_audioOutputQueue;
 				if (audioOutputQueue != null) {
-					audioOutputQueue.enqueue(audioPacket.getTimeStamp(), audioPacket.getPayload());
-					//s_logger.finest("Packet with sequence " + audioPacket.getSequence() + " for playback at " + audioPacket.getTimeStamp() + " submitted to audio output queue");
+					audioOutputQueue.enqueue(pcmPacket);
+					//s_logger.finest("Packet for playback at " + pcmPacket.getFrameTime() + " submitted to audio output queue");
 				} else {
 					s_logger.warning("No audio queue available, dropping packet");
+					pcmPacket.release();
 				}
 			}
 			super.messageReceived(ctx, evt);
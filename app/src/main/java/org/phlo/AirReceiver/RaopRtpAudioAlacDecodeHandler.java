@@ -18,6 +18,9 @@
 package org.phlo.AirReceiver;
 
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.logging.*;
 
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -27,11 +30,23 @@ import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 import com.beatofthedrum.alacdecoder.*;
 
 /**
- * Decodes the ALAC audio data in incoming audio packets to little endian unsigned PCM.
+ * Decodes the ALAC audio data in incoming audio packets to little endian unsigned PCM,
+ * emitted as {@link PcmPacket} instances drawn from a {@link PcmPacketPool}.
  * Also serves as an {@link AudioStreamInformationProvider}
+ *
+ * The PCM is emitted in the sample size the audio sink plays, so that the samples
+ * are decoded directly into their final form. If the sink plays at most 16-bit
+ * samples, 24-bit audio is thus truncated while decoding, not by the sink.
  * 
  * This class assumes that ALAC requires no inter-packet state - it doesn't make
- * any effort to feed the packets to ALAC in the correct order.
+ * any effort to feed the packets to ALAC in the correct order. This allows packets
+ * to be decoded in parallel by worker threads which each own a decoder state. The
+ * decoded packets are passed on in the order in which their ALAC packets arrived.
+ *
+ * If created with an {@link AesCbcDecryptor}, the handler also decrypts the
+ * packets, replacing a separate {@link RaopRtpAudioDecryptionHandler}. The payload
+ * is then decrypted into a small buffer owned by the decoder state, right before
+ * it is decoded, and the packet itself is left untouched.
  */
 public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements AudioStreamInformationProvider {
 	private static Logger s_logger = Logger.getLogger("RaopRtpAudioAlacDecoder");
@@ -52,16 +67,24 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	public static final int FormatOption86 = 9;
 	public static final int FormatOption8a_rate = 10;
 
+
 	/**
-	 * The {@link AudioFormat} that corresponds to the output produced by the decoder
+	 * Number of seconds of decoded audio the packet pool retains for re-use.
+	 * Matches the maximal length of the audio output queue.
 	 */
-	private static final AudioFormat AudioOutputFormat = new AudioFormat(
-		44100 /* sample rate */,
-		16 /* bits per sample */,
-		2 /* number of channels */,
-		false /* unsigned */,
-		false /* little endian */
-	);
+	private static final double PacketPoolSeconds = 10;
+
+	/**
+	 * Maximal number of packets in the parallel decoding stage. Further
+	 * packets are dropped until the oldest packet has been decoded and passed on.
+	 */
+	private static final int DecodeQueueLength = 64;
+
+	/**
+	 * Size of the buffers the payload is decrypted into. RTP packets
+	 * are received into buffers of 1500 bytes, see {@link RaopAudioHandler}
+	 */
+	private static final int DecryptBufferLength = 1500;
 
 	/**
 	 * Number of samples per ALAC frame (packet).
@@ -69,13 +92,135 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	 * for the left channel and one for the right
 	 */
 	private final int m_samplesPerFrame;
-	private final int[] m_pcmSamples;
 
 	/**
-	 * Decoder state
+	 * Sample size of the PCM produced by the decoder
+	 */
+	private final int m_outputBitsPerSample;
+
+	/**
+	 * The {@link AudioFormat} that corresponds to the output produced by the decoder
+	 */
+	private final AudioFormat m_audioFormat;
+
+	/**
+	 * Pool of output packets, refilled by the audio output queue
+	 */
+	private final PcmPacketPool m_pcmPacketPool;
+
+	/**
+	 * The SDP format options the decoder states are created from
+	 */
+	private final String[] m_formatOptions;
+
+	/**
+	 * Decrypts the payload before decoding, null if the packets aren't encrypted
+	 * or are decrypted by a separate handler
+	 */
+	private final AesCbcDecryptor m_aesDecryptor;
+
+	/**
+	 * Decoder state used if packets are decoded inline
 	 */
 	private final AlacFile m_alacFile;
 
+	/**
+	 * Decryption buffer used if packets are decoded inline, guarded by m_alacFile
+	 */
+	private final byte[] m_decryptBuffer;
+
+	/**
+	 * Ring of packets in the parallel decoding stage, indexed by their
+	 * submission sequence number. Null if packets are decoded inline.
+	 * Also guards the sequence numbers and the slot's contents.
+	 */
+	private final DecodeSlot[] m_decodeSlots;
+
+	/**
+	 * Packets waiting for a worker thread
+	 */
+	private final BlockingQueue<DecodeSlot> m_decodeQueue;
+
+	/**
+	 * Sequence number of the next packet submitted to, respectively
+	 * passed on by the parallel decoding stage
+	 */
+	private long m_submitSequence = 0;
+	private long m_emitSequence = 0;
+
+	/**
+	 * Set while a worker thread passes decoded packets on, guarded by m_decodeSlots
+	 */
+	private boolean m_emitting = false;
+
+	/**
+	 * Number of packets dropped because the parallel decoding stage was full,
+	 * and whether the last packet was. Guarded by m_decodeSlots
+	 */
+	private long m_droppedPackets = 0;
+	private boolean m_dropping = false;
+
+	/**
+	 * Number of decoding worker threads
+	 */
+	private final int m_decodeThreads;
+
+	/**
+	 * Signals that the decoder is being closed.
+	 * Never transitions from true to false!
+	 */
+	private volatile boolean m_closing = false;
+
+	/**
+	 * A packet in the parallel decoding stage
+	 */
+	private static final class DecodeSlot {
+		ChannelHandlerContext ctx;
+		RaopRtpPacket.Audio alacPacket;
+		PcmPacket pcmPacket;
+		boolean busy;
+		boolean decoded;
+	}
+
+	/**
+	 * Tells a worker thread to exit
+	 */
+	private static final DecodeSlot ExitSlot = new DecodeSlot();
+
+	/**
+	 * Decoding worker thread. Owns its decoder state
+	 */
+	private class DecodeWorker implements Runnable {
+		private final AlacFile m_workerAlacFile = createAlacFile();
+		private final byte[] m_workerDecryptBuffer = createDecryptBuffer();
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final DecodeSlot slot = m_decodeQueue.take();
+					if (slot == ExitSlot)
+						break;
+
+					PcmPacket pcmPacket = null;
+					try {
+						pcmPacket = decode(m_workerAlacFile, m_workerDecryptBuffer, slot.alacPacket);
+					}
+					catch (final Exception e) {
+						s_logger.log(Level.WARNING, "Decoding audio packet failed, dropping it", e);
+					}
+					finally {
+						RtpReceiveBufferFactory.release(slot.alacPacket.getBuffer());
+					}
+					decoded(slot, pcmPacket);
+				}
+			}
+			catch (final InterruptedException e) {
+				s_logger.warning("Audio decoding thread was interrupted");
+			}
+		}
+	}
+
 	/**
 	 * Creates an ALAC decoder instance from a list of format options as
 	 * they appear in the SDP session announcement.
@@ -86,91 +231,382 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions)
 		throws ProtocolException
 	{
+		this(formatOptions, null, 0, null);
+	}
+
+	/**
+	 * Creates an ALAC decoder instance from a list of format options as
+	 * they appear in the SDP session announcement, which decodes packets
+	 * on the given number of worker threads.
+	 * 
+	 * @param formatOptions list of format options
+	 * @param executor executor running the worker threads
+	 * @param decodeThreads number of worker threads, 0 to decode inline
+	 * @throws ProtocolException if the format options are invalid for ALAC
+	 */
+	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions, final Executor executor, final int decodeThreads)
+		throws ProtocolException
+	{
+		this(formatOptions, executor, decodeThreads, null);
+	}
+
+	/**
+	 * Creates an ALAC decoder instance from a list of format options as
+	 * they appear in the SDP session announcement, which decodes packets
+	 * on the given number of worker threads.
+	 * 
+	 * @param formatOptions list of format options
+	 * @param executor executor running the worker threads
+	 * @param decodeThreads number of worker threads, 0 to decode inline
+	 * @param aesDecryptor decryptor for encrypted packets, null if the packets are not encrypted
+	 * @throws ProtocolException if the format options are invalid for ALAC
+	 */
+	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions, final Executor executor, final int decodeThreads, final AesCbcDecryptor aesDecryptor)
+		throws ProtocolException
+	{
+		this(formatOptions, executor, decodeThreads, aesDecryptor, 24);
+	}
+
+	/**
+	 * Creates an ALAC decoder instance from a list of format options as
+	 * they appear in the SDP session announcement, which decodes packets
+	 * on the given number of worker threads.
+	 * 
+	 * @param formatOptions list of format options
+	 * @param executor executor running the worker threads
+	 * @param decodeThreads number of worker threads, 0 to decode inline
+	 * @param aesDecryptor decryptor for encrypted packets, null if the packets are not encrypted
+	 * @param maxBitsPerSample maximal sample size of the emitted PCM, 24-bit audio is
+	 *                         truncated to 16-bit if less than 24
+	 * @throws ProtocolException if the format options are invalid for ALAC
+	 */
+	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions, final Executor executor, final int decodeThreads, final AesCbcDecryptor aesDecryptor, final int maxBitsPerSample)
+		throws ProtocolException
+	{
+		m_aesDecryptor = aesDecryptor;
+		m_formatOptions = formatOptions.clone();
 		m_samplesPerFrame = Integer.valueOf(formatOptions[FormatOptionSamplesPerFrame]);
-		m_pcmSamples = new int[m_samplesPerFrame * 2];
 
-		/* We support only 16-bit ALAC */
+		/* We support 16-bit and 24-bit ALAC */
 		final int bitsPerSample = Integer.valueOf(formatOptions[FormatOptionBitsPerSample]);
-		if (bitsPerSample != 16)
-			throw new ProtocolException("Sample size must be 16, but was " + bitsPerSample);
+		if (bitsPerSample != 16 && bitsPerSample != 24)
+			throw new ProtocolException("Sample size must be 16 or 24, but was " + bitsPerSample);
+		m_outputBitsPerSample = Math.min(bitsPerSample, Math.max(maxBitsPerSample, 16));
 
-		/* We support only 44100 kHz */
+		/* We support 44.1, 48, 88.2 and 96 kHz */
 		final int sampleRate = Integer.valueOf(formatOptions[FormatOption8a_rate]);
-		if (sampleRate != 44100)
-			throw new ProtocolException("Sample rate must be 44100, but was " + sampleRate);
+		if (sampleRate != 44100 && sampleRate != 48000 && sampleRate != 88200 && sampleRate != 96000)
+			throw new ProtocolException("Sample rate must be 44100, 48000, 88200 or 96000, but was " + sampleRate);
+
+		/* The decoder emits signed little endian PCM, 24-bit samples are packed into 3 bytes */
+		m_audioFormat = new AudioFormat(
+			sampleRate,
+			m_outputBitsPerSample,
+			2 /* number of channels */,
+			false /* unsigned */,
+			false /* little endian */
+		);
+
+		m_alacFile = createAlacFile();
+		m_decryptBuffer = createDecryptBuffer();
+
+		m_pcmPacketPool = new PcmPacketPool(
+			m_samplesPerFrame * m_audioFormat.getFrameSize(),
+			(int)Math.ceil(PacketPoolSeconds * getPacketsPerSecond())
+		);
+
+		/* Start the worker threads. Each has its own decoder state */
+		m_decodeThreads = (executor != null) ? Math.max(decodeThreads, 0) : 0;
+		if (m_decodeThreads > 0) {
+			m_decodeSlots = new DecodeSlot[DecodeQueueLength];
+			for (int i = 0; i < m_decodeSlots.length; ++i)
+				m_decodeSlots[i] = new DecodeSlot();
+			m_decodeQueue = new ArrayBlockingQueue<>(DecodeQueueLength + m_decodeThreads);
+			for (int i = 0; i < m_decodeThreads; ++i)
+				executor.execute(new DecodeWorker());
+		}
+		else {
+			m_decodeSlots = null;
+			m_decodeQueue = null;
+		}
 
-		m_alacFile = AlacDecodeUtils.create_alac(bitsPerSample, 2);
-		m_alacFile.setinfo_max_samples_per_frame = m_samplesPerFrame;
-		m_alacFile.setinfo_7a = Integer.valueOf(formatOptions[FormatOption7a]);
-		m_alacFile.setinfo_sample_size = bitsPerSample;
-		m_alacFile.setinfo_rice_historymult = Integer.valueOf(formatOptions[FormatOptionRiceHistoryMult]);
-		m_alacFile.setinfo_rice_initialhistory = Integer.valueOf(formatOptions[FormatOptionRiceInitialHistory]);
-		m_alacFile.setinfo_rice_kmodifier = Integer.valueOf(formatOptions[FormatOptionRiceKModifier]);
-		m_alacFile.setinfo_7f = Integer.valueOf(formatOptions[FormatOption7f]);
-		m_alacFile.setinfo_80 = Integer.valueOf(formatOptions[FormatOption80]);
-		m_alacFile.setinfo_82 = Integer.valueOf(formatOptions[FormatOption82]);
-		m_alacFile.setinfo_86 = Integer.valueOf(formatOptions[FormatOption86]);
-		m_alacFile.setinfo_8a_rate = sampleRate;
+		s_logger.info("Created ALAC decode for options " + Arrays.toString(formatOptions) + " emitting " + m_outputBitsPerSample + "-bit PCM using " + m_decodeThreads + " decoding threads" + ((m_aesDecryptor != null) ? ", decrypting packets" : ""));
+	}
+
+	/**
+	 * Creates a decoder state from the format options
+	 */
+	private AlacFile createAlacFile() {
+		final String[] formatOptions = m_formatOptions;
+		final int bitsPerSample = Integer.valueOf(formatOptions[FormatOptionBitsPerSample]);
+		final int sampleRate = Integer.valueOf(formatOptions[FormatOption8a_rate]);
+
+		final AlacFile alacFile = AlacDecodeUtils.create_alac(bitsPerSample, 2);
+		alacFile.setinfo_max_samples_per_frame = m_samplesPerFrame;
+		alacFile.setinfo_7a = Integer.valueOf(formatOptions[FormatOption7a]);
+		alacFile.setinfo_sample_size = bitsPerSample;
+		alacFile.setinfo_rice_historymult = Integer.valueOf(formatOptions[FormatOptionRiceHistoryMult]);
+		alacFile.setinfo_rice_initialhistory = Integer.valueOf(formatOptions[FormatOptionRiceInitialHistory]);
+		alacFile.setinfo_rice_kmodifier = Integer.valueOf(formatOptions[FormatOptionRiceKModifier]);
+		alacFile.setinfo_7f = Integer.valueOf(formatOptions[FormatOption7f]);
+		alacFile.setinfo_80 = Integer.valueOf(formatOptions[FormatOption80]);
+		alacFile.setinfo_82 = Integer.valueOf(formatOptions[FormatOption82]);
+		alacFile.setinfo_86 = Integer.valueOf(formatOptions[FormatOption86]);
+		alacFile.setinfo_8a_rate = sampleRate;
+		alacFile.output_sample_size = m_outputBitsPerSample;
+		return alacFile;
+	}
+
+	/**
+	 * Creates a decryption buffer, or returns null if packets aren't decrypted here
+	 */
+	private byte[] createDecryptBuffer() {
+		return (m_aesDecryptor != null) ? new byte[DecryptBufferLength] : null;
+	}
+
+	/**
+	 * Stops the decoding worker threads. Packets still in the
+	 * parallel decoding stage are dropped, and their PCM packets
+	 * are returned to the pool.
+	 */
+	public void close() {
+		if (m_decodeSlots == null)
+			return;
+
+		synchronized(m_decodeSlots) {
+			m_closing = true;
+			if (!m_emitting)
+				releaseDecoded();
+		}
+		for (int i = 0; i < m_decodeThreads; ++i)
+			m_decodeQueue.offer(ExitSlot);
+	}
+
+	/**
+	 * Returns the number of packets dropped because the parallel decoding stage was full
+	 *
+	 * @return number of dropped packets
+	 */
+	public long getDroppedPacketCount() {
+		if (m_decodeSlots == null)
+			return 0;
+
+		synchronized(m_decodeSlots) {
+			return m_droppedPackets;
+		}
+	}
 
-		s_logger.info("Created ALAC decode for options " + Arrays.toString(formatOptions));
+	/**
+	 * Returns the pool the decoded packets are drawn from
+	 *
+	 * @return PCM packet pool
+	 */
+	PcmPacketPool getPcmPacketPool() {
+		return m_pcmPacketPool;
 	}
 
 	@Override
-	protected synchronized Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
+	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
 		throws Exception
 	{
 		if (!(msg instanceof RaopRtpPacket.Audio))
 			return msg;
 
 		final RaopRtpPacket.Audio alacPacket = (RaopRtpPacket.Audio)msg;
-		final ChannelBuffer alacPayload = alacPacket.getPayload();
 
-		/* The ALAC decode sometimes reads beyond the input's bounds
-		 * (but later discards the data). To alleviate, we allocate
-		 * 3 spare bytes at input buffer's end.
-		 */
+		/* The parallel decoding stage passes the decoded packet on by itself */
+		if (m_decodeSlots != null) {
+			submit(ctx, alacPacket);
+			return null;
+		}
 
-		/* Decode ALAC to PCM */
-		final int[] pcmSamples = m_pcmSamples;
-		final int pcmSamplesBytes = AlacDecodeUtils.decode_frame(m_alacFile, alacPayload.array(), alacPayload.arrayOffset(),
-				pcmSamples, m_samplesPerFrame);
+		synchronized(m_alacFile) {
+			return decode(m_alacFile, m_decryptBuffer, alacPacket);
+		}
+	}
 
-		/* decode_frame() returns the number of *bytes*, not samples! */
-		final int pcmSamplesLength = pcmSamplesBytes / 4;
-		final Level level = Level.FINEST;
-		if (s_logger.isLoggable(level))
-			s_logger.log(level, "Decoded " + alacPayload.capacity() + " bytes of ALAC audio data to " + pcmSamplesLength + " PCM samples");
+	/**
+	 * Adds a packet to the parallel decoding stage. Drops the packet if the stage
+	 * is full, since waiting would stall the receiving thread, and with it the
+	 * timing and control packets. The audio output queue conceals the gap.
+	 *
+	 * @param ctx context to pass the decoded packet on to
+	 * @param alacPacket ALAC packet
+	 */
+	private void submit(final ChannelHandlerContext ctx, final RaopRtpPacket.Audio alacPacket) {
+		final DecodeSlot slot;
+		synchronized(m_decodeSlots) {
+			if (m_closing)
+				return;
 
-		/* Complain if the sender doesn't honour it's commitment */
-		if (pcmSamplesLength != m_samplesPerFrame)
-			throw new ProtocolException("Frame declared to contain " + m_samplesPerFrame + ", but contained " + pcmSamplesLength);
+			final DecodeSlot next = m_decodeSlots[(int)(m_submitSequence % m_decodeSlots.length)];
+			if (next.busy) {
+				++m_droppedPackets;
+				if (!m_dropping)
+					s_logger.warning("Audio decoding stage is full, dropping packets. " + m_droppedPackets + " packet(s) dropped so far");
+				m_dropping = true;
+				return;
+			}
+			m_dropping = false;
 
-		/* Assemble PCM audio packet from original packet header and decoded data.
-		 * The ALAC decode emits signed PCM samples as integers. We store them as
-		 * as unsigned little endian integers in the packet.
-		 */
+			/* Held until a worker has decoded the packet */
+			RtpReceiveBufferFactory.retain(alacPacket.getBuffer());
+			next.ctx = ctx;
+			next.alacPacket = alacPacket;
+			next.busy = true;
+			++m_submitSequence;
+			slot = next;
+		}
+		m_decodeQueue.offer(slot);
+	}
+
+	/**
+	 * Called by the worker threads once a packet was decoded. Passes on all decoded
+	 * packets at the head of the parallel decoding stage, in submission order.
+	 * <p>
+	 * Packets are passed on outside of the lock, so that the other workers and
+	 * the submitting thread aren't blocked by the downstream handlers. Only one
+	 * thread passes packets on at a time, which keeps them in order. A thread
+	 * which finds another one doing so leaves its packet to that thread.
+	 *
+	 * @param slot the slot of the decoded packet
+	 * @param pcmPacket decoded packet, null if decoding failed
+	 */
+	private void decoded(final DecodeSlot slot, final PcmPacket pcmPacket) {
+		synchronized(m_decodeSlots) {
+			slot.pcmPacket = pcmPacket;
+			slot.decoded = true;
+
+			if (m_emitting)
+				return;
+			if (m_closing) {
+				releaseDecoded();
+				return;
+			}
+			m_emitting = true;
+		}
+
+		while (true) {
+			final ChannelHandlerContext headCtx;
+			final PcmPacket headPcmPacket;
+			synchronized(m_decodeSlots) {
+				if (m_closing) {
+					releaseDecoded();
+					m_emitting = false;
+					return;
+				}
+
+				final DecodeSlot head = m_decodeSlots[(int)(m_emitSequence % m_decodeSlots.length)];
+				if (!head.decoded) {
+					m_emitting = false;
+					return;
+				}
+
+				headCtx = head.ctx;
+				headPcmPacket = head.pcmPacket;
+				head.ctx = null;
+				head.alacPacket = null;
+				head.pcmPacket = null;
+				head.decoded = false;
+				head.busy = false;
+				++m_emitSequence;
+			}
+
+			if (headPcmPacket == null)
+				continue;
+			if (m_closing) {
+				headPcmPacket.release();
+				continue;
+			}
 
-		RaopRtpPacket.Audio pcmPacket;
-		if (alacPacket instanceof RaopRtpPacket.AudioTransmit) {
-			pcmPacket = new RaopRtpPacket.AudioTransmit(pcmSamplesLength * 4);
-			alacPacket.getBuffer().getBytes(0, pcmPacket.getBuffer(), 0, RaopRtpPacket.AudioTransmit.Length);
+			try {
+				Channels.fireMessageReceived(headCtx, headPcmPacket);
+			}
+			catch (final Throwable e) {
+				s_logger.log(Level.WARNING, "Passing on decoded audio packet failed", e);
+			}
 		}
-		else if (alacPacket instanceof RaopRtpPacket.AudioRetransmit) {
-			pcmPacket = new RaopRtpPacket.AudioRetransmit(pcmSamplesLength * 4);
-			alacPacket.getBuffer().getBytes(0, pcmPacket.getBuffer(), 0, RaopRtpPacket.AudioRetransmit.Length);
+	}
+
+	/**
+	 * Returns the PCM packets of all decoded packets which weren't passed on
+	 * to the pool, once the decoder is closing. Packets still being decoded
+	 * are released by the {@link #decoded(DecodeSlot, PcmPacket)} call of
+	 * their worker. Must be called with m_decodeSlots locked, and not
+	 * while another thread passes packets on.
+	 */
+	private void releaseDecoded() {
+		for (final DecodeSlot slot: m_decodeSlots) {
+			if (!slot.decoded)
+				continue;
+
+			if (slot.pcmPacket != null)
+				slot.pcmPacket.release();
+			slot.ctx = null;
+			slot.alacPacket = null;
+			slot.pcmPacket = null;
+			slot.decoded = false;
+			slot.busy = false;
+		}
+	}
+
+	/**
+	 * Decodes an ALAC packet into a pooled PCM packet, decrypting it first if necessary
+	 *
+	 * @param alacFile decoder state
+	 * @param decryptBuffer buffer to decrypt the payload into, null if packets aren't decrypted here
+	 * @param alacPacket ALAC packet
+	 * @return PCM packet
+	 * @throws ProtocolException if the packet contains fewer or more samples than announced
+	 */
+	private PcmPacket decode(final AlacFile alacFile, final byte[] decryptBuffer, final RaopRtpPacket.Audio alacPacket)
+		throws ProtocolException
+	{
+		final ChannelBuffer alacBuffer = alacPacket.getBuffer();
+
+		byte[] alacData = alacBuffer.array();
+		int alacOffset = alacBuffer.arrayOffset() + alacPacket.getPayloadOffset();
+		if (decryptBuffer != null) {
+			final int payloadLength = alacPacket.getLength() - alacPacket.getPayloadOffset();
+			if (payloadLength > decryptBuffer.length)
+				throw new ProtocolException("Audio packet payload of " + payloadLength + " bytes exceeds the maximum of " + decryptBuffer.length);
+
+			/* Decrypt into the end of the buffer, the decoder reads zeros past the end of the payload then */
+			final int decryptOffset = decryptBuffer.length - payloadLength;
+			m_aesDecryptor.decrypt(alacData, alacOffset, decryptBuffer, decryptOffset, payloadLength);
+			alacData = decryptBuffer;
+			alacOffset = decryptOffset;
+		}
+
+		/* The decoder writes the little endian PCM samples directly into
+		 * a pooled packet, which the audio output queue releases again
+		 * after the samples were written to the audio track.
+		 */
+		final PcmPacket pcmPacket = m_pcmPacketPool.acquire();
+		final ChannelBuffer pcmBuffer = pcmPacket.getBuffer();
+		boolean success = false;
+		try {
+			/* Decode ALAC to PCM */
+			final int pcmSamplesBytes = AlacDecodeUtils.decode_frame(alacFile,
+					alacData, alacOffset,
+					pcmBuffer.array(), pcmBuffer.arrayOffset());
+
+			/* decode_frame() returns the number of *bytes*, not samples! */
+			final int pcmSamplesLength = pcmSamplesBytes / m_audioFormat.getFrameSize();
+			final Level level = Level.FINEST;
+			if (s_logger.isLoggable(level))
+				s_logger.log(level, "Decoded " + (alacPacket.getLength() - alacPacket.getPayloadOffset()) + " bytes of ALAC audio data to " + pcmSamplesLength + " PCM samples");
+
+			/* Complain if the sender doesn't honour it's commitment */
+			if (pcmSamplesLength != m_samplesPerFrame)
+				throw new ProtocolException("Frame declared to contain " + m_samplesPerFrame + ", but contained " + pcmSamplesLength);
+
+			pcmPacket.setFrameTime(alacPacket.getTimeStamp());
+			success = true;
 		}
-		else
-			throw new ProtocolException("Packet type " + alacPacket.getClass() + " is not supported by the ALAC decoder");
-
-		final ChannelBuffer pcmPayload = pcmPacket.getPayload();
-		final byte[] payload = pcmPayload.array();
-		final int offset = pcmPayload.arrayOffset();
-
-		for(int i=0; i < pcmSamples.length; ++i) {
-			/* Convert sample to little endian unsigned integer PCM */
-			final int pcmSampleUnsigned = pcmSamples[i];
-			payload[offset + 2*i] = (byte) (pcmSampleUnsigned & 0x00ff);
-			payload[offset + 2*i + 1] = (byte) ((pcmSampleUnsigned & 0xff00) >> 8);
+		finally {
+			if (!success)
+				pcmPacket.release();
 		}
 
 		return pcmPacket;
@@ -178,7 +614,7 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 
 	@Override
 	public AudioFormat getAudioFormat() {
-		return AudioOutputFormat;
+		return m_audioFormat;
 	}
 
 	@Override
@@ -26,25 +26,51 @@ import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 
 /**
- * De-crypt AES encoded audio data
+ * De-crypt AES encoded audio data, either with the JCE provider
+ * or with the provider-independent {@link AesCbcDecryptor}
  */
 public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 	/**
 	 *  The AES cipher. We request no padding because RAOP/AirTunes only encrypts full
-	 * block anyway and leaves the trailing byte unencrypted
+	 * block anyway and leaves the trailing byte unencrypted. Null if the
+	 * {@link AesCbcDecryptor} is used instead
 	 */
-	private final Cipher m_aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+	private final Cipher m_aesCipher;
 
-	private final byte[] m_block = new byte[16];
+	/**
+	 * The provider-independent AES decryptor, null if the JCE cipher is used
+	 */
+	private final AesCbcDecryptor m_aesDecryptor;
 
 	public RaopRtpAudioDecryptionHandler(final SecretKey aesKey, final IvParameterSpec aesIv)
 		throws Exception
 	{
-		m_aesCipher.init(Cipher.DECRYPT_MODE, aesKey, aesIv);
+		this(aesKey, aesIv, false);
+	}
+
+	/**
+	 * Creates an AES decryption handler
+	 *
+	 * @param aesKey AES key
+	 * @param aesIv AES initialization vector
+	 * @param useAesDecryptor true to use {@link AesCbcDecryptor} instead of the JCE provider
+	 */
+	public RaopRtpAudioDecryptionHandler(final SecretKey aesKey, final IvParameterSpec aesIv, final boolean useAesDecryptor)
+		throws Exception
+	{
+		if (useAesDecryptor) {
+			m_aesCipher = null;
+			m_aesDecryptor = new AesCbcDecryptor(aesKey.getEncoded(), aesIv.getIV());
+		}
+		else {
+			m_aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
+			m_aesCipher.init(Cipher.DECRYPT_MODE, aesKey, aesIv);
+			m_aesDecryptor = null;
+		}
 	}
 
 	@Override
-	protected synchronized Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
+	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
 		throws Exception
 	{
 		if (msg instanceof RaopRtpPacket.Audio) {
@@ -53,20 +79,28 @@ public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 
 			final byte[] data = audioPayload.array();
 			final int offset = audioPayload.arrayOffset();
-			final int size = audioPayload.capacity();
-			for (int i = 0; i + 16 <= size; i += 16) {
-				/*
-				 * Note: Cipher.update(byte[], int, int, byte[], int) method should be copy-safe,
-				 * which means the input and output buffers can reference
-				 * the same byte array and no unprocessed input data is overwritten
-				 * when the result is copied into the output buffer.
-				 */
-				m_aesCipher.update(data, offset + i, Math.min(16, size - i),
-						data, offset + i);
-			}
 
-			/* Cipher is restarted for every packet, call doFinal() to reset it. */
-			m_aesCipher.doFinal(m_block, 0);
+			/* Only full blocks are encrypted, the trailing partial block is left as it is */
+			final int size = audioPayload.capacity() & ~15;
+
+			/*
+			 * Decrypt all full blocks in place with a single call. The cipher is restarted
+			 * for every packet, and doFinal() also resets it to the IV it was initialized with.
+			 *
+			 * Note: Cipher.doFinal(byte[], int, int, byte[], int) method should be copy-safe,
+			 * which means the input and output buffers can reference
+			 * the same byte array and no unprocessed input data is overwritten
+			 * when the result is copied into the output buffer.
+			 */
+			if (m_aesDecryptor != null) {
+				/* Stateless, no need to synchronize */
+				m_aesDecryptor.decrypt(data, offset, size);
+			}
+			else {
+				synchronized(m_aesCipher) {
+					m_aesCipher.doFinal(data, offset, size, data, offset);
+				}
+			}
 		}
 
 		return msg;
@@ -1,5 +1,6 @@
 package org.phlo.AirReceiver;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
@@ -20,13 +21,24 @@ public class RaopRtpAudioToOutputDownstreamHandler extends SimpleChannelDownstre
 
     @Override
     public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent evt) throws Exception {
-        final RaopRtpPacket packet = (RaopRtpPacket) evt.getMessage();
+        /* Outgoing packets are either packet objects or already encoded buffers */
+        final Object message = evt.getMessage();
+        final ChannelBuffer buffer;
+        if (message instanceof RaopRtpPacket)
+            buffer = ((RaopRtpPacket) message).getBuffer();
+        else if (message instanceof ChannelBuffer)
+            buffer = (ChannelBuffer) message;
+        else
+            buffer = null;
+        final int typeTag = ((buffer != null) && (buffer.capacity() >= RtpPacket.Length)) ?
+            RaopRtpPacket.getTypeTag(buffer) : RaopRtpPacket.TypeInvalid;
+
         /* Get control and timing channel from the enclosing ProxyServerHandler */
-        if (packet instanceof RaopRtpPacket.RetransmitRequest) {
+        if (typeTag == RaopRtpPacket.TypeRetransmitRequest) {
             final Channel controlChannel = m_rtpControlChannel;
             if (controlChannel != null && controlChannel.isOpen() && controlChannel.isWritable())
                 controlChannel.write(evt.getMessage());
-        } else if (packet instanceof RaopRtpPacket.TimingRequest) {
+        } else if (typeTag == RaopRtpPacket.TypeTimingRequest) {
             final Channel timingChannel = m_rtpTimingChannel;
             if (timingChannel != null && timingChannel.isOpen() && timingChannel.isWritable())
                 timingChannel.write(evt.getMessage());
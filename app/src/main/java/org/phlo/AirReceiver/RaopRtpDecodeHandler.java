@@ -17,35 +17,196 @@
 
 package org.phlo.AirReceiver;
 
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 
 import org.jboss.netty.buffer.*;
 import org.jboss.netty.channel.*;
-import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 
 /**
- * Decodes incoming packets, emitting instances of {@link RaopRtpPacket}
+ * Decodes incoming {@link ChannelBuffer}s into {@link RaopRtpPacket}s and routes them.
+ * <p>
+ * Each packet is classified once by its type tag (see {@link RaopRtpPacket#getTypeTag}).
+ * If a consumer was registered for that tag with {@link #setConsumer(int, String)} and
+ * the pipeline contains a handler of that name, the packet is passed directly to that
+ * handler, skipping the handlers in between. Otherwise, it is passed on to the next handler.
+ * <p>
+ * Already decoded packets, i.e. packets routed to the audio channel's pipeline from the
+ * control and timing channels, are routed the same way.
+ * <p>
+ * Malformed packets are dropped without throwing exceptions. Drops are counted per
+ * reason (see {@link RaopRtpPacket#validate}), and logged at most every few seconds.
+ * <p>
+ * Once a packet has passed the pipeline, its buffer is released, see
+ * {@link RtpReceiveBufferFactory#release(ChannelBuffer)}.
  */
-public class RaopRtpDecodeHandler extends OneToOneDecoder {
+public class RaopRtpDecodeHandler implements ChannelUpstreamHandler {
 	private static final Logger s_logger = Logger.getLogger(RaopRtpDecodeHandler.class.getName());
 
+	/**
+	 * Names of the consuming handler for each type tag, null to pass the packet on
+	 */
+	private final String[] m_consumerNames = new String[RaopRtpPacket.TypeCount];
+
+	/**
+	 * Minimal number of nanoseconds between two log messages about dropped packets
+	 */
+	private static final long DropLogIntervalNanos = 10000000000L;
+
+	/**
+	 * Number of dropped packets, indexed by reason
+	 */
+	private final AtomicLongArray m_droppedPackets = new AtomicLongArray(RaopRtpPacket.InvalidReasonCount);
+
+	/**
+	 * Time of the last log message about dropped packets, guarded by m_droppedPackets
+	 */
+	private long m_dropLogNanoTime;
+	private boolean m_dropLogged = false;
+
+	/**
+	 * Number of dropped packets at the time of the last log message, guarded by m_droppedPackets
+	 */
+	private long m_dropLogCount = 0;
+
+	/**
+	 * Registers the handler which consumes packets of a certain type. Must be called
+	 * before the pipelines containing this handler process their first packet.
+	 *
+	 * @param typeTag packet type tag
+	 * @param handlerName name of the consuming handler
+	 */
+	public void setConsumer(final int typeTag, final String handlerName) {
+		m_consumerNames[typeTag] = handlerName;
+	}
+
 	@Override
-	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
+	public void handleUpstream(final ChannelHandlerContext ctx, final ChannelEvent evt)
 		throws Exception
 	{
+		if (!(evt instanceof MessageEvent)) {
+			ctx.sendUpstream(evt);
+			return;
+		}
+
+		final MessageEvent messageEvt = (MessageEvent)evt;
+		final Object msg = messageEvt.getMessage();
+
+		final RaopRtpPacket packet;
 		if (msg instanceof ChannelBuffer) {
 			final ChannelBuffer buffer = (ChannelBuffer)msg;
 
-			try {
-				return RaopRtpPacket.decode(buffer);
-			}
-			catch (final InvalidPacketException e1) {
-				s_logger.warning(e1.getMessage());
-				return buffer;
+			/* Drop malformed packets. Validation ensures that decode() won't throw */
+			final int reason = RaopRtpPacket.validate(buffer);
+			if (reason != RaopRtpPacket.Valid) {
+				dropped(reason);
+				RtpReceiveBufferFactory.release(buffer);
+				return;
 			}
+			packet = RaopRtpPacket.decode(buffer);
+		}
+		else if (msg instanceof RaopRtpPacket) {
+			packet = (RaopRtpPacket)msg;
 		}
 		else {
-			return msg;
+			ctx.sendUpstream(evt);
+			return;
+		}
+
+		final MessageEvent packetEvt = (packet == msg) ? messageEvt :
+			new UpstreamMessageEvent(ctx.getChannel(), packet, messageEvt.getRemoteAddress());
+
+		/* The handlers after this one process the packet synchronously. Those
+		 * which pass it on to another thread retain the packet's buffer, so
+		 * the reference held while the packet passes the pipeline can be
+		 * released afterwards
+		 */
+		try {
+			final ChannelHandlerContext consumerCtx = getConsumers(ctx)[RaopRtpPacket.getTypeTag(packet.getBuffer())];
+			if (consumerCtx != null)
+				((ChannelUpstreamHandler)consumerCtx.getHandler()).handleUpstream(consumerCtx, packetEvt);
+			else
+				ctx.sendUpstream(packetEvt);
+		}
+		finally {
+			RtpReceiveBufferFactory.release(packet.getBuffer());
+		}
+	}
+
+	/**
+	 * Returns the number of packets dropped for a certain reason
+	 *
+	 * @param reason reason, as returned by {@link RaopRtpPacket#validate}
+	 * @return number of dropped packets
+	 */
+	public long getDroppedPacketCount(final int reason) {
+		return m_droppedPackets.get(reason);
+	}
+
+	/**
+	 * Returns the number of packets dropped for any reason
+	 *
+	 * @return number of dropped packets
+	 */
+	public long getDroppedPacketCount() {
+		long count = 0;
+		for (int reason = 0; reason < m_droppedPackets.length(); ++reason)
+			count += m_droppedPackets.get(reason);
+		return count;
+	}
+
+	/**
+	 * Counts a dropped packet, and logs the drops unless they were logged recently
+	 *
+	 * @param reason reason the packet was dropped for
+	 */
+	private void dropped(final int reason) {
+		m_droppedPackets.incrementAndGet(reason);
+
+		final long now = System.nanoTime();
+		synchronized(m_droppedPackets) {
+			if (m_dropLogged && (now - m_dropLogNanoTime < DropLogIntervalNanos))
+				return;
+
+			m_dropLogged = true;
+			m_dropLogNanoTime = now;
+
+			final long count = getDroppedPacketCount();
+			final StringBuilder s = new StringBuilder();
+			s.append("Dropped "); s.append(count - m_dropLogCount); s.append(" malformed packet(s), last was ");
+			s.append(RaopRtpPacket.getInvalidReasonName(reason));
+			s.append(". Totals:");
+			for (int r = 1; r < RaopRtpPacket.InvalidReasonCount; ++r) {
+				s.append(" "); s.append(RaopRtpPacket.getInvalidReasonName(r));
+				s.append("="); s.append(m_droppedPackets.get(r));
+			}
+			m_dropLogCount = count;
+			s_logger.warning(s.toString());
+		}
+	}
+
+	/**
+	 * Returns the contexts of the consuming handlers in the context's pipeline, indexed
+	 * by type tag. Since this handler may be part of multiple pipelines, the table is
+	 * stored as the context's attachment, and computed when the first packet arrives.
+	 *
+	 * @param ctx this handler's context
+	 * @return consuming handler contexts
+	 */
+	private ChannelHandlerContext[] getConsumers(final ChannelHandlerContext ctx) {
+		ChannelHandlerContext[] consumers = (ChannelHandlerContext[])ctx.getAttachment();
+		if (consumers == null) {
+			consumers = new ChannelHandlerContext[RaopRtpPacket.TypeCount];
+			for (int tag = 0; tag < consumers.length; ++tag) {
+				if (m_consumerNames[tag] == null)
+					continue;
+
+				final ChannelHandlerContext consumerCtx = ctx.getPipeline().getContext(m_consumerNames[tag]);
+				if ((consumerCtx != null) && consumerCtx.canHandleUpstream())
+					consumers[tag] = consumerCtx;
+			}
+			ctx.setAttachment(consumers);
 		}
+		return consumers;
 	}
 }
@@ -22,8 +22,12 @@ public class RaopRtpInputToAudioUpstreamHandler extends SimpleChannelUpstreamHan
         /* Get audio channel from the enclosing ProxyServerHandler */
         final Channel audioChannel = m_rtpAudioChannel;
         if (audioChannel != null && audioChannel.isOpen() && audioChannel.isReadable()) {
+            /* The audio channel's pipeline processes the packet on another thread, and releases it */
+            final Object message = evt.getMessage();
+            if (message instanceof RtpPacket)
+                RtpReceiveBufferFactory.retain(((RtpPacket)message).getBuffer());
             audioChannel.getPipeline().sendUpstream(
-                    new UpstreamMessageEvent(audioChannel, evt.getMessage(), evt.getRemoteAddress()));
+                    new UpstreamMessageEvent(audioChannel, message, evt.getRemoteAddress()));
         }
     }
 }
@@ -113,12 +113,32 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		}
 
 		public double getDouble() {
-			return getSeconds() + (double)getFraction() / 0x100000000L;
+			return getDouble(m_buffer, m_offset);
 		}
 
 		public void setDouble(final double v) {
-			setSeconds((long)v);
-			setFraction((long)(0x100000000L * (v - Math.floor(v))));
+			setDouble(m_buffer, m_offset, v);
+		}
+
+		/**
+		 * Reads an NTP time stamp from a channel buffer without creating an {@link NtpTime}
+		 * @param buffer the channel buffer
+		 * @param offset the start index
+		 * @return the time stamp in seconds
+		 */
+		public static double getDouble(final ChannelBuffer buffer, final int offset) {
+			return getBeUInt(buffer, offset) + (double)getBeUInt(buffer, offset + 4) / 0x100000000L;
+		}
+
+		/**
+		 * Writes an NTP time stamp to a channel buffer without creating an {@link NtpTime}
+		 * @param buffer the channel buffer
+		 * @param offset the start index
+		 * @param v the time stamp in seconds
+		 */
+		public static void setDouble(final ChannelBuffer buffer, final int offset, final double v) {
+			setBeUInt(buffer, offset, (long)v);
+			setBeUInt(buffer, offset + 4, (long)(0x100000000L * (v - Math.floor(v))));
 		}
 	}
 
@@ -177,6 +197,26 @@ public abstract class RaopRtpPacket extends RtpPacket {
 			return s.toString();
 		}
 
+		/* Static accessors which read a timing packet's fields directly from
+		 * the received buffer, without creating any objects
+		 */
+
+		public static double getReferenceTime(ChannelBuffer buffer) {
+			return NtpTime.getDouble(buffer, RaopRtpPacket.Length + 4);
+		}
+
+		public static double getReceivedTime(ChannelBuffer buffer) {
+			return NtpTime.getDouble(buffer, RaopRtpPacket.Length + 12);
+		}
+
+		public static double getSendTime(ChannelBuffer buffer) {
+			return NtpTime.getDouble(buffer, RaopRtpPacket.Length + 20);
+		}
+
+		public static void setSendTime(ChannelBuffer buffer, double value) {
+			NtpTime.setDouble(buffer, RaopRtpPacket.Length + 20, value);
+		}
+
 		public static long getRawReferenceTime(ChannelBuffer buffer) {
 			return buffer.getLong(RaopRtpPacket.Length + 4);
 		}
@@ -209,6 +249,21 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		protected TimingRequest(final ChannelBuffer buffer) throws ProtocolException {
 			super(buffer, Length);
 		}
+
+		/**
+		 * Writes a timing request into a buffer of at least {@link #Length} bytes,
+		 * without creating a packet object. The reference and received time are
+		 * set to zero, they are filled in by the source.
+		 * @param buffer the buffer
+		 * @param sendTime the send time in seconds
+		 */
+		public static void encode(final ChannelBuffer buffer, final double sendTime) {
+			buffer.setByte(0, 0x80); /* Version 2 */
+			buffer.setByte(1, 0x80 | PayloadType); /* Marker */
+			setBeUInt16(buffer, 2, 7);
+			buffer.setZero(RaopRtpPacket.Length, Length - RaopRtpPacket.Length);
+			setSendTime(buffer, sendTime);
+		}
 	}
 
 	/**
@@ -314,6 +369,22 @@ public abstract class RaopRtpPacket extends RtpPacket {
 
 			return s.toString();
 		}
+
+		/* Static accessors which read a sync packet's fields directly from
+		 * the received buffer, without creating any objects
+		 */
+
+		public static long getTimeStampMinusLatency(ChannelBuffer buffer) {
+			return getBeUInt(buffer, RaopRtpPacket.Length);
+		}
+
+		public static double getTime(ChannelBuffer buffer) {
+			return NtpTime.getDouble(buffer, RaopRtpPacket.Length + 4);
+		}
+
+		public static long getTimeStamp(ChannelBuffer buffer) {
+			return getBeUInt(buffer, RaopRtpPacket.Length + 4 + 8);
+		}
 	}
 
 	/**
@@ -344,6 +415,22 @@ public abstract class RaopRtpPacket extends RtpPacket {
 			super(buffer, Length);
 		}
 
+		/**
+		 * Writes a retransmit request into a buffer of at least {@link #Length} bytes,
+		 * without creating a packet object.
+		 * @param buffer the buffer
+		 * @param sequence the request's own sequence number
+		 * @param sequenceFirst sequence number of the first missing packet
+		 * @param sequenceCount number of missing packets
+		 */
+		public static void encode(final ChannelBuffer buffer, final int sequence, final int sequenceFirst, final int sequenceCount) {
+			buffer.setByte(0, 0x80); /* Version 2 */
+			buffer.setByte(1, 0x80 | PayloadType); /* Marker */
+			setBeUInt16(buffer, 2, sequence);
+			setBeUInt16(buffer, RaopRtpPacket.Length, sequenceFirst);
+			setBeUInt16(buffer, RaopRtpPacket.Length + 2, sequenceCount);
+		}
+
 		/**
 		 * Gets the sequence number of the first missing packet
 		 * @return sequence number
@@ -427,6 +514,14 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		 * @return channel buffer containing audio data
 		 */
 		abstract public ChannelBuffer getPayload();
+
+		/**
+		 * Offset of the audio data within the packet's buffer.
+		 * Allows the audio data to be accessed without creating
+		 * a slice as {@link #getPayload()} does.
+		 * @return audio data offset
+		 */
+		abstract public int getPayloadOffset();
 	}
 
 	/**
@@ -474,6 +569,11 @@ public abstract class RaopRtpPacket extends RtpPacket {
 			return m_buffer.slice(Length, getLength() - Length);
 		}
 
+		@Override
+		public int getPayloadOffset() {
+			return Length;
+		}
+
 		@Override
 		public String toString() {
 			final StringBuilder s = new StringBuilder();
@@ -565,6 +665,11 @@ public abstract class RaopRtpPacket extends RtpPacket {
 			return m_buffer.slice(Length, getLength() - Length);
 		}
 
+		@Override
+		public int getPayloadOffset() {
+			return Length;
+		}
+
 		@Override
 		public String toString() {
 			final StringBuilder s = new StringBuilder();
@@ -580,10 +685,108 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		}
 	}
 
+	/* Compact packet type tags, see getTypeTag() */
+
+	public static final int TypeInvalid = 0;
+	public static final int TypeTimingRequest = 1;
+	public static final int TypeTimingResponse = 2;
+	public static final int TypeSync = 3;
+	public static final int TypeRetransmitRequest = 4;
+	public static final int TypeAudioRetransmit = 5;
+	public static final int TypeAudioTransmit = 6;
+	public static final int TypeCount = 7;
+
+	/**
+	 * Maps RTP payload types to type tags
+	 */
+	private static final byte[] s_payloadTypeTags = new byte[0x80];
+	static {
+		s_payloadTypeTags[TimingRequest.PayloadType] = TypeTimingRequest;
+		s_payloadTypeTags[TimingResponse.PayloadType] = TypeTimingResponse;
+		s_payloadTypeTags[Sync.PayloadType] = TypeSync;
+		s_payloadTypeTags[RetransmitRequest.PayloadType] = TypeRetransmitRequest;
+		s_payloadTypeTags[AudioRetransmit.PayloadType] = TypeAudioRetransmit;
+		s_payloadTypeTags[AudioTransmit.PayloadType] = TypeAudioTransmit;
+	}
+
+	/**
+	 * Classifies a packet by its payload type
+	 * @param buffer the packet's buffer, at least {@link RtpPacket#Length} bytes long
+	 * @return the packet's type tag, {@link #TypeInvalid} for unknown payload types
+	 */
+	public static int getTypeTag(final ChannelBuffer buffer) {
+		return s_payloadTypeTags[RtpPacket.getPayloadType(buffer)];
+	}
+
+	/* Results of validate() */
+
+	public static final int Valid = 0;
+	public static final int InvalidTooShort = 1;
+	public static final int InvalidVersion = 2;
+	public static final int InvalidPayloadType = 3;
+	public static final int InvalidLength = 4;
+	public static final int InvalidReasonCount = 5;
+
+	private static final String[] s_invalidReasonNames = {
+		"valid",
+		"shorter than RTP header",
+		"RTP version not 2",
+		"unknown payload type",
+		"shorter than payload type requires"
+	};
+
+	/**
+	 * Minimal packet length for each type tag
+	 */
+	private static final int[] s_typeMinimumLengths = new int[TypeCount];
+	static {
+		s_typeMinimumLengths[TypeTimingRequest] = TimingRequest.Length;
+		s_typeMinimumLengths[TypeTimingResponse] = TimingResponse.Length;
+		s_typeMinimumLengths[TypeSync] = Sync.Length;
+		s_typeMinimumLengths[TypeRetransmitRequest] = RetransmitRequest.Length;
+		s_typeMinimumLengths[TypeAudioRetransmit] = AudioRetransmit.Length;
+		s_typeMinimumLengths[TypeAudioTransmit] = AudioTransmit.Length;
+	}
+
+	/**
+	 * Checks whether a buffer contains a packet {@link #decode(ChannelBuffer)} accepts.
+	 * Cheap, and doesn't throw, so it can be used to drop malformed packets early
+	 * @param buffer the buffer
+	 * @return {@link #Valid} or the reason the packet is invalid
+	 */
+	public static int validate(final ChannelBuffer buffer) {
+		final int length = buffer.capacity();
+		if (length < Length)
+			return InvalidTooShort;
+		if ((buffer.getByte(0) & 0xC0) != 0x80)
+			return InvalidVersion;
+
+		final int typeTag = getTypeTag(buffer);
+		if (typeTag == TypeInvalid)
+			return InvalidPayloadType;
+		if (length < s_typeMinimumLengths[typeTag])
+			return InvalidLength;
+
+		return Valid;
+	}
+
+	/**
+	 * Returns a description of a {@link #validate(ChannelBuffer)} result
+	 * @param reason result of validate()
+	 * @return description
+	 */
+	public static String getInvalidReasonName(final int reason) {
+		return s_invalidReasonNames[reason];
+	}
+
 	/**
 	 * Creates an RTP packet from a {@link ChannelBuffer}, using the
 	 * sub-class of {@link RaopRtpPacket} indicated by the packet's
 	 * {@link #getPayloadType()}
+	 * <p>
+	 * For buffers drawn from a {@link RtpReceiveBufferFactory}, the packet
+	 * instance created for the buffer's previous datagram of the same type
+	 * is returned again.
 	 * 
 	 * @param buffer ChannelBuffer containing the packet
 	 * @return Instance of one of the sub-classes of {@link RaopRtpPacket}
@@ -595,16 +798,28 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		if (buffer.capacity() < Length)
 			throw new InvalidPacketException("Packet had invalid size " + buffer.capacity() + " instead of at least " + Length);
 
-		final byte type = RtpPacket.getPayloadType(buffer);
-		switch (type) {
-			case TimingRequest.PayloadType: return new TimingRequest(buffer);
-			case TimingResponse.PayloadType: return new TimingResponse(buffer);
-			case Sync.PayloadType: return new Sync(buffer);
-			case RetransmitRequest.PayloadType: return new RetransmitRequest(buffer);
-			case AudioRetransmit.PayloadType: return new AudioRetransmit(buffer);
-			case AudioTransmit.PayloadType: return new AudioTransmit(buffer);
-			default: throw new ProtocolException("Invalid PayloadType " + type);
+		final int typeTag = getTypeTag(buffer);
+		final RaopRtpPacket[] views = RtpReceiveBufferFactory.getPacketViews(buffer);
+		if ((views != null) && (views[typeTag] != null)) {
+			if (buffer.capacity() < s_typeMinimumLengths[typeTag])
+				throw new InvalidPacketException("Packet had invalid size " + buffer.capacity() + " instead of at least " + s_typeMinimumLengths[typeTag]);
+			return views[typeTag];
+		}
+
+		final RaopRtpPacket packet;
+		switch (typeTag) {
+			case TypeTimingRequest: packet = new TimingRequest(buffer); break;
+			case TypeTimingResponse: packet = new TimingResponse(buffer); break;
+			case TypeSync: packet = new Sync(buffer); break;
+			case TypeRetransmitRequest: packet = new RetransmitRequest(buffer); break;
+			case TypeAudioRetransmit: packet = new AudioRetransmit(buffer); break;
+			case TypeAudioTransmit: packet = new AudioTransmit(buffer); break;
+			default: throw new ProtocolException("Invalid PayloadType " + RtpPacket.getPayloadType(buffer));
 		}
+
+		if (views != null)
+			views[typeTag] = packet;
+		return packet;
 	}
 
 	protected RaopRtpPacket(final int length) {
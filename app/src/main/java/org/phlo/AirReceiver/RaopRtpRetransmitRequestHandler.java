@@ -20,6 +20,7 @@ package org.phlo.AirReceiver;
 import java.util.*;
 import java.util.logging.Logger;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
@@ -114,6 +115,11 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * Time source
 	 */
 	private final AudioClock m_audioClock;
+
+	/**
+	 * Receives the retransmit statistics, may be null
+	 */
+	private final AdaptiveLatency m_latency;
 	
 	/**
 	 * Frames per packet. Used to interpolate the
@@ -142,9 +148,29 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 */
 	private int m_retransmitRequestSequence = 0;
 
+	/**
+	 * Buffer retransmit requests are encoded into. Re-used for every request,
+	 * which is safe since OIO datagram channels send synchronously.
+	 * Guarded by this handler's lock.
+	 */
+	private final ChannelBuffer m_retransmitRequestBuffer = RtpPacket.allocateBuffer(RaopRtpPacket.RetransmitRequest.Length);
+
 	public RaopRtpRetransmitRequestHandler(final AudioStreamInformationProvider streamInfoProvider, final AudioClock audioClock) {
+		this(streamInfoProvider, audioClock, null);
+	}
+
+	/**
+	 * Creates a handler which reports requested and lost packets
+	 * to the given {@link AdaptiveLatency}
+	 *
+	 * @param streamInfoProvider provides the packet size
+	 * @param audioClock time source
+	 * @param latency receives the retransmit statistics, may be null
+	 */
+	public RaopRtpRetransmitRequestHandler(final AudioStreamInformationProvider streamInfoProvider, final AudioClock audioClock, final AdaptiveLatency latency) {
 		m_framesPerPacket = streamInfoProvider.getFramesPerPacket();
 		m_audioClock = audioClock;
+		m_latency = latency;
 	}
 
 	/**
@@ -182,6 +208,8 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 		}
 		else {
 			s_logger.warning("Packet " + sequence + " was required " + (nextSecondsTime - missingPacket.expectedUntilSecondsTime ) + " seconds ago, not requesting retransmit");
+			if (m_latency != null)
+				m_latency.packetLost();
 		}
 
 		/* Forget about old missing packets if we exceeded the number
@@ -204,8 +232,11 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * @param nextSecondsTime
 	 */
 	private synchronized void requestRetransmits(final Channel channel, final double nextSecondsTime) {
-		/* The retransmit request we're currently building */
-		RaopRtpPacket.RetransmitRequest retransmitRequest = null;
+		/* The range of sequences of the retransmit request we're currently building.
+		 * All requests built during one call are sent from the same buffer
+		 */
+		int requestSequenceFirst = -1;
+		int requestSequenceCount = 0;
 
 		/* Run through open retransmit requests */
 		final Iterator<MissingPacket> missingPacketIterator = m_missingPackets.iterator();
@@ -217,6 +248,8 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 			 */
 			if (missingPacket.requiredUntilSecondsTime <= nextSecondsTime) {
 				s_logger.warning("Packet " + missingPacket.sequence + " was required " + (nextSecondsTime - missingPacket.requiredUntilSecondsTime) + " secons ago, giving up");
+				if (m_latency != null)
+					m_latency.packetLost();
 
 				missingPacketIterator.remove();
 				continue;
@@ -233,6 +266,8 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 				/* If the packet was already requests too often,
 				 * warn and forget about it */
 				s_logger.warning("Packet " + missingPacket.sequence + " overdue " + (nextSecondsTime - missingPacket.expectedUntilSecondsTime) + " seconds after " + missingPacket.retransmitRequestCount + " retransmit requests, giving up");
+				if (m_latency != null)
+					m_latency.packetLost();
 
 				missingPacketIterator.remove();
 				continue;
@@ -249,39 +284,54 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 			/* Ok, really request re-transmission */
 			
 			if (
-				(retransmitRequest != null) &&
-				(sequenceAdd(retransmitRequest.getSequenceFirst(), retransmitRequest.getSequenceCount()) != missingPacket.sequence)
+				(requestSequenceCount > 0) &&
+				(sequenceAdd(requestSequenceFirst, requestSequenceCount) != missingPacket.sequence)
 			) {
 				/* There is a current retransmit request, but the sequence cannot be appended.
 				 * We transmit the current request and start building a new one
 				 */
-				if (channel.isOpen() && channel.isWritable())
-					channel.write(retransmitRequest);
-				retransmitRequest = null;
+				sendRetransmitRequest(channel, requestSequenceFirst, requestSequenceCount);
+				requestSequenceCount = 0;
 			}
 			
 			/* If there still is a current retransmit request, the sequence can be appended */
 
-			if (retransmitRequest == null) {
-				/* Create new retransmit request */
-				m_retransmitRequestSequence = sequenceSuccessor(m_retransmitRequestSequence);
-				retransmitRequest = new RaopRtpPacket.RetransmitRequest();
-				retransmitRequest.setSequence(m_retransmitRequestSequence);
-				retransmitRequest.setSequenceFirst(missingPacket.sequence);
-				retransmitRequest.setSequenceCount(1);
+			if (requestSequenceCount == 0) {
+				/* Start new retransmit request */
+				requestSequenceFirst = missingPacket.sequence;
+				requestSequenceCount = 1;
 			}
 			else {
 				/* Append sequnce to current retransmit request */
-				retransmitRequest.setSequenceCount(retransmitRequest.getSequenceCount() + 1);
+				++requestSequenceCount;
 			}
 		}
-		if (retransmitRequest != null) {
+		if (requestSequenceCount > 0) {
 			/* Send the retransmit request we were building when the loop ended */
-			if (channel.isOpen() && channel.isWritable())
-				channel.write(retransmitRequest);
+			sendRetransmitRequest(channel, requestSequenceFirst, requestSequenceCount);
 		}
 	}
 
+	/**
+	 * Encodes a {@link RaopRtpPacket.RetransmitRequest} into the request
+	 * buffer and sends it.
+	 *
+	 * @param channel channel used to send retransmit requests
+	 * @param sequenceFirst first missing sequence
+	 * @param sequenceCount number of missing sequences
+	 */
+	private synchronized void sendRetransmitRequest(final Channel channel, final int sequenceFirst, final int sequenceCount) {
+		if (!channel.isOpen() || !channel.isWritable())
+			return;
+
+		m_retransmitRequestSequence = sequenceSuccessor(m_retransmitRequestSequence);
+		RaopRtpPacket.RetransmitRequest.encode(m_retransmitRequestBuffer, m_retransmitRequestSequence, sequenceFirst, sequenceCount);
+		channel.write(m_retransmitRequestBuffer);
+
+		if (m_latency != null)
+			m_latency.retransmitsRequested(sequenceCount);
+	}
+
 	@Override
 	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
 		throws Exception
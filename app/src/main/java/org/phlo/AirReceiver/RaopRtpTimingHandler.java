@@ -19,6 +19,7 @@ package org.phlo.AirReceiver;
 
 import java.util.logging.Logger;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.*;
 
 /**
@@ -27,6 +28,10 @@ import org.jboss.netty.channel.*;
  * Keeps track of the offset between the local audio clock and the remote clock,
  * and uses the information to re-sync the audio output queue upon receiving a
  * sync packet.
+ * <p>
+ * In tight synchronization mode, timing requests are sent more frequently, and
+ * the offset is estimated by a {@link ClockOffsetFilter}, which follows the drift
+ * between the clocks, instead of a slowly moving exponential average.
  */
 public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 	private static Logger s_logger = Logger.getLogger("RaopRtpTimingHandler");
@@ -36,12 +41,26 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 	 */
 	public static final long TimeRequestInterval = 3000;
 
+	/**
+	 * Number of milliseconds between {@link RaopRtpPacket.TimingRequest}s
+	 * in tight synchronization mode. On a jittery network, only few exchanges
+	 * have a round trip short enough to bound the offset tightly, so the more
+	 * exchanges the {@link ClockOffsetFilter} sees, the better
+	 */
+	public static final long TimeRequestIntervalTightSync = 125;
+
 	/**
 	 * Thread which sends out {@link RaopRtpPacket.TimingRequest}s.
 	 */
 	private class TimingRequester implements Runnable {
 		private final Channel m_channel;
 
+		/**
+		 * Buffer the timing requests are encoded into. Re-used for every request,
+		 * which is safe since OIO datagram channels send synchronously
+		 */
+		private final ChannelBuffer m_timingRequestBuffer = RtpPacket.allocateBuffer(RaopRtpPacket.TimingRequest.Length);
+
 		public TimingRequester(final Channel channel) {
 			m_channel = channel;
 		}
@@ -49,15 +68,12 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 		@Override
 		public void run() {
 			while (!Thread.currentThread().isInterrupted()) {
-				final RaopRtpPacket.TimingRequest timingRequestPacket = new RaopRtpPacket.TimingRequest();
-				timingRequestPacket.getReceivedTime().setDouble(0); /* Set by the source */
-				timingRequestPacket.getReferenceTime().setDouble(0); /* Set by the source */
-				timingRequestPacket.getSendTime().setDouble(m_audioClock.getNowSecondsTime());
-				//s_logger.info("send request: " + timingRequestPacket.getSendTime().getDouble());
+				RaopRtpPacket.TimingRequest.encode(m_timingRequestBuffer, m_audioClock.getNowSecondsTime());
+				//s_logger.info("send request: " + RaopRtpPacket.Timing.getSendTime(m_timingRequestBuffer));
 
-				m_channel.write(timingRequestPacket);
+				m_channel.write(m_timingRequestBuffer);
 				try {
-					Thread.sleep(TimeRequestInterval);
+					Thread.sleep(m_tightSync ? TimeRequestIntervalTightSync : TimeRequestInterval);
 				}
 				catch (final InterruptedException e) {
 					Thread.currentThread().interrupt();
@@ -75,7 +91,17 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 	 * Exponential averager used to smooth the remote seconds offset
 	 */
 	private final RunningExponentialAverage m_remoteSecondsOffset = new RunningExponentialAverage();
-	
+
+	/**
+	 * Filter estimating the remote seconds offset in tight synchronization mode
+	 */
+	private final ClockOffsetFilter m_remoteSecondsOffsetFilter = new ClockOffsetFilter();
+
+	/**
+	 * Whether to synchronize as tightly as possible
+	 */
+	private final boolean m_tightSync;
+
 	/**
 	 * The {@link TimingRequester} thread.
 	 */
@@ -84,7 +110,19 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 	private boolean m_started = false;
 
 	public RaopRtpTimingHandler(final AudioClock audioClock) {
+		this(audioClock, false);
+	}
+
+	/**
+	 * Creates a timing handler
+	 *
+	 * @param audioClock audio time source
+	 * @param tightSync whether to synchronize as tightly as possible, e.g.
+	 *                  for receivers forming a stereo pair
+	 */
+	public RaopRtpTimingHandler(final AudioClock audioClock, final boolean tightSync) {
 		m_audioClock = audioClock;
+		m_tightSync = tightSync;
 	}
 
 	public synchronized void start() {
@@ -130,21 +168,23 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
 		throws Exception
 	{
+		/* Timing and sync packets end here, no later handler is interested in them */
 		final Object message = evt.getMessage();
 		if (message instanceof RaopRtpPacket.Sync)
 			syncReceived((RaopRtpPacket.Sync) message);
 		else if (message instanceof RaopRtpPacket.TimingResponse)
 			timingResponseReceived((RaopRtpPacket.TimingResponse) message);
-
-		super.messageReceived(ctx, evt);
+		else
+			super.messageReceived(ctx, evt);
 	}
 
 	private synchronized void timingResponseReceived(final RaopRtpPacket.TimingResponse timingResponsePacket) {
 		final double localReceiveSecondsTime = m_audioClock.getNowSecondsTime();
 
-		final double referenceTime = timingResponsePacket.getReferenceTime().getDouble();
-		final double receivedTime = timingResponsePacket.getReceivedTime().getDouble();
-		final double sendTime = timingResponsePacket.getSendTime().getDouble();
+		final ChannelBuffer buffer = timingResponsePacket.getBuffer();
+		final double referenceTime = RaopRtpPacket.Timing.getReferenceTime(buffer);
+		final double receivedTime = RaopRtpPacket.Timing.getReceivedTime(buffer);
+		final double sendTime = RaopRtpPacket.Timing.getSendTime(buffer);
 
 		/* Compute remove seconds offset, assuming that the transmission times of
 		 * the timing requests and the timing response are equal
@@ -171,7 +211,12 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 		final double transmissionTime = Math.max(localInterval - remoteInterval, 0);
 		final double weight = 1e-6 / (transmissionTime + 1e-3);
 
-		/* Update exponential average */
+		/* Update the filter respectively the exponential average */
+		if (m_tightSync) {
+			m_remoteSecondsOffsetFilter.add(localSecondsTime, remoteSecondsOffset, transmissionTime);
+			return;
+		}
+
 		//final double remoteSecondsOffsetPrevious = (!m_remoteSecondsOffset.isEmpty() ? m_remoteSecondsOffset.get() : 0.0);
 		m_remoteSecondsOffset.add(remoteSecondsOffset, weight);
 		//final double secondsTimeAdjustment = m_remoteSecondsOffset.get() - remoteSecondsOffsetPrevious;
@@ -181,14 +226,15 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 	}
 
 	private synchronized void syncReceived(final RaopRtpPacket.Sync syncPacket) {
-		if (!m_remoteSecondsOffset.isEmpty()) {
+		final ChannelBuffer buffer = syncPacket.getBuffer();
+		if (m_tightSync ? !m_remoteSecondsOffsetFilter.isEmpty() : !m_remoteSecondsOffset.isEmpty()) {
 			/* If the times are synchronized, we can correct for the transmission
 			 * time of the sync packet since it contains the time it was sent as
 			 * a source's NTP time.
 			 */
 			m_audioClock.setFrameTime(
-				syncPacket.getTimeStampMinusLatency(),
-				convertRemoteToLocalSecondsTime(syncPacket.getTime().getDouble())
+				RaopRtpPacket.Sync.getTimeStampMinusLatency(buffer),
+				convertRemoteToLocalSecondsTime(RaopRtpPacket.Sync.getTime(buffer))
 			);
 		}
 		else {
@@ -196,7 +242,7 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 			 * packet's transmission time is zero.
 			 */
 			m_audioClock.setFrameTime(
-				syncPacket.getTimeStampMinusLatency(),
+				RaopRtpPacket.Sync.getTimeStampMinusLatency(buffer),
 				0.0
 			);
 			s_logger.warning("Times synchronized, cannot correct latency of sync packet");
@@ -212,6 +258,12 @@ public class RaopRtpTimingHandler extends SimpleChannelUpstreamHandler {
 	 * @return local NTP time
 	 */
 	private double convertRemoteToLocalSecondsTime(final double remoteSecondsTime) {
+		if (m_tightSync) {
+			/* The offset drifts, so evaluate it at (approximately) the local time in question */
+			final double approximateLocalSecondsTime = remoteSecondsTime - m_remoteSecondsOffsetFilter.get(m_audioClock.getNowSecondsTime());
+			return remoteSecondsTime - m_remoteSecondsOffsetFilter.get(approximateLocalSecondsTime);
+		}
+
 		return remoteSecondsTime - m_remoteSecondsOffset.get();
 	}
 }
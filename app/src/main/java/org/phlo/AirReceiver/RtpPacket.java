@@ -29,11 +29,22 @@ public class RtpPacket {
 
 	protected RtpPacket(final int size) {
 		assert size >= Length;
-		m_buffer = ChannelBuffers.buffer(size);
-		m_buffer.writeZero(size);
+		m_buffer = allocateBuffer(size);
 		setVersion((byte)2);
 	}
 
+	/**
+	 * Allocates a zero-filled buffer for an outgoing packet. The buffer's
+	 * writer index is set to its size, i.e. the whole buffer is readable.
+	 * @param size packet size
+	 * @return buffer
+	 */
+	public static ChannelBuffer allocateBuffer(final int size) {
+		final ChannelBuffer buffer = ChannelBuffers.buffer(size);
+		buffer.writeZero(size);
+		return buffer;
+	}
+
 	public RtpPacket(final ChannelBuffer buffer) throws ProtocolException {
 		m_buffer = buffer;
 	}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.*;
+
+/**
+ * Buffer factory for NIO datagram channels which draws the buffers received
+ * datagrams are copied into from a pool.
+ * <p>
+ * The NIO datagram worker receives every datagram into a buffer it re-uses, and
+ * then asks the channel's buffer factory for a buffer to copy the datagram into.
+ * This factory hands out pooled {@link ReceiveBuffer}s, which return to the pool
+ * once every handler holding one has released it, see {@link #retain(ChannelBuffer)}
+ * and {@link #release(ChannelBuffer)}. A buffer which is never released is simply
+ * left to the garbage collector.
+ * <p>
+ * Each receive buffer also keeps the {@link RaopRtpPacket} views decoded from
+ * it, one per packet type. The views only refer to the buffer, so they stay
+ * valid while the buffer is re-filled, and {@link RaopRtpPacket#decode} re-uses
+ * them. Once the pool has warmed up, receiving and decoding a datagram thus
+ * allocates nothing but Netty's event objects.
+ * <p>
+ * Install with {@code bootstrap.setOption("bufferFactory", RtpReceiveBufferFactory.getInstance())}.
+ * The OIO datagram worker allocates a new array for every datagram itself, so
+ * for OIO channels, this factory makes no difference.
+ */
+public class RtpReceiveBufferFactory extends HeapChannelBufferFactory {
+	/**
+	 * Size of the pooled buffers. Larger buffers are allocated as usual
+	 */
+	public static final int BufferLength = 1500;
+
+	/**
+	 * Maximal number of released buffers the pool retains. Covers the
+	 * packets held by the decoding stage, plus those in transit
+	 */
+	private static final int PoolCapacity = 128;
+
+	private static final RtpReceiveBufferFactory s_instance = new RtpReceiveBufferFactory(PoolCapacity);
+
+	/**
+	 * Released buffers available for re-use
+	 */
+	private final ReceiveBuffer[] m_free;
+
+	/**
+	 * Number of valid entries in {@link #m_free}
+	 */
+	private int m_freeCount = 0;
+
+	/**
+	 * A pooled buffer. Its capacity is the length of the datagram it
+	 * currently contains, not the length of its array.
+	 */
+	static final class ReceiveBuffer extends BigEndianHeapChannelBuffer {
+		private final RtpReceiveBufferFactory m_factory;
+
+		/**
+		 * Number of handlers holding the buffer
+		 */
+		private final AtomicInteger m_references = new AtomicInteger();
+
+		/**
+		 * Length of the current datagram
+		 */
+		private int m_length;
+
+		/**
+		 * Packet views of the buffer, indexed by type tag, see {@link RaopRtpPacket#decode}
+		 */
+		final RaopRtpPacket[] packets = new RaopRtpPacket[RaopRtpPacket.TypeCount];
+
+		private ReceiveBuffer(final RtpReceiveBufferFactory factory) {
+			super(BufferLength);
+			m_factory = factory;
+		}
+
+		/**
+		 * Prepares the buffer to receive a datagram of the given length
+		 */
+		private void reset(final int length) {
+			m_length = length;
+			m_references.set(1);
+			clear();
+		}
+
+		@Override
+		public int capacity() {
+			return m_length;
+		}
+
+		@Override
+		public ChannelBuffer duplicate() {
+			final ChannelBuffer duplicate = new TruncatedChannelBuffer(this, m_length);
+			duplicate.setIndex(readerIndex(), writerIndex());
+			return duplicate;
+		}
+	}
+
+	public static RtpReceiveBufferFactory getInstance() {
+		return s_instance;
+	}
+
+	/**
+	 * Creates a factory
+	 *
+	 * @param capacity maximum number of released buffers to retain
+	 */
+	public RtpReceiveBufferFactory(final int capacity) {
+		super(ByteOrder.BIG_ENDIAN);
+		m_free = new ReceiveBuffer[capacity];
+	}
+
+	@Override
+	public ChannelBuffer getBuffer(final ByteOrder order, final int capacity) {
+		if ((order != ByteOrder.BIG_ENDIAN) || (capacity > BufferLength))
+			return super.getBuffer(order, capacity);
+
+		final ReceiveBuffer buffer = acquire();
+		buffer.reset(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of released buffers available for re-use
+	 * @return number of pooled buffers
+	 */
+	public synchronized int getFreeCount() {
+		return m_freeCount;
+	}
+
+	private synchronized ReceiveBuffer acquire() {
+		if (m_freeCount == 0)
+			return new ReceiveBuffer(this);
+
+		final ReceiveBuffer buffer = m_free[--m_freeCount];
+		m_free[m_freeCount] = null;
+		return buffer;
+	}
+
+	private synchronized void recycle(final ReceiveBuffer buffer) {
+		if (m_freeCount < m_free.length)
+			m_free[m_freeCount++] = buffer;
+	}
+
+	/**
+	 * Marks a buffer as held by one more handler. Must be called before passing
+	 * a received packet on to another thread, which then releases it.
+	 * Does nothing if the buffer wasn't drawn from a pool.
+	 *
+	 * @param buffer buffer
+	 */
+	public static void retain(final ChannelBuffer buffer) {
+		if (buffer instanceof ReceiveBuffer)
+			((ReceiveBuffer)buffer).m_references.incrementAndGet();
+	}
+
+	/**
+	 * Releases a buffer held by a handler. The buffer returns to its pool once
+	 * no handler holds it anymore, and must not be accessed afterwards.
+	 * Does nothing if the buffer wasn't drawn from a pool.
+	 *
+	 * @param buffer buffer
+	 */
+	public static void release(final ChannelBuffer buffer) {
+		if (!(buffer instanceof ReceiveBuffer))
+			return;
+
+		final ReceiveBuffer receiveBuffer = (ReceiveBuffer)buffer;
+		if (receiveBuffer.m_references.decrementAndGet() == 0)
+			receiveBuffer.m_factory.recycle(receiveBuffer);
+	}
+
+	/**
+	 * Returns the packet views of a pooled buffer, indexed by type tag
+	 *
+	 * @param buffer buffer
+	 * @return packet views, null if the buffer wasn't drawn from a pool
+	 */
+	static RaopRtpPacket[] getPacketViews(final ChannelBuffer buffer) {
+		return (buffer instanceof ReceiveBuffer) ? ((ReceiveBuffer)buffer).packets : null;
+	}
+}
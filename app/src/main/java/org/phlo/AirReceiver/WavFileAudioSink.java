@@ -0,0 +1,169 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link AudioSink} which records the samples to a WAV file, paced by
+ * the simulated hardware clock of {@link NullAudioSink}.
+ * <p>
+ * Everything written to the sink is recorded, including the silence the
+ * {@link AudioOutputQueue} writes on underruns. The volume is not applied.
+ */
+public class WavFileAudioSink extends NullAudioSink {
+	private static Logger s_logger = Logger.getLogger("WavFileAudioSink");
+
+	private static final int HeaderLength = 44;
+
+	private final RandomAccessFile m_file;
+
+	/**
+	 * Samples accepted by the last write, copied while the simulated device's
+	 * lock is held and recorded after it is released. Only used by the
+	 * enqueuer thread, like the fields below
+	 */
+	private byte[] m_pending = new byte[0];
+	private int m_pendingLength = 0;
+
+	/**
+	 * Number of sample bytes recorded
+	 */
+	private long m_dataLength = 0;
+
+	/**
+	 * Set once writing the file failed, further samples are discarded
+	 */
+	private boolean m_failed = false;
+
+	/**
+	 * Creates a WAV file sink, replacing the file if it exists
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param bufferSeconds size of the simulated device buffer in seconds
+	 * @param file file to record to
+	 * @throws IOException if the file cannot be created
+	 */
+	public WavFileAudioSink(final AudioFormat format, final double bufferSeconds, final File file) throws IOException {
+		super(format, bufferSeconds);
+
+		m_file = new RandomAccessFile(file, "rw");
+		m_file.setLength(0);
+
+		/* RIFF header with a PCM format chunk. The sizes are filled in by release() */
+		final byte[] header = new byte[HeaderLength];
+		putAscii(header, 0, "RIFF");
+		putAscii(header, 8, "WAVE");
+		putAscii(header, 12, "fmt ");
+		putLeInt(header, 16, 16);
+		putLeShort(header, 20, 1); /* PCM */
+		putLeShort(header, 22, format.getChannels());
+		putLeInt(header, 24, format.getSampleRate());
+		putLeInt(header, 28, format.getSampleRate() * format.getFrameSize());
+		putLeShort(header, 32, format.getFrameSize());
+		putLeShort(header, 34, format.getSampleSizeInBits());
+		putAscii(header, 36, "data");
+		m_file.write(header);
+	}
+
+	@Override
+	public int write(final byte[] samples, final int off, final int len) {
+		/* Don't hold up readers of the playback position with file I/O */
+		final int written = super.write(samples, off, len);
+		flush();
+		return written;
+	}
+
+	@Override
+	protected void consume(final byte[] samples, final int off, final int len) {
+		if (m_failed)
+			return;
+
+		if (m_pending.length < m_pendingLength + len)
+			m_pending = Arrays.copyOf(m_pending, m_pendingLength + len);
+		System.arraycopy(samples, off, m_pending, m_pendingLength, len);
+		m_pendingLength += len;
+	}
+
+	/**
+	 * Records the samples accepted by the last write
+	 */
+	private void flush() {
+		if (m_pendingLength == 0)
+			return;
+
+		try {
+			m_file.write(m_pending, 0, m_pendingLength);
+			m_dataLength += m_pendingLength;
+		}
+		catch (final IOException e) {
+			s_logger.log(Level.WARNING, "Writing WAV file failed, discarding further samples", e);
+			m_failed = true;
+		}
+		m_pendingLength = 0;
+	}
+
+	@Override
+	public void release() {
+		super.release();
+
+		try {
+			/* Fill in the RIFF and data chunk sizes */
+			final byte[] size = new byte[4];
+			putLeInt(size, 0, (int)Math.min(m_dataLength + HeaderLength - 8, 0xffffffffL));
+			m_file.seek(4);
+			m_file.write(size);
+			putLeInt(size, 0, (int)Math.min(m_dataLength, 0xffffffffL));
+			m_file.seek(40);
+			m_file.write(size);
+		}
+		catch (final IOException e) {
+			s_logger.log(Level.WARNING, "Finishing WAV file failed", e);
+		}
+		finally {
+			try {
+				m_file.close();
+			}
+			catch (final IOException e) {
+				s_logger.log(Level.WARNING, "Closing WAV file failed", e);
+			}
+		}
+	}
+
+	private static void putAscii(final byte[] b, final int i, final String s) {
+		for (int j = 0; j < s.length(); ++j)
+			b[i + j] = (byte)s.charAt(j);
+	}
+
+	private static void putLeShort(final byte[] b, final int i, final int v) {
+		b[i] = (byte)v;
+		b[i + 1] = (byte)(v >>> 8);
+	}
+
+	private static void putLeInt(final byte[] b, final int i, final int v) {
+		b[i] = (byte)v;
+		b[i + 1] = (byte)(v >>> 8);
+		b[i + 2] = (byte)(v >>> 16);
+		b[i + 3] = (byte)(v >>> 24);
+	}
+}
@@ -0,0 +1,331 @@
+/*
+** AlacDecodeTest.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.alacdecoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/* decodes encoded 16 and 24 bit frames, and benchmarks the decoding
+ * throughput for the formats RAOP sessions announce */
+public class AlacDecodeTest
+{
+	private static final int FRAMES = 500;
+
+	/* reads the little endian sample of the given size at idx */
+	private static int sample(byte[] pcm, int idx, int bytes)
+	{
+		return bytes == 2
+			? (pcm[idx] & 0xff) | (pcm[idx + 1] << 8)
+			: (pcm[idx] & 0xff) | ((pcm[idx + 1] & 0xff) << 8) | (pcm[idx + 2] << 16);
+	}
+
+	private static void checkRoundTrip(int sampleSize)
+	{
+		AlacTestEncoder encoder = new AlacTestEncoder(sampleSize);
+		AlacFile alac = AlacTestEncoder.createDecoder(sampleSize);
+		int bytes = sampleSize / 8;
+		byte[] pcm = new byte[AlacTestEncoder.FRAME_SIZE * 2 * bytes];
+
+		for (int f = 0; f < FRAMES; f++)
+		{
+			byte[] frame = encoder.stereoFrame(AlacTestEncoder.FRAME_SIZE, sampleSize, f % 23 == 7);
+			assertEquals(pcm.length, AlacDecodeUtils.decode_frame(alac, frame, 0, pcm, 0));
+
+			for (int i = 0; i < AlacTestEncoder.FRAME_SIZE; i++)
+			{
+				assertEquals("frame " + f + " left " + i, encoder.last[0][i], sample(pcm, (2 * i) * bytes, bytes));
+				assertEquals("frame " + f + " right " + i, encoder.last[1][i], sample(pcm, (2 * i + 1) * bytes, bytes));
+			}
+		}
+	}
+
+	@Test
+	public void decodes16Bit()
+	{
+		checkRoundTrip(16);
+	}
+
+	@Test
+	public void decodes24Bit()
+	{
+		checkRoundTrip(24);
+	}
+
+	/* decodes a frame through the generic path, decode_frame_samples() and deinterlacing */
+	private static int decodeGeneric(AlacFile alac, byte[] frame, byte[] pcm)
+	{
+		int outputsamples = AlacDecodeUtils.decode_frame_samples(alac, frame, 0);
+		AlacDecodeUtils.deinterlace_16(alac.outputsamples_buffer_a, alac.outputsamples_buffer_b, pcm, 0, 2, outputsamples, alac.frame_interlacing_shift, alac.frame_interlacing_leftweight);
+		return outputsamples;
+	}
+
+	@Test
+	public void fastPathDecodesLikeGenericPath()
+	{
+		AlacTestEncoder encoder = new AlacTestEncoder(6);
+		AlacFile fast = AlacTestEncoder.createDecoder(16);
+		AlacFile generic = AlacTestEncoder.createDecoder(16);
+		byte[] pcmFast = new byte[AlacTestEncoder.FRAME_SIZE * 4];
+		byte[] pcmGeneric = new byte[AlacTestEncoder.FRAME_SIZE * 4];
+		int sized = 0, fallbacks = 0;
+
+		for (int f = 0; f < FRAMES; f++)
+		{
+			/* short frames carry their size, verbatim frames aren't handled by the fast path */
+			int n = (f % 7 == 3) ? 1 + f % AlacTestEncoder.FRAME_SIZE : AlacTestEncoder.FRAME_SIZE;
+			byte[] frame = encoder.stereoFrame(n, 16, f % 19 == 5);
+			boolean hassize = ((frame[2] >> 4) & 1) != 0;
+			/* the encoder also falls back to verbatim frames when rice coding doesn't pay */
+			boolean verbatim = ((frame[2] >> 1) & 1) != 0;
+
+			Arrays.fill(pcmFast, (byte) 0x55);
+			int fastSamples = AlacDecodeUtils.decode_frame_stereo_16(fast, frame, 0, pcmFast, 0);
+			if (verbatim)
+			{
+				assertEquals("frame " + f, -1, fastSamples);
+				for (int i = 0; i < pcmFast.length; i++)
+					assertEquals("frame " + f + " byte " + i + " was written", (byte) 0x55, pcmFast[i]);
+				fallbacks++;
+				continue;
+			}
+
+			assertEquals("frame " + f, decodeGeneric(generic, frame, pcmGeneric), fastSamples);
+			if (hassize)
+				sized++;
+			for (int i = 0; i < fastSamples * 4; i++)
+				assertEquals("frame " + f + " byte " + i, pcmGeneric[i], pcmFast[i]);
+		}
+
+		assertTrue("frames with size " + sized, sized > 10);
+		assertTrue("verbatim frames " + fallbacks, fallbacks > 10);
+	}
+
+	@Test
+	public void fastPathRejectsPredictionTypes()
+	{
+		AlacTestEncoder encoder = new AlacTestEncoder(7);
+		AlacFile alac = AlacTestEncoder.createDecoder(16);
+		byte[] pcm = new byte[AlacTestEncoder.FRAME_SIZE * 4];
+
+		for (int f = 0; f < 20; f++)
+		{
+			byte[] frame = encoder.stereoFrame(AlacTestEncoder.FRAME_SIZE, 16, false);
+			boolean hassize = ((frame[2] >> 4) & 1) != 0;
+
+			/* the left channel's prediction type follows the 23 bit header, the size and the interlacing */
+			int bit = 23 + (hassize ? 32 : 0) + 16;
+			frame[bit / 8] |= (byte) (0xf0 >>> (bit % 8));
+			frame[bit / 8 + 1] |= (byte) (0xf0 << (8 - bit % 8));
+
+			Arrays.fill(pcm, (byte) 0x55);
+			assertEquals("frame " + f, -1, AlacDecodeUtils.decode_frame_stereo_16(alac, frame, 0, pcm, 0));
+			for (int i = 0; i < pcm.length; i++)
+				assertEquals("frame " + f + " byte " + i + " was written", (byte) 0x55, pcm[i]);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnsupportedSampleSizes()
+	{
+		byte[] frame = new AlacTestEncoder(5).stereoFrame(AlacTestEncoder.FRAME_SIZE, 16, false);
+		AlacFile alac = AlacTestEncoder.createDecoder(16);
+		alac.setinfo_sample_size = 20;
+		AlacDecodeUtils.decode_frame(alac, frame, 0, new byte[AlacTestEncoder.FRAME_SIZE * 2 * 4], 0);
+	}
+
+	@Test
+	public void decodes24BitTruncatedTo16Bit()
+	{
+		AlacTestEncoder encoder = new AlacTestEncoder(3);
+		AlacFile alac = AlacTestEncoder.createDecoder(24);
+		alac.output_sample_size = 16;
+		byte[] pcm = new byte[AlacTestEncoder.FRAME_SIZE * 2 * 2];
+
+		for (int f = 0; f < FRAMES; f++)
+		{
+			byte[] frame = encoder.stereoFrame(AlacTestEncoder.FRAME_SIZE, 24, f % 23 == 7);
+			assertEquals(pcm.length, AlacDecodeUtils.decode_frame(alac, frame, 0, pcm, 0));
+
+			for (int i = 0; i < AlacTestEncoder.FRAME_SIZE; i++)
+			{
+				assertEquals("frame " + f + " left " + i, encoder.last[0][i] >> 8, sample(pcm, (2 * i) * 2, 2));
+				assertEquals("frame " + f + " right " + i, encoder.last[1][i] >> 8, sample(pcm, (2 * i + 1) * 2, 2));
+			}
+		}
+	}
+
+	/* bytes allocated by the current thread, or -1 if the JVM can't tell */
+	static long allocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void decodeAll(AlacFile alac, byte[][] frames, byte[] pcm)
+	{
+		for (byte[] frame : frames)
+			AlacDecodeUtils.decode_frame(alac, frame, 0, pcm, 0);
+	}
+
+	/* decodes to packed 24 bit, then truncates into a second buffer like
+	 * the audio track sink did before the decoder could emit 16 bit */
+	private static void decodeAllThenTruncate(AlacFile alac, byte[][] frames, byte[] pcm24, byte[] pcm16)
+	{
+		for (byte[] frame : frames)
+		{
+			int len = AlacDecodeUtils.decode_frame(alac, frame, 0, pcm24, 0);
+			for (int i = 0, j = 0; j < len; i += 2, j += 3)
+			{
+				pcm16[i] = pcm24[j + 1];
+				pcm16[i + 1] = pcm24[j + 2];
+			}
+		}
+	}
+
+	@Test
+	public void decodesWithoutAllocating()
+	{
+		/* before measuring, since loading the matcher classes allocates */
+		Assume.assumeTrue(allocatedBytes() >= 0);
+
+		for (int sampleSize : new int[] { 16, 24 })
+		{
+			byte[][] frames = new AlacTestEncoder(1).stereoFrames(FRAMES, sampleSize);
+			AlacFile alac = AlacTestEncoder.createDecoder(sampleSize);
+			byte[] pcm = new byte[AlacTestEncoder.FRAME_SIZE * 2 * sampleSize / 8];
+
+			/* warm up, compiling the decoder allocates */
+			for (int round = 0; round < 20; round++)
+				decodeAll(alac, frames, pcm);
+
+			long before = allocatedBytes();
+			decodeAll(alac, frames, pcm);
+			long allocated = allocatedBytes() - before;
+
+			/* allow for the measurement itself, but not for anything per frame */
+			assertTrue(sampleSize + " bit frames allocated " + allocated + " bytes", allocated < 4 * FRAMES);
+		}
+	}
+
+	@Test
+	public void benchmarkThroughput()
+	{
+		int[] sampleRates = { 44100, 48000, 88200, 96000 };
+		for (int sampleSize : new int[] { 16, 24 })
+		{
+			byte[][] frames = new AlacTestEncoder(2).stereoFrames(FRAMES, sampleSize);
+			AlacFile alac = AlacTestEncoder.createDecoder(sampleSize);
+			byte[] pcm = new byte[AlacTestEncoder.FRAME_SIZE * 2 * sampleSize / 8];
+
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < 60; round++)
+			{
+				long t0 = System.nanoTime();
+				decodeAll(alac, frames, pcm);
+				best = Math.min(best, System.nanoTime() - t0);
+			}
+
+			/* the decoding cost doesn't depend on the sample rate, only the share of a core does */
+			double framesPerSecond = FRAMES * AlacTestEncoder.FRAME_SIZE / (best * 1e-9);
+			StringBuilder load = new StringBuilder();
+			for (int sampleRate : sampleRates)
+				load.append(String.format(" %d Hz %.2f%%", sampleRate, 100.0 * sampleRate / framesPerSecond));
+			System.out.printf("ALAC %d bit stereo: %.2f us per 352 frame packet, %.1f Mframes/s, core load at%s%n",
+				sampleSize, best / 1e3 / FRAMES, framesPerSecond / 1e6, load);
+		}
+	}
+
+	@Test
+	public void benchmarkTruncation()
+	{
+		byte[][] frames = new AlacTestEncoder(4).stereoFrames(FRAMES, 24);
+		AlacFile before = AlacTestEncoder.createDecoder(24);
+		AlacFile after = AlacTestEncoder.createDecoder(24);
+		after.output_sample_size = 16;
+		byte[] pcm24 = new byte[AlacTestEncoder.FRAME_SIZE * 2 * 3];
+		byte[] pcm16Before = new byte[AlacTestEncoder.FRAME_SIZE * 2 * 2];
+		byte[] pcm16After = new byte[AlacTestEncoder.FRAME_SIZE * 2 * 2];
+
+		long bestBefore = Long.MAX_VALUE;
+		long bestAfter = Long.MAX_VALUE;
+		for (int round = 0; round < 60; round++)
+		{
+			long t0 = System.nanoTime();
+			decodeAllThenTruncate(before, frames, pcm24, pcm16Before);
+			long t1 = System.nanoTime();
+			decodeAll(after, frames, pcm16After);
+			long t2 = System.nanoTime();
+
+			bestBefore = Math.min(bestBefore, t1 - t0);
+			bestAfter = Math.min(bestAfter, t2 - t1);
+		}
+
+		/* both decoders saw the same frames, so the last packets must match */
+		for (int i = 0; i < pcm16After.length; i++)
+			assertEquals("byte " + i, pcm16Before[i], pcm16After[i]);
+
+		/* the deinterlacing stage on its own, where the copies are made */
+		int[] a = new int[AlacTestEncoder.FRAME_SIZE];
+		int[] b = new int[AlacTestEncoder.FRAME_SIZE];
+		int[] none = new int[AlacTestEncoder.FRAME_SIZE];
+		Random rnd = new Random(5);
+		for (int i = 0; i < a.length; i++)
+		{
+			a[i] = rnd.nextInt(1 << 24) - (1 << 23);
+			b[i] = rnd.nextInt(1 << 24) - (1 << 23);
+		}
+
+		long bestStageBefore = Long.MAX_VALUE;
+		long bestStageAfter = Long.MAX_VALUE;
+		for (int round = 0; round < 60; round++)
+		{
+			long t0 = System.nanoTime();
+			for (int f = 0; f < FRAMES; f++)
+			{
+				AlacDecodeUtils.deinterlace_24(a, b, 0, none, none, pcm24, 0, 2, a.length, 0, 0);
+				for (int i = 0, j = 0; j < pcm24.length; i += 2, j += 3)
+				{
+					pcm16Before[i] = pcm24[j + 1];
+					pcm16Before[i + 1] = pcm24[j + 2];
+				}
+			}
+			long t1 = System.nanoTime();
+			for (int f = 0; f < FRAMES; f++)
+				AlacDecodeUtils.deinterlace_24_to_16(a, b, 0, none, none, pcm16After, 0, 2, a.length, 0, 0);
+			long t2 = System.nanoTime();
+
+			bestStageBefore = Math.min(bestStageBefore, t1 - t0);
+			bestStageAfter = Math.min(bestStageAfter, t2 - t1);
+		}
+		for (int i = 0; i < pcm16After.length; i++)
+			assertEquals("deinterlaced byte " + i, pcm16Before[i], pcm16After[i]);
+
+		/* bytes of PCM written per stereo frame, by the decoder and the truncation */
+		int copiedBefore = 2 * 3 + 2 * 2;
+		int copiedAfter = 2 * 2;
+		double framesPerSecondBefore = FRAMES * AlacTestEncoder.FRAME_SIZE / (bestBefore * 1e-9);
+		double framesPerSecondAfter = FRAMES * AlacTestEncoder.FRAME_SIZE / (bestAfter * 1e-9);
+		System.out.printf("ALAC 24 bit stereo to 16 bit: decode then truncate %.2f us per packet, %.1f Mframes/s, %d bytes copied per frame, %.0f KB/s at 44100 Hz%n",
+			bestBefore / 1e3 / FRAMES, framesPerSecondBefore / 1e6, copiedBefore, copiedBefore * 44100 / 1024.0);
+		System.out.printf("ALAC 24 bit stereo to 16 bit: decode to 16 bit %.2f us per packet, %.1f Mframes/s, %d bytes copied per frame, %.0f KB/s at 44100 Hz%n",
+			bestAfter / 1e3 / FRAMES, framesPerSecondAfter / 1e6, copiedAfter, copiedAfter * 44100 / 1024.0);
+		System.out.printf("ALAC 24 bit stereo to 16 bit: deinterlacing alone %.1f Mframes/s, %.0f MB/s copied before, %.1f Mframes/s, %.0f MB/s copied after%n",
+			FRAMES * AlacTestEncoder.FRAME_SIZE / (bestStageBefore * 1e-3), FRAMES * AlacTestEncoder.FRAME_SIZE * (double) copiedBefore / (bestStageBefore * 1e-3),
+			FRAMES * AlacTestEncoder.FRAME_SIZE / (bestStageAfter * 1e-3), FRAMES * AlacTestEncoder.FRAME_SIZE * (double) copiedAfter / (bestStageAfter * 1e-3));
+	}
+}
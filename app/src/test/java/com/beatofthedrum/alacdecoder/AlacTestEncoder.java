@@ -0,0 +1,379 @@
+/*
+** AlacTestEncoder.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.alacdecoder;
+
+import java.util.Random;
+
+/* minimal ALAC encoder producing frames like the ones AirPlay senders emit,
+ * i.e. 352 sample frames with adaptive FIR prediction and rice coded
+ * residuals. used by the tests and benchmarks in place of recorded frames.
+ * the signal and the encoding parameters are chosen pseudo randomly, so a
+ * sequence of frames exercises the decoder's fast and generic paths */
+class AlacTestEncoder
+{
+	static final int FRAME_SIZE = 352;
+	static final int RICE_KMODIFIER = 14;
+	static final int RICE_HISTORYMULT = 40;
+	static final int RICE_INITIALHISTORY = 10;
+
+	/* prediction orders to choose from, weighted towards the common ones */
+	private static final int[] ORDERS = { 4, 4, 4, 8, 8, 8, 1, 2, 3, 5, 6, 7, 12, 16, 0, 31 };
+
+	private final Random rnd;
+
+	/* the samples of the last encoded frame, per channel */
+	int[][] last;
+
+	/* whether the last frame requested as mono was encoded as mono */
+	boolean lastMono;
+
+	AlacTestEncoder(long seed)
+	{
+		rnd = new Random(seed);
+	}
+
+	/* returns a decoder configured like the ones RAOP sessions use */
+	static AlacFile createDecoder(int sampleSize)
+	{
+		AlacFile alac = AlacDecodeUtils.create_alac(sampleSize, 2);
+		alac.setinfo_max_samples_per_frame = FRAME_SIZE;
+		alac.setinfo_7a = 0;
+		alac.setinfo_sample_size = sampleSize;
+		alac.setinfo_rice_historymult = RICE_HISTORYMULT;
+		alac.setinfo_rice_initialhistory = RICE_INITIALHISTORY;
+		alac.setinfo_rice_kmodifier = RICE_KMODIFIER;
+		alac.setinfo_7f = 2;
+		alac.setinfo_80 = 255;
+		alac.setinfo_82 = 0;
+		alac.setinfo_86 = 0;
+		alac.setinfo_8a_rate = 44100;
+		return alac;
+	}
+
+	/* encodes n frames of stereo samples */
+	byte[][] stereoFrames(int n, int sampleSize)
+	{
+		byte[][] frames = new byte[n][];
+		for (int i = 0; i < n; i++)
+			frames[i] = stereoFrame(FRAME_SIZE, sampleSize, false);
+		return frames;
+	}
+
+	static final class BitWriter
+	{
+		private byte[] buf = new byte[1 << 16];
+		private int bitPos = 0;
+
+		void write(long value, int bits)
+		{
+			for (int i = bits - 1; i >= 0; i--)
+			{
+				if (((value >>> i) & 1) != 0)
+					buf[bitPos >> 3] |= (byte) (0x80 >>> (bitPos & 7));
+				bitPos++;
+			}
+		}
+
+		void ones(int n)
+		{
+			for (int i = 0; i < n; i++)
+				write(1, 1);
+		}
+
+		int length()
+		{
+			return bitPos;
+		}
+
+		/* returns the written bits, followed by pad zero bytes */
+		byte[] bytes(int pad)
+		{
+			byte[] result = new byte[((bitPos + 7) >> 3) + pad];
+			System.arraycopy(buf, 0, result, 0, (bitPos + 7) >> 3);
+			return result;
+		}
+	}
+
+	private static boolean writeValue(BitWriter w, int v, int k, int sampleSize, int mask)
+	{
+		if (v < 0 || v >= (1 << sampleSize))
+			return false;
+
+		if (k == 1)
+		{
+			if (v <= Defines.RICE_THRESHOLD)
+			{
+				w.ones(v);
+				w.write(0, 1);
+				return true;
+			}
+		}
+		else
+		{
+			int m = ((1 << k) - 1) & mask;
+			if (m == 0)
+				return false;
+
+			int q = v / m, r = v % m;
+			if (q <= Defines.RICE_THRESHOLD)
+			{
+				w.ones(q);
+				w.write(0, 1);
+				if (r == 0)
+					w.write(0, k - 1);
+				else
+					w.write(r + 1, k);
+				return true;
+			}
+		}
+
+		/* escape, raw value */
+		w.ones(Defines.RICE_THRESHOLD + 1);
+		w.write(v, sampleSize);
+		return true;
+	}
+
+	/* rice codes the residuals the way entropy_rice_decode() expects them */
+	static boolean rice(BitWriter w, int[] residuals, int n, int readSampleSize, int historyMult)
+	{
+		int history = RICE_INITIALHISTORY, signModifier = 0;
+		for (int i = 0; i < n; i++)
+		{
+			int k = 31 - RICE_KMODIFIER - Integer.numberOfLeadingZeros((history >> 9) + 3);
+			k = k < 0 ? k + RICE_KMODIFIER : RICE_KMODIFIER;
+
+			int e = residuals[i];
+			int decoded = e > 0 ? 2 * e : (e < 0 ? -2 * e - 1 : 0);
+			if (!writeValue(w, decoded - signModifier, k, readSampleSize, 0xFFFFFFFF))
+				return false;
+
+			signModifier = 0;
+			history += (decoded * historyMult) - ((history * historyMult) >> 9);
+			if (decoded > 0xFFFF)
+				history = 0xFFFF;
+
+			/* blocks of zeros */
+			if (history < 128 && i + 1 < n)
+			{
+				signModifier = 1;
+				k = Integer.numberOfLeadingZeros(history) + ((history + 16) / 64) - 24;
+
+				int zeros = 0;
+				while (i + 1 + zeros < n && residuals[i + 1 + zeros] == 0 && zeros < 0xFFFF)
+					zeros++;
+				if (!writeValue(w, zeros, k, 16, (1 << RICE_KMODIFIER) - 1))
+					return false;
+
+				i += zeros;
+				history = 0;
+			}
+		}
+		return true;
+	}
+
+	/* returns the residuals from which the decoder's adaptive FIR predictor reproduces x */
+	private static int[] predict(int[] x, int n, int[] initialCoefs, int num, int quant)
+	{
+		int[] err = new int[n];
+		int[] c = initialCoefs.clone();
+
+		if (num == 0)
+		{
+			System.arraycopy(x, 0, err, 0, n);
+			return err;
+		}
+
+		err[0] = x[0];
+		if (num == 31)
+		{
+			for (int i = 1; i < n; i++)
+				err[i] = x[i] - x[i - 1];
+			return err;
+		}
+
+		for (int i = 0; i < num && i + 1 < n; i++)
+			err[i + 1] = x[i + 1] - x[i];
+
+		for (int i = num + 1; i < n; i++)
+		{
+			int idx = i - num - 1, sum = 0;
+			for (int j = 0; j < num; j++)
+				sum += (x[idx + num - j] - x[idx]) * c[j];
+
+			int ev = x[i] - ((((1 << (quant - 1)) + sum) >> quant) + x[idx]);
+			err[i] = ev;
+
+			/* adapt the coefficients like the decoder does */
+			int p = num - 1;
+			while (p >= 0 && ev != 0)
+			{
+				int val = x[idx] - x[idx + num - p];
+				int sign = Integer.signum(val) * Integer.signum(ev);
+				c[p] -= sign;
+				val *= sign;
+				ev -= (val >> quant) * (num - p);
+				p--;
+				if (Integer.signum(ev) != Integer.signum(err[i]))
+					break;
+			}
+		}
+		return err;
+	}
+
+	private int[][] signal(int n, int sampleSize)
+	{
+		int full = (1 << (sampleSize - 1)) - 1;
+		int[][] s = new int[2][n];
+
+		/* silence, tones, identical channels, noise, gated tones or full scale */
+		int kind = rnd.nextInt(6);
+		double f1 = 20 + rnd.nextDouble() * 4000, f2 = 20 + rnd.nextDouble() * 9000, phase = rnd.nextDouble() * 6;
+		double amp = kind == 5 ? full : full * rnd.nextDouble() * 0.6;
+		double noise = kind == 3 ? full * 0.3 : (kind == 4 ? 0 : full * 0.002 * rnd.nextDouble());
+
+		for (int i = 0; i < n; i++)
+		{
+			for (int ch = 0; ch < 2; ch++)
+			{
+				double v;
+				if (kind == 0 || (kind == 4 && (i / 40) % 2 == 0))
+					v = 0;
+				else
+					v = amp * (0.6 * Math.sin(phase + i * f1 / 44100 * 2 * Math.PI + ch) + 0.4 * Math.sin(i * f2 / 44100 * 2 * Math.PI)) + noise * rnd.nextGaussian();
+
+				s[ch][i] = (int) Math.max(-full - 1, Math.min(Math.round(v), full));
+			}
+		}
+		if (kind == 2)
+			s[1] = s[0].clone();
+
+		last = s;
+		return s;
+	}
+
+	private int[] coefs(int num)
+	{
+		int[] c = new int[32];
+		for (int j = 0; j < num; j++)
+			c[j] = rnd.nextInt(2048) - 512;
+		if (num >= 2 && rnd.nextBoolean())
+		{
+			c[0] = 1024;
+			c[1] = -512;
+		}
+		return c;
+	}
+
+	/* encodes a stereo frame of n samples */
+	byte[] stereoFrame(int n, int sampleSize, boolean forceUncompressed)
+	{
+		int[][] s = signal(n, sampleSize);
+		int uncompressedBytes = sampleSize == 24 ? 1 : 0;
+		boolean hasSize = rnd.nextInt(10) == 0;
+
+		for (int attempt = 0; attempt < 2 && !forceUncompressed; attempt++)
+		{
+			BitWriter w = new BitWriter();
+			w.write(1, 3); /* channels - 1 */
+			w.write(0, 4);
+			w.write(0, 12);
+			w.write(hasSize ? 1 : 0, 1);
+			w.write(uncompressedBytes, 2);
+			w.write(0, 1); /* not verbatim */
+			if (hasSize)
+				w.write(n, 32);
+
+			int[] a = new int[n], b = new int[n], lowA = new int[n], lowB = new int[n];
+			boolean midSide = rnd.nextBoolean() && attempt == 0;
+			int shift = midSide ? 1 : 0, leftWeight = midSide ? 1 : 0;
+			for (int i = 0; i < n; i++)
+			{
+				int l = s[0][i], r = s[1][i];
+				if (uncompressedBytes != 0)
+				{
+					lowA[i] = l & 0xff;
+					lowB[i] = r & 0xff;
+					l >>= 8;
+					r >>= 8;
+				}
+				if (midSide)
+				{
+					b[i] = l - r;
+					a[i] = r + ((b[i] * leftWeight) >> shift);
+				}
+				else
+				{
+					a[i] = l;
+					b[i] = r;
+				}
+			}
+			w.write(shift, 8);
+			w.write(leftWeight, 8);
+
+			int readSampleSize = sampleSize - uncompressedBytes * 8 + 1;
+			int[][] channels = { a, b };
+			int[][] residuals = new int[2][];
+			int[] historyMults = new int[2];
+			for (int ch = 0; ch < 2; ch++)
+			{
+				int num = ORDERS[rnd.nextInt(ORDERS.length)];
+				int quant = 9, riceModifier = 4;
+				int[] c = coefs(num);
+
+				w.write(0, 4); /* prediction type */
+				w.write(quant, 4);
+				w.write(riceModifier, 3);
+				w.write(num, 5);
+				for (int j = 0; j < num; j++)
+					w.write(c[j] & 0xffff, 16);
+
+				residuals[ch] = predict(channels[ch], n, c, num, quant);
+				historyMults[ch] = riceModifier * (RICE_HISTORYMULT / 4);
+			}
+
+			if (uncompressedBytes != 0)
+			{
+				for (int i = 0; i < n; i++)
+				{
+					w.write(lowA[i], 8);
+					w.write(lowB[i], 8);
+				}
+			}
+
+			if (rice(w, residuals[0], n, readSampleSize, historyMults[0]) && rice(w, residuals[1], n, readSampleSize, historyMults[1]))
+			{
+				w.write(7, 3); /* end of frame */
+				return w.bytes(8);
+			}
+		}
+
+		/* verbatim frame */
+		BitWriter w = new BitWriter();
+		w.write(1, 3);
+		w.write(0, 4);
+		w.write(0, 12);
+		w.write(0, 1);
+		w.write(0, 2);
+		w.write(1, 1);
+		for (int i = 0; i < n; i++)
+		{
+			for (int ch = 0; ch < 2; ch++)
+			{
+				if (sampleSize <= 16)
+					w.write(s[ch][i] & 0xffff, 16);
+				else
+				{
+					w.write((s[ch][i] >> 8) & 0xffff, 16);
+					w.write(s[ch][i] & 0xff, 8);
+				}
+			}
+		}
+		w.write(7, 3);
+		return w.bytes(8);
+	}
+}
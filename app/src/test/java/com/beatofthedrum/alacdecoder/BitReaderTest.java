@@ -0,0 +1,240 @@
+/*
+** BitReaderTest.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.alacdecoder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/* compares the reservoir bit reader against the original byte at a time
+ * reader, for correctness and speed, on encoded ALAC frames */
+public class BitReaderTest
+{
+	private static final int FRAMES = 500;
+
+	/* read widths following the mix of the rice decoder, i.e. mostly single
+	 * bits and short codes, and occasionally an escaped raw value */
+	private static int[] readSchedule(Random rnd, int n)
+	{
+		int[] widths = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			int kind = rnd.nextInt(10);
+			widths[i] = kind < 4 ? 1 : (kind < 9 ? 2 + rnd.nextInt(15) : 17 + rnd.nextInt(16));
+		}
+		return widths;
+	}
+
+	/* the number of reads of the schedule which fit into the frame */
+	private static int readsInFrame(byte[] frame, int[] widths)
+	{
+		long bits = 8L * (frame.length - 8);
+		int n = 0;
+		while (n < widths.length && bits >= widths[n])
+			bits -= widths[n++];
+		return n;
+	}
+
+	@Test
+	public void readsLikeLegacyReader()
+	{
+		Random rnd = new Random(3);
+		byte[][] frames = new AlacTestEncoder(3).stereoFrames(FRAMES, 16);
+		BitReader reader = new BitReader();
+		LegacyAlacReader legacy = new LegacyAlacReader();
+
+		for (byte[] frame : frames)
+		{
+			int offset = rnd.nextInt(4);
+			reader.reset(frame, offset);
+			legacy.reset(frame, offset);
+
+			int[] widths = readSchedule(rnd, 8 * frame.length);
+			for (int i = 0, n = readsInFrame(frame, widths) - 4; i < n; i++)
+			{
+				int bits = widths[i];
+				if (bits == 1)
+				{
+					assertEquals(legacy.readbit(), reader.readbit());
+				}
+				else if (rnd.nextBoolean())
+				{
+					assertEquals(legacy.readbits(bits), reader.readbits(bits));
+				}
+				else
+				{
+					/* peek more than needed and give back the rest, like the rice decoder */
+					int peeked = reader.peekbits(32) >>> (32 - bits);
+					reader.skipbits(bits);
+					assertEquals(legacy.readbits(bits), peeked);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void readsPastEndAsZeros()
+	{
+		byte[] buffer = { (byte) 0xff, (byte) 0xff, (byte) 0xff };
+		BitReader reader = new BitReader();
+		reader.reset(buffer, 1);
+
+		assertEquals(0xffff, reader.readbits(16));
+		assertEquals(0, reader.readbits(32));
+		assertEquals(0, reader.readbit());
+	}
+
+	/* rice coded residual blocks of 352 samples, with a varying level */
+	private static byte[][] riceBlocks(Random rnd, int n, int[][] residuals)
+	{
+		byte[][] blocks = new byte[n][];
+		for (int b = 0; b < n; b++)
+		{
+			double scale = Math.pow(2, 2 + rnd.nextInt(10));
+			residuals[b] = new int[AlacTestEncoder.FRAME_SIZE];
+			for (int i = 0; i < residuals[b].length; i++)
+			{
+				double u = rnd.nextDouble() - 0.5;
+				residuals[b][i] = (int) Math.round(-scale * Math.signum(u) * Math.log(1 - 2 * Math.abs(u)));
+			}
+
+			AlacTestEncoder.BitWriter w = new AlacTestEncoder.BitWriter();
+			AlacTestEncoder.rice(w, residuals[b], residuals[b].length, 17, AlacTestEncoder.RICE_HISTORYMULT);
+			blocks[b] = w.bytes(8);
+		}
+		return blocks;
+	}
+
+	/* decodes a rice coded block reading a bit at a time like the original decoder.
+	 * the decoding follows entropy_rice_decode(), but doesn't support blocks of zeros */
+	private static int legacyRice(LegacyAlacReader in, int[] out)
+	{
+		int history = AlacTestEncoder.RICE_INITIALHISTORY, kmodifier = AlacTestEncoder.RICE_KMODIFIER, signModifier = 0;
+		for (int i = 0; i < out.length; i++)
+		{
+			int k = 31 - kmodifier - Integer.numberOfLeadingZeros((history >> 9) + 3);
+			k = k < 0 ? k + kmodifier : kmodifier;
+
+			int x = 0;
+			while (x <= Defines.RICE_THRESHOLD && in.readbit() != 0)
+				x++;
+			if (x > Defines.RICE_THRESHOLD)
+				x = in.readbits(17);
+			else if (k != 1)
+			{
+				int extraBits = in.readbits(k);
+				x *= (1 << k) - 1;
+				if (extraBits > 1)
+					x += extraBits - 1;
+				else
+					in.unreadbits(1);
+			}
+
+			x += signModifier;
+			out[i] = ((x & 1) != 0) ? -((x + 1) / 2) : (x + 1) / 2;
+			history += (x * AlacTestEncoder.RICE_HISTORYMULT) - ((history * AlacTestEncoder.RICE_HISTORYMULT) >> 9);
+			if (x > 0xFFFF)
+				history = 0xFFFF;
+			if (history < 128)
+				return i + 1;
+		}
+		return out.length;
+	}
+
+	/* the same with the reservoir reader, peeking at the extra bits */
+	private static int reservoirRice(BitReader in, int[] out)
+	{
+		int history = AlacTestEncoder.RICE_INITIALHISTORY, kmodifier = AlacTestEncoder.RICE_KMODIFIER, signModifier = 0;
+		for (int i = 0; i < out.length; i++)
+		{
+			int k = 31 - kmodifier - Integer.numberOfLeadingZeros((history >> 9) + 3);
+			k = k < 0 ? k + kmodifier : kmodifier;
+
+			int x = 0;
+			while (x <= Defines.RICE_THRESHOLD && in.readbit() != 0)
+				x++;
+			if (x > Defines.RICE_THRESHOLD)
+				x = in.readbits(17);
+			else if (k != 1)
+			{
+				int extraBits = in.peekbits(k);
+				x *= (1 << k) - 1;
+				if (extraBits > 1)
+				{
+					x += extraBits - 1;
+					in.skipbits(k);
+				}
+				else
+					in.skipbits(k - 1);
+			}
+
+			x += signModifier;
+			out[i] = ((x & 1) != 0) ? -((x + 1) / 2) : (x + 1) / 2;
+			history += (x * AlacTestEncoder.RICE_HISTORYMULT) - ((history * AlacTestEncoder.RICE_HISTORYMULT) >> 9);
+			if (x > 0xFFFF)
+				history = 0xFFFF;
+			if (history < 128)
+				return i + 1;
+		}
+		return out.length;
+	}
+
+	@Test
+	public void benchmarkRiceDecodingAgainstLegacyReader()
+	{
+		int n = 1000;
+		int[][] residuals = new int[n][];
+		byte[][] blocks = riceBlocks(new Random(5), n, residuals);
+		int[] out = new int[AlacTestEncoder.FRAME_SIZE];
+		BitReader reader = new BitReader();
+		LegacyAlacReader legacy = new LegacyAlacReader();
+
+		/* both decode the encoded residuals, up to the first block of zeros */
+		long samples = 0;
+		for (int b = 0; b < n; b++)
+		{
+			legacy.reset(blocks[b], 0);
+			int count = legacyRice(legacy, out);
+			for (int i = 0; i < count; i++)
+				assertEquals(residuals[b][i], out[i]);
+
+			reader.reset(blocks[b], 0);
+			assertEquals(count, reservoirRice(reader, out));
+			for (int i = 0; i < count; i++)
+				assertEquals(residuals[b][i], out[i]);
+
+			samples += count;
+		}
+
+		long bestNew = Long.MAX_VALUE, bestLegacy = Long.MAX_VALUE;
+		for (int round = 0; round < 30; round++)
+		{
+			long t0 = System.nanoTime();
+			for (int b = 0; b < n; b++)
+			{
+				legacy.reset(blocks[b], 0);
+				legacyRice(legacy, out);
+			}
+			long t1 = System.nanoTime();
+			for (int b = 0; b < n; b++)
+			{
+				reader.reset(blocks[b], 0);
+				reservoirRice(reader, out);
+			}
+			long t2 = System.nanoTime();
+
+			bestLegacy = Math.min(bestLegacy, t1 - t0);
+			bestNew = Math.min(bestNew, t2 - t1);
+		}
+
+		System.out.printf("BitReader: rice decoding %.2f ns/sample, legacy reader %.2f ns/sample (%.1fx)%n",
+			(double) bestNew / samples, (double) bestLegacy / samples, (double) bestLegacy / bestNew);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+** EntropyDecodeTest.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.alacdecoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/* compares the rice decoder against the original one, which counted leading
+ * zeros with a branch ladder and read the unary prefix a bit at a time */
+public class EntropyDecodeTest
+{
+	private static final int PACKETS = 500;
+	private static final int READ_SAMPLE_SIZE = 17;
+
+	/* residuals of both channels of 352 frame stereo packets, rice coded.
+	 * some stretches are silent, which exercises the blocks of zeros */
+	private static byte[][] encodePackets(Random rnd, int[][] residuals)
+	{
+		byte[][] blocks = new byte[2 * PACKETS][];
+		for (int b = 0; b < blocks.length; b++)
+		{
+			double scale = Math.pow(2, 2 + rnd.nextInt(10));
+			int silenceStart = rnd.nextInt(AlacTestEncoder.FRAME_SIZE), silenceEnd = silenceStart + rnd.nextInt(100);
+			residuals[b] = new int[AlacTestEncoder.FRAME_SIZE];
+			for (int i = 0; i < residuals[b].length; i++)
+			{
+				double u = rnd.nextDouble() - 0.5;
+				if (i < silenceStart || i >= silenceEnd)
+					residuals[b][i] = (int) Math.round(-scale * Math.signum(u) * Math.log(1 - 2 * Math.abs(u)));
+			}
+
+			AlacTestEncoder.BitWriter w = new AlacTestEncoder.BitWriter();
+			AlacTestEncoder.rice(w, residuals[b], residuals[b].length, READ_SAMPLE_SIZE, AlacTestEncoder.RICE_HISTORYMULT);
+			blocks[b] = w.bytes(8);
+		}
+		return blocks;
+	}
+
+	private static void decode(AlacFile alac, byte[] block, int[] out)
+	{
+		alac.input.reset(block, 0);
+		AlacDecodeUtils.entropy_rice_decode(alac, out, out.length, READ_SAMPLE_SIZE, AlacTestEncoder.RICE_INITIALHISTORY,
+			AlacTestEncoder.RICE_KMODIFIER, AlacTestEncoder.RICE_HISTORYMULT, (1 << AlacTestEncoder.RICE_KMODIFIER) - 1);
+	}
+
+	private static void decode(LegacyAlacReader legacy, byte[] block, int[] out)
+	{
+		legacy.reset(block, 0);
+		legacy.entropy_rice_decode(out, out.length, READ_SAMPLE_SIZE, AlacTestEncoder.RICE_INITIALHISTORY,
+			AlacTestEncoder.RICE_KMODIFIER, AlacTestEncoder.RICE_HISTORYMULT, (1 << AlacTestEncoder.RICE_KMODIFIER) - 1);
+	}
+
+	@Test
+	public void leadingZerosLikeLegacyLadder()
+	{
+		LegacyAlacReader legacy = new LegacyAlacReader();
+		Random rnd = new Random(1);
+		for (int i = 0; i < 100000; i++)
+		{
+			int value = rnd.nextInt() >>> rnd.nextInt(32);
+			assertEquals(legacy.count_leading_zeros(value, legacy.lz), Integer.numberOfLeadingZeros(value));
+		}
+		assertEquals(legacy.count_leading_zeros(0, legacy.lz), Integer.numberOfLeadingZeros(0));
+	}
+
+	@Test
+	public void decodesLikeLegacyDecoder()
+	{
+		int[][] residuals = new int[2 * PACKETS][];
+		byte[][] blocks = encodePackets(new Random(2), residuals);
+		AlacFile alac = AlacTestEncoder.createDecoder(16);
+		LegacyAlacReader legacy = new LegacyAlacReader();
+		int[] out = new int[AlacTestEncoder.FRAME_SIZE];
+		int[] legacyOut = new int[AlacTestEncoder.FRAME_SIZE];
+
+		for (int b = 0; b < blocks.length; b++)
+		{
+			decode(alac, blocks[b], out);
+			decode(legacy, blocks[b], legacyOut);
+			assertArrayEquals(residuals[b], out);
+			assertArrayEquals(legacyOut, out);
+		}
+	}
+
+	@Test
+	public void benchmarkAgainstLegacyDecoder()
+	{
+		int[][] residuals = new int[2 * PACKETS][];
+		byte[][] blocks = encodePackets(new Random(3), residuals);
+		AlacFile alac = AlacTestEncoder.createDecoder(16);
+		LegacyAlacReader legacy = new LegacyAlacReader();
+		int[] out = new int[AlacTestEncoder.FRAME_SIZE];
+
+		long bestNew = Long.MAX_VALUE, bestLegacy = Long.MAX_VALUE;
+		for (int round = 0; round < 30; round++)
+		{
+			long t0 = System.nanoTime();
+			for (byte[] block : blocks)
+				decode(legacy, block, out);
+			long t1 = System.nanoTime();
+			for (byte[] block : blocks)
+				decode(alac, block, out);
+			long t2 = System.nanoTime();
+
+			bestLegacy = Math.min(bestLegacy, t1 - t0);
+			bestNew = Math.min(bestNew, t2 - t1);
+		}
+
+		double samples = (double) blocks.length * AlacTestEncoder.FRAME_SIZE;
+		System.out.printf("entropy_rice_decode: %.2f ns/sample (%.2f us per stereo packet), legacy %.2f ns/sample (%.2f us) (%.1fx)%n",
+			bestNew / samples, bestNew / 1e3 / PACKETS, bestLegacy / samples, bestLegacy / 1e3 / PACKETS, (double) bestLegacy / bestNew);
+	}
+}
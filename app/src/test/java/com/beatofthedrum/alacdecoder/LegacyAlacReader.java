@@ -0,0 +1,332 @@
+/*
+** LegacyAlacReader.java
+**
+** Copyright (c) 2011 Peter McQuillan
+**
+** All Rights Reserved.
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+
+package com.beatofthedrum.alacdecoder;
+
+/* the decoder's original byte at a time bit reader, which re-reads up to
+ * three bytes of the input for every call, and its original rice decoder,
+ * which counts leading zeros with a branch ladder. kept unchanged as the
+ * reference the tests and benchmarks compare the current implementation against */
+class LegacyAlacReader
+{
+	byte[] input_buffer;
+	int ibIdx = 0;
+	int input_buffer_bitaccumulator = 0; /* used so we can do arbitary
+						bit reads */
+
+	static class LeadingZeros
+	{
+		public int curbyte = 0;
+		public int output = 0;
+	}
+
+	LeadingZeros lz = new LeadingZeros();
+
+	void reset(byte[] buffer, int offset)
+	{
+		input_buffer = buffer;
+		ibIdx = offset;
+		input_buffer_bitaccumulator = 0;
+	}
+
+	/* supports reading 1 to 16 bits, in big endian format */
+	int readbits_16(int bits )
+	{
+		int result  = 0;
+		int new_accumulator = 0;
+		int part1 = 0;
+		int part2 = 0;
+		int part3 =0;
+
+		part1 = (input_buffer[ibIdx] & 0xff);
+		part2 = (input_buffer[ibIdx + 1] & 0xff);
+		part3 = (input_buffer[ibIdx + 2] & 0xff);
+
+		result = ((part1 << 16) | (part2 << 8) | part3);
+
+		/* shift left by the number of bits we've already read,
+		 * so that the top 'n' bits of the 24 bits we read will
+		 * be the return bits */
+		result = result << input_buffer_bitaccumulator;
+
+		result = result & 0x00ffffff;
+
+		/* and then only want the top 'n' bits from that, where
+		 * n is 'bits' */
+		result = result >> (24 - bits);
+
+		new_accumulator = (input_buffer_bitaccumulator + bits);
+
+		/* increase the buffer pointer if we've read over n bytes. */
+		ibIdx += (new_accumulator >> 3);
+
+		/* and the remainder goes back into the bit accumulator */
+		input_buffer_bitaccumulator = (new_accumulator & 7);
+
+		return result;
+	}
+
+	/* supports reading 1 to 32 bits, in big endian format */
+	int readbits(int bits )
+	{
+		int result  = 0;
+
+		if (bits > 16)
+		{
+			bits -= 16;
+
+			result = readbits_16(16) << bits;
+		}
+
+		result |= readbits_16(bits);
+
+		return result;
+	}
+
+	/* reads a single bit */
+	int readbit()
+	{
+		int result = 0;
+		int new_accumulator = 0;
+		int part1 = 0;
+
+		part1 = (input_buffer[ibIdx] & 0xff);
+
+		result = part1;
+
+		result = result << input_buffer_bitaccumulator;
+
+		result = result >> 7 & 1;
+
+		new_accumulator = (input_buffer_bitaccumulator + 1);
+
+		ibIdx += new_accumulator / 8;
+
+		input_buffer_bitaccumulator = (new_accumulator % 8);
+
+		return result;
+	}
+
+	void unreadbits(int bits )
+	{
+		int new_accumulator  = (input_buffer_bitaccumulator - bits);
+
+		ibIdx += (new_accumulator >> 3);
+
+		input_buffer_bitaccumulator = (new_accumulator & 7);
+		if (input_buffer_bitaccumulator < 0)
+			input_buffer_bitaccumulator *= -1;
+	}
+
+	LeadingZeros count_leading_zeros_extra(int curbyte, int output, LeadingZeros lz)
+	{
+
+        if ((curbyte & 0xf0)==0)
+		{
+			output += 4;
+		}
+		else
+			curbyte = curbyte >> 4;
+
+		if ((curbyte & 0x8) != 0)
+		{
+			lz.output = output;
+			lz.curbyte = curbyte;
+			return lz;
+		}
+		if ((curbyte & 0x4) != 0)
+		{
+			lz.output = output + 1;
+			lz.curbyte = curbyte;
+			return lz;
+		}
+		if ((curbyte & 0x2) != 0)
+		{
+			lz.output = output + 2;
+			lz.curbyte = curbyte;
+			return lz;
+		}
+		if ((curbyte & 0x1) != 0)
+		{
+			lz.output = output + 3;
+			lz.curbyte = curbyte;
+			return lz;
+		}
+
+		/* shouldn't get here: */
+
+		lz.output = output + 4;
+		lz.curbyte = curbyte;
+		return lz;
+
+	}
+	int count_leading_zeros(int input, LeadingZeros lz)
+	{
+		int output  = 0;
+		int curbyte  = 0;
+
+        curbyte = input >> 24;
+		if (curbyte != 0)
+		{
+			count_leading_zeros_extra(curbyte, output, lz);
+			output = lz.output;
+			curbyte = lz.curbyte;
+			return output;
+		}
+		output += 8;
+
+		curbyte = input >> 16;
+		if ((curbyte & 0xFF) != 0)
+		{
+			count_leading_zeros_extra(curbyte, output, lz);
+			output = lz.output;
+			curbyte = lz.curbyte;
+
+			return output;
+		}
+		output += 8;
+
+		curbyte = input >> 8;
+		if ((curbyte & 0xFF) != 0)
+		{
+			count_leading_zeros_extra(curbyte, output, lz);
+			output = lz.output;
+			curbyte = lz.curbyte;
+
+			return output;
+		}
+		output += 8;
+
+		curbyte = input;
+		if ((curbyte & 0xFF) != 0)
+		{
+			count_leading_zeros_extra(curbyte, output, lz);
+			output = lz.output;
+			curbyte = lz.curbyte;
+
+			return output;
+		}
+		output += 8;
+
+		return output;
+	}
+
+	int entropy_decode_value(int readSampleSize , int k , int rice_kmodifier_mask ) 
+	{
+		int x  = 0; // decoded value
+
+		// read x, number of 1s before 0 represent the rice value.
+		while (x <= Defines.RICE_THRESHOLD && readbit() != 0)
+		{
+			x++;
+		}
+
+		if (x > Defines.RICE_THRESHOLD)
+		{
+			// read the number from the bit stream (raw value)
+			int value  = 0;
+
+			value = readbits(readSampleSize);
+
+			// mask value
+			value &= ((0xffffffff) >> (32 - readSampleSize));
+
+			x = value;
+		}
+		else
+		{
+			if (k != 1)
+			{		
+				int extraBits  = readbits(k);
+
+				x *= (((1 << k) - 1) & rice_kmodifier_mask);
+
+				if (extraBits > 1)
+					x += extraBits - 1;
+				else
+					unreadbits(1);
+			}
+		}
+
+		return x;
+	}
+
+	void entropy_rice_decode(int[] outputBuffer, int outputSize , int readSampleSize , int rice_initialhistory , int rice_kmodifier , int rice_historymult , int rice_kmodifier_mask )
+	{
+		int history  = rice_initialhistory;
+		int outputCount  = 0;
+		int signModifier  = 0;
+
+		while(outputCount < outputSize)
+		{
+			int decodedValue  = 0;
+			int finalValue  = 0;
+			int k   = 0;
+
+			k = 31 - rice_kmodifier - count_leading_zeros((history >> 9) + 3, lz);
+
+			if (k < 0)
+				k += rice_kmodifier;
+			else
+				k = rice_kmodifier;
+
+			// note: don't use rice_kmodifier_mask here (set mask to 0xFFFFFFFF)
+			decodedValue = entropy_decode_value(readSampleSize, k, 0xFFFFFFFF);
+
+			decodedValue += signModifier;
+			finalValue = ((decodedValue + 1) / 2); // inc by 1 and shift out sign bit
+			if ((decodedValue & 1) != 0) // the sign is stored in the low bit
+				finalValue *= -1;
+
+			outputBuffer[outputCount] = finalValue;
+
+			signModifier = 0;
+
+			// update history
+			history += (decodedValue * rice_historymult) - ((history * rice_historymult) >> 9);
+
+			if (decodedValue > 0xFFFF)
+				history = 0xFFFF;
+
+			// special case, for compressed blocks of 0
+			if ((history < 128) && (outputCount + 1 < outputSize))
+			{
+				int blockSize  = 0;
+
+				signModifier = 1;
+
+				k = count_leading_zeros(history, lz) + ((history + 16) / 64) - 24;
+
+				// note: blockSize is always 16bit
+				blockSize = entropy_decode_value(16, k, rice_kmodifier_mask);
+
+				// got blockSize 0s
+				if (blockSize > 0)
+				{
+					int countSize  = 0;
+					countSize = blockSize;
+					for (int j = 0; j < countSize; j++)
+					{
+						outputBuffer[outputCount + 1 + j] = 0;
+					}
+					outputCount += blockSize;
+				}
+
+				if (blockSize > 0xFFFF)
+					signModifier = 0;
+
+				history = 0;
+			}
+			
+			outputCount++;
+		}
+	}
+}
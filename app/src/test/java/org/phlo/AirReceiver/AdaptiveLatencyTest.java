@@ -0,0 +1,178 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks how {@link AdaptiveLatency#evaluate(long)} grows the playout offset
+ * and buffer size on trouble, and decays them after calm intervals
+ */
+public class AdaptiveLatencyTest {
+	private static final long IntervalNanos = 5000000000L;
+	private static final double Epsilon = 1e-9;
+
+	private final AdaptiveLatency m_latency = new AdaptiveLatency(0.0, 0.1, 0.05, 0.12);
+
+	/**
+	 * Time of the current interval's end
+	 */
+	private long m_nanoTime = 1L << 40;
+
+	@Before
+	public void startFirstInterval() {
+		Logger.getLogger("AdaptiveLatency").setLevel(Level.WARNING);
+		assertFalse(m_latency.evaluate(m_nanoTime));
+	}
+
+	/**
+	 * Ends the current interval, after reporting the given number of arrived packets
+	 *
+	 * @return true if a value changed
+	 */
+	private boolean interval(final int arrived) {
+		for (int i = 0; i < arrived; ++i)
+			m_latency.packetArrived();
+		m_nanoTime += IntervalNanos;
+		return m_latency.evaluate(m_nanoTime);
+	}
+
+	@Test
+	public void startsAtLowerBounds() {
+		assertEquals(0.0, m_latency.getOffsetSeconds(), Epsilon);
+		assertEquals(0.05, m_latency.getBufferSeconds(), Epsilon);
+		assertEquals(0.12, m_latency.getMaxBufferSeconds(), Epsilon);
+	}
+
+	@Test
+	public void evaluatesOncePerInterval() {
+		m_latency.packetLate();
+		assertFalse(m_latency.evaluate(m_nanoTime + IntervalNanos - 1));
+		assertEquals(0.0, m_latency.getOffsetSeconds(), Epsilon);
+		assertTrue(m_latency.evaluate(m_nanoTime + IntervalNanos));
+		assertEquals(0.02, m_latency.getOffsetSeconds(), Epsilon);
+
+		/* The next interval starts at the evaluation */
+		m_latency.packetLate();
+		assertFalse(m_latency.evaluate(m_nanoTime + 2 * IntervalNanos - 1));
+		assertTrue(m_latency.evaluate(m_nanoTime + 2 * IntervalNanos));
+		assertEquals(0.04, m_latency.getOffsetSeconds(), Epsilon);
+	}
+
+	@Test
+	public void growsOffsetOnLateAndLostPackets() {
+		m_latency.packetLate();
+		assertTrue(interval(100));
+		assertEquals(0.02, m_latency.getOffsetSeconds(), Epsilon);
+
+		m_latency.packetLost();
+		assertTrue(interval(100));
+		assertEquals(0.04, m_latency.getOffsetSeconds(), Epsilon);
+
+		/* Up to the upper bound */
+		for (int i = 0; i < 10; ++i) {
+			m_latency.packetLate();
+			interval(100);
+		}
+		assertEquals(0.1, m_latency.getOffsetSeconds(), Epsilon);
+		assertEquals(5, m_latency.getOffsetIncreases());
+		m_latency.packetLate();
+		assertFalse(interval(100));
+
+		/* Late packets don't affect the buffer size */
+		assertEquals(0.05, m_latency.getBufferSeconds(), Epsilon);
+		assertEquals(0, m_latency.getBufferIncreases());
+	}
+
+	@Test
+	public void growsBufferOnUnderruns() {
+		m_latency.underrun();
+		m_latency.underrun();
+		assertTrue(interval(100));
+		assertEquals(0.07, m_latency.getBufferSeconds(), Epsilon);
+
+		for (int i = 0; i < 5; ++i) {
+			m_latency.underrun();
+			interval(100);
+		}
+		assertEquals(0.12, m_latency.getBufferSeconds(), Epsilon);
+		assertEquals(4, m_latency.getBufferIncreases());
+		assertEquals(0.0, m_latency.getOffsetSeconds(), Epsilon);
+	}
+
+	@Test
+	public void decaysAfterCalmIntervals() {
+		m_latency.packetLate();
+		m_latency.underrun();
+		interval(100);
+		m_latency.packetLate();
+		m_latency.underrun();
+		interval(100);
+		assertEquals(0.04, m_latency.getOffsetSeconds(), Epsilon);
+		assertEquals(0.09, m_latency.getBufferSeconds(), Epsilon);
+
+		/* Both decrease by the smaller step after six calm intervals */
+		for (int i = 0; i < 5; ++i)
+			assertFalse(interval(100));
+		assertTrue(interval(100));
+		assertEquals(0.03, m_latency.getOffsetSeconds(), Epsilon);
+		assertEquals(0.08, m_latency.getBufferSeconds(), Epsilon);
+
+		/* Down to the lower bounds */
+		for (int i = 0; i < 6 * 10; ++i)
+			interval(100);
+		assertEquals(0.0, m_latency.getOffsetSeconds(), Epsilon);
+		assertEquals(0.05, m_latency.getBufferSeconds(), Epsilon);
+		assertEquals(4, m_latency.getOffsetDecreases());
+		assertEquals(4, m_latency.getBufferDecreases());
+	}
+
+	@Test
+	public void retransmitsAndSilenceDelayOffsetDecay() {
+		m_latency.packetLate();
+		interval(100);
+
+		/* More than one percent retransmits restarts the count of calm intervals */
+		for (int i = 0; i < 5; ++i)
+			interval(100);
+		m_latency.retransmitsRequested(2);
+		interval(100);
+		for (int i = 0; i < 5; ++i)
+			interval(100);
+		assertEquals(0.02, m_latency.getOffsetSeconds(), Epsilon);
+
+		/* So do intervals without packets */
+		interval(0);
+		for (int i = 0; i < 5; ++i)
+			interval(100);
+		assertEquals(0.02, m_latency.getOffsetSeconds(), Epsilon);
+
+		/* One percent is still calm */
+		m_latency.retransmitsRequested(1);
+		interval(100);
+		assertEquals(0.01, m_latency.getOffsetSeconds(), Epsilon);
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link AesCbcDecryptor} against the JCE provider, bit for bit and for speed
+ */
+public class AesCbcDecryptorTest {
+	/**
+	 * Size of the payload of a 352 frame 16-bit stereo ALAC packet, as
+	 * transmitted uncompressed, i.e. an upper bound for a real packet
+	 */
+	private static final int PacketLength = 352 * 4;
+
+	private static Cipher createCipher(final byte[] key, final byte[] iv) throws Exception {
+		final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		return cipher;
+	}
+
+	private static byte[] hex(final String s) {
+		final byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; ++i)
+			b[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		return b;
+	}
+
+	@Test
+	public void decryptsFips197Example() {
+		/* FIPS-197 appendix C.1. With a zero IV, CBC decrypts a single block like ECB */
+		final byte[] data = hex("69c4e0d86a7b0430d8cdb78070b4c55a");
+		new AesCbcDecryptor(hex("000102030405060708090a0b0c0d0e0f"), new byte[16]).decrypt(data, 0, data.length);
+		assertArrayEquals(hex("00112233445566778899aabbccddeeff"), data);
+	}
+
+	@Test
+	public void decryptsLikeJce() throws Exception {
+		final Random random = new Random(9);
+		final byte[] key = new byte[16];
+		final byte[] iv = new byte[16];
+
+		for (int n = 0; n < 2000; ++n) {
+			random.nextBytes(key);
+			random.nextBytes(iv);
+			final Cipher cipher = createCipher(key, iv);
+			final AesCbcDecryptor decryptor = new AesCbcDecryptor(key, iv);
+
+			/* The RTP header precedes the payload, and the trailing partial block isn't encrypted */
+			final int offset = random.nextInt(24);
+			final int length = random.nextInt(2 * PacketLength);
+			final byte[] data = new byte[offset + length + random.nextInt(8)];
+			random.nextBytes(data);
+
+			final byte[] expected = data.clone();
+			final int blocksLength = length & ~(AesCbcDecryptor.BlockSize - 1);
+			if (blocksLength > 0)
+				cipher.doFinal(expected, offset, blocksLength, expected, offset);
+
+			final byte[] inPlace = data.clone();
+			decryptor.decrypt(inPlace, offset, length);
+			assertArrayEquals("in place, case " + n, expected, inPlace);
+
+			/* Into another array, at another offset */
+			final int outOffset = random.nextInt(24);
+			final byte[] out = new byte[outOffset + length];
+			decryptor.decrypt(data, offset, out, outOffset, length);
+			assertArrayEquals("into buffer, case " + n, Arrays.copyOfRange(expected, offset, offset + length), Arrays.copyOfRange(out, outOffset, outOffset + length));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsShortKeys() {
+		new AesCbcDecryptor(new byte[8], new byte[16]);
+	}
+
+	@Test
+	public void benchmarkAgainstJce() throws Exception {
+		final Random random = new Random(10);
+		final byte[] key = new byte[16];
+		final byte[] iv = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+
+		final Cipher cipher = createCipher(key, iv);
+		final AesCbcDecryptor decryptor = new AesCbcDecryptor(key, iv);
+		final byte[] packet = new byte[PacketLength];
+		random.nextBytes(packet);
+		final byte[] out = new byte[PacketLength];
+
+		final int packets = 2000;
+		long bestJce = Long.MAX_VALUE, bestDecryptor = Long.MAX_VALUE;
+		for (int round = 0; round < 30; ++round) {
+			final long t0 = System.nanoTime();
+			for (int i = 0; i < packets; ++i)
+				cipher.doFinal(packet, 0, PacketLength, out, 0);
+			final long t1 = System.nanoTime();
+			for (int i = 0; i < packets; ++i)
+				decryptor.decrypt(packet, 0, out, 0, PacketLength);
+			final long t2 = System.nanoTime();
+
+			bestJce = Math.min(bestJce, t1 - t0);
+			bestDecryptor = Math.min(bestDecryptor, t2 - t1);
+		}
+
+		System.out.printf("AES-CBC %d byte packets: AesCbcDecryptor %.2f us (%.0f MB/s), JCE %s %.2f us (%.0f MB/s)%n",
+			PacketLength,
+			bestDecryptor / 1e3 / packets, (double)PacketLength * packets / bestDecryptor * 1e3,
+			cipher.getProvider().getName(), bestJce / 1e3 / packets, (double)PacketLength * packets / bestJce * 1e3);
+	}
+}
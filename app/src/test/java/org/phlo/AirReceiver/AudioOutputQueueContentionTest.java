@@ -0,0 +1,225 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Plays a stream through an {@link AudioOutputQueue} in real time, while several
+ * threads read its clock and another one keeps setting the frame time, and
+ * checks that the stream is played without glitches
+ */
+public class AudioOutputQueueContentionTest {
+	private static final int SampleRate = 44100;
+	private static final int FramesPerPacket = 352;
+	private static final int Readers = 6;
+	private static final double StreamSeconds = 5.0;
+	private static final double LatencySeconds = 0.3;
+
+	/**
+	 * Frames at the start of the played stream not checked, since the
+	 * gain is ramped up, and the resampler blends them with the silence before
+	 */
+	private static final int EdgeFrames = 1024;
+
+	private static final AudioFormat Format = new AudioFormat(SampleRate, 16, 2, true, false);
+
+	/**
+	 * Returns the sample value of a frame, a triangle wave between 1 and 32767.
+	 * Interpolating it yields no large steps, so resampling doesn't look like a glitch
+	 *
+	 * @param frameTime frame time
+	 * @return sample value
+	 */
+	private static int content(final long frameTime) {
+		final int t = (int)(frameTime % 65532);
+		return 1 + ((t < 32766) ? t : 65532 - t);
+	}
+
+	/**
+	 * Sink checking the played frames. Glitches are steps by more than
+	 * a few sample values, or silence, between the first and last frames
+	 */
+	private static final class CheckingSink extends NullAudioSink {
+		long frames = 0;
+		long firstAudioFrame = -1;
+		long lastAudioFrame = -1;
+		int previous = 0;
+		long glitches = 0;
+		long pendingSilence = 0;
+
+		CheckingSink() {
+			super(Format, 0.05, true);
+		}
+
+		@Override
+		protected void consume(final byte[] samples, final int off, final int len) {
+			for (int i = off; i < off + len; i += 4, ++frames) {
+				final int value = (samples[i] & 0xff) | (samples[i + 1] << 8);
+				if (value == 0) {
+					++pendingSilence;
+					continue;
+				}
+
+				if (firstAudioFrame < 0)
+					firstAudioFrame = frames;
+				else if (frames - firstAudioFrame > EdgeFrames && ((pendingSilence > 0) || (Math.abs(value - previous) > 3)))
+					++glitches;
+
+				lastAudioFrame = frames;
+				pendingSilence = 0;
+				previous = value;
+			}
+		}
+	}
+
+	@Test
+	public void playsWithoutGlitchesWhileClockIsRead() throws InterruptedException {
+		Logger.getLogger("AudioOutputQueue").setLevel(Level.WARNING);
+
+		final AudioStreamInformationProvider streamInfoProvider = new AudioStreamInformationProvider() {
+			@Override
+			public AudioFormat getAudioFormat() {
+				return Format;
+			}
+
+			@Override
+			public int getFramesPerPacket() {
+				return FramesPerPacket;
+			}
+
+			@Override
+			public double getPacketsPerSecond() {
+				return (double)SampleRate / FramesPerPacket;
+			}
+		};
+
+		final CheckingSink sink = new CheckingSink();
+		final AudioOutputQueue queue = new AudioOutputQueue(streamInfoProvider, sink, AudioChannel.STEREO);
+		queue.setGain(1.0f);
+		queue.start();
+
+		/* Frame time played right now */
+		final long startFrameTime = 1L << 20;
+		final double startSecondsTime = queue.getNowSecondsTime();
+		queue.setFrameTime(startFrameTime, startSecondsTime);
+
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong reads = new AtomicLong(0);
+		final AtomicLong backwards = new AtomicLong(0);
+
+		/* Readers, like the RTP receive threads and the retransmit handler */
+		final Thread[] readers = new Thread[Readers];
+		for (int r = 0; r < Readers; ++r) {
+			readers[r] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long count = 0;
+					long lastNowFrameTime = Long.MIN_VALUE;
+					double sink = 0;
+					while (!stop.get()) {
+						final long nowFrameTime = queue.getNowFrameTime();
+						if (nowFrameTime < lastNowFrameTime)
+							backwards.incrementAndGet();
+						lastNowFrameTime = nowFrameTime;
+
+						sink += queue.getNowSecondsTime() + queue.getNextSecondsTime() + queue.getNextFrameTime();
+						sink += queue.convertFrameToSecondsTime(nowFrameTime);
+						count += 5;
+					}
+					reads.addAndGet(count + (sink == 0 ? 1 : 0));
+				}
+			});
+			readers[r].start();
+		}
+
+		/* Writer, like the sync packets but more often. Restates the same mapping */
+		final Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!stop.get()) {
+					final double secondsTime = queue.getNowSecondsTime();
+					queue.setFrameTime(startFrameTime + Math.round((secondsTime - startSecondsTime) * SampleRate), secondsTime);
+					LockSupport.parkNanos(20000000);
+				}
+			}
+		});
+		writer.start();
+
+		/* Sender, which sends the packets the latency ahead of their playback time */
+		final PcmPacketPool pool = new PcmPacketPool(FramesPerPacket * Format.getFrameSize(), 64);
+		final long latencyFrames = Math.round(LatencySeconds * SampleRate);
+		final long packets = Math.round(StreamSeconds * SampleRate / FramesPerPacket);
+		long frameTime = startFrameTime + latencyFrames;
+		int dropped = 0;
+		final long t0 = System.nanoTime();
+		for (long p = 0; p < packets; ++p) {
+			while (queue.getNowFrameTime() < frameTime - latencyFrames)
+				LockSupport.parkNanos(1000000);
+
+			final PcmPacket packet = pool.acquire();
+			final byte[] samples = packet.getBuffer().array();
+			for (int i = 0; i < FramesPerPacket; ++i) {
+				final int value = content(frameTime + i);
+				for (int c = 0; c < 2; ++c) {
+					samples[4 * i + 2 * c] = (byte)value;
+					samples[4 * i + 2 * c + 1] = (byte)(value >> 8);
+				}
+			}
+			packet.setFrameTime(frameTime);
+			if (!queue.enqueue(packet))
+				++dropped;
+			frameTime += FramesPerPacket;
+		}
+
+		/* Let the queue play the remaining packets */
+		Thread.sleep((long)(LatencySeconds * 1000) + 300);
+		final double seconds = (System.nanoTime() - t0) * 1e-9;
+		stop.set(true);
+		writer.join();
+		for (final Thread reader : readers)
+			reader.join();
+		queue.close();
+
+		final long played;
+		final long glitches;
+		synchronized(sink) {
+			played = sink.lastAudioFrame - sink.firstAudioFrame + 1;
+			glitches = sink.glitches;
+		}
+
+		System.out.printf("AudioOutputQueue contention: %d readers, %.1f M clock reads/s, %d frames played, %d glitches%n",
+			Readers, reads.get() / seconds / 1e6, played, glitches);
+
+		assertEquals("packets dropped", 0, dropped);
+		assertEquals("clock went backwards", 0, backwards.get());
+		assertEquals("glitches", 0, glitches);
+
+		/* All frames were played, give or take what the resampler absorbed */
+		assertTrue("played " + played + " frames", Math.abs(played - packets * FramesPerPacket) <= FramesPerPacket);
+	}
+}
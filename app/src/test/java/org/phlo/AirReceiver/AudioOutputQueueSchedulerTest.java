@@ -0,0 +1,239 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Checks how the {@link AudioOutputQueue}'s enqueuer thread schedules its
+ * writes: it fills the sink up to the target number of buffered frames, then
+ * parks until the sink drained to the low-water mark, half the target, and
+ * wakes up on its own in time to fill it up again
+ */
+public class AudioOutputQueueSchedulerTest {
+	private static final int SampleRate = 44100;
+	private static final int FramesPerPacket = 352;
+
+	/**
+	 * Sink buffer size, and therefore the target number of buffered frames
+	 */
+	private static final int TargetFrames = SampleRate / 10;
+	private static final int LowFrames = TargetFrames / 2;
+
+	private static final AudioFormat Format = new AudioFormat(SampleRate, 16, 2, true, false);
+
+	private static final AudioStreamInformationProvider StreamInfoProvider = new AudioStreamInformationProvider() {
+		@Override
+		public AudioFormat getAudioFormat() {
+			return Format;
+		}
+
+		@Override
+		public int getFramesPerPacket() {
+			return FramesPerPacket;
+		}
+
+		@Override
+		public double getPacketsPerSecond() {
+			return (double)SampleRate / FramesPerPacket;
+		}
+	};
+
+	/**
+	 * Non-blocking sink whose playback position only moves when told to
+	 */
+	private static final class ManualSink implements AudioSink {
+		volatile long position = 0;
+		volatile long framesWritten = 0;
+		volatile int writes = 0;
+
+		@Override
+		public void play() {
+		}
+
+		@Override
+		public boolean isPlaying() {
+			return true;
+		}
+
+		@Override
+		public int write(final byte[] samples, final int off, final int len) {
+			final int frames = (int)Math.min(len / Format.getFrameSize(), TargetFrames - (framesWritten - position));
+			if (frames <= 0)
+				return 0;
+			framesWritten += frames;
+			++writes;
+			return frames * Format.getFrameSize();
+		}
+
+		@Override
+		public boolean isNonBlocking() {
+			return true;
+		}
+
+		@Override
+		public int getBufferSizeFrames() {
+			return TargetFrames;
+		}
+
+		@Override
+		public long getPlaybackHeadPosition() {
+			return position;
+		}
+
+		@Override
+		public double getPositionJitterSeconds() {
+			return 0.0;
+		}
+
+		@Override
+		public void setVolume(final float volume) {
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	/**
+	 * Real-time sink recording the number of buffered frames left whenever
+	 * the enqueuer starts filling it up again, and how often it is polled
+	 */
+	private static final class RecordingSink extends NullAudioSink {
+		final List<Long> refillLevels = new ArrayList<Long>();
+		long positionQueries = 0;
+		long framesWritten = 0;
+
+		RecordingSink() {
+			super(Format, (double)TargetFrames / SampleRate, true);
+		}
+
+		@Override
+		public synchronized int write(final byte[] samples, final int off, final int len) {
+			/* Writes topping up a sink which is almost full are retries, not refills */
+			final long bufferedFrames = framesWritten - super.getPlaybackHeadPosition();
+			if ((framesWritten > 0) && (bufferedFrames < TargetFrames - FramesPerPacket))
+				refillLevels.add(bufferedFrames);
+
+			final int written = super.write(samples, off, len);
+			framesWritten += written / Format.getFrameSize();
+			return written;
+		}
+
+		@Override
+		public synchronized long getPlaybackHeadPosition() {
+			++positionQueries;
+			return super.getPlaybackHeadPosition();
+		}
+	}
+
+	/**
+	 * Waits until the given number of frames was written, for at most a second
+	 */
+	private static boolean await(final ManualSink sink, final long framesWritten) throws InterruptedException {
+		for (int i = 0; i < 1000 && sink.framesWritten != framesWritten; ++i)
+			Thread.sleep(1);
+		return sink.framesWritten == framesWritten;
+	}
+
+	@Test
+	public void fillsToTargetAndDrainsToLowWaterMark() throws InterruptedException {
+		Logger.getLogger("AudioOutputQueue").setLevel(Level.WARNING);
+
+		final ManualSink sink = new ManualSink();
+		final AudioOutputQueue queue = new AudioOutputQueue(StreamInfoProvider, sink, AudioChannel.STEREO);
+		queue.start();
+		try {
+			/* Fills the sink up to the target */
+			assertTrue("initial fill, wrote " + sink.framesWritten, await(sink, TargetFrames));
+
+			/* Nothing is written while the sink holds more than the low-water mark */
+			final int writes = sink.writes;
+			sink.position = TargetFrames - LowFrames - 1000;
+			Thread.sleep(100);
+			assertEquals(TargetFrames, sink.framesWritten);
+			assertEquals(writes, sink.writes);
+
+			/* Once drained to the low-water mark, the enqueuer wakes up by itself and refills */
+			sink.position = TargetFrames - LowFrames + 100;
+			assertTrue("refill, wrote " + sink.framesWritten, await(sink, sink.position + TargetFrames));
+
+			/* Again nothing until the low-water mark is reached */
+			final long position = sink.position;
+			sink.position = position + LowFrames - 100;
+			Thread.sleep(100);
+			assertEquals(position + TargetFrames, sink.framesWritten);
+			sink.position = position + LowFrames;
+			assertTrue("second refill, wrote " + sink.framesWritten, await(sink, position + LowFrames + TargetFrames));
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	@Test
+	public void wakesUpAtLowWaterMark() throws InterruptedException {
+		Logger.getLogger("AudioOutputQueue").setLevel(Level.WARNING);
+
+		final double runSeconds = 2.0;
+		final RecordingSink sink = new RecordingSink();
+		final AudioOutputQueue queue = new AudioOutputQueue(StreamInfoProvider, sink, AudioChannel.STEREO);
+		queue.start();
+		Thread.sleep((long)(runSeconds * 1000));
+		queue.close();
+
+		final List<Long> refillLevels;
+		final long positionQueries;
+		synchronized(sink) {
+			refillLevels = new ArrayList<Long>(sink.refillLevels);
+			positionQueries = sink.positionQueries;
+		}
+
+		long lowest = Long.MAX_VALUE;
+		long highest = Long.MIN_VALUE;
+		for (final long level : refillLevels) {
+			lowest = Math.min(lowest, level);
+			highest = Math.max(highest, level);
+		}
+		System.out.printf("AudioOutputQueue scheduler: %d refills in %.1f s at %d to %d buffered frames, %d position queries%n",
+			refillLevels.size(), runSeconds, lowest, highest, positionQueries);
+
+		/* One refill per half buffer played, give or take the start and end */
+		final int expectedRefills = (int)(runSeconds * SampleRate / (TargetFrames - LowFrames));
+		assertTrue("refills " + refillLevels.size(), Math.abs(refillLevels.size() - expectedRefills) <= 3);
+
+		/* The enqueuer wakes up once drained to the low-water mark, not earlier, and
+		 * not so late that the sink runs dry. Allows for 20ms of scheduling latency
+		 */
+		for (final long level : refillLevels) {
+			assertTrue("refilled at " + level + " frames", level <= LowFrames);
+			assertTrue("refilled late, at " + level + " frames", level >= LowFrames - SampleRate / 50);
+		}
+
+		/* It parks instead of polling the sink */
+		assertTrue("position queries " + positionQueries, positionQueries < 20 * (refillLevels.size() + 2));
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Plays one stream in real time on two receivers in tight synchronization mode,
+ * like the two halves of a stereo pair, and measures the skew between them.
+ * <p>
+ * Each receiver runs an {@link AudioOutputQueue} on a {@link NullAudioSink}
+ * whose clock drifts from the sender's, and a {@link RaopRtpTimingHandler}
+ * which is fed simulated timing responses and sync packets. Every frame
+ * carries its own frame time, so the sinks record which frame each
+ * receiver plays when.
+ */
+public class AudioOutputQueueTightSyncTest {
+	private static final int SampleRate = 44100;
+	private static final int FramesPerPacket = 352;
+	private static final double LatencySeconds = 0.5;
+	private static final double RemoteOffsetSeconds = 1000.0;
+	private static final long StartFrameTime = 1L << 20;
+
+	/**
+	 * Sample rates of the two receivers' devices, i.e. +/-45ppm
+	 */
+	private static final int[] DeviceSampleRates = { 44102, 44098 };
+
+	/**
+	 * Time the sender takes to answer a timing request
+	 */
+	private static final double ProcessingSeconds = 0.0001;
+
+	/**
+	 * Seconds the receivers synchronize before the stream starts, seconds until
+	 * the stream ends, and seconds until the skew is measured. Until the clock
+	 * offset filters have seen enough exchanges to estimate the drift, the
+	 * receivers are hundreds of microseconds apart
+	 */
+	private static final double SyncSeconds = 1.0;
+	private static final double StreamSeconds = 45.0;
+	private static final double SettleSeconds = 20.0;
+
+	/**
+	 * Underruns longer than this in total mean that the machine starved the
+	 * receivers. The queue then takes seconds to catch up, so the skew
+	 * measured says nothing about the synchronization
+	 */
+	private static final int UnderrunFramesMax = 44;
+
+	/**
+	 * Every this many played frames, the sinks record the frame and its play time
+	 */
+	private static final int RecordFrames = 50;
+
+	private static final AudioFormat Format = new AudioFormat(SampleRate, 16, 2, true, false);
+
+	private final long m_startNanoTime = System.nanoTime();
+
+	/**
+	 * Returns the sender's time, relative to the start of the test
+	 *
+	 * @return seconds time
+	 */
+	private double getSecondsTime() {
+		return (System.nanoTime() - m_startNanoTime) * 1e-9;
+	}
+
+	/**
+	 * Sink recording which frame is played when. The left channel carries the
+	 * frame time's upper bits, the right one its lower 15 bits.
+	 * <p>
+	 * The simulated device plays the n-th frame written at its start time plus
+	 * n over its sample rate, as long as it doesn't underrun. Underruns are
+	 * detected by the playback position lagging, and move the start time.
+	 * Before the stream starts, the device underruns. Later on, underruns
+	 * mean the queue's thread was starved, and the sink adds them up.
+	 */
+	private final class RecordingSink extends NullAudioSink {
+		private final double m_sampleRate;
+		private final double[] m_secondsTimes = new double[(int)(StreamSeconds * SampleRate / RecordFrames) + 1024];
+		private final long[] m_frameTimes = new long[m_secondsTimes.length];
+		private int m_records = 0;
+		private double m_playSecondsTime = Double.NaN;
+		private long m_frames = 0;
+		private long m_underrunFrames = 0;
+
+		RecordingSink(final int sampleRate) {
+			super(new AudioFormat(sampleRate, 16, 2, true, false), 0.05, true);
+			m_sampleRate = sampleRate;
+		}
+
+		@Override
+		public synchronized void play() {
+			super.play();
+			m_playSecondsTime = getSecondsTime();
+		}
+
+		@Override
+		protected void consume(final byte[] samples, final int off, final int len) {
+			final long position = getPlaybackHeadPosition();
+			final double secondsTime = getSecondsTime();
+			final long lagFrames = (long)((secondsTime - m_playSecondsTime) * m_sampleRate) - position;
+			if (lagFrames > 1) {
+				if (secondsTime > SyncSeconds + LatencySeconds)
+					m_underrunFrames += lagFrames;
+				m_playSecondsTime = secondsTime - position / m_sampleRate;
+			}
+
+			for (int i = off; i < off + len; i += 4, ++m_frames) {
+				if ((m_frames % RecordFrames) != 0)
+					continue;
+				final int left = (samples[i] & 0xff) | (samples[i + 1] << 8);
+				final int right = (samples[i + 2] & 0xff) | (samples[i + 3] << 8);
+				if ((left == 0 && right == 0) || (m_records == m_frameTimes.length))
+					continue;
+
+				m_secondsTimes[m_records] = m_playSecondsTime + m_frames / m_sampleRate;
+				m_frameTimes[m_records] = ((long)left << 15) | right;
+				++m_records;
+			}
+		}
+
+		/**
+		 * Returns the frame time played at the given time, interpolated between the
+		 * recorded frames, or NaN where nothing or a discontinuity was recorded
+		 *
+		 * @param secondsTime sender's time
+		 * @return frame time
+		 */
+		synchronized double getFrameTime(final double secondsTime) {
+			int lo = 0, hi = m_records - 1;
+			if (hi < 1 || m_secondsTimes[lo] > secondsTime || m_secondsTimes[hi] < secondsTime)
+				return Double.NaN;
+			while (hi - lo > 1) {
+				final int mid = (lo + hi) >>> 1;
+				if (m_secondsTimes[mid] <= secondsTime)
+					lo = mid;
+				else
+					hi = mid;
+			}
+
+			final double frames = m_frameTimes[hi] - m_frameTimes[lo];
+			final double seconds = m_secondsTimes[hi] - m_secondsTimes[lo];
+			if (Math.abs(frames - seconds * SampleRate) > 3)
+				return Double.NaN;
+			return m_frameTimes[lo] + frames * (secondsTime - m_secondsTimes[lo]) / seconds;
+		}
+
+		/**
+		 * Returns the total length of the underruns since the stream started
+		 */
+		synchronized long getUnderrunFrames() {
+			return m_underrunFrames;
+		}
+	}
+
+	/**
+	 * Packet received from the sender, as passed to the timing handler
+	 */
+	private static final class ReceivedEvent implements MessageEvent {
+		private final Object m_message;
+
+		ReceivedEvent(final Object message) {
+			m_message = message;
+		}
+
+		@Override
+		public Object getMessage() {
+			return m_message;
+		}
+
+		@Override
+		public SocketAddress getRemoteAddress() {
+			return null;
+		}
+
+		@Override
+		public Channel getChannel() {
+			return null;
+		}
+
+		@Override
+		public ChannelFuture getFuture() {
+			return null;
+		}
+	}
+
+	private final class Receiver {
+		final RecordingSink sink;
+		final AudioOutputQueue queue;
+		final RaopRtpTimingHandler timingHandler;
+		final PcmPacketPool pool = new PcmPacketPool(FramesPerPacket * Format.getFrameSize(), 256);
+
+		Receiver(final int deviceSampleRate) {
+			final AudioStreamInformationProvider streamInfoProvider = new AudioStreamInformationProvider() {
+				@Override
+				public AudioFormat getAudioFormat() {
+					return Format;
+				}
+
+				@Override
+				public int getFramesPerPacket() {
+					return FramesPerPacket;
+				}
+
+				@Override
+				public double getPacketsPerSecond() {
+					return (double)SampleRate / FramesPerPacket;
+				}
+			};
+
+			sink = new RecordingSink(deviceSampleRate);
+			queue = new AudioOutputQueue(streamInfoProvider, sink, AudioChannel.STEREO, null, true);
+			queue.setGain(1.0f);
+			queue.start();
+			timingHandler = new RaopRtpTimingHandler(queue, true);
+		}
+
+		/**
+		 * Performs a timing exchange like the timing handler's requester thread,
+		 * waiting until the simulated response arrives
+		 */
+		void exchange(final SimulatedNetwork network, final Random random) throws Exception {
+			final double requestDelay = network.nextDelay(random);
+			final double responseDelay = network.nextDelay(random);
+
+			final RaopRtpPacket.TimingResponse response = new RaopRtpPacket.TimingResponse();
+			response.getReferenceTime().setDouble(queue.getNowSecondsTime());
+			final double secondsTime = getSecondsTime();
+			response.getReceivedTime().setDouble(secondsTime + requestDelay + RemoteOffsetSeconds);
+			response.getSendTime().setDouble(secondsTime + requestDelay + ProcessingSeconds + RemoteOffsetSeconds);
+
+			final double arrivalSecondsTime = secondsTime + requestDelay + ProcessingSeconds + responseDelay;
+			LockSupport.parkNanos((long)((arrivalSecondsTime - getSecondsTime()) * 1e9));
+			timingHandler.messageReceived(null, new ReceivedEvent(response));
+		}
+	}
+
+	/**
+	 * Streams to two receivers over the given network
+	 *
+	 * @return RMS skew between the receivers in seconds, its maximum, and the
+	 *         mean error of the first receiver relative to the sender's schedule
+	 */
+	private double[] stream(final SimulatedNetwork network) throws Exception {
+		Logger.getLogger("AudioOutputQueue").setLevel(Level.WARNING);
+		Logger.getLogger("RaopRtpTimingHandler").setLevel(Level.SEVERE);
+
+		final Receiver[] receivers = new Receiver[DeviceSampleRates.length];
+		for (int r = 0; r < receivers.length; ++r)
+			receivers[r] = new Receiver(DeviceSampleRates[r]);
+		final Random random = new Random(25);
+
+		/* Timing exchanges, and the sync packets the sender sends once a second */
+		final Thread timing = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					double nextSync = getSecondsTime();
+					while (!Thread.currentThread().isInterrupted()) {
+						for (final Receiver receiver : receivers)
+							receiver.exchange(network, random);
+
+						final double secondsTime = getSecondsTime();
+						if (secondsTime >= nextSync) {
+							final RaopRtpPacket.Sync sync = new RaopRtpPacket.Sync();
+							sync.setTimeStampMinusLatency(StartFrameTime + Math.round((secondsTime - LatencySeconds) * SampleRate));
+							sync.getTime().setDouble(secondsTime + RemoteOffsetSeconds);
+							LockSupport.parkNanos((long)(network.nextDelay(random) * 1e9));
+							for (final Receiver receiver : receivers)
+								receiver.timingHandler.messageReceived(null, new ReceivedEvent(sync));
+							nextSync += 1.0;
+						}
+
+						Thread.sleep(RaopRtpTimingHandler.TimeRequestIntervalTightSync);
+					}
+				}
+				catch (final InterruptedException e) {
+					/* Done */
+				}
+				catch (final Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		timing.start();
+
+		/* Let the receivers synchronize before streaming */
+		Thread.sleep((long)(SyncSeconds * 1000));
+
+		/* Sender, which sends each packet once its frame time is due */
+		long frameTime = StartFrameTime + Math.round(getSecondsTime() * SampleRate) + FramesPerPacket;
+		while (getSecondsTime() < StreamSeconds) {
+			while ((frameTime - StartFrameTime) <= getSecondsTime() * SampleRate) {
+				for (final Receiver receiver : receivers) {
+					final PcmPacket packet = receiver.pool.acquire();
+					final byte[] samples = packet.getBuffer().array();
+					for (int i = 0; i < FramesPerPacket; ++i) {
+						final long frame = frameTime + i;
+						final int left = (int)(frame >> 15);
+						final int right = (int)(frame & 0x7fff);
+						samples[4 * i] = (byte)left;
+						samples[4 * i + 1] = (byte)(left >> 8);
+						samples[4 * i + 2] = (byte)right;
+						samples[4 * i + 3] = (byte)(right >> 8);
+					}
+					packet.setFrameTime(frameTime);
+					receiver.queue.enqueue(packet);
+				}
+				frameTime += FramesPerPacket;
+			}
+			LockSupport.parkNanos(1000000);
+		}
+
+		timing.interrupt();
+		timing.join();
+		Thread.sleep((long)(LatencySeconds * 1000) + 300);
+		for (final Receiver receiver : receivers)
+			receiver.queue.close();
+
+		final long underrunFrames = receivers[0].sink.getUnderrunFrames() + receivers[1].sink.getUnderrunFrames();
+		if (underrunFrames > UnderrunFramesMax)
+			System.out.printf("Tight sync %s: receivers starved, underruns of %d frames in total%n", network, underrunFrames);
+		Assume.assumeTrue(underrunFrames <= UnderrunFramesMax);
+
+		/* Compare the frames played once a millisecond */
+		double sumSquares = 0, max = 0, sumError = 0;
+		long count = 0;
+		for (double t = SettleSeconds; t < StreamSeconds; t += 0.001) {
+			final double frameTimeA = receivers[0].sink.getFrameTime(t);
+			final double frameTimeB = receivers[1].sink.getFrameTime(t);
+			if (Double.isNaN(frameTimeA) || Double.isNaN(frameTimeB))
+				continue;
+
+			final double skew = (frameTimeA - frameTimeB) / SampleRate;
+			sumSquares += skew * skew;
+			max = Math.max(max, Math.abs(skew));
+			sumError += (frameTimeA - (StartFrameTime + (t - LatencySeconds) * SampleRate)) / SampleRate;
+			++count;
+		}
+		assertTrue("too few frames compared: " + count, count > (StreamSeconds - SettleSeconds) * 900);
+
+		return new double[] { Math.sqrt(sumSquares / count), max, sumError / count };
+	}
+
+	private void checkSkew(final SimulatedNetwork network, final double maxRmsSkewSeconds) throws Exception {
+		final double[] skew = stream(network);
+		System.out.printf("Tight sync %s, %d and %d Hz devices: skew between receivers %.1f us RMS, %.1f us max, first receiver %.1f us late on average%n",
+			network, DeviceSampleRates[0], DeviceSampleRates[1], skew[0] * 1e6, skew[1] * 1e6, skew[2] * 1e6);
+
+		assertTrue(network + " RMS skew " + skew[0], skew[0] < maxRmsSkewSeconds);
+	}
+
+	@Test
+	public void keepsReceiversInSyncOnLan() throws Exception {
+		checkSkew(SimulatedNetwork.Lan, 50e-6);
+	}
+
+	@Test
+	public void keepsReceiversInSyncOnWifi() throws Exception {
+		checkSkew(SimulatedNetwork.Wifi, 100e-6);
+	}
+}
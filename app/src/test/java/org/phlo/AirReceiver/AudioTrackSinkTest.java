@@ -0,0 +1,213 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import android.media.AudioTrack;
+
+/**
+ * Writes to an {@link AudioTrackSink} without blocking, on a fake track
+ * which accepts a limited number of bytes, and checks the samples converted
+ * into the direct buffer, the handling of partial writes and the number of
+ * frames the sink accounts as written
+ */
+public class AudioTrackSinkTest {
+	private static final int FramesPerPacket = 352;
+
+	private static final AudioFormat Format16 = new AudioFormat(44100, 16, 2, false, false);
+	private static final AudioFormat Format24 = new AudioFormat(44100, 24, 2, false, false);
+
+	/**
+	 * Audio track accepting non-blocking writes of direct buffers
+	 * until its buffer is full, and recording the accepted bytes
+	 */
+	private static final class FakeTrack extends AudioTrack {
+		final ByteArrayOutputStream accepted = new ByteArrayOutputStream();
+		final int bytesPerFrame;
+		int availableBytes = Integer.MAX_VALUE;
+		int writes = 0;
+
+		/**
+		 * Error returned by writes after the given number of successful ones, unless zero
+		 */
+		int error = 0;
+		int writesBeforeError = 0;
+
+		FakeTrack(final int bytesPerFrame) {
+			super(3, 44100, 12, 2, 8192, AudioTrack.MODE_STREAM);
+			this.bytesPerFrame = bytesPerFrame;
+		}
+
+		@Override
+		public int write(final ByteBuffer buffer, final int size, final int mode) {
+			assertEquals(AudioTrack.WRITE_NON_BLOCKING, mode);
+			assertTrue(buffer.isDirect());
+			assertEquals(size, buffer.remaining());
+			if ((error != 0) && (writes >= writesBeforeError))
+				return error;
+			++writes;
+
+			/* Like the track, accepts whole frames only */
+			final int length = Math.min(size, availableBytes - availableBytes % bytesPerFrame);
+			final byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			accepted.write(bytes, 0, length);
+			availableBytes -= length;
+			return length;
+		}
+
+		@Override
+		public int write(final byte[] samples, final int off, final int len) {
+			fail("blocking write");
+			return 0;
+		}
+
+		@Override
+		public int write(final float[] samples, final int off, final int len, final int mode) {
+			fail("blocking write");
+			return 0;
+		}
+	}
+
+	private static byte[] samples(final int frames, final int bytesPerFrame) {
+		final byte[] samples = new byte[frames * bytesPerFrame];
+		for (int i = 0; i < samples.length; ++i)
+			samples[i] = (byte)(i * 7 + 1);
+		return samples;
+	}
+
+	private static AudioTrackSink sink(final AudioFormat format, final FakeTrack track) {
+		Logger.getLogger("AudioTrackSink").setLevel(Level.WARNING);
+		final AudioTrackSink sink = new AudioTrackSink(format, FramesPerPacket, track, 8192, true);
+		assertTrue(sink.isNonBlocking());
+		return sink;
+	}
+
+	@Test
+	public void writesPacketByPacket() {
+		final FakeTrack track = new FakeTrack(4);
+		final AudioTrackSink sink = sink(Format16, track);
+
+		/* More than fits into the direct buffer at once, at an offset */
+		final int frames = 3 * FramesPerPacket + 100;
+		final byte[] samples = samples(frames + 10, 4);
+		assertEquals(frames * 4, sink.write(samples, 40, frames * 4));
+		assertEquals(4, track.writes);
+		assertEquals(frames, sink.getFramesWritten());
+
+		final byte[] expected = new byte[frames * 4];
+		System.arraycopy(samples, 40, expected, 0, expected.length);
+		assertArrayEquals(expected, track.accepted.toByteArray());
+	}
+
+	@Test
+	public void stopsAtPartialAccept() {
+		final FakeTrack track = new FakeTrack(4);
+		final AudioTrackSink sink = sink(Format16, track);
+		final byte[] samples = samples(3 * FramesPerPacket, 4);
+
+		/* The track accepts the first packet and part of the second, then nothing */
+		track.availableBytes = (FramesPerPacket + 10) * 4;
+		assertEquals((FramesPerPacket + 10) * 4, sink.write(samples, 0, samples.length));
+		assertEquals(2, track.writes);
+		assertEquals(FramesPerPacket + 10, sink.getFramesWritten());
+
+		assertEquals(0, sink.write(samples, (FramesPerPacket + 10) * 4, samples.length - (FramesPerPacket + 10) * 4));
+		assertEquals(FramesPerPacket + 10, sink.getFramesWritten());
+
+		/* The retry converts the remaining samples again */
+		track.availableBytes = Integer.MAX_VALUE;
+		assertEquals(samples.length - (FramesPerPacket + 10) * 4, sink.write(samples, (FramesPerPacket + 10) * 4, samples.length - (FramesPerPacket + 10) * 4));
+		assertEquals(3 * FramesPerPacket, sink.getFramesWritten());
+		assertArrayEquals(samples, track.accepted.toByteArray());
+	}
+
+	@Test
+	public void ignoresPartialFrames() {
+		final FakeTrack track = new FakeTrack(4);
+		final AudioTrackSink sink = sink(Format16, track);
+
+		assertEquals(0, sink.write(samples(1, 4), 0, 3));
+		assertEquals(0, track.writes);
+		assertEquals(8, sink.write(samples(3, 4), 0, 10));
+		assertEquals(2, sink.getFramesWritten());
+	}
+
+	@Test
+	public void reportsErrorsUnlessFramesWereWritten() {
+		final FakeTrack track = new FakeTrack(4);
+		final AudioTrackSink sink = sink(Format16, track);
+		final byte[] samples = samples(2 * FramesPerPacket, 4);
+
+		track.error = AudioTrack.ERROR_INVALID_OPERATION;
+		assertEquals(AudioTrack.ERROR_INVALID_OPERATION, sink.write(samples, 0, samples.length));
+		assertEquals(0, sink.getFramesWritten());
+
+		/* An error after the first packet reports the packet written */
+		track.writesBeforeError = 1;
+		assertEquals(FramesPerPacket * 4, sink.write(samples, 0, samples.length));
+		assertEquals(FramesPerPacket, sink.getFramesWritten());
+		assertEquals(1, track.writes);
+	}
+
+	@Test
+	public void convertsPacked24BitSamplesToFloat() {
+		final FakeTrack track = new FakeTrack(8);
+		final AudioTrackSink sink = sink(Format24, track);
+
+		/* Full scale, negative full scale, one and minus one */
+		final byte[] samples = {
+			(byte)0xff, (byte)0xff, (byte)0x7f, (byte)0x00, (byte)0x00, (byte)0x80,
+			(byte)0x01, (byte)0x00, (byte)0x00, (byte)0xff, (byte)0xff, (byte)0xff,
+		};
+		assertEquals(samples.length, sink.write(samples, 0, samples.length));
+		assertEquals(2, sink.getFramesWritten());
+
+		final ByteBuffer floats = ByteBuffer.wrap(track.accepted.toByteArray()).order(ByteOrder.nativeOrder());
+		assertEquals(16, floats.remaining());
+		assertEquals((float)0x7fffff / 0x800000, floats.getFloat(), 0.0f);
+		assertEquals(-1.0f, floats.getFloat(), 0.0f);
+		assertEquals(1.0f / 0x800000, floats.getFloat(), 0.0f);
+		assertEquals(-1.0f / 0x800000, floats.getFloat(), 0.0f);
+	}
+
+	@Test
+	public void accountsSourceBytesOfPartial24BitWrites() {
+		final FakeTrack track = new FakeTrack(8);
+		final AudioTrackSink sink = sink(Format24, track);
+		final byte[] samples = samples(2 * FramesPerPacket, 6);
+
+		/* The track counts float bytes, the sink reports packed 24-bit bytes */
+		track.availableBytes = 100 * 8;
+		assertEquals(100 * 6, sink.write(samples, 0, samples.length));
+		assertEquals(100, sink.getFramesWritten());
+		assertEquals(1, track.writes);
+	}
+}
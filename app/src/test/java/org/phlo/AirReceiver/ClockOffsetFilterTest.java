@@ -0,0 +1,142 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Feeds {@link ClockOffsetFilter}s with simulated timing exchanges, at the rate
+ * {@link RaopRtpTimingHandler} sends them in tight synchronization mode, and
+ * measures how far apart the offsets estimated by two receivers are
+ */
+public class ClockOffsetFilterTest {
+	/**
+	 * Drift of the two receivers' clocks relative to the sender's, like two
+	 * crystals at the opposite ends of their tolerance
+	 */
+	private static final double[] Drifts = { 45e-6, -45e-6 };
+
+	private static final double RemoteOffsetSeconds = 1000.0;
+
+	/**
+	 * Time the sender takes to answer a timing request
+	 */
+	private static final double ProcessingSeconds = 0.0001;
+
+	private static final double IntervalSeconds = RaopRtpTimingHandler.TimeRequestIntervalTightSync / 1000.0;
+
+	/**
+	 * Simulates a timing exchange starting at the given sender time, and adds it to the filter
+	 * like {@link RaopRtpTimingHandler} does
+	 */
+	private static void exchange(final ClockOffsetFilter filter, final double drift, final double secondsTime, final double requestDelay, final double responseDelay) {
+		final double referenceTime = secondsTime * (1 + drift);
+		final double receivedTime = secondsTime + requestDelay + RemoteOffsetSeconds;
+		final double sendTime = receivedTime + ProcessingSeconds;
+		final double localReceiveSecondsTime = (secondsTime + requestDelay + ProcessingSeconds + responseDelay) * (1 + drift);
+
+		final double localSecondsTime = (localReceiveSecondsTime + referenceTime) * 0.5;
+		final double remoteSecondsTime = (receivedTime + sendTime) * 0.5;
+		final double transmissionTime = Math.max((localReceiveSecondsTime - referenceTime) - (sendTime - receivedTime), 0);
+		filter.add(localSecondsTime, remoteSecondsTime - localSecondsTime, transmissionTime);
+	}
+
+	/**
+	 * Returns the error of the filter's estimate at the given sender time
+	 */
+	private static double error(final ClockOffsetFilter filter, final double drift, final double secondsTime) {
+		final double localSecondsTime = secondsTime * (1 + drift);
+		return filter.get(localSecondsTime) - (secondsTime + RemoteOffsetSeconds - localSecondsTime);
+	}
+
+	@Test
+	public void followsDrift() {
+		final ClockOffsetFilter filter = new ClockOffsetFilter();
+		assertTrue(filter.isEmpty());
+
+		for (double t = 0; t < 30; t += IntervalSeconds)
+			exchange(filter, 100e-6, t, 0.001, 0.001);
+
+		assertEquals(-100e-6 / (1 + 100e-6), filter.getDrift(), 1e-9);
+		assertEquals(0.0, error(filter, 100e-6, 30.0), 1e-7);
+		assertEquals(0.0, error(filter, 100e-6, 40.0), 1e-7);
+	}
+
+	@Test
+	public void ignoresDelayedExchanges() {
+		final ClockOffsetFilter filter = new ClockOffsetFilter();
+		for (double t = 0; t < 30; t += IntervalSeconds)
+			exchange(filter, 0.0, t, 0.001, ((int)(t / IntervalSeconds) % 4 == 0) ? 0.021 : 0.001);
+
+		/* An asymmetric 20ms delay biases these exchanges by 10ms */
+		assertEquals(0.0, error(filter, 0.0, 30.0), 1e-3 / 4);
+	}
+
+	/**
+	 * Returns the RMS of the difference between the offsets estimated by
+	 * two receivers, over two minutes of steady state, for several seeds
+	 *
+	 * @return RMS skew in seconds, and the maximum
+	 */
+	private static double[] skew(final SimulatedNetwork network) {
+		final double settleSeconds = 30.0;
+		final double streamSeconds = 150.0;
+		double sumSquares = 0, max = 0;
+		long count = 0;
+
+		for (int seed = 0; seed < 5; ++seed) {
+			final Random random = new Random(seed);
+			final ClockOffsetFilter[] filters = { new ClockOffsetFilter(), new ClockOffsetFilter() };
+
+			double nextExchange = 0;
+			for (int ms = 0; ms < streamSeconds * 1000; ++ms) {
+				final double t = ms / 1000.0;
+				if (t >= nextExchange) {
+					nextExchange += IntervalSeconds;
+					for (int r = 0; r < filters.length; ++r)
+						exchange(filters[r], Drifts[r], t, network.nextDelay(random), network.nextDelay(random));
+				}
+
+				if (t < settleSeconds)
+					continue;
+				final double skew = error(filters[0], Drifts[0], t) - error(filters[1], Drifts[1], t);
+				sumSquares += skew * skew;
+				max = Math.max(max, Math.abs(skew));
+				++count;
+			}
+		}
+
+		return new double[] { Math.sqrt(sumSquares / count), max };
+	}
+
+	@Test
+	public void boundsSkew() {
+		for (final SimulatedNetwork network : SimulatedNetwork.values()) {
+			final double[] skew = skew(network);
+			System.out.printf("ClockOffsetFilter %s, exchanges every %.0f ms: skew between receivers %.1f us RMS, %.1f us max%n",
+				network, IntervalSeconds * 1000, skew[0] * 1e6, skew[1] * 1e6);
+
+			assertTrue(network + " RMS skew " + skew[0], skew[0] < ((network == SimulatedNetwork.Lan) ? 20e-6 : 80e-6));
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Measures the quality of {@link DriftResampler} on a sine, at the ratios
+ * the audio output queue uses, and benchmarks its throughput
+ */
+public class DriftResamplerTest {
+	private static final int SampleRate = 44100;
+	private static final int FramesPerPacket = 352;
+	private static final double MaxRatio = 1.0005;
+
+	/**
+	 * Frames at the start of the output not measured, since
+	 * they are interpolated from the silence before the stream
+	 */
+	private static final int SettleFrames = 8;
+
+	/**
+	 * Returns a stereo sine of the given frequency and amplitude, relative to full scale.
+	 * The right channel is shifted by a quarter period
+	 */
+	private static byte[] sine(final int bits, final int frames, final double frequency, final double amplitude) {
+		final int bytesPerSample = bits / 8;
+		final double scale = amplitude * ((1 << (bits - 1)) - 1);
+		final byte[] samples = new byte[frames * 2 * bytesPerSample];
+		for (int i = 0, o = 0; i < frames; ++i) {
+			for (int c = 0; c < 2; ++c) {
+				final int s = (int)Math.round(scale * Math.sin(2 * Math.PI * frequency * i / SampleRate + c * Math.PI / 2));
+				samples[o++] = (byte)s;
+				samples[o++] = (byte)(s >> 8);
+				if (bytesPerSample == 3)
+					samples[o++] = (byte)(s >> 16);
+			}
+		}
+		return samples;
+	}
+
+	private static int sample(final byte[] b, final int i, final int bytesPerSample) {
+		return (bytesPerSample == 2)
+			? (b[i] & 0xff) | (b[i + 1] << 8)
+			: (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | (b[i + 2] << 16);
+	}
+
+	/**
+	 * Resamples a sine packet by packet, cycling through the given ratios, and
+	 * returns the signal to noise ratio of the output relative to the ideal sine
+	 * at the positions the output frames were interpolated at
+	 *
+	 * @return SNR in dB
+	 */
+	private static double snr(final int bits, final double frequency, final double[] ratios) {
+		final int bytesPerSample = bits / 8;
+		final int bytesPerFrame = 2 * bytesPerSample;
+		final int packets = 500;
+		final double amplitude = 0.5;
+		final double scale = amplitude * ((1 << (bits - 1)) - 1);
+		final byte[] samples = sine(bits, packets * FramesPerPacket, frequency, amplitude);
+		final DriftResampler resampler = new DriftResampler(new AudioFormat(SampleRate, bits, 2, true, false), FramesPerPacket, MaxRatio);
+
+		/* Input frame the next output frame is interpolated at. The output lags by the resampler's delay */
+		double position = -resampler.getDelayFrames();
+		long outputFrames = 0;
+		double signal = 0, noise = 0;
+		for (int p = 0; p < packets; ++p) {
+			final double ratio = ratios[p % ratios.length];
+			final int frames = resampler.process(samples, p * FramesPerPacket * bytesPerFrame, FramesPerPacket, ratio);
+			final byte[] output = resampler.getOutput();
+			for (int i = 0; i < frames; ++i, ++outputFrames, position += 1.0 / ratio) {
+				if (outputFrames < SettleFrames)
+					continue;
+				for (int c = 0; c < 2; ++c) {
+					final double expected = scale * Math.sin(2 * Math.PI * frequency * position / SampleRate + c * Math.PI / 2);
+					final double error = sample(output, i * bytesPerFrame + c * bytesPerSample, bytesPerSample) - expected;
+					signal += expected * expected;
+					noise += error * error;
+				}
+			}
+		}
+		return 10 * Math.log10(signal / noise);
+	}
+
+	@Test
+	public void passesThroughAtUnityRatio() {
+		for (final int bits : new int[] { 16, 24 }) {
+			final int bytesPerFrame = 2 * bits / 8;
+			final int packets = 20;
+			final byte[] samples = sine(bits, packets * FramesPerPacket, 1000, 0.9);
+			final DriftResampler resampler = new DriftResampler(new AudioFormat(SampleRate, bits, 2, true, false), FramesPerPacket, MaxRatio);
+			assertEquals(2.0, resampler.getDelayFrames(), 0.0);
+
+			final byte[] output = new byte[samples.length];
+			for (int p = 0; p < packets; ++p) {
+				final int frames = resampler.process(samples, p * FramesPerPacket * bytesPerFrame, FramesPerPacket, 1.0);
+				assertEquals(FramesPerPacket, frames);
+				System.arraycopy(resampler.getOutput(), 0, output, p * FramesPerPacket * bytesPerFrame, frames * bytesPerFrame);
+			}
+
+			/* The output lags by two frames, the first two are silence */
+			for (int i = 0; i < 2 * bytesPerFrame; ++i)
+				assertEquals(bits + " bit byte " + i, 0, output[i]);
+			for (int i = 2 * bytesPerFrame; i < output.length; ++i)
+				assertEquals(bits + " bit byte " + i, samples[i - 2 * bytesPerFrame], output[i]);
+		}
+	}
+
+	@Test
+	public void resamplesWithHighSnr() {
+		final double[][] ratioSets = {
+			{ 1.0 + 200e-6 },
+			{ 1.0 - 200e-6 },
+			{ 1.0 + 500e-6, 1.0 - 500e-6, 1.0 + 100e-6, 1.0 },
+		};
+		final String[] ratioNames = { "1+200ppm", "1-200ppm", "1+-500ppm" };
+
+		for (final int bits : new int[] { 16, 24 }) {
+			for (final double frequency : new double[] { 1000, 5000 }) {
+				final StringBuilder results = new StringBuilder();
+				for (int r = 0; r < ratioSets.length; ++r) {
+					final double snr = snr(bits, frequency, ratioSets[r]);
+					results.append(String.format(" %s %.1f dB", ratioNames[r], snr));
+
+					/* The cubic interpolation's error grows with the fourth power of the frequency */
+					assertTrue(bits + " bit " + frequency + " Hz " + ratioNames[r] + ": " + snr + " dB", snr > ((frequency <= 1000) ? 80 : 40));
+				}
+				System.out.printf("DriftResampler SNR, %d bit %.0f Hz sine at -6 dBFS:%s%n", bits, frequency, results);
+			}
+		}
+	}
+
+	@Test
+	public void benchmarkThroughput() {
+		for (final int bits : new int[] { 16, 24 }) {
+			final int bytesPerFrame = 2 * bits / 8;
+			final int packets = 500;
+			final byte[] samples = sine(bits, packets * FramesPerPacket, 1000, 0.5);
+			final DriftResampler resampler = new DriftResampler(new AudioFormat(SampleRate, bits, 2, true, false), FramesPerPacket, MaxRatio);
+
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < 40; ++round) {
+				final long t0 = System.nanoTime();
+				for (int p = 0; p < packets; ++p)
+					resampler.process(samples, p * FramesPerPacket * bytesPerFrame, FramesPerPacket, ((p & 1) == 0) ? 1.0002 : 0.9998);
+				best = Math.min(best, System.nanoTime() - t0);
+			}
+
+			final double framesPerSecond = packets * FramesPerPacket / (best * 1e-9);
+			System.out.printf("DriftResampler %d bit stereo: %.1f Mframes/s, %.0fx realtime at %d Hz, %.2f us per packet%n",
+				bits, framesPerSecond / 1e6, framesPerSecond / SampleRate, SampleRate, best / 1e3 / packets);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.FloatControl;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * {@link AudioSink} which plays through a javax.sound {@link SourceDataLine},
+ * for running the {@link AudioOutputQueue} and {@link RaopAudioHandler} on a
+ * desktop JVM. Android lacks javax.sound, which is why this sink lives next
+ * to the tests instead of the app's sources.
+ * <p>
+ * The playback position is the line's frame position, which most mixers
+ * advance in steps of their period, hence the jitter is unknown.
+ */
+public class JavaSoundAudioSink implements AudioSink {
+	private static Logger s_logger = Logger.getLogger("JavaSoundAudioSink");
+
+	/**
+	 * Creates sinks playing through the default mixer. Falls back to a
+	 * {@link NullAudioSink} if the mixer can't play the format
+	 */
+	public static final AudioSinkFactory Factory = new AudioSinkFactory() {
+		@Override
+		public int getMaxBitsPerSample() {
+			return isSupported(new AudioFormat(44100, 24, 2, false, false)) ? 24 : 16;
+		}
+
+		@Override
+		public AudioSink create(final AudioFormat format, final int framesPerPacket, final int streamType, final double bufferSeconds, final boolean nonBlocking) {
+			try {
+				return new JavaSoundAudioSink(format, bufferSeconds, nonBlocking);
+			}
+			catch (final LineUnavailableException e) {
+				s_logger.log(Level.WARNING, "No audio line available, discarding audio", e);
+				return new NullAudioSink(format, bufferSeconds, nonBlocking);
+			}
+		}
+	};
+
+	private final SourceDataLine m_line;
+
+	private final int m_bytesPerFrame;
+
+	/**
+	 * Whether writes return once the line's buffer is full
+	 */
+	private final boolean m_nonBlocking;
+
+	/**
+	 * The line's gain control, null if it has none
+	 */
+	private final FloatControl m_gain;
+
+	/**
+	 * Returns the javax.sound format of the signed little endian PCM the pipeline produces
+	 *
+	 * @param format format of the samples written to the sink
+	 * @return javax.sound format
+	 */
+	static javax.sound.sampled.AudioFormat toJavaSoundFormat(final AudioFormat format) {
+		return new javax.sound.sampled.AudioFormat(
+			format.getSampleRate(),
+			format.getSampleSizeInBits(),
+			format.getChannels(),
+			true /* signed */,
+			false /* little endian */
+		);
+	}
+
+	/**
+	 * Returns whether the default mixer can play the given format
+	 *
+	 * @param format format of the samples
+	 * @return true if supported
+	 */
+	public static boolean isSupported(final AudioFormat format) {
+		return AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, toJavaSoundFormat(format)));
+	}
+
+	/**
+	 * Creates a sink playing through the default mixer
+	 *
+	 * @param format format of the samples written to the sink
+	 * @param bufferSeconds size of the line's buffer in seconds
+	 * @param nonBlocking whether writes return once the line's buffer is full
+	 * @throws LineUnavailableException if the mixer can't play the format
+	 */
+	public JavaSoundAudioSink(final AudioFormat format, final double bufferSeconds, final boolean nonBlocking) throws LineUnavailableException {
+		final javax.sound.sampled.AudioFormat javaSoundFormat = toJavaSoundFormat(format);
+		m_bytesPerFrame = format.getFrameSize();
+		m_nonBlocking = nonBlocking;
+
+		try {
+			m_line = AudioSystem.getSourceDataLine(javaSoundFormat);
+		}
+		catch (final IllegalArgumentException e) {
+			throw new LineUnavailableException("Format " + javaSoundFormat + " not supported: " + e.getMessage());
+		}
+		m_line.open(javaSoundFormat, (int)Math.max(1, Math.round(bufferSeconds * format.getSampleRate())) * m_bytesPerFrame);
+
+		m_gain = m_line.isControlSupported(FloatControl.Type.MASTER_GAIN) ? (FloatControl)m_line.getControl(FloatControl.Type.MASTER_GAIN) : null;
+		s_logger.info("Opened " + javaSoundFormat + " line with a buffer of " + getBufferSizeFrames() + " frames");
+	}
+
+	@Override
+	public void play() {
+		m_line.start();
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return m_line.isActive() || m_line.isRunning();
+	}
+
+	@Override
+	public int write(final byte[] samples, final int off, final int len) {
+		int length = len - len % m_bytesPerFrame;
+		if (m_nonBlocking) {
+			final int available = m_line.available();
+			length = Math.min(length, available - available % m_bytesPerFrame);
+			if (length <= 0)
+				return 0;
+		}
+		return m_line.write(samples, off, length);
+	}
+
+	@Override
+	public boolean isNonBlocking() {
+		return m_nonBlocking;
+	}
+
+	@Override
+	public int getBufferSizeFrames() {
+		return m_line.getBufferSize() / m_bytesPerFrame;
+	}
+
+	@Override
+	public long getPlaybackHeadPosition() {
+		return m_line.getLongFramePosition();
+	}
+
+	@Override
+	public double getPositionJitterSeconds() {
+		return Double.NaN;
+	}
+
+	@Override
+	public void setVolume(final float volume) {
+		if (m_gain == null)
+			return;
+
+		/* The gain control is in dB, muting is approximated by its minimum */
+		final float gain = (volume > 0) ? (float)(20 * Math.log10(volume)) : m_gain.getMinimum();
+		m_gain.setValue(Math.max(m_gain.getMinimum(), Math.min(m_gain.getMaximum(), gain)));
+	}
+
+	@Override
+	public void release() {
+		m_line.stop();
+		m_line.flush();
+		m_line.close();
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.sound.sampled.LineUnavailableException;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Plays samples through {@link JavaSoundAudioSink}. Skipped if the
+ * JVM has no audio device, like on most build machines
+ */
+public class JavaSoundAudioSinkTest {
+	private static final AudioFormat Format = new AudioFormat(44100, 16, 2, false, false);
+
+	private static JavaSoundAudioSink open(final boolean nonBlocking) {
+		Assume.assumeTrue("no audio line for " + JavaSoundAudioSink.toJavaSoundFormat(Format), JavaSoundAudioSink.isSupported(Format));
+		try {
+			return new JavaSoundAudioSink(Format, 0.1, nonBlocking);
+		}
+		catch (final LineUnavailableException e) {
+			Assume.assumeNoException(e);
+			return null;
+		}
+	}
+
+	@Test
+	public void convertsFormat() {
+		final javax.sound.sampled.AudioFormat format = JavaSoundAudioSink.toJavaSoundFormat(new AudioFormat(48000, 24, 2, false, false));
+		assertEquals(48000, format.getSampleRate(), 0.0);
+		assertEquals(24, format.getSampleSizeInBits());
+		assertEquals(2, format.getChannels());
+		assertEquals(6, format.getFrameSize());
+		assertEquals(javax.sound.sampled.AudioFormat.Encoding.PCM_SIGNED, format.getEncoding());
+		assertFalse(format.isBigEndian());
+	}
+
+	@Test
+	public void factoryFallsBackToNullSink() {
+		/* Either plays through the device, or discards the samples at the same pace */
+		final AudioSink sink = JavaSoundAudioSink.Factory.create(Format, 352, 3, 0.1, true);
+		try {
+			assertTrue(sink.getBufferSizeFrames() > 0);
+			assertTrue(sink.isNonBlocking());
+		}
+		finally {
+			sink.release();
+		}
+	}
+
+	@Test
+	public void playsWrittenFrames() throws InterruptedException {
+		final JavaSoundAudioSink sink = open(false);
+		try {
+			sink.setVolume(0.0f);
+			sink.play();
+
+			/* Half a second of silence, blocking until it fits */
+			final byte[] samples = new byte[352 * Format.getFrameSize()];
+			for (int i = 0; i < 63; ++i)
+				assertEquals(samples.length, sink.write(samples, 0, samples.length));
+
+			final long position = sink.getPlaybackHeadPosition();
+			assertTrue(position > 0);
+			Thread.sleep(50);
+			assertTrue(sink.getPlaybackHeadPosition() > position);
+		}
+		finally {
+			sink.release();
+		}
+	}
+
+	@Test
+	public void nonBlockingWritesStopWhenFull() {
+		final JavaSoundAudioSink sink = open(true);
+		try {
+			/* Not playing, so the buffer fills up and stays full */
+			final byte[] samples = new byte[(sink.getBufferSizeFrames() + 352) * Format.getFrameSize()];
+			final int written = sink.write(samples, 0, samples.length);
+			assertEquals(0, written % Format.getFrameSize());
+			assertTrue(written <= sink.getBufferSizeFrames() * Format.getFrameSize());
+			assertEquals(0, sink.write(samples, 0, samples.length));
+		}
+		finally {
+			sink.release();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the order in which {@link PcmPacketQueue#findFirst(long)} returns packets,
+ * and that the queue releases the packets it owns
+ */
+public class PcmPacketQueueTest {
+	private static final int FramesPerPacket = 352;
+
+	private final PcmPacketPool m_pool = new PcmPacketPool(FramesPerPacket * 4, 64);
+	private final PcmPacketQueue m_queue = new PcmPacketQueue(FramesPerPacket, 16);
+
+	private void put(final long packetIndex) {
+		final PcmPacket packet = m_pool.acquire();
+		packet.setFrameTime(packetIndex * FramesPerPacket);
+		m_queue.put(packet);
+	}
+
+	/**
+	 * Takes the first packet, like the audio output queue does
+	 *
+	 * @param headIndex packet index of the playback head
+	 * @return packet index of the packet taken, or -1 if the queue is empty
+	 */
+	private long takeFirst(final long headIndex) {
+		final int slot = m_queue.findFirst(headIndex * FramesPerPacket);
+		if (slot < 0)
+			return -1;
+		final PcmPacket packet = m_queue.take(slot);
+		final long packetIndex = packet.getFrameTime() / FramesPerPacket;
+		packet.release();
+		return packetIndex;
+	}
+
+	@Test
+	public void returnsPacketsInOrder() {
+		for (int i = 13; i >= 10; --i)
+			put(i);
+
+		assertEquals(10, takeFirst(10));
+		assertEquals(11, takeFirst(11));
+		assertEquals(12, takeFirst(12));
+		assertEquals(13, takeFirst(13));
+		assertEquals(-1, takeFirst(14));
+		assertTrue(m_queue.isEmpty());
+	}
+
+	@Test
+	public void returnsPacketsThePlaybackHeadPassedFirst() {
+		put(20);
+		put(21);
+		assertEquals(20, takeFirst(20));
+
+		/* Retransmissions which arrive after the head passed them */
+		put(17);
+		put(18);
+		assertEquals(17, takeFirst(21));
+		assertEquals(18, takeFirst(21));
+		assertEquals(21, takeFirst(21));
+		assertTrue(m_queue.isEmpty());
+	}
+
+	@Test
+	public void returnsPacketsSkippedByTheHeadFirst() {
+		assertEquals(-1, takeFirst(100));
+		put(101);
+		put(102);
+		put(110);
+
+		/* The head jumps, e.g. because the clock offsets changed */
+		assertEquals(101, takeFirst(108));
+		assertEquals(102, takeFirst(108));
+		assertEquals(110, takeFirst(108));
+	}
+
+	@Test
+	public void ignoresPacketsQueuedFarAheadWhenTheHeadJumps() {
+		assertEquals(-1, takeFirst(0));
+		put(40);
+		put(52);
+
+		/* Packet 52 shares its slot with packet 36, which the head skips */
+		assertEquals(40, takeFirst(39));
+		assertEquals(52, takeFirst(41));
+	}
+
+	@Test
+	public void clearReleasesAllPackets() {
+		put(3);
+		put(15);
+		put(-2);
+
+		/* Replaces packet 3, and releases it */
+		put(19);
+		assertEquals(3, m_pool.getAcquiredCount());
+
+		m_queue.clear();
+		assertTrue(m_queue.isEmpty());
+		assertEquals(0, m_pool.getAcquiredCount());
+		assertEquals(-1, takeFirst(0));
+	}
+}
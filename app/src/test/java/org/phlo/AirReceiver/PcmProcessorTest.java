@@ -0,0 +1,203 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks the mixing matrix of each {@link AudioChannel} mode, 16 and 24-bit
+ * samples, clipping, and that {@link PcmProcessor} ramps the gain without steps
+ */
+public class PcmProcessorTest {
+	private static final int SampleRate = 44100;
+
+	/**
+	 * Frames a gain ramp lasts, 10ms
+	 */
+	private static final int RampFrames = 441;
+
+	private static final AudioFormat Format16 = new AudioFormat(SampleRate, 16, 2, false, false);
+	private static final AudioFormat Format24 = new AudioFormat(SampleRate, 24, 2, false, false);
+
+	/**
+	 * Packs the given sample values as little endian samples of the given size
+	 */
+	private static byte[] pack(final int bytesPerSample, final int... values) {
+		final byte[] samples = new byte[values.length * bytesPerSample];
+		for (int i = 0; i < values.length; ++i) {
+			for (int b = 0; b < bytesPerSample; ++b)
+				samples[i * bytesPerSample + b] = (byte)(values[i] >> (8 * b));
+		}
+		return samples;
+	}
+
+	/**
+	 * Unpacks little endian samples of the given size
+	 */
+	private static int[] unpack(final int bytesPerSample, final byte[] samples) {
+		final int[] values = new int[samples.length / bytesPerSample];
+		for (int i = 0; i < values.length; ++i) {
+			int value = samples[i * bytesPerSample + bytesPerSample - 1];
+			for (int b = bytesPerSample - 2; b >= 0; --b)
+				value = (value << 8) | (samples[i * bytesPerSample + b] & 0xff);
+			values[i] = value;
+		}
+		return values;
+	}
+
+	/**
+	 * Processes one frame at unity gain and returns the output samples
+	 */
+	private static int[] mix(final AudioFormat format, final AudioChannel mode, final int left, final int right) {
+		final int bytesPerSample = format.getSampleSizeInBits() / 8;
+		final PcmProcessor processor = new PcmProcessor(format, mode);
+		processor.setGainImmediately(1.0f);
+		final byte[] samples = pack(bytesPerSample, left, right);
+		processor.process(samples, 0, samples.length);
+		return unpack(bytesPerSample, samples);
+	}
+
+	/**
+	 * Processes a constant signal in chunks of the given number of frames, and returns the left channel
+	 */
+	private static int[] processConstant(final PcmProcessor processor, final int value, final int frames, final int chunkFrames) {
+		final int[] left = new int[frames];
+		for (int f = 0; f < frames; f += chunkFrames) {
+			final int count = Math.min(chunkFrames, frames - f);
+			final int[] values = new int[2 * count];
+			Arrays.fill(values, value);
+			final byte[] samples = pack(2, values);
+			processor.process(samples, 0, samples.length);
+			final int[] output = unpack(2, samples);
+			for (int i = 0; i < count; ++i)
+				left[f + i] = output[2 * i];
+		}
+		return left;
+	}
+
+	@Test
+	public void mixesChannels16Bit() {
+		assertArrayEquals(new int[] { 1000, -3000 }, mix(Format16, AudioChannel.STEREO, 1000, -3000));
+		assertArrayEquals(new int[] { -1000, -1000 }, mix(Format16, AudioChannel.MONO, 1000, -3000));
+		assertArrayEquals(new int[] { -3000, 1000 }, mix(Format16, AudioChannel.SWAPPED, 1000, -3000));
+		assertArrayEquals(new int[] { 1000, 1000 }, mix(Format16, AudioChannel.ONLY_LEFT, 1000, -3000));
+		assertArrayEquals(new int[] { -3000, -3000 }, mix(Format16, AudioChannel.ONLY_RIGHT, 1000, -3000));
+	}
+
+	@Test
+	public void mixesChannels24Bit() {
+		assertArrayEquals(new int[] { 1000001, -3000003 }, mix(Format24, AudioChannel.STEREO, 1000001, -3000003));
+		assertArrayEquals(new int[] { -1000001, -1000001 }, mix(Format24, AudioChannel.MONO, 1000001, -3000003));
+		assertArrayEquals(new int[] { -3000003, 1000001 }, mix(Format24, AudioChannel.SWAPPED, 1000001, -3000003));
+		assertArrayEquals(new int[] { 1000001, 1000001 }, mix(Format24, AudioChannel.ONLY_LEFT, 1000001, -3000003));
+		assertArrayEquals(new int[] { -3000003, -3000003 }, mix(Format24, AudioChannel.ONLY_RIGHT, 1000001, -3000003));
+
+		/* Full scale survives the downmix and the packing */
+		assertArrayEquals(new int[] { 8388607, 8388607 }, mix(Format24, AudioChannel.MONO, 8388607, 8388607));
+		assertArrayEquals(new int[] { -8388608, -8388608 }, mix(Format24, AudioChannel.MONO, -8388608, -8388608));
+		assertArrayEquals(new int[] { -8388608, 8388607 }, mix(Format24, AudioChannel.SWAPPED, 8388607, -8388608));
+	}
+
+	@Test
+	public void ignoresChannelModeOfOtherChannelCounts() {
+		final AudioFormat mono = new AudioFormat(SampleRate, 16, 1, false, false);
+		final PcmProcessor processor = new PcmProcessor(mono, AudioChannel.SWAPPED);
+		processor.setGainImmediately(0.5f);
+		final byte[] samples = pack(2, 1000, -3000, 32767);
+		processor.process(samples, 0, samples.length);
+		assertArrayEquals(new int[] { 500, -1500, 16384 }, unpack(2, samples));
+	}
+
+	@Test
+	public void clipsAmplifiedSamples() {
+		final PcmProcessor processor16 = new PcmProcessor(Format16, AudioChannel.STEREO);
+		processor16.setGainImmediately(2.0f);
+		final byte[] samples16 = pack(2, 20000, -20000, 1000, -1000);
+		processor16.process(samples16, 0, samples16.length);
+		assertArrayEquals(new int[] { 32767, -32768, 2000, -2000 }, unpack(2, samples16));
+
+		final PcmProcessor processor24 = new PcmProcessor(Format24, AudioChannel.SWAPPED);
+		processor24.setGainImmediately(2.0f);
+		final byte[] samples24 = pack(3, 5000000, -5000000, 1000, -1000);
+		processor24.process(samples24, 0, samples24.length);
+		assertArrayEquals(new int[] { -8388608, 8388607, -2000, 2000 }, unpack(3, samples24));
+	}
+
+	@Test
+	public void passesThroughAndMutes() {
+		final PcmProcessor processor = new PcmProcessor(Format16, AudioChannel.STEREO);
+		final byte[] original = pack(2, 1, -2, 30000, -30000);
+
+		processor.setGainImmediately(1.0f);
+		final byte[] samples = original.clone();
+		processor.process(samples, 0, samples.length);
+		assertArrayEquals(original, samples);
+
+		/* Only the given range is processed */
+		processor.setGainImmediately(0.0f);
+		processor.process(samples, 4, 4);
+		assertArrayEquals(new int[] { 1, -2, 0, 0 }, unpack(2, samples));
+	}
+
+	@Test
+	public void rampsGainContinuously() {
+		final PcmProcessor processor = new PcmProcessor(Format16, AudioChannel.STEREO);
+		processor.setGainImmediately(0.0f);
+		processor.setGain(1.0f);
+		assertEquals(1.0f, processor.getGain(), 0.0f);
+
+		/* Ramps up over 10ms in equal steps, then stays */
+		final int[] left = processConstant(processor, 10000, 1000, 100);
+		final int step = 10000 / RampFrames + 1;
+		assertTrue(left[0] > 0 && left[0] <= step);
+		for (int i = 1; i < RampFrames; ++i)
+			assertTrue("frame " + i + ": " + left[i - 1] + " to " + left[i], (left[i] >= left[i - 1]) && (left[i] - left[i - 1] <= step));
+		for (int i = RampFrames - 1; i < left.length; ++i)
+			assertEquals(10000, left[i]);
+
+		/* The ramp doesn't depend on how the frames are split into chunks */
+		final PcmProcessor whole = new PcmProcessor(Format16, AudioChannel.STEREO);
+		whole.setGainImmediately(0.0f);
+		whole.setGain(1.0f);
+		assertArrayEquals(left, processConstant(whole, 10000, 1000, 1000));
+	}
+
+	@Test
+	public void reversesRampWithoutStep() {
+		final PcmProcessor processor = new PcmProcessor(Format16, AudioChannel.MONO);
+		processor.setGainImmediately(0.0f);
+		processor.setGain(1.0f);
+		final int[] up = processConstant(processor, 10000, RampFrames / 2, 7);
+
+		/* Turning down mid-ramp starts from the current gain */
+		processor.setGain(0.0f);
+		final int[] down = processConstant(processor, 10000, 2 * RampFrames, 7);
+		final int step = 10000 / RampFrames + 1;
+		assertTrue(up[up.length - 1] + " to " + down[0], Math.abs(down[0] - up[up.length - 1]) <= step);
+		for (int i = 1; i < down.length; ++i)
+			assertTrue("frame " + i + ": " + down[i - 1] + " to " + down[i], (down[i] <= down[i - 1]) && (down[i - 1] - down[i] <= step));
+		assertEquals(0, down[RampFrames - 1]);
+		assertEquals(0, down[down.length - 1]);
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Feeds {@link PlaybackClock} synthetic timestamps of a device running slightly
+ * off its nominal rate, with presentation time noise and stalls, and checks the
+ * fitted rate, the interpolated position, the reset on outliers and the jitter
+ */
+public class PlaybackClockTest {
+	private static final double SampleRate = 44100;
+
+	/**
+	 * Actual rate of the simulated device, 200ppm fast
+	 */
+	private static final double DeviceRate = SampleRate * 1.0002;
+
+	/**
+	 * Timestamps are sampled this often, like by the audio track sink
+	 */
+	private static final long IntervalNanos = 50000000L;
+
+	private static final long StartNanoTime = 1L << 40;
+
+	private final PlaybackClock m_clock = new PlaybackClock(SampleRate);
+
+	/**
+	 * Returns the frame the simulated device presents at the given time
+	 */
+	private static long framePosition(final long nanoTime, final long stalledFrames) {
+		return (long)Math.floor((nanoTime - StartNanoTime) * 1e-9 * DeviceRate) - stalledFrames;
+	}
+
+	@Test
+	public void invalidWithoutTimestamps() {
+		assertFalse(m_clock.isValid());
+		assertEquals(0, m_clock.getTimestampCount());
+		assertEquals(Long.MIN_VALUE, m_clock.getFramePosition(StartNanoTime));
+		assertEquals(SampleRate, m_clock.getMeasuredSampleRate(), 0.0);
+		assertTrue(Double.isNaN(m_clock.getJitterSeconds()));
+
+		m_clock.addTimestamp(1000, StartNanoTime);
+		assertTrue(m_clock.isValid());
+		m_clock.reset();
+		assertFalse(m_clock.isValid());
+		assertEquals(0, m_clock.getTimestampCount());
+	}
+
+	@Test
+	public void fitsExactTimestamps() {
+		/* A single timestamp extrapolates at the nominal rate */
+		m_clock.addTimestamp(0, StartNanoTime);
+		assertEquals(SampleRate, m_clock.getMeasuredSampleRate(), 0.0);
+		assertEquals(44100, m_clock.getFramePosition(StartNanoTime + 1000000000L));
+
+		for (int i = 1; i < 40; ++i) {
+			final long nanoTime = StartNanoTime + i * IntervalNanos;
+			m_clock.addTimestamp(framePosition(nanoTime, 0), nanoTime);
+		}
+		assertEquals(16, m_clock.getTimestampCount());
+
+		/* The rate and position are exact up to the truncation to whole frames, which
+		 * over the 750ms the timestamps span amounts to a few parts per million
+		 */
+		assertEquals(DeviceRate, m_clock.getMeasuredSampleRate(), SampleRate * 5e-6);
+		final long nanoTime = StartNanoTime + 40 * IntervalNanos + 12345678L;
+		assertEquals(framePosition(nanoTime, 0), m_clock.getFramePosition(nanoTime), 1.0);
+		assertTrue(m_clock.getJitterSeconds() < 0.5 / SampleRate);
+	}
+
+	@Test
+	public void averagesNoisyTimestamps() {
+		/* The presentation times scatter by 200us */
+		final double noiseSeconds = 0.0002;
+		final Random random = new Random(1);
+		double maxError = 0;
+		for (int i = 0; i < 200; ++i) {
+			final long nanoTime = StartNanoTime + i * IntervalNanos;
+			final long noisyNanoTime = nanoTime + Math.round(random.nextGaussian() * noiseSeconds * 1e9);
+			m_clock.addTimestamp(framePosition(nanoTime, 0), noisyNanoTime);
+
+			if (i >= 16)
+				maxError = Math.max(maxError, Math.abs(m_clock.getFramePosition(nanoTime) - framePosition(nanoTime, 0)) / SampleRate);
+		}
+
+		/* No timestamp deviates enough to reset the fit */
+		assertEquals(16, m_clock.getTimestampCount());
+
+		/* The interpolated position stays close to the device, and the jitter measures the noise */
+		System.out.printf("PlaybackClock: %.0f us noise, %.1f us max position error, %.1f us jitter, rate %.2f Hz (device %.2f Hz)%n",
+			noiseSeconds * 1e6, maxError * 1e6, m_clock.getJitterSeconds() * 1e6, m_clock.getMeasuredSampleRate(), DeviceRate);
+		assertTrue("max position error " + maxError, maxError < 2 * noiseSeconds);
+		assertEquals(noiseSeconds, m_clock.getJitterSeconds(), noiseSeconds / 2);
+		assertEquals(DeviceRate, m_clock.getMeasuredSampleRate(), SampleRate * 0.0005);
+	}
+
+	@Test
+	public void limitsRateOfFewTimestamps() {
+		/* Two timestamps 1% apart, e.g. noise over a short interval */
+		m_clock.addTimestamp(0, StartNanoTime);
+		m_clock.addTimestamp(4455, StartNanoTime + 100000000L);
+		assertEquals(2, m_clock.getTimestampCount());
+		assertEquals(SampleRate * 1.001, m_clock.getMeasuredSampleRate(), 1e-6);
+	}
+
+	@Test
+	public void startsOverAfterStall() {
+		for (int i = 0; i < 20; ++i) {
+			final long nanoTime = StartNanoTime + i * IntervalNanos;
+			m_clock.addTimestamp(framePosition(nanoTime, 0), nanoTime);
+		}
+		assertEquals(16, m_clock.getTimestampCount());
+
+		/* A deviation below the limit of 5ms is kept as part of the line */
+		long nanoTime = StartNanoTime + 20 * IntervalNanos;
+		m_clock.addTimestamp(framePosition(nanoTime, 0) - Math.round(0.004 * SampleRate), nanoTime);
+		assertEquals(16, m_clock.getTimestampCount());
+		assertTrue(m_clock.getJitterSeconds() > 0.0005);
+
+		/* The device stalls for 100ms, e.g. after an underrun. The first
+		 * timestamp after the stall discards the older ones
+		 */
+		final long stalledFrames = Math.round(0.1 * DeviceRate);
+		nanoTime = StartNanoTime + 21 * IntervalNanos;
+		m_clock.addTimestamp(framePosition(nanoTime, stalledFrames), nanoTime);
+		assertEquals(1, m_clock.getTimestampCount());
+		assertEquals(0.0, m_clock.getJitterSeconds(), 0.0);
+
+		/* The fit continues from there, tracking the delayed position */
+		for (int i = 22; i < 30; ++i) {
+			nanoTime = StartNanoTime + i * IntervalNanos;
+			m_clock.addTimestamp(framePosition(nanoTime, stalledFrames), nanoTime);
+		}
+		assertEquals(9, m_clock.getTimestampCount());
+		nanoTime += IntervalNanos / 2;
+		assertEquals(framePosition(nanoTime, stalledFrames), m_clock.getFramePosition(nanoTime), 1.0);
+		assertTrue(m_clock.getJitterSeconds() < 0.5 / SampleRate);
+	}
+}
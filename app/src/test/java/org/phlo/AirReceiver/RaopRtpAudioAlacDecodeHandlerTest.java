@@ -0,0 +1,351 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.netty.buffer.BigEndianHeapChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the parallel decoding stage of {@link RaopRtpAudioAlacDecodeHandler},
+ * and compares its decryption with a separate {@link RaopRtpAudioDecryptionHandler}.
+ * <p>
+ * The first packet's decoding is held up, so that the packets after it are
+ * decoded before it by the other workers.
+ */
+public class RaopRtpAudioAlacDecodeHandlerTest {
+	private static final int FramesPerPacket = 352;
+	private static final String[] FormatOptions = { Integer.toString(FramesPerPacket), "0", "16", "40", "10", "14", "2", "255", "0", "0", "44100" };
+
+	/**
+	 * Size of the parallel decoding stage, see {@link RaopRtpAudioAlacDecodeHandler}
+	 */
+	private static final int DecodeQueueLength = 64;
+
+	private static final int DecodeThreads = 3;
+
+	private final ExecutorService m_executor = Executors.newCachedThreadPool();
+
+	/**
+	 * Held until the test lets the first packet be decoded
+	 */
+	private final CountDownLatch m_firstPacketLatch = new CountDownLatch(1);
+
+	/**
+	 * Frame times of the packets passed on, in order
+	 */
+	private final List<Long> m_emitted = new ArrayList<Long>();
+
+	/**
+	 * Buffer whose array is only handed to a decoding worker once the latch is released
+	 */
+	private static final class HeldBuffer extends BigEndianHeapChannelBuffer {
+		private final CountDownLatch m_latch;
+
+		public HeldBuffer(final byte[] array, final CountDownLatch latch) {
+			super(array);
+			m_latch = latch;
+		}
+
+		@Override
+		public byte[] array() {
+			try {
+				m_latch.await();
+			}
+			catch (final InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return super.array();
+		}
+	}
+
+	/**
+	 * Records the frame times of the packets passed on, and releases them
+	 */
+	private final class Collector extends SimpleChannelUpstreamHandler {
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt) {
+			final PcmPacket packet = (PcmPacket)evt.getMessage();
+			final ChannelBuffer pcm = packet.getBuffer();
+			synchronized(m_emitted) {
+				/* Every sample carries the packet's frame time */
+				assertEquals((short)packet.getFrameTime(), (short)((pcm.getByte(0) & 0xff) | (pcm.getByte(1) << 8)));
+				m_emitted.add(packet.getFrameTime());
+				m_emitted.notifyAll();
+			}
+			packet.release();
+		}
+	}
+
+	@After
+	public void shutdown() {
+		m_firstPacketLatch.countDown();
+		m_executor.shutdownNow();
+	}
+
+	/**
+	 * Returns an uncompressed 16-bit stereo ALAC frame whose samples are all the given value
+	 */
+	private static byte[] alacFrame(final int value) {
+		final short[] samples = new short[FramesPerPacket * 2];
+		Arrays.fill(samples, (short)value);
+		return alacFrame(samples);
+	}
+
+	/**
+	 * Returns an uncompressed 16-bit stereo ALAC frame containing the given interleaved samples
+	 */
+	private static byte[] alacFrame(final short[] samples) {
+		final int bits = 23 + FramesPerPacket * 2 * 16;
+		final byte[] frame = new byte[(bits + 7) / 8];
+		int bit = 0;
+
+		/* channels - 1, 16 unknown bits, hassize, uncompressed bytes, isnotcompressed */
+		final long header = (1L << 20) | 1L;
+		for (int i = 22; i >= 0; --i, ++bit)
+			frame[bit / 8] |= ((header >>> i) & 1) << (7 - bit % 8);
+		for (final short sample: samples)
+			for (int i = 15; i >= 0; --i, ++bit)
+				frame[bit / 8] |= ((sample >>> i) & 1) << (7 - bit % 8);
+
+		return frame;
+	}
+
+	private RaopRtpPacket.Audio packet(final int frameTime) throws Exception {
+		final byte[] frame = alacFrame(frameTime);
+		final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(frame.length);
+		packet.setTimeStamp(frameTime);
+		packet.getBuffer().setBytes(RaopRtpPacket.AudioTransmit.Length, frame);
+
+		final byte[] datagram = new byte[packet.getLength()];
+		packet.getBuffer().getBytes(0, datagram);
+		final ChannelBuffer buffer = (frameTime == 0) ? new HeldBuffer(datagram, m_firstPacketLatch) : new BigEndianHeapChannelBuffer(datagram);
+		return (RaopRtpPacket.Audio)RaopRtpPacket.decode(buffer);
+	}
+
+	private void awaitEmitted(final int count) throws InterruptedException {
+		final long deadline = System.nanoTime() + 10000000000L;
+		synchronized(m_emitted) {
+			while (m_emitted.size() < count && System.nanoTime() < deadline)
+				m_emitted.wait(100);
+		}
+	}
+
+	private static void awaitAcquired(final PcmPacketPool pool, final int count) throws InterruptedException {
+		final long deadline = System.nanoTime() + 10000000000L;
+		while (pool.getAcquiredCount() != count && System.nanoTime() < deadline)
+			Thread.sleep(1);
+		assertEquals(count, pool.getAcquiredCount());
+	}
+
+	@Test
+	public void emitsInOrderAndDropsWhenFull() throws Exception {
+		final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(FormatOptions, m_executor, DecodeThreads);
+		final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(handler, new Collector());
+
+		/* The first packet's worker is held, the others decode the following packets */
+		final int packets = DecodeQueueLength + 16;
+		for (int i = 0; i < packets; ++i)
+			embedder.offer(packet(i));
+		awaitAcquired(handler.getPcmPacketPool(), DecodeQueueLength - 1);
+
+		synchronized(m_emitted) {
+			assertEquals(0, m_emitted.size());
+		}
+		assertEquals(packets - DecodeQueueLength, handler.getDroppedPacketCount());
+
+		/* Once the first packet is decoded, all are passed on in order */
+		m_firstPacketLatch.countDown();
+		awaitEmitted(DecodeQueueLength);
+		synchronized(m_emitted) {
+			assertEquals(DecodeQueueLength, m_emitted.size());
+			for (int i = 0; i < DecodeQueueLength; ++i)
+				assertEquals(i, m_emitted.get(i).longValue());
+		}
+
+		/* The stage accepts packets again */
+		for (int i = packets; i < packets + 10; ++i)
+			embedder.offer(packet(i));
+		awaitEmitted(DecodeQueueLength + 10);
+		synchronized(m_emitted) {
+			assertEquals(DecodeQueueLength + 10, m_emitted.size());
+			for (int i = 0; i < 10; ++i)
+				assertEquals(packets + i, m_emitted.get(DecodeQueueLength + i).longValue());
+		}
+		assertEquals(packets - DecodeQueueLength, handler.getDroppedPacketCount());
+		assertEquals(0, handler.getPcmPacketPool().getAcquiredCount());
+
+		handler.close();
+	}
+
+	@Test
+	public void releasesPacketsOnClose() throws Exception {
+		final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(FormatOptions, m_executor, DecodeThreads);
+		final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(handler, new Collector());
+
+		final int packets = 20;
+		for (int i = 0; i < packets; ++i)
+			embedder.offer(packet(i));
+		awaitAcquired(handler.getPcmPacketPool(), packets - 1);
+
+		/* Closing releases the decoded packets, and the held one once it's decoded */
+		handler.close();
+		assertEquals(0, handler.getPcmPacketPool().getAcquiredCount());
+		m_firstPacketLatch.countDown();
+
+		m_executor.shutdown();
+		assertTrue(m_executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(0, handler.getPcmPacketPool().getAcquiredCount());
+
+		/* Packets arriving after closing are ignored */
+		embedder.offer(packet(packets));
+		synchronized(m_emitted) {
+			assertEquals(0, m_emitted.size());
+		}
+		assertEquals(0, handler.getDroppedPacketCount());
+	}
+
+	/**
+	 * Returns encrypted audio packets containing random uncompressed ALAC frames.
+	 * Only full blocks are encrypted, like the sender does
+	 */
+	private static byte[][] encryptedDatagrams(final int count, final byte[] key, final byte[] iv) throws Exception {
+		final Random random = new Random(14);
+		final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+
+		final byte[][] datagrams = new byte[count][];
+		final short[] samples = new short[FramesPerPacket * 2];
+		for (int p = 0; p < count; ++p) {
+			for (int i = 0; i < samples.length; ++i)
+				samples[i] = (short)random.nextInt();
+			final byte[] frame = alacFrame(samples);
+			cipher.doFinal(frame, 0, frame.length & ~15, frame, 0);
+
+			final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(frame.length);
+			packet.setTimeStamp(p * FramesPerPacket);
+			packet.getBuffer().setBytes(RaopRtpPacket.AudioTransmit.Length, frame);
+			datagrams[p] = new byte[packet.getLength()];
+			packet.getBuffer().getBytes(0, datagrams[p]);
+		}
+		return datagrams;
+	}
+
+	/**
+	 * Receives a datagram into a new packet
+	 */
+	private static RaopRtpPacket.Audio receive(final byte[] datagram) throws Exception {
+		return (RaopRtpPacket.Audio)RaopRtpPacket.decode(new BigEndianHeapChannelBuffer(datagram.clone()));
+	}
+
+	private static byte[] pcm(final PcmPacket packet) {
+		final byte[] bytes = new byte[packet.getBuffer().capacity()];
+		packet.getBuffer().getBytes(0, bytes);
+		return bytes;
+	}
+
+	@Test
+	public void fusedDecryptionDecodesLikeSeparateHandler() throws Exception {
+		final Random random = new Random(15);
+		final byte[] key = new byte[16];
+		final byte[] iv = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+		final byte[][] datagrams = encryptedDatagrams(50, key, iv);
+
+		final RaopRtpAudioAlacDecodeHandler fused = new RaopRtpAudioAlacDecodeHandler(FormatOptions, null, 0, new AesCbcDecryptor(key, iv));
+		final RaopRtpAudioDecryptionHandler decryption = new RaopRtpAudioDecryptionHandler(new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		final RaopRtpAudioAlacDecodeHandler separate = new RaopRtpAudioAlacDecodeHandler(FormatOptions);
+
+		for (int p = 0; p < datagrams.length; ++p) {
+			final RaopRtpPacket.Audio packet = receive(datagrams[p]);
+			final PcmPacket fusedPcm = (PcmPacket)fused.decode(null, null, packet);
+
+			/* The fused handler leaves the packet encrypted, so it can be decrypted again */
+			decryption.decode(null, null, packet);
+			final PcmPacket separatePcm = (PcmPacket)separate.decode(null, null, packet);
+
+			assertEquals(separatePcm.getFrameTime(), fusedPcm.getFrameTime());
+			assertArrayEquals("packet " + p, pcm(separatePcm), pcm(fusedPcm));
+			fusedPcm.release();
+			separatePcm.release();
+		}
+	}
+
+	@Test
+	public void benchmarkFusedDecryption() throws Exception {
+		final Random random = new Random(16);
+		final byte[] key = new byte[16];
+		final byte[] iv = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+		final byte[][] datagrams = encryptedDatagrams(100, key, iv);
+		final RaopRtpPacket.Audio[] packets = new RaopRtpPacket.Audio[datagrams.length];
+		for (int p = 0; p < packets.length; ++p)
+			packets[p] = receive(datagrams[p]);
+
+		final RaopRtpAudioAlacDecodeHandler fused = new RaopRtpAudioAlacDecodeHandler(FormatOptions, null, 0, new AesCbcDecryptor(key, iv));
+		final RaopRtpAudioDecryptionHandler decryption = new RaopRtpAudioDecryptionHandler(new SecretKeySpec(key, "AES"), new IvParameterSpec(iv), true);
+		final RaopRtpAudioAlacDecodeHandler separate = new RaopRtpAudioAlacDecodeHandler(FormatOptions);
+
+		/* Both paths restore the received datagram first, since the separate one decrypts it in place */
+		long bestFused = Long.MAX_VALUE, bestSeparate = Long.MAX_VALUE;
+		for (int round = 0; round < 30; ++round) {
+			final long t0 = System.nanoTime();
+			for (int p = 0; p < packets.length; ++p) {
+				packets[p].getBuffer().setBytes(0, datagrams[p]);
+				((PcmPacket)fused.decode(null, null, packets[p])).release();
+			}
+			final long t1 = System.nanoTime();
+			for (int p = 0; p < packets.length; ++p) {
+				packets[p].getBuffer().setBytes(0, datagrams[p]);
+				decryption.decode(null, null, packets[p]);
+				((PcmPacket)separate.decode(null, null, packets[p])).release();
+			}
+			final long t2 = System.nanoTime();
+
+			bestFused = Math.min(bestFused, t1 - t0);
+			bestSeparate = Math.min(bestSeparate, t2 - t1);
+		}
+
+		System.out.printf("AES-CBC + ALAC 16 bit stereo, %d byte packets with AesCbcDecryptor: fused %.2f us, separate handlers %.2f us per packet%n",
+			datagrams[0].length, bestFused / 1e3 / packets.length, bestSeparate / 1e3 / packets.length);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+/**
+ * Compares {@link RaopRtpAudioDecryptionHandler}, which decrypts all blocks of
+ * a packet with one JCE call, against the former per-block decryption loop,
+ * bit for bit and for speed
+ */
+public class RaopRtpAudioDecryptionHandlerTest {
+	/**
+	 * Size of the payload of a 352 frame 16-bit stereo ALAC packet, as
+	 * transmitted uncompressed, i.e. an upper bound for a real packet
+	 */
+	private static final int PacketLength = 352 * 4;
+
+	/**
+	 * Decrypts a packet's payload like the handler used to, with one
+	 * {@link Cipher#update} call per block, and a doFinal() to reset the cipher
+	 */
+	private static final class PerBlockDecryptor {
+		private final Cipher m_aesCipher;
+		private final byte[] m_block = new byte[16];
+
+		public PerBlockDecryptor(final byte[] key, final byte[] iv) throws Exception {
+			m_aesCipher = Cipher.getInstance("AES/CBC/NoPadding");
+			m_aesCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		}
+
+		public void decrypt(final RaopRtpPacket.Audio audioPacket) throws Exception {
+			final ChannelBuffer audioPayload = audioPacket.getPayload();
+			final byte[] data = audioPayload.array();
+			final int offset = audioPayload.arrayOffset();
+			final int size = audioPayload.capacity();
+			for (int i = 0; i + 16 <= size; i += 16)
+				m_aesCipher.update(data, offset + i, Math.min(16, size - i), data, offset + i);
+			m_aesCipher.doFinal(m_block, 0);
+		}
+	}
+
+	private static RaopRtpAudioDecryptionHandler createHandler(final byte[] key, final byte[] iv, final boolean useAesDecryptor) throws Exception {
+		return new RaopRtpAudioDecryptionHandler(new SecretKeySpec(key, "AES"), new IvParameterSpec(iv), useAesDecryptor);
+	}
+
+	private static RaopRtpPacket.Audio packet(final byte[] payload) {
+		final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(payload.length);
+		packet.getBuffer().setBytes(RaopRtpPacket.AudioTransmit.Length, payload);
+		return packet;
+	}
+
+	private static byte[] payload(final RaopRtpPacket.Audio packet) {
+		final ChannelBuffer payload = packet.getPayload();
+		final byte[] bytes = new byte[payload.capacity()];
+		payload.getBytes(0, bytes);
+		return bytes;
+	}
+
+	@Test
+	public void decryptsLikePerBlockLoop() throws Exception {
+		final Random random = new Random(12);
+		final byte[] key = new byte[16];
+		final byte[] iv = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+
+		final PerBlockDecryptor perBlock = new PerBlockDecryptor(key, iv);
+		final RaopRtpAudioDecryptionHandler jce = createHandler(key, iv, false);
+		final RaopRtpAudioDecryptionHandler decryptor = createHandler(key, iv, true);
+
+		/* The same ciphers decrypt every packet, so each must start over at the IV */
+		for (int n = 0; n < 500; ++n) {
+			final byte[] payload = new byte[random.nextInt(2 * PacketLength)];
+			random.nextBytes(payload);
+
+			final RaopRtpPacket.Audio expected = packet(payload);
+			perBlock.decrypt(expected);
+
+			final RaopRtpPacket.Audio bulk = packet(payload);
+			jce.decode(null, null, bulk);
+			assertArrayEquals("JCE, case " + n + ", " + payload.length + " bytes", payload(expected), payload(bulk));
+
+			final RaopRtpPacket.Audio decrypted = packet(payload);
+			decryptor.decode(null, null, decrypted);
+			assertArrayEquals("AesCbcDecryptor, case " + n + ", " + payload.length + " bytes", payload(expected), payload(decrypted));
+		}
+	}
+
+	@Test
+	public void benchmarkPerBlockAgainstBulk() throws Exception {
+		final Random random = new Random(13);
+		final byte[] key = new byte[16];
+		final byte[] iv = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+
+		final PerBlockDecryptor perBlock = new PerBlockDecryptor(key, iv);
+		final RaopRtpAudioDecryptionHandler jce = createHandler(key, iv, false);
+		final RaopRtpAudioDecryptionHandler decryptor = createHandler(key, iv, true);
+
+		/* Decrypted in place over and over, the contents don't matter */
+		final byte[] payload = new byte[PacketLength];
+		random.nextBytes(payload);
+		final RaopRtpPacket.Audio packet = packet(payload);
+
+		final int packets = 2000;
+		long bestPerBlock = Long.MAX_VALUE, bestJce = Long.MAX_VALUE, bestDecryptor = Long.MAX_VALUE;
+		for (int round = 0; round < 30; ++round) {
+			final long t0 = System.nanoTime();
+			for (int i = 0; i < packets; ++i)
+				perBlock.decrypt(packet);
+			final long t1 = System.nanoTime();
+			for (int i = 0; i < packets; ++i)
+				jce.decode(null, null, packet);
+			final long t2 = System.nanoTime();
+			for (int i = 0; i < packets; ++i)
+				decryptor.decode(null, null, packet);
+			final long t3 = System.nanoTime();
+
+			bestPerBlock = Math.min(bestPerBlock, t1 - t0);
+			bestJce = Math.min(bestJce, t2 - t1);
+			bestDecryptor = Math.min(bestDecryptor, t3 - t2);
+		}
+
+		System.out.printf("AES-CBC decryption handler, %d byte packets: JCE per block %.2f us, JCE bulk %.2f us (%.1fx), AesCbcDecryptor %.2f us (%.1fx)%n",
+			PacketLength,
+			bestPerBlock / 1e3 / packets,
+			bestJce / 1e3 / packets, (double)bestPerBlock / bestJce,
+			bestDecryptor / 1e3 / packets, (double)bestPerBlock / bestDecryptor);
+	}
+}
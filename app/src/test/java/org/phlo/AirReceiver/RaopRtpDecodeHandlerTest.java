@@ -0,0 +1,174 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+/**
+ * Tests {@link RaopRtpPacket#validate} and the dropping, counting and
+ * routing of packets by {@link RaopRtpDecodeHandler}
+ */
+public class RaopRtpDecodeHandlerTest {
+	/**
+	 * Returns a datagram of the given length with a valid RTP header of the given payload type
+	 */
+	private static ChannelBuffer datagram(final int payloadType, final int length) {
+		final byte[] bytes = new byte[length];
+		if (length > 0)
+			bytes[0] = (byte)0x80;
+		if (length > 1)
+			bytes[1] = (byte)payloadType;
+		return ChannelBuffers.wrappedBuffer(bytes);
+	}
+
+	/**
+	 * Records the messages it receives, and passes them on
+	 */
+	private static final class Recorder extends SimpleChannelUpstreamHandler {
+		final List<Object> messages = new ArrayList<Object>();
+
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt) throws Exception {
+			messages.add(evt.getMessage());
+			super.messageReceived(ctx, evt);
+		}
+	}
+
+	@Test
+	public void validatesHeaderAndLength() {
+		assertEquals(RaopRtpPacket.InvalidTooShort, RaopRtpPacket.validate(datagram(0x60, 0)));
+		assertEquals(RaopRtpPacket.InvalidTooShort, RaopRtpPacket.validate(datagram(0x60, RaopRtpPacket.Length - 1)));
+
+		/* Version 1 and 3 */
+		final ChannelBuffer version = datagram(0x60, RaopRtpPacket.AudioTransmit.Length);
+		version.setByte(0, 0x40);
+		assertEquals(RaopRtpPacket.InvalidVersion, RaopRtpPacket.validate(version));
+		version.setByte(0, 0xc0);
+		assertEquals(RaopRtpPacket.InvalidVersion, RaopRtpPacket.validate(version));
+
+		/* The marker bit is part of the payload type's byte, but not of the type */
+		assertEquals(RaopRtpPacket.InvalidPayloadType, RaopRtpPacket.validate(datagram(0x61, 100)));
+		assertEquals(RaopRtpPacket.InvalidPayloadType, RaopRtpPacket.validate(datagram(0x00, 100)));
+		assertEquals(RaopRtpPacket.Valid, RaopRtpPacket.validate(datagram(0x80 | 0x60, RaopRtpPacket.AudioTransmit.Length)));
+
+		final int[] payloadTypes = {
+			RaopRtpPacket.TimingRequest.PayloadType, RaopRtpPacket.TimingResponse.PayloadType, RaopRtpPacket.Sync.PayloadType,
+			RaopRtpPacket.RetransmitRequest.PayloadType, RaopRtpPacket.AudioRetransmit.PayloadType, RaopRtpPacket.AudioTransmit.PayloadType
+		};
+		final int[] minimumLengths = {
+			RaopRtpPacket.TimingRequest.Length, RaopRtpPacket.TimingResponse.Length, RaopRtpPacket.Sync.Length,
+			RaopRtpPacket.RetransmitRequest.Length, RaopRtpPacket.AudioRetransmit.Length, RaopRtpPacket.AudioTransmit.Length
+		};
+		for (int i = 0; i < payloadTypes.length; ++i) {
+			final String type = "payload type " + Integer.toHexString(payloadTypes[i]);
+			assertEquals(type, RaopRtpPacket.InvalidLength, RaopRtpPacket.validate(datagram(payloadTypes[i], minimumLengths[i] - 1)));
+			assertEquals(type, RaopRtpPacket.Valid, RaopRtpPacket.validate(datagram(payloadTypes[i], minimumLengths[i])));
+			assertEquals(type, RaopRtpPacket.Valid, RaopRtpPacket.validate(datagram(payloadTypes[i], minimumLengths[i] + 100)));
+		}
+
+		for (int reason = 0; reason < RaopRtpPacket.InvalidReasonCount; ++reason)
+			assertTrue(RaopRtpPacket.getInvalidReasonName(reason).length() > 0);
+	}
+
+	@Test
+	public void countsDroppedPacketsPerReason() {
+		final RaopRtpDecodeHandler handler = new RaopRtpDecodeHandler();
+		final Recorder recorder = new Recorder();
+		final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(handler, recorder);
+
+		embedder.offer(datagram(0x60, 2));
+		embedder.offer(datagram(0x60, 3));
+		final ChannelBuffer version = datagram(0x60, 100);
+		version.setByte(0, 0);
+		embedder.offer(version);
+		for (int i = 0; i < 5; ++i)
+			embedder.offer(datagram(0x7f, 100));
+		embedder.offer(datagram(RaopRtpPacket.Sync.PayloadType, RaopRtpPacket.Sync.Length - 1));
+		embedder.offer(datagram(RaopRtpPacket.Sync.PayloadType, RaopRtpPacket.Sync.Length));
+
+		assertEquals(0, handler.getDroppedPacketCount(RaopRtpPacket.Valid));
+		assertEquals(2, handler.getDroppedPacketCount(RaopRtpPacket.InvalidTooShort));
+		assertEquals(1, handler.getDroppedPacketCount(RaopRtpPacket.InvalidVersion));
+		assertEquals(5, handler.getDroppedPacketCount(RaopRtpPacket.InvalidPayloadType));
+		assertEquals(1, handler.getDroppedPacketCount(RaopRtpPacket.InvalidLength));
+		assertEquals(9, handler.getDroppedPacketCount());
+
+		/* Only the valid packet is passed on, decoded */
+		assertEquals(1, recorder.messages.size());
+		assertTrue(recorder.messages.get(0) instanceof RaopRtpPacket.Sync);
+	}
+
+	@Test
+	public void routesPacketsToConsumers() {
+		final RaopRtpDecodeHandler handler = new RaopRtpDecodeHandler();
+		final Recorder skipped = new Recorder();
+		final Recorder consumer = new Recorder();
+
+		/* The embedder names its handlers by their index */
+		handler.setConsumer(RaopRtpPacket.TypeAudioTransmit, "2");
+		final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(handler, skipped, consumer);
+
+		embedder.offer(datagram(RaopRtpPacket.AudioTransmit.PayloadType, RaopRtpPacket.AudioTransmit.Length + 10));
+		embedder.offer(datagram(RaopRtpPacket.Sync.PayloadType, RaopRtpPacket.Sync.Length));
+
+		/* Audio skips the handler in between, sync packets pass it */
+		assertEquals(1, skipped.messages.size());
+		assertTrue(skipped.messages.get(0) instanceof RaopRtpPacket.Sync);
+		assertEquals(2, consumer.messages.size());
+		assertTrue(consumer.messages.get(0) instanceof RaopRtpPacket.AudioTransmit);
+
+		/* Already decoded packets are routed the same way */
+		final RaopRtpPacket.AudioTransmit audio = new RaopRtpPacket.AudioTransmit(10);
+		embedder.offer(audio);
+		assertEquals(1, skipped.messages.size());
+		assertSame(audio, consumer.messages.get(2));
+	}
+
+	@Test
+	public void releasesPooledBuffers() {
+		final RtpReceiveBufferFactory factory = new RtpReceiveBufferFactory(4);
+		final RaopRtpDecodeHandler handler = new RaopRtpDecodeHandler();
+		final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(handler, new Recorder());
+
+		/* Both valid and dropped packets are released once they passed the pipeline */
+		final ChannelBuffer valid = factory.getBuffer(RaopRtpPacket.Sync.Length);
+		valid.writeBytes(datagram(RaopRtpPacket.Sync.PayloadType, RaopRtpPacket.Sync.Length));
+		embedder.offer(valid);
+		assertEquals(1, factory.getFreeCount());
+
+		final ChannelBuffer dropped = factory.getBuffer(RaopRtpPacket.Length);
+		dropped.writeBytes(datagram(0x7f, RaopRtpPacket.Length));
+		assertSame(valid, dropped);
+		embedder.offer(dropped);
+		assertEquals(1, factory.getFreeCount());
+		assertEquals(1, handler.getDroppedPacketCount(RaopRtpPacket.InvalidPayloadType));
+	}
+}
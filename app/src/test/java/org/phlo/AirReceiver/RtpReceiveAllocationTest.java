@@ -0,0 +1,301 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Measures the memory allocated to receive and parse the datagrams of a stream,
+ * reading the sync and timing fields with the static accessors, compared to
+ * reading them through {@link RaopRtpPacket.NtpTime} instances.
+ * <p>
+ * Datagrams are received like the OIO datagram worker does, i.e. into a
+ * new 1500 byte array, which the channel's buffer factory wraps, or like
+ * the NIO datagram worker does, i.e. into a re-used buffer which is copied
+ * into a buffer drawn from a {@link RtpReceiveBufferFactory}.
+ */
+public class RtpReceiveAllocationTest {
+	private static final double PacketsPerSecond = 44100.0 / 352;
+
+	/**
+	 * Sync packets are sent once a second, timing requests are answered
+	 * every three seconds, or every second in tight sync mode
+	 */
+	private static final double SyncsPerSecond = 1.0;
+	private static final double TimingsPerSecond = 1.0;
+
+	/**
+	 * Typical size of an ALAC packet's payload
+	 */
+	private static final int AudioPayloadLength = 1000;
+
+	private static final int Rounds = 2000;
+
+	/* Datagrams as received */
+	private final byte[] m_audio;
+	private final byte[] m_sync;
+	private final byte[] m_timing;
+
+	private final HeapChannelBufferFactory m_factory = new HeapChannelBufferFactory();
+
+	private final RtpReceiveBufferFactory m_pooledFactory = new RtpReceiveBufferFactory(16);
+
+	/* The NIO worker's socket receive buffer */
+	private final ByteBuffer m_socketBuffer = ByteBuffer.allocateDirect(RtpReceiveBufferFactory.BufferLength);
+
+	/* Keeps the parsed values alive, so the parsing isn't optimized away */
+	private double m_sink = 0;
+
+	public RtpReceiveAllocationTest() {
+		final Random random = new Random(11);
+
+		final RaopRtpPacket.AudioTransmit audio = new RaopRtpPacket.AudioTransmit(AudioPayloadLength);
+		m_audio = datagram(audio.getBuffer());
+		random.nextBytes(m_audio);
+		m_audio[0] = (byte)0x80;
+		m_audio[1] = RaopRtpPacket.AudioTransmit.PayloadType;
+
+		final RaopRtpPacket.Sync sync = new RaopRtpPacket.Sync();
+		sync.getTime().setDouble(3.5);
+		m_sync = datagram(sync.getBuffer());
+
+		final RaopRtpPacket.TimingResponse timing = new RaopRtpPacket.TimingResponse();
+		timing.getReferenceTime().setDouble(1.25);
+		timing.getReceivedTime().setDouble(2.5);
+		timing.getSendTime().setDouble(2.75);
+		m_timing = datagram(timing.getBuffer());
+	}
+
+	private static byte[] datagram(final ChannelBuffer buffer) {
+		final byte[] bytes = new byte[buffer.capacity()];
+		buffer.getBytes(0, bytes);
+		return bytes;
+	}
+
+	/* bytes allocated by the current thread, or -1 if the JVM can't tell */
+	private static long allocatedBytes() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Receives a datagram like the OIO datagram worker
+	 */
+	private ChannelBuffer receive(final byte[] datagram) {
+		final byte[] receiveBuffer = new byte[1500];
+		System.arraycopy(datagram, 0, receiveBuffer, 0, datagram.length);
+		return m_factory.getBuffer(receiveBuffer, 0, datagram.length);
+	}
+
+	/**
+	 * Receives a datagram like the NIO datagram worker
+	 */
+	private ChannelBuffer receivePooled(final byte[] datagram) {
+		m_socketBuffer.clear();
+		m_socketBuffer.put(datagram);
+		m_socketBuffer.flip();
+
+		final int readBytes = m_socketBuffer.remaining();
+		final ChannelBuffer buffer = m_pooledFactory.getBuffer(readBytes);
+		buffer.setBytes(0, m_socketBuffer);
+		buffer.writerIndex(readBytes);
+		return buffer;
+	}
+
+	private void receiveAudio() throws Exception {
+		for (int i = 0; i < Rounds; ++i) {
+			final RaopRtpPacket packet = RaopRtpPacket.decode(receive(m_audio));
+			m_sink += ((RaopRtpPacket.Audio)packet).getTimeStamp();
+		}
+	}
+
+	private void receiveAudioPooled() throws Exception {
+		for (int i = 0; i < Rounds; ++i) {
+			final RaopRtpPacket packet = RaopRtpPacket.decode(receivePooled(m_audio));
+			m_sink += ((RaopRtpPacket.Audio)packet).getTimeStamp();
+			RtpReceiveBufferFactory.release(packet.getBuffer());
+		}
+	}
+
+	private void receiveSyncPooled() throws Exception {
+		for (int i = 0; i < Rounds; ++i) {
+			final ChannelBuffer buffer = RaopRtpPacket.decode(receivePooled(m_sync)).getBuffer();
+			m_sink += RaopRtpPacket.Sync.getTimeStampMinusLatency(buffer) + RaopRtpPacket.Sync.getTime(buffer);
+			RtpReceiveBufferFactory.release(buffer);
+		}
+	}
+
+	private void receiveTimingPooled() throws Exception {
+		for (int i = 0; i < Rounds; ++i) {
+			final ChannelBuffer buffer = RaopRtpPacket.decode(receivePooled(m_timing)).getBuffer();
+			m_sink += RaopRtpPacket.Timing.getReferenceTime(buffer) + RaopRtpPacket.Timing.getReceivedTime(buffer) + RaopRtpPacket.Timing.getSendTime(buffer);
+			RtpReceiveBufferFactory.release(buffer);
+		}
+	}
+
+	private void receiveSyncLegacy() throws Exception {
+		for (int i = 0; i < Rounds; ++i) {
+			final RaopRtpPacket.Sync packet = (RaopRtpPacket.Sync)RaopRtpPacket.decode(receive(m_sync));
+			m_sink += packet.getTimeStampMinusLatency() + packet.getTime().getDouble();
+		}
+	}
+
+	private void receiveSync() throws Exception {
+		for (int i = 0; i < Rounds; ++i) {
+			final ChannelBuffer buffer = RaopRtpPacket.decode(receive(m_sync)).getBuffer();
+			m_sink += RaopRtpPacket.Sync.getTimeStampMinusLatency(buffer) + RaopRtpPacket.Sync.getTime(buffer);
+		}
+	}
+
+	private void receiveTimingLegacy() throws Exception {
+		for (int i = 0; i < Rounds; ++i) {
+			final RaopRtpPacket.TimingResponse packet = (RaopRtpPacket.TimingResponse)RaopRtpPacket.decode(receive(m_timing));
+			m_sink += packet.getReferenceTime().getDouble() + packet.getReceivedTime().getDouble() + packet.getSendTime().getDouble();
+		}
+	}
+
+	private void receiveTiming() throws Exception {
+		for (int i = 0; i < Rounds; ++i) {
+			final ChannelBuffer buffer = RaopRtpPacket.decode(receive(m_timing)).getBuffer();
+			m_sink += RaopRtpPacket.Timing.getReferenceTime(buffer) + RaopRtpPacket.Timing.getReceivedTime(buffer) + RaopRtpPacket.Timing.getSendTime(buffer);
+		}
+	}
+
+	private interface Receiver {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Returns the bytes allocated per datagram, after warming up
+	 */
+	private static double bytesPerDatagram(final Receiver receiver) throws Exception {
+		for (int round = 0; round < 20; ++round)
+			receiver.run();
+
+		final long before = allocatedBytes();
+		receiver.run();
+		return (double)(allocatedBytes() - before) / Rounds;
+	}
+
+	@Test
+	public void staticAccessorsReadLikePacketAccessors() throws Exception {
+		final RaopRtpPacket.Sync sync = (RaopRtpPacket.Sync)RaopRtpPacket.decode(receive(m_sync));
+		assertEquals(sync.getTime().getDouble(), RaopRtpPacket.Sync.getTime(sync.getBuffer()), 0.0);
+		assertEquals(sync.getTimeStampMinusLatency(), RaopRtpPacket.Sync.getTimeStampMinusLatency(sync.getBuffer()));
+
+		final RaopRtpPacket.TimingResponse timing = (RaopRtpPacket.TimingResponse)RaopRtpPacket.decode(receive(m_timing));
+		assertEquals(1.25, RaopRtpPacket.Timing.getReferenceTime(timing.getBuffer()), 0.0);
+		assertEquals(2.5, RaopRtpPacket.Timing.getReceivedTime(timing.getBuffer()), 0.0);
+		assertEquals(2.75, RaopRtpPacket.Timing.getSendTime(timing.getBuffer()), 0.0);
+	}
+
+	@Test
+	public void reusesPooledBuffersAndPacketViews() throws Exception {
+		final ChannelBuffer buffer = receivePooled(m_audio);
+		assertEquals(m_audio.length, buffer.capacity());
+		assertEquals(m_audio.length, buffer.readableBytes());
+		final RaopRtpPacket.Audio packet = (RaopRtpPacket.Audio)RaopRtpPacket.decode(buffer);
+		assertEquals(m_audio.length, packet.getLength());
+		assertEquals(m_audio.length - RaopRtpPacket.AudioTransmit.Length, packet.getPayload().capacity());
+
+		/* A retained buffer returns to the pool once released by every holder */
+		RtpReceiveBufferFactory.retain(buffer);
+		RtpReceiveBufferFactory.release(buffer);
+		assertEquals(0, m_pooledFactory.getFreeCount());
+		assertNotSame(buffer, receivePooled(m_sync));
+		RtpReceiveBufferFactory.release(buffer);
+		assertEquals(1, m_pooledFactory.getFreeCount());
+
+		/* The buffer is re-used with the next datagram's length, and keeps its views */
+		final ChannelBuffer syncBuffer = receivePooled(m_sync);
+		assertSame(buffer, syncBuffer);
+		assertEquals(m_sync.length, syncBuffer.capacity());
+		assertEquals(m_sync.length, syncBuffer.duplicate().capacity());
+		final RaopRtpPacket.Sync sync = (RaopRtpPacket.Sync)RaopRtpPacket.decode(syncBuffer);
+		assertEquals(3.5, sync.getTime().getDouble(), 0.0);
+		RtpReceiveBufferFactory.release(syncBuffer);
+
+		final ChannelBuffer audioBuffer = receivePooled(m_audio);
+		assertSame(buffer, audioBuffer);
+		assertSame(packet, RaopRtpPacket.decode(audioBuffer));
+		RtpReceiveBufferFactory.release(audioBuffer);
+
+		/* Re-used views are checked against the type's minimum length, too */
+		final ChannelBuffer shortBuffer = receivePooled(Arrays.copyOf(m_audio, RaopRtpPacket.AudioTransmit.Length - 1));
+		assertSame(buffer, shortBuffer);
+		assertEquals(RaopRtpPacket.InvalidLength, RaopRtpPacket.validate(shortBuffer));
+		try {
+			RaopRtpPacket.decode(shortBuffer);
+			fail("decoded a truncated packet");
+		}
+		catch (final InvalidPacketException e) {
+			/* expected */
+		}
+		RtpReceiveBufferFactory.release(shortBuffer);
+	}
+
+	@Test
+	public void benchmarkAllocationRate() throws Exception {
+		/* before measuring, since loading the matcher classes allocates */
+		Assume.assumeTrue(allocatedBytes() >= 0);
+
+		final double audio = bytesPerDatagram(new Receiver() { public void run() throws Exception { receiveAudio(); } });
+		final double syncLegacy = bytesPerDatagram(new Receiver() { public void run() throws Exception { receiveSyncLegacy(); } });
+		final double sync = bytesPerDatagram(new Receiver() { public void run() throws Exception { receiveSync(); } });
+		final double timingLegacy = bytesPerDatagram(new Receiver() { public void run() throws Exception { receiveTimingLegacy(); } });
+		final double timing = bytesPerDatagram(new Receiver() { public void run() throws Exception { receiveTiming(); } });
+		final double audioPooled = bytesPerDatagram(new Receiver() { public void run() throws Exception { receiveAudioPooled(); } });
+		final double syncPooled = bytesPerDatagram(new Receiver() { public void run() throws Exception { receiveSyncPooled(); } });
+		final double timingPooled = bytesPerDatagram(new Receiver() { public void run() throws Exception { receiveTimingPooled(); } });
+
+		final double rateLegacy = audio * PacketsPerSecond + syncLegacy * SyncsPerSecond + timingLegacy * TimingsPerSecond;
+		final double rate = audio * PacketsPerSecond + sync * SyncsPerSecond + timing * TimingsPerSecond;
+		final double ratePooled = audioPooled * PacketsPerSecond + syncPooled * SyncsPerSecond + timingPooled * TimingsPerSecond;
+
+		System.out.printf("RTP receive allocations per datagram: audio %.0f, sync %.0f (was %.0f), timing %.0f (was %.0f) bytes, of which the receive array is %d%n",
+			audio, sync, syncLegacy, timing, timingLegacy, 1500 + 16);
+		System.out.printf("RTP receive allocations per datagram into pooled buffers: audio %.0f, sync %.0f, timing %.0f bytes%n",
+			audioPooled, syncPooled, timingPooled);
+		System.out.printf("RTP receive allocation rate at %.1f packets/s: %.1f KB/s per stream (was %.1f KB/s), %.2f KB/s into pooled buffers%n",
+			PacketsPerSecond, rate / 1024, rateLegacy / 1024, ratePooled / 1024);
+
+		assertTrue(sync < syncLegacy);
+		assertTrue(timing < timingLegacy);
+		assertTrue("pooled audio " + audioPooled, audioPooled < 16);
+		assertTrue("pooled sync " + syncPooled, syncPooled < 16);
+		assertTrue("pooled timing " + timingPooled, timingPooled < 16);
+		assertTrue(m_sink != 0);
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.Random;
+
+/**
+ * One-way transmission delays of the networks the synchronization tests
+ * simulate. Each delay is a fixed minimum, plus an exponentially distributed
+ * part, plus occasionally a long delay, e.g. a retransmission
+ */
+enum SimulatedNetwork {
+	/**
+	 * Wired LAN
+	 */
+	Lan(0.0005, 0.0003, 0.05, 0.01),
+
+	/**
+	 * Busy Wi-Fi, with retransmissions and power saving
+	 */
+	Wifi(0.0005, 0.002, 0.1, 0.02);
+
+	private final double m_minSeconds;
+	private final double m_meanExponentialSeconds;
+	private final double m_longDelayProbability;
+	private final double m_longDelaySeconds;
+
+	private SimulatedNetwork(final double minSeconds, final double meanExponentialSeconds, final double longDelayProbability, final double longDelaySeconds) {
+		m_minSeconds = minSeconds;
+		m_meanExponentialSeconds = meanExponentialSeconds;
+		m_longDelayProbability = longDelayProbability;
+		m_longDelaySeconds = longDelaySeconds;
+	}
+
+	/**
+	 * Returns the transmission delay of a packet
+	 *
+	 * @param random random source
+	 * @return delay in seconds
+	 */
+	public double nextDelay(final Random random) {
+		double delay = m_minSeconds - Math.log(1.0 - random.nextDouble()) * m_meanExponentialSeconds;
+		if (random.nextDouble() < m_longDelayProbability)
+			delay += m_longDelaySeconds;
+		return delay;
+	}
+}
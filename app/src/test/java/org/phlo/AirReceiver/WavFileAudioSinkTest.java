@@ -0,0 +1,74 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Records samples through {@link WavFileAudioSink} and reads the file back
+ */
+public class WavFileAudioSinkTest {
+	private static int getLeInt(final byte[] b, final int i) {
+		return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+	}
+
+	@Test
+	public void recordsWrittenSamples() throws IOException {
+		final File file = File.createTempFile("WavFileAudioSinkTest", ".wav");
+		try {
+			final AudioFormat format = new AudioFormat(44100, 16, 2, false, false);
+			final WavFileAudioSink sink = new WavFileAudioSink(format, 0.01, file);
+			sink.play();
+
+			/* Several times the buffer size, so the writes wait for room in between */
+			final byte[] samples = new byte[4 * 352 * 4];
+			for (int i = 0; i < samples.length; ++i)
+				samples[i] = (byte)(i * 7);
+			final int packet = 352 * 4;
+			for (int off = 0; off < samples.length; off += packet)
+				assertEquals(packet, sink.write(samples, off, packet));
+			sink.release();
+
+			final byte[] wav = new byte[(int)file.length()];
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				in.readFully(wav);
+			}
+			finally {
+				in.close();
+			}
+
+			assertEquals(44 + samples.length, wav.length);
+			assertEquals(wav.length - 8, getLeInt(wav, 4));
+			assertEquals(44100, getLeInt(wav, 24));
+			assertEquals(samples.length, getLeInt(wav, 40));
+			assertArrayEquals(samples, Arrays.copyOfRange(wav, 44, wav.length));
+		}
+		finally {
+			file.delete();
+		}
+	}
+}